@@ -0,0 +1,79 @@
+package fr.edyp.mascot.fasta;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate search kernel : insertion of all accessions of synthetic entries in an {@link AccessionDictionary},
+ * and lookup of all accessions in a filled dictionary. Scores are numbers of processed files per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessionDictionaryBenchmark {
+
+  @Param({"100000"})
+  public int nbEntries;
+
+  private ByteBuffer accessions;
+  // end of each accession in accessions
+  private int[] ends;
+  private AccessionDictionary dictionary;
+
+  @Setup
+  public void setup() throws IOException {
+    ByteBuffer fasta = BenchData.fasta(nbEntries, BenchData.SEED);
+    byte[] separator = FastaReader.toBytes(" ");
+    byte[] bytes = new byte[64 * nbEntries];
+    ends = new int[nbEntries];
+    int length = 0;
+    int nbAccessions = 0;
+    try (FastaReader reader = new FastaReader(fasta, 0)) {
+      while (reader.next()) {
+        ByteBuffer buf = reader.buffer();
+        int accEnd = FastaReader.indexOf(buf, separator, reader.recordStart(), reader.headerEnd());
+        if (length + accEnd - reader.recordStart() > bytes.length)
+          bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        buf.get(reader.recordStart() + 1, bytes, length, accEnd - reader.recordStart() - 1);
+        length += accEnd - reader.recordStart() - 1;
+        ends[nbAccessions++] = length;
+      }
+    }
+    accessions = ByteBuffer.wrap(bytes, 0, length);
+    dictionary = insert();
+  }
+
+  @Benchmark
+  public AccessionDictionary insertAccessions() {
+    return insert();
+  }
+
+  @Benchmark
+  public int findAccessions() {
+    int found = 0;
+    int start = 0;
+    for (int end : ends) {
+      if (dictionary.find(accessions, start, end) >= 0)
+        found++;
+      start = end;
+    }
+    return found;
+  }
+
+  private AccessionDictionary insert() {
+    AccessionDictionary names = new AccessionDictionary();
+    int start = 0;
+    for (int end : ends) {
+      names.add(accessions, start, end);
+      start = end;
+    }
+    return names;
+  }
+}
@@ -0,0 +1,119 @@
+package fr.edyp.mascot.fasta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic inputs of the benchmarks, generated from a fixed seed so that results of different releases may be compared :
+ * UniProt like fasta entries and Mascot searches log lines.
+ */
+class BenchData {
+
+  static final long SEED = 20240101L;
+  static final String[] MNEMOS = {"HUMAN", "MOUSE", "RAT", "BOVIN", "YEAST", "ECOLI", "ARATH", "DROME", "CAEEL", "DANRE"};
+  static final String[] DATABASES = {"SwissProt", "TrEMBL", "contaminants", "Human_2021", "Mouse_2020", "Yeast", "ECOLI_K12"};
+
+  private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWYAGLSEVKTILRDAGVLS";
+  private static final String ALPHANUM = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+  private static final int LINE_WIDTH = 60;
+  // Mascot writes start time as C ctime : day of month is padded with a space
+  private static final DateTimeFormatter LOG_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH);
+
+  /**
+   * @return UniProt like fasta entries (">sp|P12345|GENE1_HUMAN Description OS=... OX=... GN=... PE=1 SV=1"), about 1% of
+   * accessions being duplicated
+   */
+  static ByteBuffer fasta(int nbEntries, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(nbEntries * 450);
+    List<String> accessions = new ArrayList<>();
+    for (int e = 0; e < nbEntries; e++) {
+      String accession;
+      if (!accessions.isEmpty() && random.nextInt(100) == 0) {
+        accession = accessions.get(random.nextInt(accessions.size()));
+      } else {
+        String mnemo = MNEMOS[random.nextInt(MNEMOS.length)];
+        boolean reviewed = random.nextInt(4) == 0;
+        String id = reviewed ? "" + "OPQ".charAt(random.nextInt(3)) + random.nextInt(10) + randomString(random, ALPHANUM, 3) + random.nextInt(10)
+          : "A0A" + randomString(random, ALPHANUM, 7);
+        String name = reviewed ? randomString(random, ALPHANUM, 3 + random.nextInt(3)) : id;
+        accession = (reviewed ? "sp|" : "tr|") + id + "|" + name + "_" + mnemo;
+        accessions.add(accession);
+      }
+      sb.append('>').append(accession).append(' ').append("Uncharacterized protein ").append(randomString(random, ALPHANUM, 6))
+        .append(" OS=Organism ").append(accession, accession.lastIndexOf('_') + 1, accession.length())
+        .append(" OX=").append(1000 + random.nextInt(9000)).append(" GN=").append(randomString(random, ALPHANUM, 5))
+        .append(" PE=").append(1 + random.nextInt(5)).append(" SV=1\n");
+      appendSequence(sb, random, 50 + (int) Math.abs(random.nextGaussian() * 350));
+    }
+    return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * @return fasta entries formatted as &lt;prefix&gt;_&lt;accession&gt;, as processed by the shorten command.
+   * About 10% of accessions are longer than 50 characters and cut using '/' or '_'.
+   */
+  static ByteBuffer shortenFasta(int nbEntries, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(nbEntries * 450);
+    for (int e = 0; e < nbEntries; e++) {
+      sb.append(">db_");
+      if (random.nextInt(10) == 0) {
+        sb.append(randomString(random, ALPHANUM, 20 + random.nextInt(20))).append(random.nextBoolean() ? '/' : '_')
+          .append(randomString(random, ALPHANUM, 40));
+      } else {
+        sb.append(randomString(random, ALPHANUM, 6 + random.nextInt(10)));
+        if (random.nextInt(20) == 0)
+          sb.append(",\"'");
+      }
+      sb.append('\n');
+      appendSequence(sb, random, 50 + (int) Math.abs(random.nextGaussian() * 350));
+    }
+    return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * @return searches log lines (16 tab separated columns) of searches started every few minutes from 2015,
+   * on one to three databases, 5% of them being monitor searches
+   */
+  static ByteBuffer searchesLog(int nbLines, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(nbLines * 200);
+    LocalDateTime time = LocalDateTime.of(2015, 1, 1, 0, 0);
+    for (int l = 0; l < nbLines; l++) {
+      time = time.plusSeconds(random.nextInt(600));
+      int nbDbs = 1 + random.nextInt(3);
+      StringBuilder dbs = new StringBuilder();
+      for (int d = 0; d < nbDbs; d++)
+        dbs.append(d == 0 ? "" : ",").append(DATABASES[random.nextInt(DATABASES.length)]);
+      String user = (random.nextInt(20) == 0) ? "Monitor Test DB " + dbs : "user" + random.nextInt(50);
+      sb.append(100000 + l).append('\t').append(random.nextInt(30000)).append('\t').append(dbs).append('\t').append(user)
+        .append('\t').append(user).append("@example.org\tSearch ").append(l).append("\t../data/").append(time.toLocalDate()).append("/F").append(l).append(".dat")
+        .append('\t').append(LOG_DATE_FORMAT.format(time)).append('\t').append(random.nextInt(3600)).append("\tUser read last result\t")
+        .append(random.nextInt(2)).append("\tMIS\tTrypsin/P\t192.168.0.").append(random.nextInt(255)).append('\t').append(random.nextInt(100))
+        .append("\tsample").append(l).append(".mgf\n");
+    }
+    return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static void appendSequence(StringBuilder sb, Random random, int length) {
+    for (int i = 0; i < length; i++) {
+      sb.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+      if ((i + 1) % LINE_WIDTH == 0 || i == length - 1)
+        sb.append('\n');
+    }
+  }
+
+  private static String randomString(Random random, String chars, int length) {
+    char[] value = new char[length];
+    for (int i = 0; i < length; i++)
+      value[i] = chars.charAt(random.nextInt(chars.length()));
+    return new String(value);
+  }
+}
@@ -0,0 +1,91 @@
+package fr.edyp.mascot.fasta;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per record kernels of the fasta commands, on synthetic entries held in memory : reading records and locating
+ * accessions, shortening accessions (shorten), and filtering entries on taxonomy mnemonic (extract_taxo). The record
+ * processors of the commands are run, written entries being discarded.
+ * Scores are numbers of processed files per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FastaBenchmark {
+
+  @Param({"20000"})
+  public int nbEntries;
+
+  private final byte[] shortenSeparator = FastaReader.toBytes("_");
+  private final byte[] mnemo = FastaReader.toBytes("_HUMAN");
+  private ByteBuffer fasta;
+  private ByteBuffer shortenFasta;
+
+  @Setup
+  public void setup() {
+    fasta = BenchData.fasta(nbEntries, BenchData.SEED);
+    shortenFasta = BenchData.shortenFasta(nbEntries, BenchData.SEED);
+  }
+
+  @Benchmark
+  public long readRecords() throws IOException {
+    long length = 0;
+    try (FastaReader reader = new FastaReader(fasta.duplicate(), 0)) {
+      while (reader.next())
+        length += reader.recordEnd() - reader.sequenceStart();
+    }
+    return length;
+  }
+
+  @Benchmark
+  public long parseAccessions() throws IOException {
+    long length = 0;
+    HeaderFormat.Parser header = HeaderFormat.DEFAULT.newParser();
+    try (FastaReader reader = new FastaReader(fasta.duplicate(), 0)) {
+      while (reader.next()) {
+        if (!reader.hasHeader())
+          continue;
+        header.parse(reader.buffer(), reader.recordStart(), reader.headerEnd());
+        length += header.end(HeaderFormat.ACCESSION) - header.start(HeaderFormat.ACCESSION);
+      }
+    }
+    return length;
+  }
+
+  @Benchmark
+  public long shortenAccessions() throws IOException {
+    FastaChunkProcessor.RecordProcessor processor = FastaUtil.shortenProcessor(shortenSeparator, new AccessionDictionary());
+    return process(shortenFasta, processor);
+  }
+
+  @Benchmark
+  public int filterTaxonomy() throws IOException {
+    AtomicInteger nbExtracted = new AtomicInteger();
+    process(fasta, FastaTaxoUtil.taxonomyExtractor(HeaderFormat.DEFAULT, mnemo, nbExtracted));
+    return nbExtracted.get();
+  }
+
+  /**
+   * Run processor on all records of data as a single chunk, output being discarded
+   *
+   * @return number of bytes written
+   */
+  private static long process(ByteBuffer data, FastaChunkProcessor.RecordProcessor processor) throws IOException {
+    try (FastaReader reader = new FastaReader(data.duplicate(), 0);
+         FastaWriter writer = new FastaWriter(OutputStream.nullOutputStream(), 64 * 1024)) {
+      while (reader.next())
+        processor.process(reader, writer);
+      processor.chunkDone();
+      return writer.bytesWritten();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package fr.edyp.mascot.fasta;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * db_usage kernel : parsing of synthetic searches log lines, for all databases or a single one. Parsing start times of
+ * all lines with a date formatter is given as a reference for the date parsing cost.
+ * Scores are numbers of processed logs per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchesLogBenchmark {
+
+  @Param({"100000"})
+  public int nbLines;
+
+  private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("eee MMM d HH:mm:ss yyyy", Locale.ENGLISH);
+  private ByteBuffer log;
+  private String[] startTimes;
+
+  @Setup
+  public void setup() {
+    log = BenchData.searchesLog(nbLines, BenchData.SEED);
+    String[] lines = StandardCharsets.ISO_8859_1.decode(log.duplicate()).toString().split("\n");
+    startTimes = new String[lines.length];
+    for (int l = 0; l < lines.length; l++)
+      startTimes[l] = lines[l].split("\t")[7];
+  }
+
+  @Benchmark
+  public DBUsageLog.LogChunkParser parseAllDatabases() {
+    DBUsageLog.LogChunkParser parser = new DBUsageLog.LogChunkParser(null, true);
+    parser.parse(log.duplicate());
+    return parser;
+  }
+
+  @Benchmark
+  public DBUsageLog.LogChunkParser parseOneDatabase() {
+    DBUsageLog.LogChunkParser parser = new DBUsageLog.LogChunkParser("SwissProt", true);
+    parser.parse(log.duplicate());
+    return parser;
+  }
+
+  @Benchmark
+  public void parseStartTimesWithFormatter(Blackhole blackhole) {
+    for (String startTime : startTimes)
+      blackhole.consume(LocalDate.parse(startTime.trim().replaceAll("  ", " "), dateFormat));
+  }
+}
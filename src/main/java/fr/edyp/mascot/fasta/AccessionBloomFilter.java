@@ -0,0 +1,88 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter of accessions : tells whether an accession may have been added before, without false negative.
+ * The filter uses a fixed number of bits whatever the length of accessions : with 10 bits by expected accession,
+ * about 1% of new accessions are wrongly reported as already added.
+ * Bits of an accession are chosen from a 64 bits hash of its bytes, as h1 + i * h2 (double hashing).
+ * The filter never uses more than a quarter of the maximum heap : it then reports more false positives.
+ * This class is not thread safe.
+ */
+public class AccessionBloomFilter {
+
+  private final static Logger logger = LoggerFactory.getLogger(AccessionBloomFilter.class);
+
+  private final static int NB_HASHES = 7;
+  private final static long MIN_BITS = 1L << 16;
+  private final static long MAX_BITS = 1L << 36;
+  private final static int MAX_HEAP_SHARE = 4;
+
+  private final long[] words;
+  private final long mask;
+
+  /**
+   * @param expectedSize number of accessions which will be added
+   * @param bitsPerEntry number of bits by expected accession. The number of bits is rounded up to a power of two,
+   *                     or down when the filter would use more than its share of the heap.
+   */
+  public AccessionBloomFilter(long expectedSize, int bitsPerEntry) {
+    long maxBits = Math.max(MIN_BITS, Long.highestOneBit(Math.min(MAX_BITS, Runtime.getRuntime().maxMemory() / MAX_HEAP_SHARE * 8)));
+    long nbBits = Math.max(MIN_BITS, expectedSize * bitsPerEntry);
+    nbBits = Long.highestOneBit(nbBits - 1) << 1;
+    if (nbBits > maxBits) {
+      logger.warn("Bloom filter limited to " + (maxBits / (8 * 1024 * 1024)) + " MB for " + expectedSize
+        + " expected accessions : more false positives will be kept as candidates (increase -Xmx to avoid it)");
+      nbBits = maxBits;
+    }
+    words = new long[(int) (nbBits >>> 6)];
+    mask = nbBits - 1;
+  }
+
+  /**
+   * Add accession found in buf between from (inclusive) and to (exclusive)
+   *
+   * @return true if the accession may have been added before, false if it was not
+   */
+  public boolean add(ByteBuffer buf, int from, int to) {
+    long h1 = hash(buf, from, to);
+    long h2 = (Long.rotateLeft(h1, 32) * 0x9E3779B97F4A7C15L) | 1;
+    boolean found = true;
+    for (int i = 0; i < NB_HASHES; i++) {
+      long bit = (h1 + i * h2) & mask;
+      int word = (int) (bit >>> 6);
+      long bitMask = 1L << bit;
+      if ((words[word] & bitMask) == 0) {
+        found = false;
+        words[word] |= bitMask;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return number of bytes used by this filter
+   */
+  public long memoryUsage() {
+    return 8L * words.length;
+  }
+
+  private static long hash(ByteBuffer buf, int from, int to) {
+    long h = 0xCBF29CE484222325L;
+    for (int i = from; i < to; i++) {
+      h ^= buf.get(i);
+      h *= 0x100000001B3L;
+    }
+    //final mix as in murmur3 : all bits are used
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,237 @@
+package fr.edyp.mascot.fasta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact set of accessions, keyed on accession bytes. Replaces a HashSet&lt;String&gt; for large fasta files.
+ * Accession bytes are stored one after the other in a paged byte arena and indexed by an open addressing
+ * hash table of ints : no object is created per accession.
+ * Each accession gets an id (0, 1, 2 ... in insertion order) and may be associated to an int value.
+ * This class is not thread safe.
+ */
+public class AccessionDictionary {
+
+  private final static int PAGE_BITS = 22;
+  private final static int PAGE_SIZE = 1 << PAGE_BITS;
+  private final static int LENGTH_SHIFT = 40;
+  private final static long POSITION_MASK = (1L << LENGTH_SHIFT) - 1;
+  private final static float LOAD_FACTOR = 0.6f;
+
+  // table of (id + 1), 0 for empty slot
+  private int[] table;
+  private int mask;
+  // by id : hash and (length << 40 | arena position)
+  private int[] hashes;
+  private long[] entries;
+  private int[] values;
+  private int size;
+
+  private byte[][] pages = new byte[1][];
+  private int nbPages = 0;
+  private int pageFill = PAGE_SIZE;
+
+  public AccessionDictionary() {
+    this(1024);
+  }
+
+  public AccessionDictionary(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(1 << 30, expectedSize / LOAD_FACTOR)) - 1) << 1;
+    table = new int[capacity];
+    mask = capacity - 1;
+    hashes = new int[Math.max(16, expectedSize)];
+    entries = new long[hashes.length];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add accession found in buf between from (inclusive) and to (exclusive)
+   *
+   * @return id of the added accession, or (-id - 1) if accession was already in dictionary.
+   */
+  public int add(ByteBuffer buf, int from, int to) {
+    int hash = hash(buf, from, to);
+    int slot = hash & mask;
+    int id;
+    while ((id = table[slot]) != 0) {
+      if (hashes[id - 1] == hash && equals(id - 1, buf, from, to))
+        return -id;
+      slot = (slot + 1) & mask;
+    }
+    int newId = newEntry(hash, to - from);
+    long pos = entries[newId] & POSITION_MASK;
+    buf.get(from, pages[(int) (pos >>> PAGE_BITS)], (int) (pos & (PAGE_SIZE - 1)), to - from);
+    insertInTable(slot, newId);
+    return newId;
+  }
+
+  /**
+   * @see #add(ByteBuffer, int, int)
+   */
+  public int add(byte[] bytes, int from, int to) {
+    return add(ByteBuffer.wrap(bytes), from, to);
+  }
+
+  /**
+   * @return id of the accession found in buf between from (inclusive) and to (exclusive), -1 if not in dictionary
+   */
+  public int find(ByteBuffer buf, int from, int to) {
+    int hash = hash(buf, from, to);
+    int slot = hash & mask;
+    int id;
+    while ((id = table[slot]) != 0) {
+      if (hashes[id - 1] == hash && equals(id - 1, buf, from, to))
+        return id - 1;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int find(byte[] bytes, int from, int to) {
+    return find(ByteBuffer.wrap(bytes), from, to);
+  }
+
+  public boolean contains(byte[] bytes, int from, int to) {
+    return find(bytes, from, to) >= 0;
+  }
+
+  /**
+   * @return value associated to specified accession id, 0 if none was set
+   */
+  public int getValue(int id) {
+    return (values == null || id >= values.length) ? 0 : values[id];
+  }
+
+  public void setValue(int id, int value) {
+    if (values == null)
+      values = new int[hashes.length];
+    else if (values.length < hashes.length)
+      values = Arrays.copyOf(values, hashes.length);
+    values[id] = value;
+  }
+
+  /**
+   * @return number of bytes of accession with specified id
+   */
+  public int length(int id) {
+    return (int) (entries[id] >>> LENGTH_SHIFT);
+  }
+
+  /**
+   * Copy bytes of accession with specified id in dest, starting at offset.
+   *
+   * @return number of copied bytes
+   */
+  public int copyTo(int id, byte[] dest, int offset) {
+    long pos = entries[id] & POSITION_MASK;
+    int len = length(id);
+    System.arraycopy(pages[(int) (pos >>> PAGE_BITS)], (int) (pos & (PAGE_SIZE - 1)), dest, offset, len);
+    return len;
+  }
+
+  /**
+   * Compare bytes (as unsigned values) of two accessions
+   *
+   * @return a negative value, zero or a positive value if accession id is before, equal or after accession otherId
+   */
+  public int compare(int id, int otherId) {
+    long pos = entries[id] & POSITION_MASK;
+    long otherPos = entries[otherId] & POSITION_MASK;
+    return Arrays.compareUnsigned(pages[(int) (pos >>> PAGE_BITS)], (int) (pos & (PAGE_SIZE - 1)), (int) (pos & (PAGE_SIZE - 1)) + length(id),
+      pages[(int) (otherPos >>> PAGE_BITS)], (int) (otherPos & (PAGE_SIZE - 1)), (int) (otherPos & (PAGE_SIZE - 1)) + length(otherId));
+  }
+
+  public String toString(int id) {
+    byte[] bytes = new byte[length(id)];
+    copyTo(id, bytes, 0);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @return approximate number of bytes used by this dictionary
+   */
+  public long memoryUsage() {
+    long usage = 4L * table.length + 4L * hashes.length + 8L * entries.length;
+    if (values != null)
+      usage += 4L * values.length;
+    for (int p = 0; p < nbPages; p++)
+      usage += pages[p].length;
+    return usage;
+  }
+
+  private int newEntry(int hash, int length) {
+    if (length >= PAGE_SIZE)
+      throw new IllegalArgumentException("Accession too long : " + length + " bytes");
+    if (size == hashes.length) {
+      int newLength = (int) Math.min(Integer.MAX_VALUE - 8, hashes.length * 2L);
+      hashes = Arrays.copyOf(hashes, newLength);
+      entries = Arrays.copyOf(entries, newLength);
+    }
+    if (nbPages == 0 || pageFill + length > PAGE_SIZE) {
+      if (nbPages == pages.length)
+        pages = Arrays.copyOf(pages, pages.length * 2);
+      pages[nbPages] = new byte[nbPages == 0 ? 64 * 1024 : PAGE_SIZE];
+      nbPages++;
+      pageFill = 0;
+    }
+    byte[] page = pages[nbPages - 1];
+    if (pageFill + length > page.length) // first page is allocated small and grows as needed
+      pages[nbPages - 1] = Arrays.copyOf(page, Math.min(PAGE_SIZE, Math.max(pageFill + length, page.length * 2)));
+    long pos = ((long) (nbPages - 1) << PAGE_BITS) | pageFill;
+    pageFill += length;
+    hashes[size] = hash;
+    entries[size] = ((long) length << LENGTH_SHIFT) | pos;
+    return size++;
+  }
+
+  private void insertInTable(int slot, int id) {
+    table[slot] = id + 1;
+    if (size > table.length * LOAD_FACTOR && table.length < (1 << 30))
+      rehash(table.length * 2);
+  }
+
+  private void rehash(int capacity) {
+    int[] newTable = new int[capacity];
+    int newMask = capacity - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hashes[id] & newMask;
+      while (newTable[slot] != 0)
+        slot = (slot + 1) & newMask;
+      newTable[slot] = id + 1;
+    }
+    table = newTable;
+    mask = newMask;
+  }
+
+  private boolean equals(int id, ByteBuffer buf, int from, int to) {
+    if (length(id) != to - from)
+      return false;
+    long pos = entries[id] & POSITION_MASK;
+    byte[] page = pages[(int) (pos >>> PAGE_BITS)];
+    int offset = (int) (pos & (PAGE_SIZE - 1));
+    for (int i = from; i < to; i++) {
+      if (page[offset++] != buf.get(i))
+        return false;
+    }
+    return true;
+  }
+
+  static int hash(ByteBuffer buf, int from, int to) {
+    int h = 0x811C9DC5;
+    for (int i = from; i < to; i++) {
+      h ^= buf.get(i);
+      h *= 0x01000193;
+    }
+    //final mix as in murmur3 : low bits are used as table index
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,241 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Run a command on many fasta files in the same JVM. Files are processed on a fixed pool, largest files first, and the
+ * number of files read at the same time from each file store (disk) is limited, so that concurrent reads of a rotating
+ * disk don't slow down all files. A failure on one file doesn't stop the other ones : the result of each file is
+ * returned, to be logged or saved as a summary.
+ */
+public class BatchRunner {
+
+  private final static Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+  public final static String DEFAULT_GLOB = "**.{fasta,fasta.gz,fa,fa.gz}";
+
+  public interface FileTask {
+    void run(File file) throws Exception;
+  }
+
+  private final int nbParallelFiles;
+  private final int filesPerStore;
+
+  /**
+   * @param nbParallelFiles maximum number of files processed at the same time
+   * @param filesPerStore   maximum number of files processed at the same time on the same file store
+   */
+  public BatchRunner(int nbParallelFiles, int filesPerStore) {
+    this.nbParallelFiles = Math.max(1, nbParallelFiles);
+    this.filesPerStore = Math.max(1, filesPerStore);
+  }
+
+  /**
+   * @return files of dir and its sub directories whose path relative to dir matches glob, as "**.fasta" or "*&#47;current/*.fasta"
+   */
+  public static List<File> listFiles(File dir, String glob) throws IOException {
+    if (!dir.isDirectory())
+      throw new IOException("Can't find directory " + dir.getAbsolutePath());
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    Path root = dir.toPath();
+    try (Stream<Path> paths = Files.walk(root)) {
+      return paths.filter(Files::isRegularFile).filter(p -> matcher.matches(root.relativize(p)))
+        .map(Path::toFile).sorted().collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Run task on each file and wait for all files to be processed.
+   *
+   * @return result of each file, in files order
+   */
+  public List<FileResult> run(List<File> files, FileTask task) throws IOException, InterruptedException {
+    // largest files first, so that a large file doesn't run alone at the end
+    List<File> pending = new ArrayList<>(files);
+    pending.sort(Comparator.comparingLong(File::length).reversed());
+    Map<FileStore, Semaphore> storePermits = new HashMap<>();
+    Map<File, Semaphore> permitsByFile = new HashMap<>();
+    for (File file : pending)
+      permitsByFile.put(file, storePermits.computeIfAbsent(Files.getFileStore(file.toPath()), s -> new Semaphore(filesPerStore)));
+    int nbThreads = Math.min(nbParallelFiles, Math.max(1, files.size()));
+    logger.info("Process " + files.size() + " files, " + nbThreads + " at a time and no more than " + filesPerStore + " at a time on each of the "
+      + storePermits.size() + " file store(s)");
+
+    Map<File, FileResult> results = new ConcurrentHashMap<>();
+    AtomicInteger nbDone = new AtomicInteger();
+    AtomicInteger threadIndex = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(nbThreads, r -> new Thread(r, "batch-" + threadIndex.incrementAndGet()));
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int t = 0; t < nbThreads; t++) {
+      workers.add(() -> {
+        File file;
+        while ((file = nextFile(pending, permitsByFile)) != null) {
+          try {
+            FileResult result = runTask(file, task);
+            results.put(file, result);
+            logger.info("[" + nbDone.incrementAndGet() + "/" + files.size() + "] " + result);
+          } finally {
+            permitsByFile.get(file).release();
+            synchronized (pending) {
+              pending.notifyAll();
+            }
+          }
+        }
+        return null;
+      });
+    }
+    try {
+      pool.invokeAll(workers);
+    } finally {
+      pool.shutdownNow();
+    }
+    List<FileResult> ordered = new ArrayList<>();
+    for (File file : files)
+      ordered.add(results.get(file));
+    return ordered;
+  }
+
+  /**
+   * Wait for a pending file whose file store has a free permit, and take this permit.
+   *
+   * @return next file to process, null when all files were taken
+   */
+  private static File nextFile(List<File> pending, Map<File, Semaphore> permitsByFile) throws InterruptedException {
+    synchronized (pending) {
+      while (!pending.isEmpty()) {
+        for (Iterator<File> it = pending.iterator(); it.hasNext(); ) {
+          File file = it.next();
+          if (permitsByFile.get(file).tryAcquire()) {
+            it.remove();
+            return file;
+          }
+        }
+        pending.wait();
+      }
+      return null;
+    }
+  }
+
+  private static FileResult runTask(File file, FileTask task) {
+    long start = System.nanoTime();
+    logger.info("Start processing " + file.getAbsolutePath());
+    try {
+      task.run(file);
+      return new FileResult(file, System.nanoTime() - start, null);
+    } catch (Throwable e) {
+      // any error (as StackOverflowError) fails the file only : each file gets a result
+      logger.error("Error processing " + file.getAbsolutePath() + " : " + e, e);
+      return new FileResult(file, System.nanoTime() - start, e);
+    }
+  }
+
+  /**
+   * Log the result of each file, and save them as tab separated values in summaryFile if not null.
+   *
+   * @return number of failed files
+   */
+  public static int summarize(List<FileResult> results, File summaryFile) throws IOException {
+    int nbFailed = 0;
+    long totalSize = 0;
+    logger.info(" ** Batch summary :");
+    for (FileResult result : results) {
+      logger.info("  " + result);
+      totalSize += result.size;
+      if (!result.success())
+        nbFailed++;
+    }
+    logger.info(" ** " + (results.size() - nbFailed) + " files processed, " + nbFailed + " failed, "
+      + String.format(Locale.ENGLISH, "%.1f MB", totalSize / (1024.0 * 1024.0)));
+    if (summaryFile != null) {
+      try (PrintWriter writer = new PrintWriter(summaryFile, StandardCharsets.UTF_8)) {
+        writer.println("file\tsize\tstatus\tseconds\tMB/s\terror");
+        for (FileResult result : results) {
+          writer.println(result.file.getAbsolutePath() + "\t" + result.size + "\t" + (result.success() ? "OK" : "FAILED") + "\t"
+            + String.format(Locale.ENGLISH, "%.2f\t%.1f", result.seconds(), result.throughput()) + "\t"
+            + (result.success() ? "" : result.errorMessage().replace('\t', ' ').replace('\n', ' ')));
+        }
+      }
+      logger.info("Summary saved in " + summaryFile.getAbsolutePath());
+    }
+    return nbFailed;
+  }
+
+  /**
+   * Processing of some files of a batch failed
+   */
+  public static class BatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BatchException(String message) {
+      super(message);
+    }
+  }
+
+  public static class FileResult {
+    final File file;
+    final long size;
+    final long nanos;
+    final Throwable error;
+
+    FileResult(File file, long nanos, Throwable error) {
+      this.file = file;
+      this.size = file.length();
+      this.nanos = nanos;
+      this.error = error;
+    }
+
+    public boolean success() {
+      return error == null;
+    }
+
+    /**
+     * @return message of the error, or its class when it has none (as StackOverflowError)
+     */
+    String errorMessage() {
+      return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    double seconds() {
+      return nanos / 1e9;
+    }
+
+    /**
+     * @return MB read per second
+     */
+    double throughput() {
+      return seconds() > 0 ? size / (1024.0 * 1024.0) / seconds() : 0;
+    }
+
+    @Override
+    public String toString() {
+      return file.getName() + (success() ? " OK " : " FAILED ") + String.format(Locale.ENGLISH, "%.1f MB in %.1f s (%.1f MB/s)",
+        size / (1024.0 * 1024.0), seconds(), throughput()) + (success() ? "" : " : " + errorMessage());
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream reading a BGZF file (see {@link BgzfOutputStream}). Compressed blocks are read ahead
+ * from the underlying stream and decompressed in parallel on the specified pool.
+ */
+public class BgzfInputStream extends InputStream {
+
+  final static int ID1 = 0x1f;
+  final static int ID2 = 0x8b;
+  final static int HEADER_SIZE = 18;
+  private final static int FIXED_HEADER_SIZE = 12;
+  private final static int FLG_EXTRA = 4;
+
+  private final static ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+  private final InputStream in;
+  private final ExecutorService pool;
+  private final int maxInFlight;
+  private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+  private boolean inputEnd;
+  private byte[] current = new byte[0];
+  private int pos;
+
+  /**
+   * @param maxInFlight maximum number of blocks read ahead
+   */
+  public BgzfInputStream(InputStream in, ExecutorService pool, int maxInFlight) {
+    this.in = in;
+    this.pool = pool;
+    this.maxInFlight = Math.max(1, maxInFlight);
+  }
+
+  /**
+   * @return true if header bytes are the start of a BGZF block
+   */
+  static boolean isBgzfHeader(byte[] header) {
+    return header.length >= HEADER_SIZE && (header[0] & 0xFF) == ID1 && (header[1] & 0xFF) == ID2 && header[2] == 8
+      && (header[3] & FLG_EXTRA) != 0 && readShort(header, 10) >= 6 && header[12] == 'B' && header[13] == 'C' && readShort(header, 14) == 2;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureAvailable())
+      return -1;
+    return current[pos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!ensureAvailable())
+      return -1;
+    int n = Math.min(len, current.length - pos);
+    System.arraycopy(current, pos, bytes, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current.length - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    inFlight.forEach(f -> f.cancel(false));
+    inFlight.clear();
+    in.close();
+  }
+
+  private boolean ensureAvailable() throws IOException {
+    while (pos == current.length) {
+      readAhead();
+      if (inFlight.isEmpty())
+        return false;
+      try {
+        current = inFlight.removeFirst().get();
+        pos = 0;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while decompressing");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException("Error decompressing block", e.getCause());
+      }
+    }
+    return true;
+  }
+
+  private void readAhead() throws IOException {
+    while (!inputEnd && inFlight.size() < maxInFlight) {
+      byte[] member = readMember();
+      if (member == null)
+        inputEnd = true;
+      else
+        inFlight.addLast(pool.submit(() -> decompressMember(member)));
+    }
+  }
+
+  /**
+   * @return next gzip member, null at end of input
+   */
+  private byte[] readMember() throws IOException {
+    byte[] header = in.readNBytes(FIXED_HEADER_SIZE);
+    if (header.length == 0)
+      return null;
+    if (header.length < FIXED_HEADER_SIZE)
+      throw new EOFException("Truncated gzip member");
+    if ((header[0] & 0xFF) != ID1 || (header[1] & 0xFF) != ID2 || header[2] != 8 || (header[3] & FLG_EXTRA) == 0)
+      throw new IOException("Not a BGZF block : all gzip members should have a BC extra field");
+    int extraLength = readShort(header, 10);
+    byte[] extra = in.readNBytes(extraLength);
+    if (extra.length < extraLength)
+      throw new EOFException("Truncated gzip member");
+    int blockSize = -1;
+    for (int i = 0; i + 4 <= extraLength; i += 4 + readShort(extra, i + 2)) {
+      if (extra[i] == 'B' && extra[i + 1] == 'C' && readShort(extra, i + 2) == 2 && i + 6 <= extraLength)
+        blockSize = readShort(extra, i + 4) + 1;
+    }
+    int dataOffset = FIXED_HEADER_SIZE + extraLength;
+    if (blockSize < dataOffset + BgzfOutputStream.FOOTER_SIZE)
+      throw new IOException("Not a BGZF block : missing or invalid BC extra field");
+
+    byte[] member = new byte[blockSize];
+    System.arraycopy(header, 0, member, 0, FIXED_HEADER_SIZE);
+    System.arraycopy(extra, 0, member, FIXED_HEADER_SIZE, extraLength);
+    if (in.readNBytes(member, dataOffset, blockSize - dataOffset) < blockSize - dataOffset)
+      throw new EOFException("Truncated gzip member");
+    return member;
+  }
+
+  static byte[] decompressMember(byte[] member) throws IOException {
+    int dataOffset = FIXED_HEADER_SIZE + readShort(member, 10);
+    int size = readInt(member, member.length - 4);
+    // size is read from the file : check it before allocating
+    if (size < 0 || size > BgzfOutputStream.MAX_BLOCK_SIZE)
+      throw new IOException("Corrupted BGZF block : invalid size " + Integer.toUnsignedString(size));
+    byte[] data = new byte[size];
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    // footer bytes are given too : they are ignored once the deflate stream is finished
+    inflater.setInput(member, dataOffset, member.length - dataOffset);
+    try {
+      int n = 0;
+      while (n < size) {
+        int r = inflater.inflate(data, n, size - n);
+        if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        n += r;
+      }
+      // reach the end of the deflate stream, which should not contain more bytes
+      if (n == size && !inflater.finished() && inflater.inflate(new byte[1]) > 0)
+        n++;
+      if (n != size || !inflater.finished())
+        throw new IOException("Corrupted BGZF block : size doesn't match");
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted BGZF block", e);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    if ((int) crc.getValue() != readInt(member, member.length - 8))
+      throw new IOException("Corrupted BGZF block : CRC doesn't match");
+    return data;
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+  }
+}
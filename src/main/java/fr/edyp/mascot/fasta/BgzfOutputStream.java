@@ -0,0 +1,155 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream writing BGZF blocks : each block of at most 64 KB is a complete gzip member, with a "BC"
+ * extra field giving its compressed size. Any gzip reader can read the result, and blocks can be decompressed
+ * independently. Blocks are compressed in parallel on the specified pool and written in order.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+  // uncompressed block size used by bgzip : compressed block always fits in 64 KB
+  final static int MAX_BLOCK_DATA = 0xFF00;
+  final static int MAX_BLOCK_SIZE = 0x10000;
+  final static int FOOTER_SIZE = 8;
+
+  // Empty block marking the end of a BGZF file
+  private final static byte[] EOF_BLOCK = {
+    0x1f, (byte) 0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte) 0xff, 0x06, 0, 0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private final static ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+  private final OutputStream out;
+  private final ExecutorService pool;
+  private final int maxInFlight;
+  private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+  private byte[] block = new byte[MAX_BLOCK_DATA];
+  private int count;
+  private boolean closed;
+
+  /**
+   * @param maxInFlight maximum number of blocks being compressed at the same time
+   */
+  public BgzfOutputStream(OutputStream out, ExecutorService pool, int maxInFlight) {
+    this.out = out;
+    this.pool = pool;
+    this.maxInFlight = Math.max(1, maxInFlight);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == block.length)
+      submitBlock();
+    block[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == block.length)
+        submitBlock();
+      int n = Math.min(len, block.length - count);
+      System.arraycopy(bytes, off, block, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Compress pending bytes and write all blocks. Flushing often creates small blocks.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (count > 0)
+      submitBlock();
+    while (!inFlight.isEmpty())
+      writeFirstBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    try {
+      flush();
+      out.write(EOF_BLOCK);
+    } finally {
+      inFlight.forEach(f -> f.cancel(false));
+      out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    while (inFlight.size() >= maxInFlight)
+      writeFirstBlock();
+    byte[] data = block;
+    int length = count;
+    inFlight.addLast(pool.submit(() -> compressBlock(data, length)));
+    block = new byte[MAX_BLOCK_DATA];
+    count = 0;
+    // write blocks already compressed to keep memory low
+    while (!inFlight.isEmpty() && inFlight.peekFirst().isDone())
+      writeFirstBlock();
+  }
+
+  private void writeFirstBlock() throws IOException {
+    try {
+      out.write(inFlight.removeFirst().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Error compressing block", e.getCause());
+    }
+  }
+
+  /**
+   * @return gzip member containing data bytes from 0 to length
+   */
+  static byte[] compressBlock(byte[] data, int length) throws IOException {
+    byte[] member = new byte[MAX_BLOCK_SIZE];
+    System.arraycopy(EOF_BLOCK, 0, member, 0, BgzfInputStream.HEADER_SIZE);
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(data, 0, length);
+    deflater.finish();
+    int maxCompressed = MAX_BLOCK_SIZE - BgzfInputStream.HEADER_SIZE - FOOTER_SIZE;
+    int compressed = 0;
+    while (!deflater.finished() && compressed < maxCompressed)
+      compressed += deflater.deflate(member, BgzfInputStream.HEADER_SIZE + compressed, maxCompressed - compressed);
+    if (!deflater.finished())
+      throw new IOException("Compressed block larger than " + MAX_BLOCK_SIZE + " bytes");
+
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    int size = BgzfInputStream.HEADER_SIZE + compressed + FOOTER_SIZE;
+    writeShort(member, 16, size - 1);
+    writeInt(member, size - 8, (int) crc.getValue());
+    writeInt(member, size - 4, length);
+    return Arrays.copyOf(member, size);
+  }
+
+  private static void writeShort(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    writeShort(bytes, offset, value);
+    writeShort(bytes, offset + 2, value >>> 16);
+  }
+}
@@ -0,0 +1,168 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Search duplicate entries of fasta files reading them twice, so that only accessions which may be duplicated are
+ * kept in memory.
+ *
+ * The first read adds the accession of each entry to an {@link AccessionBloomFilter} : accessions already in the
+ * filter (duplicates, and a few false positives) are candidates, kept in a dictionary. The second read does what
+ * {@link FastaDuplicateManager} does for candidates only, other accessions being unique. When renaming duplicates,
+ * candidates are accession stems (see {@link ExternalDuplicateManager#stemEnd(ByteBuffer, int, int)}) : names generated
+ * for a duplicate are then checked against all the accessions they could be equal to, and the result is the same.
+ * As duplicates are rare in real banks, about 1.2 bytes by entry are used by the filter during the first read,
+ * and only candidates are kept during the second one.
+ */
+public class BloomDuplicateManager {
+
+  private final static Logger logger = LoggerFactory.getLogger(BloomDuplicateManager.class);
+
+  private final static int BITS_PER_ENTRY = 10;
+
+  /**
+   * Same as {@link FastaDuplicateManager#removeDuplicateInFasta(File, File, HeaderFormat)} reading fastaIn twice.
+   */
+  public static void removeDuplicateInFasta(File fastaIn, File fastaOut, HeaderFormat format) throws IOException {
+    logger.info("Search Duplicate entries in "+fastaIn.getAbsolutePath()+" using header format <"+format+"> and a Bloom filter");
+    HeaderFormat.Parser header = format.newParser();
+    AccessionDictionary candidates = findCandidates(fastaIn, header, true);
+
+    Metrics.startReading(fastaIn);
+    AccessionDictionary names = new AccessionDictionary(Math.max(1024, 2 * candidates.size()));
+    byte[] newAcc = new byte[256];
+    int nbDuplicate = 0;
+    try (FastaReader reader = new FastaReader(fastaIn); FastaWriter writer = new FastaWriter(fastaOut)) {
+      while (reader.next()) {
+        ByteBuffer buf = reader.buffer();
+        if (!reader.hasHeader()) {
+          writer.writeRecordLines(reader, reader.recordStart());
+          continue;
+        }
+
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        int accStart = header.start(HeaderFormat.ACCESSION);
+        int accEnd = header.end(HeaderFormat.ACCESSION);
+
+        // other accessions are unique, as well as their stem
+        int accId = 0;
+        if (candidates.find(buf, accStart, ExternalDuplicateManager.stemEnd(buf, accStart, accEnd)) >= 0)
+          accId = names.add(buf, accStart, accEnd);
+        if (accId < 0) {
+          //this entry was already found : rename it
+          accId = -accId - 1;
+          nbDuplicate++;
+          Metrics.addDuplicates(1);
+          String accPref = names.toString(accId);
+          logger.debug(" found duplicate for " + accPref);
+          newAcc = FastaDuplicateManager.ensureCapacity(newAcc, accEnd - accStart + 12);
+          int newAccLength = FastaDuplicateManager.renameDuplicate(names, accId, newAcc);
+          logger.info("-- Renamed " + accPref + " to " + new String(newAcc, 0, newAccLength, StandardCharsets.ISO_8859_1));
+          header.writeHeader(writer, newAcc, newAccLength);
+        } else {
+          header.writeHeader(writer, null, 0);
+        }
+        writer.writeRecordLines(reader, reader.sequenceStart());
+      }
+      logger.info(" ** Read " + reader.throughput());
+    }
+    logger.info(" ** Accession dictionary : " + names.size() + " entries using " + ((names.memoryUsage() + candidates.memoryUsage()) / (1024 * 1024)) + " MB");
+    logger.info("\n ** Found "+nbDuplicate+" duplicate entries ");
+  }
+
+  /**
+   * Same as {@link FastaDuplicateManager#compareDuplicateInFasta(File, HeaderFormat)} reading fasta twice : digests are
+   * only computed for candidates.
+   */
+  public static void compareDuplicateInFasta(File fasta, HeaderFormat format) throws IOException {
+    logger.info("Search Duplicate entries in "+fasta.getAbsolutePath()+" using header format <"+format+"> and a Bloom filter");
+    HeaderFormat.Parser header = format.newParser();
+    AccessionDictionary candidates = findCandidates(fasta, header, false);
+
+    Metrics.startReading(fasta);
+    FastaDuplicateManager.SequenceInfos seqInfos = new FastaDuplicateManager.SequenceInfos();
+    SequenceDigester digester = new SequenceDigester();
+    int nbDuplicate = 0;
+    int nbDupDiff = 0;
+
+    // compressed files can't be read back : digests are trusted
+    boolean readBack = !FastaIO.isGzip(fasta);
+    if (!readBack)
+      logger.info("Compressed input : entries with the same sequence digest are considered identical");
+
+    try (FastaReader reader = new FastaReader(fasta); FileChannel channel = readBack ? FileChannel.open(fasta.toPath(), StandardOpenOption.READ) : null) {
+      while (reader.next()) {
+        if (!reader.hasHeader())
+          continue;
+
+        ByteBuffer buf = reader.buffer();
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        int accId = candidates.find(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION));
+        if (accId < 0)
+          continue;
+        digester.digest(buf, reader.sequenceStart(), reader.recordEnd());
+
+        // value of a candidate is set once its first entry is found
+        if (candidates.getValue(accId) != 0) {
+          nbDuplicate++;
+          Metrics.addDuplicates(1);
+          String currentAcc = candidates.toString(accId);
+          if (seqInfos.sameDigest(accId, digester) && (channel == null || digester.sameSequenceAt(channel, seqInfos.offset(accId)))) {
+            logger.info("-- Duplicate\t" + currentAcc + "\tSame sequences ");
+          } else {
+            nbDupDiff++;
+            logger.info("-- Duplicate\t" + currentAcc + "\t!!! DIFF sequences !!!");
+          }
+        } else {
+          candidates.setValue(accId, 1);
+          seqInfos.set(accId, digester, reader.recordOffset());
+        }
+      }
+      logger.info(" ** Read " + reader.throughput());
+    }
+    logger.info(" ** Accession dictionary : " + candidates.size() + " candidates using " + ((candidates.memoryUsage() + seqInfos.memoryUsage()) / (1024 * 1024)) + " MB");
+
+    logger.info("\n ** Found "+nbDuplicate+" duplicate entries with "+nbDupDiff+" with different sequences");
+  }
+
+  /**
+   * Read fasta file, adding accessions (or their stem) to a Bloom filter
+   *
+   * @param stems true to use accession stems rather than accessions
+   * @return accessions (or stems) which may be found more than once in fasta
+   */
+  private static AccessionDictionary findCandidates(File fasta, HeaderFormat.Parser header, boolean stems) throws IOException {
+    long expectedSize = Math.max(1, FastaIO.estimatedSize(fasta) / ExternalDuplicateManager.ESTIMATED_ENTRY_FILE_SIZE);
+    AccessionBloomFilter filter = new AccessionBloomFilter(expectedSize, BITS_PER_ENTRY);
+    AccessionDictionary candidates = new AccessionDictionary();
+    long nbEntries = 0;
+    Metrics.startPhase("filter " + fasta.getName(), FastaIO.isGzip(fasta) ? -1 : fasta.length());
+    try (FastaReader reader = new FastaReader(fasta)) {
+      while (reader.next()) {
+        if (!reader.hasHeader())
+          continue;
+        ByteBuffer buf = reader.buffer();
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        int accStart = header.start(HeaderFormat.ACCESSION);
+        int accEnd = header.end(HeaderFormat.ACCESSION);
+        if (stems)
+          accEnd = ExternalDuplicateManager.stemEnd(buf, accStart, accEnd);
+        nbEntries++;
+        if (filter.add(buf, accStart, accEnd))
+          candidates.add(buf, accStart, accEnd);
+      }
+      logger.info(" ** Read " + reader.throughput());
+    }
+    logger.info(" ** Bloom filter : " + nbEntries + " entries using " + (filter.memoryUsage() / (1024 * 1024)) + " MB, "
+      + candidates.size() + " candidate duplicates");
+    return candidates;
+  }
+}
@@ -2,20 +2,63 @@ package fr.edyp.mascot.fasta;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+
+import java.util.List;
 
 public class CommandArguments {
 
   public final static String DB_USAGE_COMMAND= "db_usage";
+  public final static String QUERY_LOG_COMMAND= "query_log";
   public final static String SHORTEN_COMMAND= "shorten";
   public final static String REMOVE_EMPTY_COMMAND= "rem_empty";
   public final static String DUPLICATE_CMP_COMMAND= "cmp_duplicates";
 
   public final static String DUPLICATE_REPLACE_COMMAND= "replace_duplicates";
+  public final static String COLLAPSE_SEQUENCES_COMMAND= "collapse_sequences";
+  public final static String FASTA_STATS_COMMAND= "fasta_stats";
   public final static String EXTRACT_TAXO_COMMAND= "extract_taxo";
+  public final static String PIPELINE_COMMAND= "pipeline";
+  public final static String INDEX_COMMAND= "index";
+  public final static String FETCH_COMMAND= "fetch";
+  public final static String GENERATE_COMMAND= "generate";
+  public final static String SCALE_TEST_COMMAND= "scale_test";
+  public final static String SERVE_COMMAND= "serve";
+
+  // --header-format option of the commands reading accessions (or mnemonics) of headers
+  private final static String OTHER_HEADER_FORMATS = "ncbi, or regex:<pattern> with named groups acc (required), entry, mnemo, desc, os, ox and gn";
+  private final static String HEADER_FORMAT_DESCRIPTION = "format of headers, giving the accession of entries : first_word (default, accession is the first word), uniprot (db|accession|entry_name), " + OTHER_HEADER_FORMATS;
+  private final static String TAXO_HEADER_FORMAT_DESCRIPTION = "format of headers, giving the mnemonic of entries : first_word (default, accession ends with mnemonic), uniprot (mnemonic of db|accession|entry_name), " + OTHER_HEADER_FORMATS;
 
 
+  /**
+   * Options of the commands reporting their progress and metrics (see {@link Metrics})
+   */
+  public static class InstrumentedCommand {
+    @Parameter(names = {"--metrics-out"}, description = "JSON file to save metrics of the run to : bytes read and written, entries, duplicates, throughput, heap and GC time")
+    public String metricsFile;
+    @Parameter(names = {"--progress"}, description = "log a progress line every specified number of seconds. No progress line is logged by default")
+    public int progressInterval = 0;
+  }
+
+  /**
+   * Options of the fasta commands which may be run on all files of a directory (see {@link BatchRunner})
+   */
+  public static class BatchCommand extends InstrumentedCommand {
+    @Parameter(names = {"--input-dir"}, description = "process all fasta files of this directory and its sub directories, instead of the -i file")
+    public String inputDir;
+    @Parameter(names = {"--glob"}, description = "with --input-dir, pattern of the paths (relative to input directory) of the files to process, as \"**.fasta\" or \"*/current/*.fasta.gz\"")
+    public String glob = BatchRunner.DEFAULT_GLOB;
+    @Parameter(names = {"--parallel-files"}, description = "with --input-dir, number of files processed at the same time")
+    public int parallelFiles = Math.min(4, Runtime.getRuntime().availableProcessors());
+    @Parameter(names = {"--files-per-disk"}, description = "with --input-dir, maximum number of files processed at the same time on the same disk (file store)")
+    public int filesPerDisk = 2;
+    @Parameter(names = {"--summary"}, description = "with --input-dir, tsv file to save the result of each file to")
+    public String summaryFile;
+  }
+
   @Parameters(commandNames =  {DB_USAGE_COMMAND}, commandDescription = "get information (last date...) on the usage of fasta db", separators = "=")
-  public static class FastaDBUsageCommand {
+  public static class FastaDBUsageCommand extends InstrumentedCommand {
 
     @Parameter(names = {"-db"}, description = "search information for specific fasta bank. If not specified, all fasta banks will be processed ", required = false, order = 0)
     public String dbName;
@@ -33,50 +76,279 @@ public class CommandArguments {
 
     @Parameter(names = {"-a", "--all"}, description = "get All usage dates, ,not only last ")
     public boolean all;
+
+    @Parameter(names = {"--state"}, description = "file to save aggregated usage to. Next runs using the same file only read lines appended to the searches log since previous run.")
+    public String stateFile;
+
+    @Parameter(names = {"--counts"}, description = "print number of searches of each database by day (day), by month (month) or with the number of distinct days (distinct_days) instead of usage dates")
+    public String counts;
+
+    @Parameter(names = {"--follow"}, description = "keep reading lines appended to the searches log and print usage (or rewrite output file) when it changes")
+    public boolean follow;
+
+    @Parameter(names = {"--interval"}, description = "with --follow, number of seconds between two reads of the searches log")
+    public int interval = 10;
+
+    @Parameter(names = {"--http-port"}, description = "with --follow, serve usage as JSON on this port of the local host")
+    public int httpPort = 0;
+
+    @Parameter(names = {"--threads"}, description = "number of threads used to parse the searches log. Result is the same whatever the number of threads.")
+    public int threads = 1;
+  }
+
+  @Parameters(commandNames =  {QUERY_LOG_COMMAND}, commandDescription = "Count searches of the searches log by database, user, status, type, enzyme, day or month, with their durations. The log is loaded in a columnar store, which may be saved in a snapshot so that next runs only read appended lines.", separators = "=")
+  public static class QueryLogCommand extends InstrumentedCommand {
+    @Parameter(names = {"-s"}, description = "path to the mascot searches log file", required = true, order = 0)
+    public String searchesLogPath;
+    @Parameter(names = {"--snapshot"}, description = "file to save the store to. Next runs using the same file load it and only read lines appended to the searches log since previous run.")
+    public String snapshotFile;
+    @Parameter(names = {"--group-by"}, description = "comma separated list of up to two columns to count searches by : db, user, status, type, enzyme, day, month. All searches are counted together if not specified.")
+    public String groupBy;
+    @Parameter(names = {"--db"}, description = "only count searches of these databases (comma separated)")
+    public List<String> dbNames;
+    @Parameter(names = {"--user"}, description = "only count searches of these users (comma separated)")
+    public List<String> users;
+    @Parameter(names = {"--status"}, description = "only count searches with these status (comma separated)")
+    public List<String> statuses;
+    @Parameter(names = {"--type"}, description = "only count searches of these types (comma separated), as MIS, PMF or SQ")
+    public List<String> types;
+    @Parameter(names = {"--enzyme"}, description = "only count searches using these enzymes (comma separated)")
+    public List<String> enzymes;
+    @Parameter(names = {"--from"}, description = "only count searches started on this day (yyyy-MM-dd) or after")
+    public String from;
+    @Parameter(names = {"--to"}, description = "only count searches started on this day (yyyy-MM-dd) or before")
+    public String to;
+    @Parameter(names = {"--durations"}, description = "print median, 90th and 99th percentiles and maximum of the durations of the searches of each group")
+    public boolean durations;
+    @Parameter(names = {"-o"}, description = "tsv file path to save result to (*.tsv). if not specified standard output will be used")
+    public String outputFile;
+    @Parameter(names = {"--threads"}, description = "number of threads used to parse the searches log. Result is the same whatever the number of threads.")
+    public int threads = 1;
+
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
   }
 
   @Parameters(commandNames =  {SHORTEN_COMMAND}, commandDescription = "Try to shorten fasta accession by using car _ or / to split", separators = "=")
-  public static class FastaShortenAccCommand {
-    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Same file with _short suffix will be created", required = true)
+  public static class FastaShortenAccCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Same file with _short suffix will be created. Not used with --input-dir.")
     public String inputFile;
+    @Parameter(names = {"--threads"}, description = "number of threads used to process the file. Output is the same whatever the number of threads.")
+    public int threads = 1;
     @Parameter(names = {"-h", "--help"}, help = true)
     public boolean help;
   }
 
   @Parameters(commandNames =  {REMOVE_EMPTY_COMMAND}, commandDescription = "remove entries which have no sequences", separators = "=")
-  public static class FastaRemoveEmptyCommand {
-    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Same file with _clean suffix will be created", required = true)
+  public static class FastaRemoveEmptyCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Same file with _clean suffix will be created. Not used with --input-dir.")
     public String inputFile;
+    @Parameter(names = {"--threads"}, description = "number of threads used to process the file. Output is the same whatever the number of threads.")
+    public int threads = 1;
     @Parameter(names = {"-h", "--help"}, help = true)
     public boolean help;
   }
 
   @Parameters(commandNames =  {DUPLICATE_CMP_COMMAND}, commandDescription = "Search for duplicate in fasta file and compare their sequence. Result is given in (log) output.", separators = "=")
-  public static class FastaCompareDuplicateCommand {
-    @Parameter(names = {"-i"}, description = "path to the input fasta file to process.", required = true)
+  public static class FastaCompareDuplicateCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
     public String inputFile;
+    @Parameter(names = {"--max-memory"}, description = "search duplicates using temporary files, so that no more than specified heap size (in MB) is used. To be used when accessions don't fit in memory.")
+    public long maxMemory = 0;
+    @Parameter(names = {"--tmp-dir"}, description = "directory for temporary files created when using --max-memory. System temporary directory is used by default.")
+    public String tmpDir;
+    @Parameter(names = {"--bloom"}, description = "read the file twice : a Bloom filter of accessions is filled first, so that only accessions which may be duplicated are kept in memory. Not used with --max-memory.")
+    public boolean bloom;
+    @Parameter(names = {"--header-format"}, description = HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
     @Parameter(names = {"-h", "--help"}, help = true)
     public boolean help;
   }
 
   @Parameters(commandNames =  {DUPLICATE_REPLACE_COMMAND}, commandDescription = "Search for duplicate in fasta file and rename them using index. Result is saved in new fasta file.", separators = "=")
-  public static class FastaReplaceDuplicateCommand {
-    @Parameter(names = {"-i"}, description = "path to the input fasta file to process.", required = true)
+  public static class FastaReplaceDuplicateCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
+    public String inputFile;
+    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. With --input-dir, directory to create result files in, named as input files.")
+    public String outputFile;
+    @Parameter(names = {"--max-memory"}, description = "search duplicates using temporary files, so that no more than specified heap size (in MB) is used. To be used when accessions don't fit in memory.")
+    public long maxMemory = 0;
+    @Parameter(names = {"--tmp-dir"}, description = "directory for temporary files created when using --max-memory. System temporary directory is used by default.")
+    public String tmpDir;
+    @Parameter(names = {"--bloom"}, description = "read the file twice : a Bloom filter of accessions is filled first, so that only accessions which may be duplicated are kept in memory. Not used with --max-memory.")
+    public boolean bloom;
+    @Parameter(names = {"--header-format"}, description = HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {COLLAPSE_SEQUENCES_COMMAND}, commandDescription = "Write each distinct sequence once : entries with the same sequence as a previous entry are removed and their accessions merged into its header (MERGED=acc1,acc2) or a mapping file. Result is saved in new fasta file.", separators = "=")
+  public static class FastaCollapseSequencesCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
+    public String inputFile;
+    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. With --input-dir, directory to create result files in, named as input files.")
+    public String outputFile;
+    @Parameter(names = {"--mapping"}, description = "save merged accessions in <output>.mapping.tsv (kept accession, merged accession) rather than in headers")
+    public boolean mapping = false;
+    @Parameter(names = {"--verify"}, description = "read back removed sequences to compare them to the kept one, rather than trusting their digest")
+    public boolean verify = false;
+    @Parameter(names = {"--max-memory"}, description = "heap size (in MB) which may be used to find identical sequences. Temporary files are used for larger files.")
+    public long maxMemory = 512;
+    @Parameter(names = {"--tmp-dir"}, description = "directory for temporary files. System temporary directory is used by default.")
+    public String tmpDir;
+    @Parameter(names = {"--header-format"}, description = HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {FASTA_STATS_COMMAND}, commandDescription = "Profile a fasta file in a single read : entries, residues, length distribution, composition, non standard residues, empty entries, duplicate accessions and line widths. Result is given in (log) output.", separators = "=")
+  public static class FastaStatsCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
+    public String inputFile;
+    @Parameter(names = {"--json"}, description = "JSON file to save the statistics to. With --input-dir, directory to create <file>.stats.json files in, named as input files.")
+    public String jsonFile;
+    @Parameter(names = {"--skip-duplicates"}, description = "don't search duplicate accessions, which needs memory for all accessions")
+    public boolean skipDuplicates = false;
+    @Parameter(names = {"--vector"}, description = "count residues using the JDK Vector API. java should be run with --add-modules jdk.incubator.vector, residues are counted one at a time otherwise.")
+    public boolean vector = false;
+    @Parameter(names = {"--threads"}, description = "number of threads used to process the file. Result is the same whatever the number of threads.")
+    public int threads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = {"--header-format"}, description = HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {EXTRACT_TAXO_COMMAND}, commandDescription = "Extract a taxomy from a fasta using mnemonic, or NCBI taxonomy clades using taxid. Result is saved in new fasta file.", separators = "=")
+  public static class FastaExtractTaxoCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
     public String inputFile;
-    @Parameter(names = {"-o"}, description = "path to the resulting fasta file.", required = true)
+    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. Same as input with taxo mnemonic as suffix will be used if not specified. Only used when extracting one taxonomy, not with --input-dir (--out-dir is used).", required = false)
     public String outputFile;
+    @Parameter(names = {"-t"}, description = "taxonomy mnemonic to extract from 'input' fasta file : entries whose accession ends with it (as _HUMAN), or whose mnemonic is it with another --header-format. Several comma separated mnemonics may be specified : each taxonomy is then extracted, in a single pass, into a file named as input with mnemonic as suffix.")
+    public List<String> taxoMnemos;
+    @Parameter(names = {"--taxo-file"}, description = "path to a file containing taxonomy mnemonics to extract, one per line. Same as specifying several mnemonics with -t")
+    public String taxoFile;
+    @Parameter(names = {"--out-dir"}, description = "directory to create result files in when extracting several taxonomies, or with --input-dir. Input file directory is used by default")
+    public String outputDir;
+    @Parameter(names = {"--taxid"}, description = "NCBI taxonomy id of a clade to extract instead of -t : entries whose OX field is this taxid or one of its descendants in the --nodes tree are extracted. Several comma separated taxids may be specified : each clade is then extracted, in a single pass, into a file named as input with txid<taxid> as suffix.")
+    public List<String> taxids;
+    @Parameter(names = {"--nodes"}, description = "path to the nodes.dmp file of NCBI taxonomy (taxdump), used with --taxid. merged.dmp of the same directory, if any, is used for merged taxids.")
+    public String nodesFile;
+
+    @Parameter(names = {"--threads"}, description = "number of threads used to process the file. Output is the same whatever the number of threads.")
+    public int threads = 1;
+    @Parameter(names = {"--header-format"}, description = TAXO_HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {PIPELINE_COMMAND}, commandDescription = "Run several fasta commands (steps) reading and writing fasta file only once. Result is saved in new fasta file.", separators = "=")
+  public static class FastaPipelineCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to process. Not used with --input-dir.")
+    public String inputFile;
+    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. With --input-dir, directory to create result files in, named as input files.")
+    public String outputFile;
+    @Parameter(names = {"--steps"}, description = "comma separated list of steps to run in order : rem_empty, shorten, dedup, taxo=<mnemonic>", required = true)
+    public List<String> steps;
+    @Parameter(names = {"--header-format"}, description = HEADER_FORMAT_DESCRIPTION)
+    public String headerFormat = HeaderFormat.FIRST_WORD;
+
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {INDEX_COMMAND}, commandDescription = "Create the index of a fasta file (<fasta>.fidx), used to fetch entries and by cmp_duplicates and extract_taxo.", separators = "=")
+  public static class FastaIndexCommand extends BatchCommand {
+    @Parameter(names = {"-i"}, description = "path to the input fasta file to index. Not used with --input-dir.")
+    public String inputFile;
+    @Parameter(names = {"--max-memory"}, description = "heap size (in MB) which may be used to sort entries. Temporary files are used for larger files.")
+    public long maxMemory = 512;
+    @Parameter(names = {"--tmp-dir"}, description = "directory for temporary files. System temporary directory is used by default.")
+    public String tmpDir;
+
     @Parameter(names = {"-h", "--help"}, help = true)
     public boolean help;
   }
 
-  @Parameters(commandNames =  {EXTRACT_TAXO_COMMAND}, commandDescription = "Extract a taxomy from a fasta using mnemonic. Result is saved in new fasta file.", separators = "=")
-  public static class FastaExtractTaxoCommand {
-    @Parameter(names = {"-i"}, description = "path to the input fasta file to process.", required = true)
+  @Parameters(commandNames =  {FETCH_COMMAND}, commandDescription = "Get entries from an indexed fasta file using their accession.", separators = "=")
+  public static class FastaFetchCommand extends InstrumentedCommand {
+    @Parameter(names = {"-i"}, description = "path to the indexed fasta file.", required = true)
     public String inputFile;
-    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. Same as input with taxo mnemonic as suffix will be used if not specified", required = false)
+    @Parameter(names = {"-a"}, description = "accession of the entry to get. Several comma separated accessions may be specified.")
+    public List<String> accessions;
+    @Parameter(names = {"--acc-file"}, description = "path to a file containing accessions of the entries to get, one per line.")
+    public String accessionFile;
+    @Parameter(names = {"-o"}, description = "path to the resulting fasta file. If not specified standard output will be used, and the log written to standard error")
     public String outputFile;
-    @Parameter(names = {"-t"}, description = "taxonomy mnemonic to extract from 'input' fasta file.", required = true)
-    public String taxoMnemo;
+
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  /**
+   * Parameters of the synthetic data, shared by generate and scale_test commands
+   */
+  public static class SyntheticDataOptions {
+    @Parameter(names = {"--seed"}, description = "seed of the generator : files generated with the same seed and parameters are identical")
+    public long seed = 1;
+    @Parameter(names = {"--duplicate-rate"}, description = "part of the fasta entries whose accession is the accession of a previous entry")
+    public double duplicateRate = 0.01;
+    @Parameter(names = {"--empty-rate"}, description = "part of the fasta entries without sequence")
+    public double emptyRate = 0.001;
+    @Parameter(names = {"--taxo-mix"}, description = "comma separated taxonomy mnemonics of the entries with their weight, as HUMAN:30,MOUSE:10")
+    public String taxoMix = SyntheticData.DEFAULT_TAXO_MIX;
+    @Parameter(names = {"--acc-length"}, description = "number of characters of accession identifiers (P12345 in sp|P12345|ABC_HUMAN)")
+    public int accessionLength = 6;
+  }
+
+  @Parameters(commandNames =  {GENERATE_COMMAND}, commandDescription = "Generate a synthetic UniProt like fasta file (synthetic.fasta) with matching Mascot searches log (searches.log) and mascot.dat files.", separators = "=")
+  public static class GenerateCommand extends InstrumentedCommand {
+    @Parameter(names = {"-o"}, description = "directory to create the files in.", required = true)
+    public String outputDir;
+    @Parameter(names = {"--entries"}, description = "number of fasta entries")
+    public long nbEntries = 100000;
+    @Parameter(names = {"--size"}, description = "size of the fasta file, as 500M or 10G. Replaces --entries when specified.")
+    public String size;
+    @Parameter(names = {"--log-lines"}, description = "number of searches log lines")
+    public long nbLogLines = 100000;
+    @ParametersDelegate
+    public SyntheticDataOptions dataOptions = new SyntheticDataOptions();
+
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {SCALE_TEST_COMMAND}, commandDescription = "Generate synthetic files of the specified sizes and run each command on them, in its own JVM. Wall time, throughput and peak heap of each run are saved in scale-results.tsv of the work directory.", separators = "=")
+  public static class ScaleTestCommand {
+    @Parameter(names = {"--work-dir"}, description = "directory to generate files and save results in. Files generated for a size are kept and reused by next runs.", required = true)
+    public String workDir;
+    @Parameter(names = {"--sizes"}, description = "comma separated sizes of the fasta files, as 1G,10G,100G")
+    public List<String> sizes = List.of("1G");
+    @Parameter(names = {"--log-lines"}, description = "number of searches log lines. One line per KB of fasta file by default.")
+    public long nbLogLines = 0;
+    @Parameter(names = {"--commands"}, description = "comma separated names of the runs to do, as shorten,cmp_duplicates. All runs are done by default.")
+    public List<String> commands;
+    @Parameter(names = {"--threads"}, description = "number of threads given to the commands supporting --threads")
+    public int threads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = {"--jvm-options"}, description = "options of the JVMs running the commands, as \"-Xmx4g -XX:+UseParallelGC\"")
+    public String jvmOptions = "-Xmx1g";
+    @ParametersDelegate
+    public SyntheticDataOptions dataOptions = new SyntheticDataOptions();
+
+    @Parameter(names = {"-h", "--help"}, help = true)
+    public boolean help;
+  }
+
+  @Parameters(commandNames =  {SERVE_COMMAND}, commandDescription = "Keep the JVM running to run the commands sent by the client (client.sh), several at a time, without JVM startup.", separators = "=")
+  public static class ServeCommand {
+    @Parameter(names = {"--socket"}, description = "path of the Unix domain socket to listen on. mascot-swissknife.sock of the temporary directory by default.")
+    public String socketPath;
+    @Parameter(names = {"--threads"}, description = "number of commands run at the same time")
+    public int threads = Runtime.getRuntime().availableProcessors();
 
     @Parameter(names = {"-h", "--help"}, help = true)
     public boolean help;
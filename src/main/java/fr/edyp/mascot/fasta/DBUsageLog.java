@@ -1,14 +1,34 @@
 package fr.edyp.mascot.fasta;
 
+import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.CRC32;
 
 /**
  * Currently parse searches log and display found fasta bank with the last usage date.
@@ -18,28 +38,41 @@ public class DBUsageLog {
   private final static Logger logger = LoggerFactory.getLogger(DBUsageLog.class);
   private final static int COL_JOB_ID = 0;
   private final static int COL_PROCESS_ID = 1;
-  private final static int COL_DBNAMES = 2;
-  private final static int COL_USER = 3;
+  final static int COL_DBNAMES = 2;
+  final static int COL_USER = 3;
   private final static int COL_USER_MAIL = 4;
   private final static int COL_TITLE = 5;
   private final static int COL_DAT_PATH= 6;
-  private final static int COL_START_TIME = 7;
-  private final static int COL_DURATION = 8;
-  private final static int COL_STATUS = 9;
+  final static int COL_START_TIME = 7;
+  final static int COL_DURATION = 8;
+  final static int COL_STATUS = 9;
   private final static int COL_PR = 10;
-  private final static int COL_TYPE = 11;
-  private final static int COL_ENZYME = 12;
+  final static int COL_TYPE = 11;
+  final static int COL_ENZYME = 12;
   private final static int COL_IP_ADD = 13;
   private final static int COL_USER_ID = 14;
   private final static int COL_PEAKLIST_FILE = 15;
 
-  private final static int LAST_COL = COL_PEAKLIST_FILE;
+  final static int LAST_COL = COL_PEAKLIST_FILE;
+
+  public final static String COUNTS_BY_DAY = "day";
+  public final static String COUNTS_BY_MONTH = "month";
+  public final static String COUNTS_DISTINCT_DAYS = "distinct_days";
 
   private final static String MONITOR_USER_PREFIX = "Monitor Test DB";
+  final static byte[] MONITOR_USER_PREFIX_BYTES = MONITOR_USER_PREFIX.getBytes(Charset.defaultCharset());
+  private final static DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("eee MMM d HH:mm:ss yyyy", Locale.ENGLISH);
+  private final static int LOG_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  // databases status read from each mascot dat file, reused while the file is not modified (serve mode)
+  private final static Map<File, MascotDatStatus> DB_STATUS_CACHE = new ConcurrentHashMap<>();
 
   private final HashMap<String, Boolean> fastaDbStatusByName;
   private final File searchesFile;
   private final File mascotDatFile;
+  private int nbThreads = 1;
+  // modification time of mascot dat file when databases status were read
+  private long mascotDatModified;
 
   public DBUsageLog(String searchesPath, String mascotDatFilePath) {
     searchesFile = new File(searchesPath);
@@ -47,6 +80,7 @@ public class DBUsageLog {
     fastaDbStatusByName = new HashMap<>();
     if(mascotDatFile!=null){
       try {
+        mascotDatModified = mascotDatFile.lastModified();
         readDbStatusInMap();
       } catch (IOException e) {
         throw new IllegalArgumentException("Error reading mascot dat file "+mascotDatFilePath);
@@ -55,7 +89,30 @@ public class DBUsageLog {
   }
 
 
+  /**
+   * @param nbThreads number of threads used to parse the searches log. Result is the same whatever the number of threads.
+   */
+  public void setNbThreads(int nbThreads) {
+    this.nbThreads = nbThreads;
+  }
+
   private void readDbStatusInMap() throws IOException {
+    File key = mascotDatFile.getCanonicalFile();
+    MascotDatStatus status = DB_STATUS_CACHE.get(key);
+    // read before parsing : a modification during parsing is seen next time
+    long modified = mascotDatFile.lastModified();
+    long length = mascotDatFile.length();
+    if (status == null || status.modified != modified || status.length != length) {
+      status = new MascotDatStatus(modified, length, readDbStatus(mascotDatFile));
+      DB_STATUS_CACHE.put(key, status);
+    } else {
+      logger.debug(" ---DB Status, reuse status read from " + mascotDatFile.getAbsolutePath());
+    }
+    fastaDbStatusByName.putAll(status.statusByName);
+  }
+
+  private static Map<String, Boolean> readDbStatus(File mascotDatFile) throws IOException {
+    Map<String, Boolean> fastaDbStatusByName = new HashMap<>();
     BufferedReader br = new BufferedReader(new FileReader(mascotDatFile));
 
     String line = br.readLine();
@@ -82,13 +139,26 @@ public class DBUsageLog {
         } else {
           dbName = part[0];
         }
-        this.fastaDbStatusByName.put(dbName, activeStatus);
+        fastaDbStatusByName.put(dbName, activeStatus);
 //        logger.debug("- Added "+dbName+" isActive ? "+activeStatus);
       }
       line = br.readLine();
     }
 
     br.close();
+    return fastaDbStatusByName;
+  }
+
+  private static class MascotDatStatus {
+    final long modified;
+    final long length;
+    final Map<String, Boolean> statusByName;
+
+    MascotDatStatus(long modified, long length, Map<String, Boolean> statusByName) {
+      this.modified = modified;
+      this.length = length;
+      this.statusByName = statusByName;
+    }
   }
 
   private String getStatusStr(String dbName){
@@ -105,39 +175,33 @@ public class DBUsageLog {
   }
 
   public void printFastaDBInfo(String dbName, String outFile, boolean all){
+    printFastaDBInfo(dbName, outFile, all, null);
+  }
+
+  public void printFastaDBInfo(String dbName, String outFile, boolean all, File stateFile){
+    printFastaDBInfo(dbName, outFile, all, stateFile, null);
+  }
+
+  /**
+   * Print usage of one or all databases.
+   *
+   * @param stateFile file to save aggregated usage to, so that next runs only read lines appended to the searches log. May be null.
+   * @param counts if not null, print number of searches of each database by day ({@link #COUNTS_BY_DAY}), by month
+   *               ({@link #COUNTS_BY_MONTH}) or with the number of distinct days ({@link #COUNTS_DISTINCT_DAYS}) instead of usage dates
+   */
+  public void printFastaDBInfo(String dbName, String outFile, boolean all, File stateFile, String counts){
+    checkCounts(counts);
     BufferedWriter writer = null;
     try {
       File outputFile = (StringUtils.isNotEmpty(outFile)) ? new File(outFile) : null;
-      boolean writeInfo = false;
-      if(outputFile!=null) {
-        FileWriter fw = new FileWriter(outFile);
-        writer = new BufferedWriter(fw);
-        String colNames = all ?"Name\tLast Usage Date\tStatus (<A>ctive, <I>nactive, <D>eleted)\tAll Dates\n" : "Name\tLast Usage Date\tStatus (<A>ctive, <I>nactive, <D>eleted)\n";
-        writer.write(colNames);
-        writeInfo = true;
-      }
+      if(outputFile!=null)
+        writer = new BufferedWriter(new OutputStreamWriter(FastaIO.openOutput(outputFile)));
 
-      HashMap<String, DbInfo> infos = readSearchesLog(dbName);
+      HashMap<String, DbInfo> infos = readSearchesLog(dbName, stateFile);
       List<String> dbNames =  infos.keySet().stream().sorted().toList();
-      for(String name :dbNames){
-        DbInfo info = infos.get(name);
-        if(writeInfo){
-          String date = (info.found) ?info.lastUsage.toString() :"-";
-          String allDates = (info.found) ?info.allDateAsString() :"-";
-          String values = all ? (name+"\t"+date+"\t"+info.status+"\t"+allDates+"\n") :  (name+"\t"+date+"\t"+info.status+"\n") ;
-          writer.write(values);
-        } else {
-          if (info.found) {
-            String values = all ? ("DB Fasta\t" + name + "\tLast search done on:\t" + info.lastUsage + "\tactive ?\t" + info.status) :
-                    ("DB Fasta\t" + name + "\tLast search done on:\t" + info.lastUsage + "\tactive ?\t" + info.status+"\tall dates:\t"+info.allDateAsString());
-
-            logger.info(values);
-          } else
-            logger.info("DB Fasta\t" + name + "\twas NOT Found in searches log.\t \tactive?\t"+info.status);
-        }
-      }
+      printReport(writer, infos, dbNames, all, counts);
 
-      if(writeInfo)
+      if(writer != null)
         writer.flush();
 
     } catch (IOException e) {
@@ -153,137 +217,945 @@ public class DBUsageLog {
 
   }
 
-  private HashMap<String, DbInfo> readSearchesLog(String dbName) throws IOException {
+  private static void checkCounts(String counts) {
+    if (counts != null && !counts.equals(COUNTS_BY_DAY) && !counts.equals(COUNTS_BY_MONTH) && !counts.equals(COUNTS_DISTINCT_DAYS))
+      throw new IllegalArgumentException("Unknown counts " + counts + ". Counts are " + COUNTS_BY_DAY + ", " + COUNTS_BY_MONTH + ", " + COUNTS_DISTINCT_DAYS);
+  }
 
-    BufferedReader tsvReader = null;
+  /**
+   * Print last usage date (and all usage dates) of databases to writer if not null, to log otherwise
+   */
+  private void printUsage(BufferedWriter writer, HashMap<String, DbInfo> infos, List<String> dbNames, boolean all) throws IOException {
+    boolean writeInfo = writer != null;
+    if (writeInfo) {
+      String colNames = all ?"Name\tLast Usage Date\tStatus (<A>ctive, <I>nactive, <D>eleted)\tAll Dates\n" : "Name\tLast Usage Date\tStatus (<A>ctive, <I>nactive, <D>eleted)\n";
+      writer.write(colNames);
+    }
+    for(String name :dbNames){
+      DbInfo info = infos.get(name);
+      if(writeInfo){
+        String date = (info.found) ?info.lastUsage.toString() :"-";
+        String allDates = (info.found) ?info.allDateAsString() :"-";
+        String values = all ? (name+"\t"+date+"\t"+info.status+"\t"+allDates+"\n") :  (name+"\t"+date+"\t"+info.status+"\n") ;
+        writer.write(values);
+      } else {
+        if (info.found) {
+          String values = all ? ("DB Fasta\t" + name + "\tLast search done on:\t" + info.lastUsage + "\tactive ?\t" + info.status) :
+                  ("DB Fasta\t" + name + "\tLast search done on:\t" + info.lastUsage + "\tactive ?\t" + info.status+"\tall dates:\t"+info.allDateAsString());
 
-    HashMap<String, DbInfo> infoByDbName = new HashMap<>();
-    boolean readAll = false;
+          logger.info(values);
+        } else
+          logger.info("DB Fasta\t" + name + "\twas NOT Found in searches log.\t \tactive?\t"+info.status);
+      }
+    }
+  }
+
+  /**
+   * Print number of searches of databases by day or month, or with the number of distinct days, to writer
+   * if not null, to log otherwise
+   */
+  private void printCounts(BufferedWriter writer, HashMap<String, DbInfo> infos, List<String> dbNames, String counts) throws IOException {
+    if (counts.equals(COUNTS_DISTINCT_DAYS)) {
+      if (writer != null)
+        writer.write("Name\tLast Usage Date\tStatus (<A>ctive, <I>nactive, <D>eleted)\tNb Searches\tNb Days\n");
+      for (String name : dbNames) {
+        DbInfo info = infos.get(name);
+        String date = (info.found) ? info.lastUsage.toString() : "-";
+        long nbDays = info.allUsages.countsBy(day -> day).size();
+        if (writer != null)
+          writer.write(name + "\t" + date + "\t" + info.status + "\t" + info.allUsages.nbSearches() + "\t" + nbDays + "\n");
+        else
+          logger.info("DB Fasta\t" + name + "\tLast search done on:\t" + date + "\tactive ?\t" + info.status
+            + "\tsearches:\t" + info.allUsages.nbSearches() + "\tdays:\t" + nbDays);
+      }
+      return;
+    }
+
+    boolean byMonth = counts.equals(COUNTS_BY_MONTH);
+    if (writer != null)
+      writer.write(byMonth ? "Name\tMonth\tNb Searches\n" : "Name\tDay\tNb Searches\n");
+    for (String name : dbNames) {
+      DbInfo info = infos.get(name);
+      TreeMap<Integer, Long> countByPeriod = countsBy(info, byMonth);
+      if (countByPeriod.isEmpty() && writer == null)
+        logger.info("DB Fasta\t" + name + "\twas NOT Found in searches log.\t \tactive?\t" + info.status);
+      for (Map.Entry<Integer, Long> count : countByPeriod.entrySet()) {
+        String periodStr = periodString(count.getKey(), byMonth);
+        if (writer != null)
+          writer.write(name + "\t" + periodStr + "\t" + count.getValue() + "\n");
+        else
+          logger.info("DB Fasta\t" + name + "\t" + periodStr + "\tsearches:\t" + count.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return number of searches of a database by day, or by month (keyed on the epoch day of the first day of the month)
+   */
+  private static TreeMap<Integer, Long> countsBy(DbInfo info, boolean byMonth) {
+    return byMonth ? info.allUsages.countsBy(day -> (int) LocalDate.ofEpochDay(day).withDayOfMonth(1).toEpochDay()) : info.allUsages.countsBy(day -> day);
+  }
+
+  private static String periodString(int epochDay, boolean byMonth) {
+    LocalDate period = LocalDate.ofEpochDay(epochDay);
+    return byMonth ? YearMonth.from(period).toString() : period.toString();
+  }
+
+  /**
+   * Follow usage of one or all databases as searches are appended to the searches log : the searches log is polled
+   * every interval seconds and only appended lines are read. Usage is printed (or written to outFile, replaced
+   * at once) each time it changes, and may be served as JSON on a local HTTP port. Databases status are read
+   * again when mascot dat file is modified. Runs until the thread is interrupted.
+   *
+   * @param stateFile file to save aggregated usage to, read at start and saved each time usage changes. May be null.
+   * @param httpPort if greater than 0, usage is served as JSON on this port of the loopback address
+   */
+  public void followFastaDBInfo(String dbName, String outFile, boolean all, File stateFile, String counts, int interval, int httpPort) throws IOException {
+    if (FastaIO.isGzip(searchesFile))
+      throw new IllegalArgumentException("Can't follow compressed searches log " + searchesFile.getAbsolutePath());
+    checkCounts(counts);
+    File outputFile = (StringUtils.isNotEmpty(outFile)) ? new File(outFile) : null;
+    UsageState state = (stateFile != null && stateFile.exists()) ? UsageState.load(stateFile, dbName, searchesFile) : null;
+    if (state == null)
+      state = new UsageState(dbName);
+    logger.info(" Follow searches log file " + searchesFile.getAbsolutePath() + " every " + interval + "s");
+
+    HttpServer server = null;
+    AtomicReference<byte[]> json = new AtomicReference<>(new byte[0]);
+    if (httpPort > 0) {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+      server.createContext("/", exchange -> {
+        byte[] body = json.get();
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+      server.start();
+      logger.info(" Usage served on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+    }
 
     try {
-      tsvReader = new BufferedReader(new FileReader(searchesFile));
+      boolean changed = true;
+      while (true) {
+        if (mascotDatFile != null && mascotDatFile.lastModified() != mascotDatModified) {
+          logger.info(" Mascot dat file modified : databases status are read again");
+          mascotDatModified = mascotDatFile.lastModified();
+          fastaDbStatusByName.clear();
+          readDbStatusInMap();
+          changed = true;
+        }
+        if (!state.matches(searchesFile)) {
+          logger.info(" Searches log was truncated or rotated : whole searches log is read");
+          state = new UsageState(dbName);
+        }
+        if (searchesFile.length() > state.position) {
+          long nbLineRead = readLog(state, false, false);
+          state.updateFingerprint(searchesFile);
+          if (nbLineRead > 0) {
+            logger.debug(" Read " + nbLineRead + " new lines");
+            changed = true;
+          }
+        }
+
+        if (changed) {
+          updateStatus(state);
+          List<String> dbNames = state.infoByDbName.keySet().stream().sorted().toList();
+          if (outputFile != null)
+            writeReport(outputFile, state.infoByDbName, dbNames, all, counts);
+          else if (httpPort <= 0)
+            printReport(null, state.infoByDbName, dbNames, all, counts);
+          if (httpPort > 0)
+            json.set(toJson(state, dbNames, counts).getBytes(StandardCharsets.UTF_8));
+          if (stateFile != null)
+            state.save(stateFile, searchesFile);
+          changed = false;
+        }
+        Thread.sleep(interval * 1000L);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (server != null)
+        server.stop(0);
+    }
+  }
+
+  /**
+   * Write report to outputFile, replacing it at once : readers never see a partial report
+   */
+  private void writeReport(File outputFile, HashMap<String, DbInfo> infos, List<String> dbNames, boolean all, String counts) throws IOException {
+    // same extension as output file, to be compressed the same way
+    File tmpFile = new File(outputFile.getAbsoluteFile().getParentFile(), "~" + outputFile.getName());
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(FastaIO.openOutput(tmpFile)))) {
+      printReport(writer, infos, dbNames, all, counts);
+    }
+    Files.move(tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void printReport(BufferedWriter writer, HashMap<String, DbInfo> infos, List<String> dbNames, boolean all, String counts) throws IOException {
+    if (counts == null)
+      printUsage(writer, infos, dbNames, all);
+    else
+      printCounts(writer, infos, dbNames, counts);
+  }
+
+  /**
+   * @return usage of databases as a JSON object, with number of searches by day or month if counts is specified
+   */
+  private String toJson(UsageState state, List<String> dbNames, String counts) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"searchesLog\":").append(jsonString(searchesFile.getAbsolutePath()))
+      .append(",\"updated\":").append(jsonString(LocalDateTime.now().withNano(0).toString()))
+      .append(",\"nbLines\":").append(state.nbLines)
+      .append(",\"databases\":[");
+    for (int d = 0; d < dbNames.size(); d++) {
+      DbInfo info = state.infoByDbName.get(dbNames.get(d));
+      if (d > 0)
+        sb.append(',');
+      sb.append("{\"name\":").append(jsonString(info.name))
+        .append(",\"lastUsage\":").append(info.found ? jsonString(info.lastUsage.toString()) : "null")
+        .append(",\"status\":").append(jsonString(info.status))
+        .append(",\"nbSearches\":").append(info.allUsages.nbSearches())
+        .append(",\"nbDays\":").append(info.allUsages.countsBy(day -> day).size());
+      if (COUNTS_BY_DAY.equals(counts) || COUNTS_BY_MONTH.equals(counts)) {
+        boolean byMonth = COUNTS_BY_MONTH.equals(counts);
+        sb.append(byMonth ? ",\"byMonth\":{" : ",\"byDay\":{");
+        String sep = "";
+        for (Map.Entry<Integer, Long> count : countsBy(info, byMonth).entrySet()) {
+          sb.append(sep).append(jsonString(periodString(count.getKey(), byMonth))).append(':').append(count.getValue());
+          sep = ",";
+        }
+        sb.append('}');
+      }
+      sb.append('}');
+    }
+    return sb.append("]}").toString();
+  }
 
-      String line = tsvReader.readLine();
-      DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("eee MMM d HH:mm:ss yyyy", Locale.ENGLISH);
-      if(dbName != null)
-        infoByDbName.put(dbName,new DbInfo(dbName));
+  static String jsonString(String value) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < ' ')
+        sb.append(String.format("\\u%04x", (int) c));
       else
-        readAll = true;
-      int nbLineRead = 0;
-      String msg = readAll ? "for all databases." : " for "+dbName;
+        sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Read searches log and aggregate usage by database. The log is read by chunks of whole lines, which are parsed
+   * in parallel when several threads are used, and merged in file order.
+   *
+   * @param stateFile file where aggregated usage and read position are saved. If it exists and matches the searches
+   *                  log, only lines appended since previous run are read. May be null.
+   */
+  private HashMap<String, DbInfo> readSearchesLog(String dbName, File stateFile) throws IOException {
+    UsageState state = null;
+    boolean useState = stateFile != null;
+    boolean compressed = FastaIO.isGzip(searchesFile);
+    if (useState && compressed) {
+      logger.info(" Compressed searches log : usage state is not used, whole file is read");
+      useState = false;
+    }
+    if (useState && stateFile.exists())
+      state = UsageState.load(stateFile, dbName, searchesFile);
+    if (state == null)
+      state = new UsageState(dbName);
+
+    String msg = (dbName == null) ? "for all databases." : " for "+dbName;
+    if (state.position > 0)
+      logger.info(" Start read searches log file "+msg+" Lines before position "+state.position+" were read by previous runs.");
+    else
       logger.info(" Start read searches log file "+msg);
 
-      while (line != null) {
-       // System.out.println(" -----------------  " );
-        nbLineRead++;
-
-        String[] lineItems = line.split("\t"); //splitting the line and adding its items in String[]
-        int max = Math.min(LAST_COL+1, lineItems.length);
-        int index =0;
-        boolean goToNextLine = false;
-
-        List<DbInfo> currentDbInfos = new ArrayList<>();
-        if(!readAll)
-          currentDbInfos.add(infoByDbName.get(dbName));
-
-        while (index<max){
-          String value = lineItems[index];
-
-          //Col are read in index order. StartTime will be process only if previous col are corrects.
-          switch (index) {
-
-            case COL_DBNAMES :
-              if(value==null || value.trim().isEmpty()) {
-                goToNextLine = true;
-                break;
-              }
-              List<String> dbs = Arrays.stream(value.split(",")).toList();
-              if(readAll) {
-                for (String nextDbname:  dbs) {
-                  if(!infoByDbName.containsKey(nextDbname))
-                    infoByDbName.put(nextDbname, new DbInfo(nextDbname));
-                  DbInfo nextDbInfo = infoByDbName.get(nextDbname);
-                  if(nextDbInfo.status.equals("-") && mascotDatFile!=null){
-                      nextDbInfo.status = getStatusStr(nextDbname);
-                  }
-                  currentDbInfos.add(nextDbInfo);
-                }
-              } else {
-                if(!dbs.contains(dbName)) {
-                  goToNextLine = true;
-                } else if (mascotDatFile!=null){
-                  currentDbInfos.get(0).status = getStatusStr(dbName);
-                }
-              }
-              break;
+    // last line may still be written : keep it for next run when state is saved
+    long nbLineRead = readLog(state, compressed, !useState);
+    logger.info(" Read "+nbLineRead+" lines ...");
 
-            case COL_USER:
-              if(value !=null && value.startsWith(MONITOR_USER_PREFIX)) {//not a real search
-                goToNextLine = true;
-              } else{
-                currentDbInfos.forEach(di -> di.found=true);
-              }
-              break;
+    if (useState)
+      state.save(stateFile, searchesFile);
+
+    updateStatus(state);
+    return state.infoByDbName;
+  }
+
+  /**
+   * Read searches log from state position to its end, adding usage to state
+   *
+   * @param keepIncompleteLine if false, the last line is only read if it is terminated by a line separator
+   * @return number of read lines
+   */
+  private long readLog(UsageState state, boolean compressed, boolean keepIncompleteLine) throws IOException {
+    long nbLinesBefore = state.nbLines;
+    Metrics.startPhase("read " + searchesFile.getName(), compressed ? -1 : searchesFile.length() - state.position);
+    try (LogChunks chunks = compressed ? new StreamLogChunks(FastaIO.openInput(searchesFile)) : new FileLogChunks(searchesFile, state.position)) {
+      if (nbThreads <= 1) {
+        ByteBuffer chunk;
+        while ((chunk = chunks.next()) != null) {
+          LogChunkParser parser = new LogChunkParser(state.dbName, keepIncompleteLine);
+          parser.parse(chunk);
+          parser.mergeInto(state);
+        }
+      } else {
+        readParallel(chunks, state, keepIncompleteLine);
+      }
+    }
+    return state.nbLines - nbLinesBefore;
+  }
+
+  private void updateStatus(UsageState state) {
+    for (DbInfo info : state.infoByDbName.values())
+      info.status = (info.listed && mascotDatFile != null) ? getStatusStr(info.name) : "-";
+  }
 
-            case COL_START_TIME:
-              if(value!=null) {
-                value = value.trim().replaceAll("  ", " ");
-                try {
-                  LocalDate currentDate = LocalDate.parse(value, dateFormat);
-                  currentDbInfos.forEach(di -> {
-                    if (di.lastUsage.isBefore(currentDate)) {
-                      di.lastUsage = currentDate;
-                    }
-                    di.allUsages.add(currentDate);
-                  });
-                } catch (DateTimeParseException dtpe){
-                  logger.debug(" ------------ Line "+nbLineRead+" ERROR Parsing "+value+". Line skipped for :");
-                  currentDbInfos.forEach(di -> {
-                    logger.debug(" - "+di.name);
-                  });
-                }
-              }
+  private void readParallel(LogChunks chunks, UsageState state, boolean keepIncompleteLine) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(nbThreads);
+    // Limit number of chunks in memory
+    int maxInFlight = nbThreads * 2;
+    ArrayDeque<Future<LogChunkParser>> inFlight = new ArrayDeque<>();
+    try {
+      ByteBuffer next = chunks.next();
+      while (next != null || !inFlight.isEmpty()) {
+        while (next != null && inFlight.size() < maxInFlight) {
+          ByteBuffer chunk = next;
+          inFlight.addLast(pool.submit(() -> {
+            LogChunkParser parser = new LogChunkParser(state.dbName, keepIncompleteLine);
+            parser.parse(chunk);
+            return parser;
+          }));
+          next = chunks.next();
+        }
+        inFlight.removeFirst().get().mergeInto(state);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + searchesFile.getAbsolutePath(), e);
+    } catch (ExecutionException e) {
+      throw new IOException("Error reading " + searchesFile.getAbsolutePath(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Usage aggregated from the first lines of searches log, up to position. It is saved with a fingerprint
+   * of the read part of the searches log, so that a truncated or rotated log is detected and read again.
+   */
+  static class UsageState {
+    private final static int MAGIC = 0x44425553; // "DBUS"
+    private final static int VERSION = 2;
+    // size of searches log parts used as fingerprint : start of the file and last read bytes
+    final static int HEAD_SIZE = 64 * 1024;
+    final static int TAIL_SIZE = 4 * 1024;
+
+    final String dbName;
+    final HashMap<String, DbInfo> infoByDbName = new HashMap<>();
+    long position;
+    long nbLines;
+    // fingerprint of the read part of the searches log
+    long headCrc;
+    long tailCrc;
+
+    UsageState(String dbName) {
+      this.dbName = dbName;
+      if (dbName != null)
+        infoByDbName.put(dbName, new DbInfo(dbName));
+    }
+
+    /**
+     * @return saved state, or null if it can't be used for the searches log and specified database
+     */
+    static UsageState load(File stateFile, String dbName, File searchesFile) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          logger.info(" Usage state " + stateFile.getAbsolutePath() + " has an unknown format : whole searches log is read");
+          return null;
+        }
+        String stateDbName = in.readUTF();
+        if (!stateDbName.equals(dbName == null ? "" : dbName)) {
+          logger.info(" Usage state " + stateFile.getAbsolutePath() + " was saved for another database : whole searches log is read");
+          return null;
+        }
+        UsageState state = new UsageState(dbName);
+        state.position = in.readLong();
+        state.nbLines = in.readLong();
+        state.headCrc = in.readLong();
+        state.tailCrc = in.readLong();
+        if (!state.matches(searchesFile)) {
+          logger.info(" Searches log was truncated or rotated since usage state was saved : whole searches log is read");
+          return null;
+        }
+        int nbInfos = in.readInt();
+        for (int i = 0; i < nbInfos; i++) {
+          DbInfo info = new DbInfo(in.readUTF());
+          info.found = in.readBoolean();
+          info.listed = in.readBoolean();
+          info.lastUsage = LocalDate.ofEpochDay(in.readLong());
+          int nbRuns = in.readInt();
+          for (int r = 0; r < nbRuns; r++)
+            info.allUsages.add(in.readInt(), in.readInt());
+          state.infoByDbName.put(info.name, info);
+        }
+        return state;
+      } catch (EOFException e) {
+        logger.info(" Usage state " + stateFile.getAbsolutePath() + " is truncated : whole searches log is read");
+        return null;
+      }
+    }
+
+    void save(File stateFile, File searchesFile) throws IOException {
+      updateFingerprint(searchesFile);
+      File tmpFile = new File(stateFile.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(dbName == null ? "" : dbName);
+        out.writeLong(position);
+        out.writeLong(nbLines);
+        out.writeLong(headCrc);
+        out.writeLong(tailCrc);
+        out.writeInt(infoByDbName.size());
+        for (DbInfo info : infoByDbName.values()) {
+          out.writeUTF(info.name);
+          out.writeBoolean(info.found);
+          out.writeBoolean(info.listed);
+          out.writeLong(info.lastUsage.toEpochDay());
+          out.writeInt(info.allUsages.nbRuns());
+          for (int r = 0; r < info.allUsages.nbRuns(); r++) {
+            out.writeInt(info.allUsages.day(r));
+            out.writeInt(info.allUsages.count(r));
           }
+        }
+      }
+      Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      logger.debug(" Usage state saved in " + stateFile.getAbsolutePath() + " up to position " + position);
+    }
+
+    /**
+     * Compute fingerprint of the searches log part read up to position
+     */
+    void updateFingerprint(File searchesFile) throws IOException {
+      headCrc = crc(searchesFile, 0, Math.min(HEAD_SIZE, position));
+      tailCrc = crc(searchesFile, Math.max(0, position - TAIL_SIZE), position);
+    }
 
-          if(goToNextLine)
+    /**
+     * @return true if the searches log still starts with the part read up to position
+     */
+    boolean matches(File searchesFile) throws IOException {
+      return searchesFile.length() >= position && headCrc == crc(searchesFile, 0, Math.min(HEAD_SIZE, position))
+        && tailCrc == crc(searchesFile, Math.max(0, position - TAIL_SIZE), position);
+    }
+
+    static long crc(File file, long from, long to) throws IOException {
+      CRC32 crc = new CRC32();
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer buf = ByteBuffer.allocate((int) (to - from));
+        while (buf.hasRemaining() && channel.read(buf, from + buf.position()) > 0) ;
+        buf.flip();
+        crc.update(buf);
+      }
+      return crc.getValue();
+    }
+  }
+
+  /**
+   * Parts of the searches log made of whole lines, except the last part which may end with an incomplete line.
+   * Returned buffers start at index 0.
+   */
+  interface LogChunks extends Closeable {
+
+    /**
+     * @return next part of the searches log, null at end of log
+     */
+    ByteBuffer next() throws IOException;
+  }
+
+  /**
+   * Parts of a plain searches log, mapped from a start position up to the size of the file when opened
+   */
+  static class FileLogChunks implements LogChunks {
+    private final FileChannel channel;
+    private final long end;
+    private long start;
+
+    FileLogChunks(File file, long start) throws IOException {
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      this.end = channel.size();
+      this.start = start;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      long length = Math.min(LOG_CHUNK_SIZE, end - start);
+      while (length > 0) {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        if (start + length == end) {
+          start = end;
+          return buf;
+        }
+        int cut = FastaReader.lastIndexOf(buf, (byte) '\n', 0, (int) length) + 1;
+        if (cut > 0) {
+          start += cut;
+          return buf.slice(0, cut);
+        }
+        // a single line larger than the chunk : map more
+        length = Math.min(length * 2, end - start);
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Parts of a decompressed searches log, copied in memory
+   */
+  static class StreamLogChunks implements LogChunks {
+    private final InputStream in;
+    // bytes read after the end of previous chunk
+    private byte[] pending = new byte[0];
+
+    StreamLogChunks(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      byte[] bytes = new byte[Math.max(LOG_CHUNK_SIZE, pending.length * 2)];
+      System.arraycopy(pending, 0, bytes, 0, pending.length);
+      int length = pending.length;
+      pending = new byte[0];
+      while (true) {
+        length += in.readNBytes(bytes, length, bytes.length - length);
+        if (length < bytes.length) // end of log
+          return (length == 0) ? null : ByteBuffer.wrap(bytes, 0, length);
+        int cut = FastaReader.lastIndexOf(ByteBuffer.wrap(bytes), (byte) '\n', 0, length) + 1;
+        if (cut > 0) {
+          pending = Arrays.copyOfRange(bytes, cut, length);
+          return ByteBuffer.wrap(bytes, 0, cut);
+        }
+        // a single line larger than the chunk : read more
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Aggregate usage described by the lines of one part of the searches log. Lines are parsed as bytes (decoded
+   * using default charset only for new database names) : fields are located by scanning for tabs and commas,
+   * and the date of a search is parsed once per day found in the part, not once per line.
+   */
+  static class LogChunkParser {
+    private final String dbName;
+    private final byte[] dbNameBytes;
+    private final boolean keepIncompleteLine;
+
+    // databases found in the chunk, by id in dbIds
+    private final AccessionDictionary dbIds = new AccessionDictionary(256);
+    private final List<DbInfo> infos = new ArrayList<>();
+    // ids of the databases of the current line
+    private int[] current = new int[16];
+    private int nbCurrent;
+    // lines whose date can't be parsed, logged when merged
+    private final List<DateError> dateErrors = new ArrayList<>();
+    private long nbLines;
+    // length of the complete lines of the chunk
+    private int completeLength;
+
+    private final int[] fieldStarts = new int[LAST_COL + 1];
+    private final int[] fieldEnds = new int[LAST_COL + 1];
+    private final StartTimeParser startTimes = new StartTimeParser();
+
+    LogChunkParser(String dbName, boolean keepIncompleteLine) {
+      this.dbName = dbName;
+      this.dbNameBytes = (dbName == null) ? null : dbName.getBytes(Charset.defaultCharset());
+      this.keepIncompleteLine = keepIncompleteLine;
+      if (dbName != null)
+        infos.add(new DbInfo(dbName));
+    }
+
+    void parse(ByteBuffer buf) {
+      int end = buf.limit();
+      int lineStart = 0;
+      while (lineStart < end) {
+        int eol = FastaReader.indexOf(buf, (byte) '\n', lineStart, end);
+        if (eol < 0 && !keepIncompleteLine)
+          break;
+        int lineEnd = (eol < 0) ? end : eol;
+        if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+          lineEnd--;
+        nbLines++;
+        parseLine(buf, lineStart, lineEnd);
+        lineStart = (eol < 0) ? end : eol + 1;
+        if (eol >= 0)
+          completeLength = lineStart;
+      }
+    }
+
+    /**
+     * Add usage of the line found in buf between from (inclusive) and to (exclusive). Columns are read in index
+     * order : start time is processed only if previous columns are corrects.
+     */
+    private void parseLine(ByteBuffer buf, int from, int to) {
+      // as with String.split, trailing empty fields are ignored
+      int nbFields = 0;
+      int field = 0;
+      int start = from;
+      for (int i = from; ; i++) {
+        if (i == to || buf.get(i) == '\t') {
+          if (field <= LAST_COL) {
+            fieldStarts[field] = start;
+            fieldEnds[field] = i;
+          }
+          if (i > start) {
+            nbFields = field + 1;
+            if (field >= COL_START_TIME) // all read columns are there
+              break;
+          }
+          if (i == to)
             break;
-//          System.out.println("COL " + index + " VALUE " + value);
-          index++;
+          field++;
+          start = i + 1;
         }
-        line = tsvReader.readLine();
       }
-      tsvReader.close();
-      logger.info(" Read "+nbLineRead+" lines ...");
-      return infoByDbName;
+      if (nbFields <= COL_DBNAMES || isBlank(buf, fieldStarts[COL_DBNAMES], fieldEnds[COL_DBNAMES]))
+        return;
 
-    } finally {
-      if(tsvReader!= null)
-        tsvReader.close();
+      if (!readDbNames(buf, fieldStarts[COL_DBNAMES], fieldEnds[COL_DBNAMES]) || nbFields <= COL_USER)
+        return;
+
+      if (startsWith(buf, fieldStarts[COL_USER], fieldEnds[COL_USER], MONITOR_USER_PREFIX_BYTES)) //not a real search
+        return;
+      for (int c = 0; c < nbCurrent; c++)
+        infos.get(current[c]).found = true;
+      if (nbFields <= COL_START_TIME)
+        return;
+
+      LocalDate currentDate = startTimes.parse(buf, fieldStarts[COL_START_TIME], fieldEnds[COL_START_TIME]);
+      if (currentDate != null) {
+        int currentDay = (int) currentDate.toEpochDay();
+        for (int c = 0; c < nbCurrent; c++) {
+          DbInfo info = infos.get(current[c]);
+          if (info.lastUsage.isBefore(currentDate))
+            info.lastUsage = currentDate;
+          info.allUsages.add(currentDay);
+        }
+      } else if (logger.isDebugEnabled()) {
+        List<String> names = new ArrayList<>(nbCurrent);
+        for (int c = 0; c < nbCurrent; c++)
+          names.add(infos.get(current[c]).name);
+        dateErrors.add(new DateError(nbLines, startTimes.value(), names));
+      }
+    }
+
+    /**
+     * Set databases of the current line from the comma separated list in buf between from and to.
+     *
+     * @return false if the line should be skipped : the specified database is not in the list
+     */
+    private boolean readDbNames(ByteBuffer buf, int from, int to) {
+      // as with String.split, trailing empty names are ignored
+      while (to > from && buf.get(to - 1) == ',')
+        to--;
+      nbCurrent = 0;
+      boolean selected = false;
+      int nameStart = from;
+      for (int i = from; i <= to && to > from; i++) {
+        if (i == to || buf.get(i) == ',') {
+          if (dbName == null)
+            addCurrent(buf, nameStart, i);
+          else if (!selected && i - nameStart == dbNameBytes.length && startsWith(buf, nameStart, i, dbNameBytes))
+            selected = true;
+          nameStart = i + 1;
+        }
+      }
+      if (dbName == null)
+        return true;
+      if (selected) {
+        infos.get(0).listed = true;
+        current[nbCurrent++] = 0;
+      }
+      return selected;
+    }
+
+    private void addCurrent(ByteBuffer buf, int from, int to) {
+      int id = dbIds.add(buf, from, to);
+      if (id < 0) {
+        id = -id - 1;
+      } else {
+        byte[] name = new byte[to - from];
+        buf.get(from, name);
+        infos.add(new DbInfo(new String(name, Charset.defaultCharset())));
+      }
+      infos.get(id).listed = true;
+      if (nbCurrent == current.length)
+        current = Arrays.copyOf(current, nbCurrent * 2);
+      current[nbCurrent++] = id;
+    }
+
+    static boolean isBlank(ByteBuffer buf, int from, int to) {
+      for (int i = from; i < to; i++) {
+        if ((buf.get(i) & 0xFF) > ' ')
+          return false;
+      }
+      return true;
+    }
+
+    static boolean startsWith(ByteBuffer buf, int from, int to, byte[] prefix) {
+      if (to - from < prefix.length)
+        return false;
+      for (int i = 0; i < prefix.length; i++) {
+        if (buf.get(from + i) != prefix[i])
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Add usage of the chunk to usage aggregated from previous chunks
+     */
+    void mergeInto(UsageState state) {
+      for (DateError error : dateErrors) {
+        logger.debug(" ------------ Line "+(state.nbLines + error.line)+" ERROR Parsing "+error.value+". Line skipped for :");
+        error.dbNames.forEach(name -> logger.debug(" - "+name));
+      }
+      for (DbInfo info : infos) {
+        DbInfo total = state.infoByDbName.computeIfAbsent(info.name, DbInfo::new);
+        total.found |= info.found;
+        total.listed |= info.listed;
+        if (total.lastUsage.isBefore(info.lastUsage))
+          total.lastUsage = info.lastUsage;
+        total.allUsages.addAll(info.allUsages);
+      }
+      state.nbLines += nbLines;
+      state.position += completeLength;
+      Metrics.addLogLines(nbLines);
+      Metrics.addBytesRead(completeLength);
+    }
+  }
+
+  /**
+   * Parse start times of searches ("eee MMM d HH:mm:ss yyyy"). The date doesn't depend on a valid time, so each day
+   * is parsed once and found again from the start time without its time of day.
+   */
+  static class StartTimeParser {
+    private byte[] date = new byte[64];
+    private int dateLength;
+    private int secondOfDay;
+    // parsed dates by id in dayKeys, null if the day can't be parsed
+    private final AccessionDictionary dayKeys = new AccessionDictionary(256);
+    private ByteBuffer dayKey = ByteBuffer.allocate(64);
+    private LocalDate[] days = new LocalDate[256];
+
+    /**
+     * @return date of the start time found in buf between from and to, null if it can't be parsed.
+     * Normalized start time (as value.trim().replaceAll("  ", " ")) is kept, see {@link #value()}.
+     */
+    LocalDate parse(ByteBuffer buf, int from, int to) {
+      while (from < to && (buf.get(from) & 0xFF) <= ' ')
+        from++;
+      while (to > from && (buf.get(to - 1) & 0xFF) <= ' ')
+        to--;
+      if (date.length < to - from)
+        date = new byte[to - from];
+      int n = 0;
+      for (int i = from; i < to; i++) {
+        byte b = buf.get(i);
+        date[n++] = b;
+        if (b == ' ' && i + 1 < to && buf.get(i + 1) == ' ')
+          i++;
+      }
+      dateLength = n;
+      secondOfDay = -1;
+
+      int nbSpaces = 0;
+      int timeStart = -1;
+      int timeEnd = -1;
+      for (int i = 0; i < n; i++) {
+        if (date[i] == ' ') {
+          nbSpaces++;
+          if (nbSpaces == 3)
+            timeStart = i + 1;
+          else if (nbSpaces == 4)
+            timeEnd = i;
+        }
+      }
+      if (nbSpaces != 4 || !isTime(date, timeStart, timeEnd))
+        return parseDate(new String(date, 0, n, Charset.defaultCharset()));
+
+      int keyLength = timeStart + n - timeEnd;
+      if (dayKey.capacity() < keyLength)
+        dayKey = ByteBuffer.allocate(keyLength);
+      dayKey.put(0, date, 0, timeStart);
+      dayKey.put(timeStart, date, timeEnd, n - timeEnd);
+      int id = dayKeys.add(dayKey, 0, keyLength);
+      if (id < 0) {
+        id = -id - 1;
+      } else {
+        if (id == days.length)
+          days = Arrays.copyOf(days, id * 2);
+        days[id] = parseDate(new String(date, 0, timeStart, Charset.defaultCharset()) + "00:00:00"
+          + new String(date, timeEnd, n - timeEnd, Charset.defaultCharset()));
+      }
+      if (days[id] != null)
+        secondOfDay = ((date[timeStart] - '0') * 10 + date[timeStart + 1] - '0') * 3600
+          + ((date[timeStart + 3] - '0') * 10 + date[timeStart + 4] - '0') * 60 + (date[timeStart + 6] - '0') * 10 + date[timeStart + 7] - '0';
+      return days[id];
+    }
+
+    /**
+     * @return normalized value of the last parsed start time
+     */
+    String value() {
+      return new String(date, 0, dateLength, Charset.defaultCharset());
+    }
+
+    /**
+     * @return time of day (in seconds) of the last parsed start time, -1 if unknown
+     */
+    int secondOfDay() {
+      return secondOfDay;
+    }
+
+    /**
+     * @return true if bytes between from and to are a time of day as HH:mm:ss
+     */
+    private static boolean isTime(byte[] bytes, int from, int to) {
+      if (to - from != 8 || bytes[from + 2] != ':' || bytes[from + 5] != ':')
+        return false;
+      for (int i = from; i < to; i += 3) {
+        if (bytes[i] < '0' || bytes[i] > '9' || bytes[i + 1] < '0' || bytes[i + 1] > '9')
+          return false;
+      }
+      return (bytes[from] - '0') * 10 + bytes[from + 1] - '0' < 24 && bytes[from + 3] < '6' && bytes[from + 6] < '6';
+    }
+
+    private static LocalDate parseDate(String value) {
+      try {
+        return LocalDate.parse(value, DATE_FORMAT);
+      } catch (DateTimeParseException dtpe) {
+        return null;
+      }
     }
   }
 
+  private static class DateError {
+    final long line;
+    final String value;
+    final List<String> dbNames;
+
+    DateError(long line, String value, List<String> dbNames) {
+      this.line = line;
+      this.value = value;
+      this.dbNames = dbNames;
+    }
+  }
 
   static class DbInfo {
     LocalDate lastUsage;
-    List<LocalDate> allUsages;
+    // days of all searches, in searches log order
+    UsageDays allUsages;
     String name;
     boolean found;
+    // database was in the databases list of at least one search
+    boolean listed;
     String status;
     public  DbInfo(String dbname){
       name = dbname;
       found = false;
       status="-";
       lastUsage = LocalDate.of(1900, 1, 1);
-      allUsages = new ArrayList<>();
+      allUsages = new UsageDays();
     }
 
     public String allDateAsString(){
       StringBuilder sb = new StringBuilder();
-      for(LocalDate d : allUsages){
-        sb.append(d).append(";;");
+      for (int r = 0; r < allUsages.nbRuns(); r++) {
+        String d = LocalDate.ofEpochDay(allUsages.day(r)).toString();
+        for (int c = 0; c < allUsages.count(r); c++)
+          sb.append(d).append(";;");
       }
       return sb.toString();
     }
 
   }
+
+  /**
+   * Days (as epoch days) of searches, run-length encoded in the order searches were added : consecutive
+   * searches on the same day only increment a counter, so that memory depends on the number of days rather
+   * than on the number of searches.
+   */
+  static class UsageDays {
+    private int[] days = new int[4];
+    private int[] counts = new int[4];
+    private int nbRuns;
+
+    void add(int day) {
+      add(day, 1);
+    }
+
+    void add(int day, int count) {
+      if (nbRuns > 0 && days[nbRuns - 1] == day) {
+        counts[nbRuns - 1] += count;
+        return;
+      }
+      if (nbRuns == days.length) {
+        days = Arrays.copyOf(days, nbRuns * 2);
+        counts = Arrays.copyOf(counts, nbRuns * 2);
+      }
+      days[nbRuns] = day;
+      counts[nbRuns] = count;
+      nbRuns++;
+    }
+
+    void addAll(UsageDays other) {
+      for (int r = 0; r < other.nbRuns; r++)
+        add(other.days[r], other.counts[r]);
+    }
+
+    int nbRuns() {
+      return nbRuns;
+    }
+
+    int day(int run) {
+      return days[run];
+    }
+
+    int count(int run) {
+      return counts[run];
+    }
+
+    long nbSearches() {
+      long total = 0;
+      for (int r = 0; r < nbRuns; r++)
+        total += counts[r];
+      return total;
+    }
+
+    /**
+     * @param period epoch day of the period (day, month...) an epoch day belongs to
+     * @return number of searches by period, sorted by period
+     */
+    TreeMap<Integer, Long> countsBy(IntUnaryOperator period) {
+      TreeMap<Integer, Long> counts = new TreeMap<>();
+      for (int r = 0; r < nbRuns; r++)
+        counts.merge(period.applyAsInt(days[r]), (long) this.counts[r], Long::sum);
+      return counts;
+    }
+  }
 }
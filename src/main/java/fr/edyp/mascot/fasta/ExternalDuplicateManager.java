@@ -0,0 +1,574 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Search duplicate entries of fasta files whose accessions can't be kept in memory at once.
+ *
+ * Accession, position and sequence digest of each entry are first written to temporary partition files,
+ * using a hash of the accession stem (accession without its _&lt;index&gt; suffixes) : an accession and all the
+ * names generated when renaming its duplicates are in the same partition. Duplicates are then resolved one
+ * partition at a time, as {@link FastaDuplicateManager} does for the whole file, and partition results are
+ * merged in file order. Heap usage is bounded by the specified memory limit : a partition which turns out to be too
+ * large to be resolved in memory is split again before being read. At most {@link #MAX_OPEN_FILES} temporary files
+ * are open at once, results being merged in several passes if needed.
+ */
+public class ExternalDuplicateManager {
+
+  private final static Logger logger = LoggerFactory.getLogger(ExternalDuplicateManager.class);
+
+  // Rough values used to choose the number of partitions
+  final static int ESTIMATED_ENTRY_FILE_SIZE = 250;
+  private final static int ESTIMATED_ENTRY_MEMORY = 96;
+  // keep the number of open files well under the usual limit of 1024 file descriptors
+  final static int MAX_OPEN_FILES = 256;
+  // a partition split again into sub partitions which are still too large is resolved as is
+  final static int MAX_SPLIT_LEVEL = 4;
+
+  /**
+   * Same as {@link FastaDuplicateManager#removeDuplicateInFasta(File, File, HeaderFormat)} using temporary files.
+   *
+   * @param maxMemory heap (in bytes) which may be used to search duplicates
+   * @param tmpDir directory to create temporary files in, system default if null
+   */
+  public static void removeDuplicateInFasta(File fastaIn, File fastaOut, HeaderFormat format, long maxMemory, File tmpDir) throws IOException {
+    logger.info("Search Duplicate entries in "+fastaIn.getAbsolutePath()+" using header format <"+format+"> and temporary files");
+    Metrics.startReading(fastaIn);
+    HeaderFormat.Parser header = format.newParser();
+    Partitions partitions = spill(fastaIn, header, false, maxMemory, tmpDir);
+    try {
+      // split partitions are added at the end
+      for (int p = 0; p < partitions.size(); p++) {
+        if (!partitions.split(p, maxMemory))
+          resolveRenames(partitions, p);
+      }
+      partitions.deleteSpillFiles();
+      partitions.reduceResults(maxMemory);
+
+      int nbDuplicate = 0;
+      try (ResultMerger renames = new ResultMerger(partitions, maxMemory);
+           FastaReader reader = new FastaReader(fastaIn); FastaWriter writer = new FastaWriter(fastaOut)) {
+        while (reader.next()) {
+          ByteBuffer buf = reader.buffer();
+          if (!reader.hasHeader()) {
+            writer.writeRecordLines(reader, reader.recordStart());
+            continue;
+          }
+
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          PartitionResult rename = renames.peek();
+          if (rename != null && rename.offset == reader.recordOffset()) {
+            nbDuplicate++;
+            Metrics.addDuplicates(1);
+            logger.info("-- Renamed " + FastaReader.toString(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION)) + " to " + rename.accessionString());
+            header.writeHeader(writer, rename.accession, rename.accessionLength);
+            renames.next();
+          } else {
+            header.writeHeader(writer, null, 0);
+          }
+          writer.writeRecordLines(reader, reader.sequenceStart());
+        }
+        logger.info(" ** Read " + reader.throughput());
+      }
+      logger.info("\n ** Found "+nbDuplicate+" duplicate entries ");
+    } finally {
+      partitions.deleteAll();
+    }
+  }
+
+  /**
+   * Same as {@link FastaDuplicateManager#compareDuplicateInFasta(File, HeaderFormat)} using temporary files.
+   *
+   * @param maxMemory heap (in bytes) which may be used to search duplicates
+   * @param tmpDir directory to create temporary files in, system default if null
+   */
+  public static void compareDuplicateInFasta(File fasta, HeaderFormat format, long maxMemory, File tmpDir) throws IOException {
+    logger.info("Search Duplicate entries in "+fasta.getAbsolutePath()+" using header format <"+format+"> and temporary files");
+    Metrics.startReading(fasta);
+    Partitions partitions = spill(fasta, format.newParser(), true, maxMemory, tmpDir);
+    try {
+      // compressed files can't be read back : digests are trusted
+      boolean readBack = !FastaIO.isGzip(fasta);
+      if (!readBack)
+        logger.info("Compressed input : entries with the same sequence digest are considered identical");
+      try (FileChannel channel = readBack ? FileChannel.open(fasta.toPath(), StandardOpenOption.READ) : null) {
+        // split partitions are added at the end
+        for (int p = 0; p < partitions.size(); p++) {
+          if (!partitions.split(p, maxMemory))
+            resolveComparisons(partitions, p, channel);
+        }
+      }
+      partitions.deleteSpillFiles();
+      partitions.reduceResults(maxMemory);
+
+      int nbDuplicate = 0;
+      int nbDupDiff = 0;
+      try (ResultMerger duplicates = new ResultMerger(partitions, maxMemory)) {
+        PartitionResult duplicate;
+        while ((duplicate = duplicates.peek()) != null) {
+          nbDuplicate++;
+          Metrics.addDuplicates(1);
+          if (duplicate.sameSequence) {
+            logger.info("-- Duplicate\t" + duplicate.accessionString() + "\tSame sequences ");
+          } else {
+            nbDupDiff++;
+            logger.info("-- Duplicate\t" + duplicate.accessionString() + "\t!!! DIFF sequences !!!");
+          }
+          duplicates.next();
+        }
+      }
+      logger.info("\n ** Found "+nbDuplicate+" duplicate entries with "+nbDupDiff+" with different sequences");
+    } finally {
+      partitions.deleteAll();
+    }
+  }
+
+  /**
+   * Write (position, accession [, sequence digest]) of all entries into partition files.
+   */
+  private static Partitions spill(File fasta, HeaderFormat.Parser header, boolean withDigest, long maxMemory, File tmpDir) throws IOException {
+    long estimatedMemory = FastaIO.estimatedSize(fasta) / ESTIMATED_ENTRY_FILE_SIZE * ESTIMATED_ENTRY_MEMORY;
+    int nbPartitions = (int) Math.max(1, Math.min(MAX_OPEN_FILES, estimatedMemory / Math.max(1, maxMemory / 2) + 1));
+    logger.info(" Spill entries into " + nbPartitions + " partition(s) in " + (tmpDir == null ? System.getProperty("java.io.tmpdir") : tmpDir.getAbsolutePath()));
+
+    Partitions partitions = new Partitions(withDigest, tmpDir);
+    SequenceDigester digester = new SequenceDigester();
+    byte[] accession = new byte[256];
+    DataOutputStream[] outs = null;
+    try {
+      outs = partitions.create(nbPartitions, 0, maxMemory);
+      try (FastaReader reader = new FastaReader(fasta)) {
+        while (reader.next()) {
+          if (!reader.hasHeader())
+            continue;
+          ByteBuffer buf = reader.buffer();
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          int accStart = header.start(HeaderFormat.ACCESSION);
+          int accEnd = header.end(HeaderFormat.ACCESSION);
+          int accLength = accEnd - accStart;
+          if (accLength > 0xFFFF)
+            throw new IOException("Accession too long at position " + reader.recordOffset());
+
+          int p = partition(AccessionDictionary.hash(buf, accStart, stemEnd(buf, accStart, accEnd)), 0, nbPartitions);
+          DataOutputStream out = outs[p];
+          accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+          buf.get(accStart, accession, 0, accLength);
+          out.writeLong(reader.recordOffset());
+          out.writeShort(accLength);
+          out.write(accession, 0, accLength);
+          if (withDigest) {
+            digester.digest(buf, reader.sequenceStart(), reader.recordEnd());
+            out.writeLong(digester.high());
+            out.writeLong(digester.low());
+            out.writeInt(digester.length());
+          }
+          partitions.counts[p]++;
+        }
+        logger.info(" ** Read " + reader.throughput());
+      }
+    } catch (IOException | RuntimeException e) {
+      partitions.deleteAll();
+      throw e;
+    } finally {
+      Partitions.close(outs);
+    }
+    return partitions;
+  }
+
+  /**
+   * @param hash hash of the accession stem
+   * @param level number of times the partition of the accession was split : each level uses another mix of the
+   *              hash, so that entries of a partition are spread when it is split again
+   * @return partition of the accession
+   */
+  static int partition(int hash, int level, int nbPartitions) {
+    for (int l = 0; l < level; l++) {
+      hash ^= hash >>> 15;
+      hash *= 0x2C1B3C6D;
+      hash ^= hash >>> 12;
+      hash *= 0x297A2D39;
+      hash ^= hash >>> 15;
+    }
+    return (hash & 0x7FFFFFFF) % nbPartitions;
+  }
+
+  /**
+   * @return end of the stem of the accession found in buf between from and to : the accession without its
+   * _&lt;index&gt; suffixes, which are added when renaming duplicates.
+   */
+  static int stemEnd(ByteBuffer buf, int from, int to) {
+    int stemEnd = to;
+    while (true) {
+      int i = stemEnd - 1;
+      while (i > from && buf.get(i) >= '0' && buf.get(i) <= '9')
+        i--;
+      if (i < stemEnd - 1 && i > from && buf.get(i) == '_')
+        stemEnd = i;
+      else
+        return stemEnd;
+    }
+  }
+
+  private static void resolveRenames(Partitions partitions, int p) throws IOException {
+    int count = (int) partitions.counts[p];
+    AccessionDictionary names = new AccessionDictionary(count);
+    byte[] accession = new byte[256];
+    byte[] newAcc = new byte[256];
+    long nbRenamed = 0;
+    try (DataInputStream in = partitions.openSpill(p); DataOutputStream out = partitions.createResult()) {
+      for (int i = 0; i < count; i++) {
+        long offset = in.readLong();
+        int accLength = in.readUnsignedShort();
+        accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+        in.readFully(accession, 0, accLength);
+
+        int accId = names.add(accession, 0, accLength);
+        if (accId < 0) {
+          newAcc = FastaDuplicateManager.ensureCapacity(newAcc, accLength + 12);
+          int newAccLength = FastaDuplicateManager.renameDuplicate(names, -accId - 1, newAcc);
+          out.writeLong(offset);
+          out.writeShort(newAccLength);
+          out.write(newAcc, 0, newAccLength);
+          nbRenamed++;
+        }
+      }
+    }
+    partitions.setResultCount(nbRenamed);
+    logger.debug(" partition " + p + " : " + count + " entries, " + nbRenamed + " renamed. Used " + (names.memoryUsage() / (1024 * 1024)) + " MB");
+  }
+
+  private static void resolveComparisons(Partitions partitions, int p, FileChannel channel) throws IOException {
+    int count = (int) partitions.counts[p];
+    AccessionDictionary accessions = new AccessionDictionary(count);
+    FastaDuplicateManager.SequenceInfos seqInfos = new FastaDuplicateManager.SequenceInfos();
+    SequenceDigester digester = new SequenceDigester();
+    byte[] accession = new byte[256];
+    long nbDuplicate = 0;
+    try (DataInputStream in = partitions.openSpill(p); DataOutputStream out = partitions.createResult()) {
+      for (int i = 0; i < count; i++) {
+        long offset = in.readLong();
+        int accLength = in.readUnsignedShort();
+        accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+        in.readFully(accession, 0, accLength);
+        long high = in.readLong();
+        long low = in.readLong();
+        int length = in.readInt();
+
+        int accId = accessions.add(accession, 0, accLength);
+        if (accId < 0) {
+          accId = -accId - 1;
+          boolean same = seqInfos.sameDigest(accId, high, low, length);
+          if (same && channel != null) {
+            // verify sequences are really the same
+            digester.digestAt(channel, offset);
+            same = digester.sameSequenceAt(channel, seqInfos.offset(accId));
+          }
+          out.writeLong(offset);
+          out.writeShort(accLength);
+          out.write(accession, 0, accLength);
+          out.writeBoolean(same);
+          nbDuplicate++;
+        } else {
+          seqInfos.set(accId, high, low, length, offset);
+        }
+      }
+    }
+    partitions.setResultCount(nbDuplicate);
+    logger.debug(" partition " + p + " : " + count + " entries, " + nbDuplicate + " duplicates. Used " + ((accessions.memoryUsage() + seqInfos.memoryUsage()) / (1024 * 1024)) + " MB");
+  }
+
+  /**
+   * Temporary files : spilled entries by partition, and duplicates found, each result file being sorted on position.
+   */
+  private static class Partitions {
+    final boolean withDigest;
+    final File tmpDir;
+    File[] spillFiles = new File[16];
+    long[] counts = new long[16];
+    int[] levels = new int[16];
+    int size;
+    final List<File> resultFiles = new ArrayList<>();
+    final List<Long> resultCounts = new ArrayList<>();
+
+    Partitions(boolean withDigest, File tmpDir) {
+      this.withDigest = withDigest;
+      this.tmpDir = tmpDir;
+    }
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * Add nbPartitions empty partitions
+     *
+     * @return streams to write entries of the new partitions, to be closed by the caller
+     */
+    DataOutputStream[] create(int nbPartitions, int level, long maxMemory) throws IOException {
+      int bufferSize = (int) Math.max(4096, Math.min(64 * 1024, maxMemory / 4 / nbPartitions));
+      DataOutputStream[] outs = new DataOutputStream[nbPartitions];
+      try {
+        for (int p = 0; p < nbPartitions; p++) {
+          if (size == spillFiles.length) {
+            spillFiles = Arrays.copyOf(spillFiles, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+          }
+          spillFiles[size] = File.createTempFile("mascot-dup-" + size + "-", ".entries", tmpDir);
+          levels[size] = level;
+          size++;
+          outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFiles[size - 1]), bufferSize));
+        }
+      } catch (IOException e) {
+        close(outs);
+        throw e;
+      }
+      return outs;
+    }
+
+    /**
+     * @return heap needed to resolve partition p : its entries are read in an accession dictionary
+     */
+    long memoryUsage(int p) {
+      return spillFiles[p].length() + counts[p] * ESTIMATED_ENTRY_MEMORY;
+    }
+
+    /**
+     * Split partition p into new partitions, added at the end, if it is too large to be resolved using maxMemory.
+     * Partition p is then empty.
+     *
+     * @return true if partition p was split
+     */
+    boolean split(int p, long maxMemory) throws IOException {
+      long memory = memoryUsage(p);
+      long partitionMemory = Math.max(1, maxMemory / 2);
+      if (memory <= partitionMemory || counts[p] < 2)
+        return false;
+      if (levels[p] >= MAX_SPLIT_LEVEL) {
+        logger.warn(" !!! Partition " + p + " needs about " + (memory / (1024 * 1024)) + " MB : its accessions can't be spread any more");
+        return false;
+      }
+
+      int nbParts = (int) Math.max(2, Math.min(MAX_OPEN_FILES, memory / partitionMemory + 1));
+      int level = levels[p] + 1;
+      int first = size;
+      logger.debug(" partition " + p + " needs about " + (memory / (1024 * 1024)) + " MB : split into " + nbParts + " partitions");
+      DataOutputStream[] outs = null;
+      try (DataInputStream in = openSpill(p)) {
+        outs = create(nbParts, level, maxMemory);
+        byte[] accession = new byte[256];
+        ByteBuffer accessionBuf = ByteBuffer.wrap(accession);
+        byte[] digest = new byte[20];
+        for (long i = 0; i < counts[p]; i++) {
+          long offset = in.readLong();
+          int accLength = in.readUnsignedShort();
+          if (accLength > accession.length) {
+            accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+            accessionBuf = ByteBuffer.wrap(accession);
+          }
+          in.readFully(accession, 0, accLength);
+          if (withDigest)
+            in.readFully(digest);
+
+          int q = partition(AccessionDictionary.hash(accessionBuf, 0, stemEnd(accessionBuf, 0, accLength)), level, nbParts);
+          DataOutputStream out = outs[q];
+          out.writeLong(offset);
+          out.writeShort(accLength);
+          out.write(accession, 0, accLength);
+          if (withDigest)
+            out.write(digest);
+          counts[first + q]++;
+        }
+      } finally {
+        close(outs);
+      }
+      delete(spillFiles[p]);
+      counts[p] = 0;
+      return true;
+    }
+
+    DataInputStream openSpill(int p) throws IOException {
+      return new DataInputStream(new BufferedInputStream(new FileInputStream(spillFiles[p]), 64 * 1024));
+    }
+
+    /**
+     * Add a result file, its number of results being set once written by {@link #setResultCount(long)}
+     */
+    DataOutputStream createResult() throws IOException {
+      File resultFile = File.createTempFile("mascot-dup-" + resultFiles.size() + "-", ".result", tmpDir);
+      resultFiles.add(resultFile);
+      resultCounts.add(0L);
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(resultFile), 64 * 1024));
+    }
+
+    void setResultCount(long count) {
+      resultCounts.set(resultCounts.size() - 1, count);
+    }
+
+    /**
+     * Merge result files, at most {@link #MAX_OPEN_FILES} at a time, until they can all be opened at once
+     */
+    void reduceResults(long maxMemory) throws IOException {
+      // empty results are not merged
+      for (int i = resultFiles.size() - 1; i >= 0; i--) {
+        if (resultCounts.get(i) == 0) {
+          delete(resultFiles.remove(i));
+          resultCounts.remove(i);
+        }
+      }
+      while (resultFiles.size() > MAX_OPEN_FILES) {
+        logger.debug(" merge " + resultFiles.size() + " result files");
+        List<File> files = new ArrayList<>(resultFiles);
+        List<Long> fileCounts = new ArrayList<>(resultCounts);
+        resultFiles.clear();
+        resultCounts.clear();
+        for (int from = 0; from < files.size(); from += MAX_OPEN_FILES) {
+          int to = Math.min(files.size(), from + MAX_OPEN_FILES);
+          long count = 0;
+          try (ResultMerger merger = new ResultMerger(files.subList(from, to), fileCounts.subList(from, to), withDigest, maxMemory);
+               DataOutputStream out = createResult()) {
+            PartitionResult result;
+            while ((result = merger.peek()) != null) {
+              result.write(out);
+              count++;
+              merger.next();
+            }
+          }
+          setResultCount(count);
+          for (int i = from; i < to; i++)
+            delete(files.get(i));
+        }
+      }
+    }
+
+    void deleteSpillFiles() {
+      for (int p = 0; p < size; p++)
+        delete(spillFiles[p]);
+    }
+
+    void deleteAll() {
+      deleteSpillFiles();
+      for (File f : resultFiles)
+        delete(f);
+    }
+
+    private static void delete(File f) {
+      if (f != null && f.exists() && !f.delete())
+        logger.warn("Unable to delete temporary file " + f.getAbsolutePath());
+    }
+
+    static void close(DataOutputStream[] outs) throws IOException {
+      if (outs == null)
+        return;
+      for (DataOutputStream out : outs) {
+        if (out != null)
+          out.close();
+      }
+    }
+  }
+
+  /**
+   * One duplicate found in a partition : a renamed accession or a comparison result.
+   */
+  private static class PartitionResult {
+    final DataInputStream in;
+    final boolean withSameFlag;
+    long remaining;
+    long offset;
+    byte[] accession = new byte[256];
+    int accessionLength;
+    boolean sameSequence;
+
+    PartitionResult(DataInputStream in, long count, boolean withSameFlag) {
+      this.in = in;
+      this.remaining = count;
+      this.withSameFlag = withSameFlag;
+    }
+
+    boolean read() throws IOException {
+      if (remaining == 0)
+        return false;
+      remaining--;
+      offset = in.readLong();
+      accessionLength = in.readUnsignedShort();
+      accession = FastaDuplicateManager.ensureCapacity(accession, accessionLength);
+      in.readFully(accession, 0, accessionLength);
+      if (withSameFlag)
+        sameSequence = in.readBoolean();
+      return true;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeLong(offset);
+      out.writeShort(accessionLength);
+      out.write(accession, 0, accessionLength);
+      if (withSameFlag)
+        out.writeBoolean(sameSequence);
+    }
+
+    String accessionString() {
+      return new String(accession, 0, accessionLength, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Merge result files in file position order.
+   */
+  private static class ResultMerger implements Closeable {
+    private final PriorityQueue<PartitionResult> queue = new PriorityQueue<>(Comparator.comparingLong(r -> r.offset));
+    private final PartitionResult[] results;
+
+    ResultMerger(Partitions partitions, long maxMemory) throws IOException {
+      this(partitions.resultFiles, partitions.resultCounts, partitions.withDigest, maxMemory);
+    }
+
+    ResultMerger(List<File> files, List<Long> counts, boolean withSameFlag, long maxMemory) throws IOException {
+      int bufferSize = (int) Math.max(4096, Math.min(64 * 1024, maxMemory / 4 / Math.max(1, files.size())));
+      results = new PartitionResult[files.size()];
+      try {
+        for (int p = 0; p < files.size(); p++) {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files.get(p)), bufferSize));
+          results[p] = new PartitionResult(in, counts.get(p), withSameFlag);
+          if (results[p].read())
+            queue.add(results[p]);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return next result in file order, null if none
+     */
+    PartitionResult peek() {
+      return queue.peek();
+    }
+
+    void next() throws IOException {
+      PartitionResult result = queue.poll();
+      if (result != null && result.read())
+        queue.add(result);
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (PartitionResult result : results) {
+        if (result != null)
+          result.in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Run a record by record transformation of a fasta file. The input is split in chunks at entry boundaries,
+ * each chunk being processed by its own {@link RecordProcessor}. Chunks are processed on a fork-join pool
+ * when more than one thread is requested and results are written back in the input order, so output
+ * does not depend on the number of threads.
+ * Chunks of compressed files are decompressed in memory by the calling thread. Large parts of plain files written
+ * unchanged are not copied in chunk results but copied from the input file by the final writer (see {@link FastaWriter}).
+ */
+public class FastaChunkProcessor {
+
+  private final static Logger logger = LoggerFactory.getLogger(FastaChunkProcessor.class);
+
+  private final static int CHUNK_SIZE = 4 * 1024 * 1024;
+
+  public interface RecordProcessor {
+
+    /**
+     * Process the current record of the reader, writing result (if any) to writer.
+     * writer is null when the run has no output file.
+     */
+    void process(FastaReader reader, FastaWriter writer) throws IOException;
+
+    /**
+     * Called once all records of the chunk were processed and written. Chunks are completed in file order
+     * and always from the same thread, so shared state may be updated here.
+     */
+    default void chunkDone() {
+    }
+  }
+
+  /**
+   * Process all records of fin and write result to fout.
+   *
+   * @param fout output file, or null to only read records (processors then get a null writer)
+   *
+   * @param nbThreads number of threads to use. If 1 or less, chunks are processed sequentially in calling thread.
+   * @param processorFactory create the processor for one chunk
+   */
+  public static void run(File fin, File fout, int nbThreads, Supplier<? extends RecordProcessor> processorFactory) throws IOException {
+    long startTime = System.nanoTime();
+    long size;
+    Metrics.startReading(fin);
+    try (ChunkSource chunks = FastaIO.isGzip(fin) ? new StreamChunks(FastaIO.openInput(fin)) : new FileChunks(fin);
+         FastaWriter writer = (fout == null) ? null : new FastaWriter(fout)) {
+      if (nbThreads <= 1) {
+        Chunk chunk;
+        while ((chunk = chunks.next()) != null) {
+          RecordProcessor processor = processorFactory.get();
+          processChunk(chunk, processor, writer);
+          processor.chunkDone();
+        }
+      } else {
+        runParallel(fin, chunks, writer, nbThreads, processorFactory);
+      }
+      size = chunks.bytesRead();
+    }
+    logger.info(" ** Read " + FastaReader.throughput(size, startTime) + " using " + Math.max(1, nbThreads) + " thread(s)");
+  }
+
+  private static void runParallel(File fin, ChunkSource chunks, FastaWriter writer, int nbThreads, Supplier<? extends RecordProcessor> processorFactory) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(nbThreads);
+    // Limit number of chunks in memory
+    int maxInFlight = nbThreads * 2;
+    ArrayDeque<Future<ChunkResult>> inFlight = new ArrayDeque<>();
+    try {
+      Chunk next = chunks.next();
+      while (next != null || !inFlight.isEmpty()) {
+        while (next != null && inFlight.size() < maxInFlight) {
+          Chunk chunk = next;
+          inFlight.addLast(pool.submit(() -> {
+            RecordProcessor processor = processorFactory.get();
+            if (writer == null) {
+              processChunk(chunk, processor, null);
+              return new ChunkResult(processor, null);
+            }
+            ChunkBuffer out = new ChunkBuffer((int) Math.min(Integer.MAX_VALUE - 8, chunk.length + 1024));
+            try (FastaWriter chunkWriter = new FastaWriter(out, 64 * 1024)) {
+              processChunk(chunk, processor, chunkWriter);
+            }
+            return new ChunkResult(processor, out);
+          }));
+          next = chunks.next();
+        }
+
+        ChunkResult result = inFlight.removeFirst().get();
+        if (result.output != null)
+          result.output.writeTo(writer);
+        result.processor.chunkDone();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing " + fin.getAbsolutePath(), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Error processing " + fin.getAbsolutePath(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void processChunk(Chunk chunk, RecordProcessor processor, FastaWriter writer) throws IOException {
+    try (FastaReader reader = chunk.open()) {
+      while (reader.next()) {
+        processor.process(reader, writer);
+      }
+    }
+  }
+
+  /**
+   * Part of the input file made of whole records : a range of a plain file or decompressed bytes.
+   */
+  private static class Chunk {
+    final File file;
+    final ByteBuffer data;
+    final long offset;
+    final long length;
+
+    Chunk(File file, long offset, long length) {
+      this.file = file;
+      this.data = null;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    Chunk(ByteBuffer data, long offset) {
+      this.file = null;
+      this.data = data;
+      this.offset = offset;
+      this.length = data.remaining();
+    }
+
+    FastaReader open() throws IOException {
+      return (data == null) ? new FastaReader(file, offset, offset + length) : new FastaReader(data, offset);
+    }
+  }
+
+  private interface ChunkSource extends Closeable {
+
+    /**
+     * @return next chunk of the input, null at end of input
+     */
+    Chunk next() throws IOException;
+
+    long bytesRead();
+  }
+
+  /**
+   * Chunks of a plain file, read by the processing thread
+   */
+  private static class FileChunks implements ChunkSource {
+    private final File file;
+    private final FileChannel channel;
+    private long start = 0;
+
+    FileChunks(File file) throws IOException {
+      this.file = file;
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+      if (start >= channel.size())
+        return null;
+      long end = FastaReader.nextRecordStart(channel, start + CHUNK_SIZE);
+      Chunk chunk = new Chunk(file, start, end - start);
+      start = end;
+      return chunk;
+    }
+
+    @Override
+    public long bytesRead() {
+      return start;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Chunks of a decompressed stream, copied in memory
+   */
+  private static class StreamChunks implements ChunkSource {
+    private final InputStream in;
+    // bytes read after the end of previous chunk
+    private byte[] pending = new byte[0];
+    private int pendingLength;
+    private long offset = 0;
+    private boolean eof;
+
+    StreamChunks(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public Chunk next() throws IOException {
+      if (eof && pendingLength == 0)
+        return null;
+      byte[] bytes = new byte[Math.max(CHUNK_SIZE, pendingLength * 2)];
+      System.arraycopy(pending, 0, bytes, 0, pendingLength);
+      int length = pendingLength;
+      int scanned = 1;
+      while (true) {
+        while (!eof && length < bytes.length) {
+          int n = in.read(bytes, length, bytes.length - length);
+          if (n < 0)
+            eof = true;
+          else
+            length += n;
+        }
+        if (eof) {
+          pendingLength = 0;
+          break;
+        }
+        // cut after the last complete record
+        int cut = -1;
+        for (int i = length - 1; i >= scanned; i--) {
+          if (bytes[i] == '>' && bytes[i - 1] == '\n') {
+            cut = i;
+            break;
+          }
+        }
+        if (cut > 0) {
+          pendingLength = length - cut;
+          if (pending.length < pendingLength)
+            pending = new byte[Math.max(pendingLength, pending.length * 2)];
+          System.arraycopy(bytes, cut, pending, 0, pendingLength);
+          length = cut;
+          break;
+        }
+        // a single record larger than the chunk : read more
+        scanned = Math.max(1, length - 1);
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      Chunk chunk = new Chunk(ByteBuffer.wrap(bytes, 0, length), offset);
+      offset += length;
+      return chunk.length == 0 ? null : chunk;
+    }
+
+    @Override
+    public long bytesRead() {
+      return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class ChunkResult {
+    final RecordProcessor processor;
+    final ChunkBuffer output;
+
+    ChunkResult(RecordProcessor processor, ChunkBuffer output) {
+      this.processor = processor;
+      this.output = output;
+    }
+  }
+
+  /**
+   * Output of a chunk : bytes, and regions of the input file written unchanged, copied from the file by the final writer
+   */
+  private static class ChunkBuffer extends ByteArrayOutputStream implements FastaWriter.RegionOutput {
+    private final List<Region> regions = new ArrayList<>();
+
+    ChunkBuffer(int size) {
+      super(size);
+    }
+
+    @Override
+    public void copy(File file, long offset, long length) {
+      regions.add(new Region(count, file, offset, length));
+    }
+
+    void writeTo(FastaWriter writer) throws IOException {
+      // no empty write between regions, so that adjacent ones are merged
+      int start = 0;
+      for (Region region : regions) {
+        if (region.position > start)
+          writer.write(buf, start, region.position - start);
+        writer.copy(region.file, region.offset, region.length);
+        start = region.position;
+      }
+      if (count > start)
+        writer.write(buf, start, count - start);
+    }
+  }
+
+  private static class Region {
+    // position in chunk bytes
+    final int position;
+    final File file;
+    final long offset;
+    final long length;
+
+    Region(int position, File file, long offset, long length) {
+      this.position = position;
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
@@ -4,8 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class FastaDuplicateManager {
 
@@ -13,126 +16,251 @@ public class FastaDuplicateManager {
 
   /**
    * Read all fasta file entries, if duplicate are found rename them with index suffixes.
-   * A separator to identify accession in entries should be provided.
-   * TODO allow more complex regEx for separator
+   * The format of headers tells where the accession of entries is.
    *
    * @param fastaIn : fasta file to search duplicates from
    * @param fastaOut : new fasta file with duplicates renamed
-   * @param separator : simple separator between acc & description in entry.
+   * @param format : format of headers, giving the accession of entries
    */
-  public static void removeDuplicateInFasta(File fastaIn, File fastaOut, String separator) throws IOException {
-    logger.info("Search Duplicate entries in "+fastaIn.getAbsolutePath()+" using acc separator <"+separator+">");
-    FileReader fr = new FileReader(fastaIn);
-    FileWriter fw = new FileWriter(fastaOut);
-    BufferedWriter writer = new BufferedWriter(fw);
-    BufferedReader br = new BufferedReader(fr);
-    HashSet<String> names = new HashSet<>();
-    String line;
+  public static void removeDuplicateInFasta(File fastaIn, File fastaOut, HeaderFormat format) throws IOException {
+    logger.info("Search Duplicate entries in "+fastaIn.getAbsolutePath()+" using header format <"+format+">");
+    Metrics.startReading(fastaIn);
+    HeaderFormat.Parser header = format.newParser();
+    AccessionDictionary names = new AccessionDictionary();
+    byte[] newAcc = new byte[256];
     int nbDuplicate = 0;
-    while ((line = br.readLine()) != null) {
-
-      if (line.startsWith(">")) { //new fasta entry
-
-        int index = line.indexOf(separator);
-        boolean hasDesc = index>=0;
-        String currentAcc = line.substring(1);
-        String desc = "";
-        if(hasDesc) {
-          currentAcc = line.substring(1, index);
-          desc = line.substring(index);
+    try (FastaReader reader = new FastaReader(fastaIn); FastaWriter writer = new FastaWriter(fastaOut)) {
+      while (reader.next()) {
+        ByteBuffer buf = reader.buffer();
+        if (!reader.hasHeader()) {
+          writer.writeRecordLines(reader, reader.recordStart());
+          continue;
         }
 
-        if (names.contains(currentAcc)) {
-          //this entry was already found
+        //new fasta entry
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        int accStart = header.start(HeaderFormat.ACCESSION);
+        int accEnd = header.end(HeaderFormat.ACCESSION);
+
+        int accId = names.add(buf, accStart, accEnd);
+        if (accId < 0) {
+          //this entry was already found : rename it
+          accId = -accId - 1;
           nbDuplicate++;
-          logger.debug(" found duplicate for " + currentAcc);
-          String accPref = currentAcc;
-          int nbDup = 1;
-          while (names.contains(currentAcc)) {
-            currentAcc = accPref + "_"+nbDup;
-            nbDup++;
-          }
-          logger.info("-- Renamed "+accPref+" to " + currentAcc);
-          names.add(currentAcc);
+          Metrics.addDuplicates(1);
+          String accPref = names.toString(accId);
+          logger.debug(" found duplicate for " + accPref);
+          newAcc = ensureCapacity(newAcc, accEnd - accStart + 12);
+          int newAccLength = renameDuplicate(names, accId, newAcc);
+          logger.info("-- Renamed " + accPref + " to " + new String(newAcc, 0, newAccLength, StandardCharsets.ISO_8859_1));
+          header.writeHeader(writer, newAcc, newAccLength);
         } else {
-          names.add(currentAcc);
+          header.writeHeader(writer, null, 0);
         }
 
-        //Write new accessions & description to fastaOut
-        writer.write(">");
-        writer.write(currentAcc);
-        writer.write(" ");
-        writer.write(desc);
-        writer.write('\n');
-
-      } else {
         //sequence lines, just write as it is
-        writer.write(line);
-        writer.write('\n');
+        writer.writeRecordLines(reader, reader.sequenceStart());
       }
+      logger.info(" ** Read " + reader.throughput());
     }
-    writer.flush();
+    logger.info(" ** Accession dictionary : " + names.size() + " entries using " + (names.memoryUsage() / (1024 * 1024)) + " MB");
     logger.info("\n ** Found "+nbDuplicate+" duplicate entries ");
-    fr.close();
-    fw.close();
+  }
+
+  /**
+   * Search the first accession_&lt;index&gt; name not yet in names, starting from last index used for this accession.
+   * The new name is added to names and copied into dest, which should be large enough (accession length + 12).
+   *
+   * @param accId id of the duplicated accession
+   * @return length of the new accession
+   */
+  static int renameDuplicate(AccessionDictionary names, int accId, byte[] dest) {
+    int nbDup = Math.max(1, names.getValue(accId));
+    int prefLength = names.copyTo(accId, dest, 0);
+    dest[prefLength] = '_';
+    int newAccLength;
+    do {
+      newAccLength = writeInt(nbDup, dest, prefLength + 1);
+      nbDup++;
+    } while (names.add(dest, 0, newAccLength) < 0);
+    names.setValue(accId, nbDup);
+    return newAccLength;
+  }
+
+  static byte[] ensureCapacity(byte[] bytes, int length) {
+    return bytes.length >= length ? bytes : new byte[Math.max(length, bytes.length * 2)];
+  }
+
+  /**
+   * Write decimal value of positive int in dest at specified offset.
+   *
+   * @return index after the last written byte
+   */
+  private static int writeInt(int value, byte[] dest, int offset) {
+    int nbDigits = 1;
+    for (int v = value; v >= 10; v /= 10)
+      nbDigits++;
+    for (int i = offset + nbDigits - 1; i >= offset; i--) {
+      dest[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return offset + nbDigits;
   }
 
   /**
    * Read all fasta file entries, if duplicate are found, compare their sequences.
-   * A separator to identify accession in entries should be provided
-   * TODO allow more complex regEx
+   * The format of headers tells where the accession of entries is.
+   * Only a digest of the sequence is kept for each accession : sequences are read back from file
+   * when the digests of duplicates are equal, unless the file is compressed.
+   * If the fasta file has an up to date index, only duplicated entries are read.
    *
    * @param fasta : fasta file to get dupliacte from
-   * @param separator : simple separator between acc & description in entry.
+   * @param format : format of headers, giving the accession of entries
    */
-  public static void compareDuplicateInFasta(File fasta, String separator) throws IOException {
-    logger.info("Search Duplicate entries in "+fasta.getAbsolutePath()+" using acc separator <"+separator+">");
-    FileReader fr = new FileReader(fasta);
-    BufferedReader br = new BufferedReader(fr);
-    HashMap<String,String> seqByAcc = new HashMap<>();
+  public static void compareDuplicateInFasta(File fasta, HeaderFormat format) throws IOException {
+    logger.info("Search Duplicate entries in "+fasta.getAbsolutePath()+" using header format <"+format+">");
+    Metrics.startReading(fasta);
+    if (FastaIndex.isUsable(fasta, format)) {
+      compareDuplicateWithIndex(fasta);
+      return;
+    }
+    HeaderFormat.Parser header = format.newParser();
+    AccessionDictionary accessions = new AccessionDictionary();
+    SequenceInfos seqInfos = new SequenceInfos();
+    SequenceDigester digester = new SequenceDigester();
     int nbDuplicate = 0;
     int nbDupDiff = 0;
 
-    String line;
-    StringBuilder seq = new StringBuilder();
-    String currentAcc = null;
-    while ((line = br.readLine()) != null) {
-      if (line.startsWith(">")) {
-        //reset/save previous properties
-        if(currentAcc!=null) {
+    // compressed files can't be read back : digests are trusted
+    boolean readBack = !FastaIO.isGzip(fasta);
+    if (!readBack)
+      logger.info("Compressed input : entries with the same sequence digest are considered identical");
+
+    try (FastaReader reader = new FastaReader(fasta); FileChannel channel = readBack ? FileChannel.open(fasta.toPath(), StandardOpenOption.READ) : null) {
+      while (reader.next()) {
+        if (!reader.hasHeader())
+          continue;
+
+        ByteBuffer buf = reader.buffer();
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        int accId = accessions.add(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION));
+        digester.digest(buf, reader.sequenceStart(), reader.recordEnd());
+
+        if (accId < 0) {
           //Read entry was already found in fasta file ... compare sequence
-          if(seqByAcc.containsKey(currentAcc)){
-            nbDuplicate++;
-            String prevSeq = seqByAcc.get(currentAcc);
-            if(prevSeq.contentEquals(seq)){
-              logger.info("-- Duplicate\t" + currentAcc+"\tSame sequences ");
-            } else {
-              nbDupDiff++;
-              logger.info("-- Duplicate\t" + currentAcc + "\t!!! DIFF sequences !!!");
+          accId = -accId - 1;
+          nbDuplicate++;
+          Metrics.addDuplicates(1);
+          String currentAcc = accessions.toString(accId);
+          if (seqInfos.sameDigest(accId, digester) && (channel == null || digester.sameSequenceAt(channel, seqInfos.offset(accId)))) {
+            logger.info("-- Duplicate\t" + currentAcc + "\tSame sequences ");
+          } else {
+            nbDupDiff++;
+            logger.info("-- Duplicate\t" + currentAcc + "\t!!! DIFF sequences !!!");
+          }
+        } else
+          seqInfos.set(accId, digester, reader.recordOffset()); // First time entry found, save digest
+      }
+      logger.info(" ** Read " + reader.throughput());
+    }
+    logger.info(" ** Accession dictionary : " + accessions.size() + " entries using " + ((accessions.memoryUsage() + seqInfos.memoryUsage()) / (1024 * 1024)) + " MB");
+
+    logger.info("\n ** Found "+nbDuplicate+" duplicate entries with "+nbDupDiff+" with different sequences");
+
+  }
+
+  /**
+   * Same as {@link #compareDuplicateInFasta(File, HeaderFormat)} using the fasta index : as index entries are sorted on
+   * accession, duplicates are adjacent and only duplicated entries are read from the fasta file.
+   */
+  private static void compareDuplicateWithIndex(File fasta) throws IOException {
+    logger.info(" Use index " + FastaIndex.indexFile(fasta).getAbsolutePath());
+    int nbDuplicate = 0;
+    int[] duplicates = new int[1024];
+    boolean[] sameSequences = new boolean[1024];
+    try (FastaIndex index = FastaIndex.open(fasta); FileChannel channel = FileChannel.open(fasta.toPath(), StandardOpenOption.READ)) {
+      SequenceDigester digester = new SequenceDigester();
+      int i = 0;
+      while (i < index.size()) {
+        // first entry of a group is the first one in fasta file : others are compared to it
+        int j = i + 1;
+        if (j < index.size() && index.sameKey(i, j)) {
+          digester.digestAt(channel, index.position(i));
+          for (; j < index.size() && index.sameKey(i, j); j++) {
+            if (nbDuplicate == duplicates.length) {
+              duplicates = Arrays.copyOf(duplicates, nbDuplicate * 2);
+              sameSequences = Arrays.copyOf(sameSequences, nbDuplicate * 2);
             }
-          } else
-            seqByAcc.put(currentAcc,seq.toString()); // First time entry found, save in map
+            duplicates[nbDuplicate] = j;
+            sameSequences[nbDuplicate] = index.sequenceLength(i) == index.sequenceLength(j) && digester.sameSequenceAt(channel, index.position(j));
+            nbDuplicate++;
+            Metrics.addDuplicates(1);
+          }
         }
+        i = j;
+      }
 
-        //New entry, reset sequence
-        seq = new StringBuilder();
-        currentAcc = null;
-
-        int index = line.indexOf(" ");
-        boolean hasDesc = index>=0;
-        currentAcc = line.substring(1);
-        if(hasDesc) {
-          currentAcc = line.substring(1, index);
+      // report duplicates in fasta file order
+      int[] order = new int[nbDuplicate];
+      for (int d = 0; d < nbDuplicate; d++)
+        order[d] = d;
+      int[] dups = duplicates;
+      FastaIndex.sort(order, nbDuplicate, (d1, d2) -> Long.compare(index.position(dups[d1]), index.position(dups[d2])));
+      int nbDupDiff = 0;
+      for (int d : order) {
+        if (sameSequences[d]) {
+          logger.info("-- Duplicate\t" + index.key(duplicates[d]) + "\tSame sequences ");
+        } else {
+          nbDupDiff++;
+          logger.info("-- Duplicate\t" + index.key(duplicates[d]) + "\t!!! DIFF sequences !!!");
         }
+      }
+      logger.info("\n ** Found "+nbDuplicate+" duplicate entries with "+nbDupDiff+" with different sequences");
+    }
+  }
+
+  /**
+   * Sequence digest, length and position of the entry in the fasta file, by accession id
+   */
+  static class SequenceInfos {
+    long[] highs = new long[1024];
+    long[] lows = new long[1024];
+    long[] offsets = new long[1024];
+    int[] lengths = new int[1024];
 
-      } else { //read seq of current entry
-        seq.append(line);
+    void set(int id, SequenceDigester digester, long offset) {
+      set(id, digester.high(), digester.low(), digester.length(), offset);
+    }
+
+    void set(int id, long high, long low, int length, long offset) {
+      if (id >= highs.length) {
+        int newLength = Math.max(id + 1, (int) Math.min(Integer.MAX_VALUE - 8, highs.length * 2L));
+        highs = Arrays.copyOf(highs, newLength);
+        lows = Arrays.copyOf(lows, newLength);
+        offsets = Arrays.copyOf(offsets, newLength);
+        lengths = Arrays.copyOf(lengths, newLength);
       }
+      highs[id] = high;
+      lows[id] = low;
+      lengths[id] = length;
+      offsets[id] = offset;
     }
 
-    logger.info("\n ** Found "+nbDuplicate+" duplicate entries with "+nbDupDiff+" with different sequences");
-    fr.close();
+    long offset(int id) {
+      return offsets[id];
+    }
+
+    boolean sameDigest(int id, SequenceDigester digester) {
+      return sameDigest(id, digester.high(), digester.low(), digester.length());
+    }
 
+    boolean sameDigest(int id, long high, long low, int length) {
+      return lengths[id] == length && highs[id] == high && lows[id] == low;
+    }
+
+    long memoryUsage() {
+      return 28L * highs.length;
+    }
   }
 
 }
@@ -0,0 +1,97 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open input and output files of commands, compressed or not.
+ * Input files starting with the gzip magic number are decompressed : in parallel when the file is made of
+ * BGZF blocks (as written by this class or by bgzip), sequentially otherwise.
+ * Output files whose name ends with .gz are written as BGZF blocks compressed in parallel.
+ */
+public class FastaIO {
+
+  public final static String GZIP_EXTENSION = ".gz";
+
+  // compressed fasta files are usually 3 to 5 times smaller than plain ones
+  private final static int ESTIMATED_COMPRESSION_RATIO = 4;
+  private final static int INPUT_BUFFER_SIZE = 1024 * 1024;
+
+  private static ExecutorService pool;
+
+  /**
+   * @return true if file starts with gzip magic number
+   */
+  public static boolean isGzip(File file) throws IOException {
+    byte[] magic = readStart(file, 2);
+    return magic.length == 2 && (magic[0] & 0xFF) == BgzfInputStream.ID1 && (magic[1] & 0xFF) == BgzfInputStream.ID2;
+  }
+
+  /**
+   * @return true if file is a gzip file whose first member is a BGZF block
+   */
+  public static boolean isBgzf(File file) throws IOException {
+    return BgzfInputStream.isBgzfHeader(readStart(file, BgzfInputStream.HEADER_SIZE));
+  }
+
+  /**
+   * @return size of the file content once decompressed : exact for plain files, estimated for compressed ones
+   */
+  public static long estimatedSize(File file) throws IOException {
+    return isGzip(file) ? file.length() * ESTIMATED_COMPRESSION_RATIO : file.length();
+  }
+
+  /**
+   * Open file for reading, decompressing it if needed.
+   */
+  public static InputStream openInput(File file) throws IOException {
+    if (isBgzf(file))
+      return new BgzfInputStream(new FileInputStream(file), compressionPool(), nbCompressionThreads() * 4);
+    if (isGzip(file))
+      return new GZIPInputStream(new FileInputStream(file), INPUT_BUFFER_SIZE);
+    return new FileInputStream(file);
+  }
+
+  /**
+   * Open file for writing, compressing it if its name ends with .gz
+   */
+  public static OutputStream openOutput(File file) throws IOException {
+    if (isCompressedName(file))
+      return new BgzfOutputStream(new FileOutputStream(file), compressionPool(), nbCompressionThreads() * 4);
+    return new FileOutputStream(file);
+  }
+
+  public static boolean isCompressedName(File file) {
+    return file.getName().toLowerCase().endsWith(GZIP_EXTENSION);
+  }
+
+  /**
+   * Thread pool shared by all compressed streams. Threads are daemons so the pool never needs to be shut down.
+   * Threads don't inherit the thread locals of the thread creating them (request output and metrics in serve mode),
+   * as they are used by the later commands.
+   */
+  static synchronized ExecutorService compressionPool() {
+    if (pool == null) {
+      AtomicInteger count = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(nbCompressionThreads(), r -> {
+        Thread thread = new Thread(null, r, "gzip-" + count.incrementAndGet(), 0, false);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return pool;
+  }
+
+  private static int nbCompressionThreads() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  private static byte[] readStart(File file, int length) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return in.readNBytes(length);
+    }
+  }
+}
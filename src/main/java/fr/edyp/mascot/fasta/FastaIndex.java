@@ -0,0 +1,838 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+
+/**
+ * Sorted index of the entries of a plain fasta file, saved next to it (&lt;fasta&gt;.fidx), similar in spirit to
+ * samtools .fai files. For each entry the index gives its accession (header part before first space), its position
+ * in the fasta file, the length of its header line and of the whole entry, its number of residues and the number of
+ * residues of its first sequence line.
+ * Entries are sorted on accession bytes, then on position : duplicated accessions are adjacent. The index file
+ * is memory mapped and accessions are searched by binary search. Entries are sorted using temporary files when they
+ * don't fit in the given memory, as done by {@link ExternalDuplicateManager}.
+ *
+ * File format (big endian) : header (magic, version, fasta size, fasta last modification time, number of entries,
+ * position of accessions), fixed size entries, accession bytes.
+ */
+public class FastaIndex implements Closeable {
+
+  private final static Logger logger = LoggerFactory.getLogger(FastaIndex.class);
+
+  public final static String INDEX_EXTENSION = ".fidx";
+
+  private final static int MAGIC = 0x46494458; // "FIDX"
+  private final static int VERSION = 1;
+  private final static int HEADER_SIZE = 40;
+  // accession position, entry position, accession length, header length, entry length, sequence length, line width
+  private final static int ENTRY_SIZE = 36;
+  private final static int MAX_KEY_LENGTH = 0xFFFF;
+
+  private final File fasta;
+  private final FileChannel fastaChannel;
+  private final MappedPages index;
+  private final int size;
+  private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+
+  private FastaIndex(File fasta, FileChannel indexChannel, int size) throws IOException {
+    this.fasta = fasta;
+    this.size = size;
+    this.index = new MappedPages(indexChannel);
+    this.fastaChannel = FileChannel.open(fasta.toPath(), StandardOpenOption.READ);
+  }
+
+  public static File indexFile(File fasta) {
+    return new File(fasta.getPath() + INDEX_EXTENSION);
+  }
+
+  /**
+   * Read all entries of the fasta file and write its index. Entries are sorted by runs fitting in maxMemory : full
+   * runs are saved in temporary files, then merged with the last one, so that heap usage doesn't depend on the
+   * number of entries.
+   *
+   * @param maxMemory heap (in bytes) which may be used to sort entries
+   * @param tmpDir directory to create temporary files in, system default if null
+   */
+  public static void create(File fasta, long maxMemory, File tmpDir) throws IOException {
+    if (FastaIO.isGzip(fasta))
+      throw new IllegalArgumentException("Compressed fasta file " + fasta.getAbsolutePath() + " can't be indexed, it should be decompressed first");
+    File indexFile = indexFile(fasta);
+    logger.info("Index " + fasta.getAbsolutePath() + " into " + indexFile.getAbsolutePath());
+    Metrics.startReading(fasta);
+    long fastaSize = fasta.length();
+    long fastaLastModified = fasta.lastModified();
+    HeaderFormat.Parser header = HeaderFormat.DEFAULT.newParser();
+
+    Run run = new Run(maxMemory);
+    RunFiles runFiles = new RunFiles(tmpDir);
+    try {
+      long nbEntries = 0;
+      try (FastaReader reader = new FastaReader(fasta)) {
+        while (reader.next()) {
+          if (!reader.hasHeader())
+            continue;
+          ByteBuffer buf = reader.buffer();
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          int accStart = header.start(HeaderFormat.ACCESSION);
+          int accEnd = header.end(HeaderFormat.ACCESSION);
+          if (accEnd - accStart > MAX_KEY_LENGTH)
+            throw new IOException("Accession too long at position " + reader.recordOffset());
+
+          int nbResidues = 0;
+          int lineWidth = -1;
+          for (int i = reader.sequenceStart(); i < reader.recordEnd(); i++) {
+            byte b = buf.get(i);
+            if (b == '\n') {
+              if (lineWidth < 0)
+                lineWidth = nbResidues;
+            } else if (b != '\r') {
+              nbResidues++;
+            }
+          }
+          if (run.isFull(accEnd - accStart)) {
+            try (DataOutputStream out = runFiles.create()) {
+              run.sort();
+              run.write(out);
+            }
+            runFiles.setCount(run.count);
+            run.clear();
+          }
+          run.add(buf, accStart, accEnd, reader.recordOffset(), reader.headerEnd() - reader.recordStart(),
+            reader.recordEnd() - reader.recordStart(), nbResidues, lineWidth < 0 ? nbResidues : lineWidth);
+          nbEntries++;
+        }
+        logger.info(" ** Read " + reader.throughput());
+      }
+      if (nbEntries > Integer.MAX_VALUE)
+        throw new IOException("Too many entries to index : " + nbEntries);
+      run.sort();
+      if (!runFiles.files.isEmpty())
+        logger.debug(" merge " + (runFiles.files.size() + 1) + " sorted runs of entries");
+      // the run kept in memory is merged with the files
+      runFiles.reduce(ExternalDuplicateManager.MAX_OPEN_FILES - 1, maxMemory);
+
+      // entries and accessions (stored once, as entries are sorted on accession) are written at the same time,
+      // each one by its own channel
+      long keysPosition = HEADER_SIZE + nbEntries * ENTRY_SIZE;
+      long nbKeys = 0;
+      File tmpFile = new File(indexFile.getPath() + ".tmp");
+      try (FileChannel entriesChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+           FileChannel keysChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(entriesChannel), 1024 * 1024));
+           OutputStream keysOut = new BufferedOutputStream(Channels.newOutputStream(keysChannel.position(keysPosition)), 1024 * 1024);
+           SortedEntries entries = new SortedEntries(runFiles, run, maxMemory)) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fastaSize);
+        out.writeLong(fastaLastModified);
+        out.writeLong(nbEntries);
+        out.writeLong(keysPosition);
+        byte[] previousKey = new byte[MAX_KEY_LENGTH];
+        int previousLength = -1;
+        long keyPosition = keysPosition;
+        RunEntry entry;
+        while ((entry = entries.peek()) != null) {
+          if (previousLength < 0 || !Arrays.equals(entry.key, 0, entry.keyLength, previousKey, 0, previousLength)) {
+            if (previousLength >= 0)
+              keyPosition += previousLength;
+            keysOut.write(entry.key, 0, entry.keyLength);
+            System.arraycopy(entry.key, 0, previousKey, 0, entry.keyLength);
+            previousLength = entry.keyLength;
+            nbKeys++;
+          }
+          out.writeLong(keyPosition);
+          out.writeLong(entry.position);
+          out.writeInt(entry.keyLength);
+          out.writeInt(entry.headerLength);
+          out.writeInt(entry.entryLength);
+          out.writeInt(entry.sequenceLength);
+          out.writeInt(entry.lineWidth);
+          entries.next();
+        }
+      }
+      Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      logger.info(" ** Indexed " + nbEntries + " entries (" + nbKeys + " distinct accessions) in " + indexFile.getName());
+    } finally {
+      runFiles.deleteAll();
+    }
+  }
+
+  /**
+   * @return true if fasta file has an index which was created after its last modification
+   */
+  public static boolean isUpToDate(File fasta) throws IOException {
+    File indexFile = indexFile(fasta);
+    if (!indexFile.isFile())
+      return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+      return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == fasta.length() && in.readLong() == fasta.lastModified();
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if fasta entries may be searched using its index : index is up to date and accessions
+   * of the header format are the ones of the index (first word of headers).
+   */
+  public static boolean isUsable(File fasta, HeaderFormat format) throws IOException {
+    if (!indexFile(fasta).exists() || !format.isFirstWord())
+      return false;
+    if (!isUpToDate(fasta)) {
+      logger.warn(" !!! Index " + indexFile(fasta).getAbsolutePath() + " is out of date and will not be used");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Open the index of the fasta file.
+   *
+   * @throws IOException if there is no index for the fasta file or if it is out of date
+   */
+  public static FastaIndex open(File fasta) throws IOException {
+    File indexFile = indexFile(fasta);
+    if (!indexFile.isFile())
+      throw new FileNotFoundException("No index found for " + fasta.getAbsolutePath() + ". Create it using index command");
+    if (!isUpToDate(fasta))
+      throw new IOException("Index " + indexFile.getAbsolutePath() + " is out of date. Create it again using index command");
+    FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      return new FastaIndex(fasta, channel, (int) header.getLong(24));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Write the entries of the specified accessions to writer, all entries being written for duplicated accessions.
+   *
+   * @return number of written entries
+   */
+  public static int fetch(File fasta, List<String> accessions, FastaWriter writer) throws IOException {
+    long startTime = System.nanoTime();
+    int nbFetched = 0;
+    try (FastaIndex index = open(fasta)) {
+      for (String accession : accessions) {
+        byte[] key = FastaReader.toBytes(accession);
+        int first = index.find(key, 0, key.length);
+        if (first < 0) {
+          logger.warn("Accession " + accession + " not found in " + fasta.getName());
+          continue;
+        }
+        for (int i = first; i < index.size() && index.sameKey(first, i); i++) {
+          ByteBuffer entry = index.readEntry(i);
+          writer.writeLines(entry, 0, entry.limit(), true);
+          nbFetched++;
+        }
+      }
+    }
+    logger.info(" ** Fetched " + nbFetched + " entries in " + String.format(Locale.ENGLISH, "%.3f ms", (System.nanoTime() - startTime) / 1e6));
+    return nbFetched;
+  }
+
+  public File fastaFile() {
+    return fasta;
+  }
+
+  /**
+   * @return number of indexed entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return index of the first entry with accession found in key between from (inclusive) and to (exclusive), -1 if none
+   */
+  public int find(byte[] key, int from, int to) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compareKey(mid, key, from, to) < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return (low < size && compareKey(low, key, from, to) == 0) ? low : -1;
+  }
+
+  public long position(int i) {
+    return index.getLong(entry(i) + 8);
+  }
+
+  public int keyLength(int i) {
+    return index.getInt(entry(i) + 16);
+  }
+
+  /**
+   * @return length of entry header line, '>' included, line separator excluded
+   */
+  public int headerLength(int i) {
+    return index.getInt(entry(i) + 20);
+  }
+
+  /**
+   * @return number of bytes of the entry, header and sequence lines included
+   */
+  public int entryLength(int i) {
+    return index.getInt(entry(i) + 24);
+  }
+
+  /**
+   * @return number of residues of the entry sequence
+   */
+  public int sequenceLength(int i) {
+    return index.getInt(entry(i) + 28);
+  }
+
+  /**
+   * @return number of residues of the first sequence line
+   */
+  public int lineWidth(int i) {
+    return index.getInt(entry(i) + 32);
+  }
+
+  /**
+   * Copy accession of entry i to dest
+   *
+   * @return accession length
+   */
+  public int copyKey(int i, byte[] dest) {
+    int length = keyLength(i);
+    long keyPosition = index.getLong(entry(i));
+    index.get(keyPosition, dest, length);
+    return length;
+  }
+
+  public String key(int i) {
+    byte[] key = new byte[keyLength(i)];
+    copyKey(i, key);
+    return FastaReader.toString(ByteBuffer.wrap(key), 0, key.length);
+  }
+
+  /**
+   * @return true if entries i and j have the same accession
+   */
+  public boolean sameKey(int i, int j) {
+    // accessions are stored once : same accession means same position
+    return index.getLong(entry(i)) == index.getLong(entry(j));
+  }
+
+  public boolean keyEndsWith(int i, byte[] suffix) {
+    int length = keyLength(i);
+    if (length < suffix.length)
+      return false;
+    long start = index.getLong(entry(i)) + length - suffix.length;
+    for (int k = 0; k < suffix.length; k++) {
+      if (index.get(start + k) != suffix[k])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return indexes of the entries accepted by filter, in index order
+   */
+  public int[] select(IntPredicate filter) {
+    int[] selected = new int[1024];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (filter.test(i)) {
+        if (count == selected.length)
+          selected = Arrays.copyOf(selected, (int) Math.min(Integer.MAX_VALUE - 8, selected.length * 2L));
+        selected[count++] = i;
+      }
+    }
+    return Arrays.copyOf(selected, count);
+  }
+
+  /**
+   * Read entry i from the fasta file
+   *
+   * @return a buffer containing entry bytes, from index 0 to its limit. The buffer is reused by next call.
+   */
+  public ByteBuffer readEntry(int i) throws IOException {
+    int length = entryLength(i);
+    if (record.capacity() < length)
+      record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+    record.clear().limit(length);
+    long position = position(i);
+    while (record.hasRemaining()) {
+      if (fastaChannel.read(record, position + record.position()) < 0)
+        throw new EOFException("Fasta file " + fasta.getAbsolutePath() + " is shorter than indexed");
+    }
+    return record.flip();
+  }
+
+  /**
+   * @return a reader of the specified entries, in fasta file order. The reader should be closed before this index.
+   */
+  public FastaReader openEntries(int[] entries) throws IOException {
+    int[] sorted = entries.clone();
+    sort(sorted, sorted.length, (i, j) -> Long.compare(position(i), position(j)));
+    return new FastaReader(new EntriesInputStream(sorted));
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      fastaChannel.close();
+    } finally {
+      index.close();
+    }
+  }
+
+  private static long entry(int i) {
+    return HEADER_SIZE + (long) i * ENTRY_SIZE;
+  }
+
+  private int compareKey(int i, byte[] key, int from, int to) {
+    int length = keyLength(i);
+    long keyPosition = index.getLong(entry(i));
+    int n = Math.min(length, to - from);
+    for (int k = 0; k < n; k++) {
+      int cmp = Byte.compareUnsigned(index.get(keyPosition + k), key[from + k]);
+      if (cmp != 0)
+        return cmp;
+    }
+    return Integer.compare(length, to - from);
+  }
+
+  /**
+   * Stable sort (merge sort) of the first count values using specified comparator
+   */
+  static void sort(int[] values, int count, IntBinaryOperator comparator) {
+    int[] src = values;
+    int[] dst = new int[count];
+    for (long width = 1; width < count; width *= 2) {
+      for (long lo = 0; lo < count; lo += 2 * width) {
+        int mid = (int) Math.min(lo + width, count);
+        int hi = (int) Math.min(lo + 2 * width, count);
+        int i = (int) lo;
+        int j = mid;
+        int k = (int) lo;
+        while (i < mid && j < hi)
+          dst[k++] = comparator.applyAsInt(src[i], src[j]) <= 0 ? src[i++] : src[j++];
+        while (i < mid)
+          dst[k++] = src[i++];
+        while (j < hi)
+          dst[k++] = src[j++];
+      }
+      int[] tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+    if (src != values)
+      System.arraycopy(src, 0, values, 0, count);
+  }
+
+  /**
+   * Bytes of some entries of the fasta file, one after the other. A line separator is added after entries
+   * not ending with one (last entry of the file).
+   */
+  private class EntriesInputStream extends InputStream {
+    private final int[] entries;
+    private int current = -1;
+    private long position;
+    private long end;
+    private boolean addSeparator;
+
+    EntriesInputStream(int[] entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      while (position == end && !addSeparator) {
+        if (++current >= entries.length)
+          return -1;
+        position = position(entries[current]);
+        end = position + entryLength(entries[current]);
+        ByteBuffer last = ByteBuffer.allocate(1);
+        addSeparator = end > position && fastaChannel.read(last, end - 1) == 1 && last.get(0) != '\n';
+      }
+      if (position == end) {
+        addSeparator = false;
+        bytes[off] = '\n';
+        return 1;
+      }
+      int n = fastaChannel.read(ByteBuffer.wrap(bytes, off, (int) Math.min(len, end - position)), position);
+      if (n < 0)
+        throw new EOFException("Fasta file " + fasta.getAbsolutePath() + " is shorter than indexed");
+      position += n;
+      return n;
+    }
+  }
+
+  /**
+   * Entries sorted in memory : accession bytes are appended to one array, other values are kept in arrays growing
+   * up to the number of entries which fit in the memory given to the run.
+   */
+  private static class Run {
+    // heap used by an entry, accession bytes excluded : position, lengths, accession start and sort arrays
+    private final static int ENTRY_MEMORY = 40;
+
+    private final int maxEntries;
+    private final int maxKeyBytes;
+    byte[] keys = new byte[64 * 1024];
+    int keysLength;
+    int[] keyStarts = new int[1024];
+    long[] positions = new long[1024];
+    int[] headerLengths = new int[1024];
+    int[] entryLengths = new int[1024];
+    int[] sequenceLengths = new int[1024];
+    int[] lineWidths = new int[1024];
+    int count;
+    int[] order = new int[0];
+
+    Run(long maxMemory) {
+      // a half for entries, a quarter for accessions : arrays are copied when growing
+      maxEntries = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, maxMemory / 2 / ENTRY_MEMORY));
+      maxKeyBytes = (int) Math.max(MAX_KEY_LENGTH, Math.min(Integer.MAX_VALUE - 8, maxMemory / 4));
+    }
+
+    /**
+     * @return true if an entry whose accession has keyLength bytes can't be added to this run
+     */
+    boolean isFull(int keyLength) {
+      return count == maxEntries || keysLength + keyLength > maxKeyBytes;
+    }
+
+    void add(ByteBuffer buf, int accStart, int accEnd, long position, int headerLength, int entryLength, int sequenceLength, int lineWidth) {
+      if (count == positions.length) {
+        int newLength = (int) Math.min(maxEntries, positions.length * 2L);
+        keyStarts = Arrays.copyOf(keyStarts, newLength);
+        positions = Arrays.copyOf(positions, newLength);
+        headerLengths = Arrays.copyOf(headerLengths, newLength);
+        entryLengths = Arrays.copyOf(entryLengths, newLength);
+        sequenceLengths = Arrays.copyOf(sequenceLengths, newLength);
+        lineWidths = Arrays.copyOf(lineWidths, newLength);
+      }
+      if (keysLength + accEnd - accStart > keys.length)
+        keys = Arrays.copyOf(keys, (int) Math.min(maxKeyBytes, Math.max(keysLength + accEnd - accStart, keys.length * 2L)));
+      buf.get(accStart, keys, keysLength, accEnd - accStart);
+      keyStarts[count] = keysLength;
+      keysLength += accEnd - accStart;
+      positions[count] = position;
+      headerLengths[count] = headerLength;
+      entryLengths[count] = entryLength;
+      sequenceLengths[count] = sequenceLength;
+      lineWidths[count] = lineWidth;
+      count++;
+    }
+
+    int keyEnd(int e) {
+      return e + 1 < count ? keyStarts[e + 1] : keysLength;
+    }
+
+    /**
+     * Sort entries on accession : entries being added in file order, entries with the same accession stay in file order
+     */
+    void sort() {
+      order = new int[count];
+      for (int e = 0; e < count; e++)
+        order[e] = e;
+      FastaIndex.sort(order, count, (e1, e2) -> Arrays.compareUnsigned(keys, keyStarts[e1], keyEnd(e1), keys, keyStarts[e2], keyEnd(e2)));
+    }
+
+    /**
+     * Write sorted entries, as read by {@link FileEntry}
+     */
+    void write(DataOutputStream out) throws IOException {
+      for (int i = 0; i < count; i++) {
+        int e = order[i];
+        out.writeShort(keyEnd(e) - keyStarts[e]);
+        out.write(keys, keyStarts[e], keyEnd(e) - keyStarts[e]);
+        out.writeLong(positions[e]);
+        out.writeInt(headerLengths[e]);
+        out.writeInt(entryLengths[e]);
+        out.writeInt(sequenceLengths[e]);
+        out.writeInt(lineWidths[e]);
+      }
+    }
+
+    void clear() {
+      count = 0;
+      keysLength = 0;
+      order = new int[0];
+    }
+  }
+
+  /**
+   * Temporary files of sorted runs
+   */
+  private static class RunFiles {
+    final File tmpDir;
+    final List<File> files = new ArrayList<>();
+    final List<Long> counts = new ArrayList<>();
+
+    RunFiles(File tmpDir) {
+      this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Add a file, its number of entries being set once written by {@link #setCount(long)}
+     */
+    DataOutputStream create() throws IOException {
+      File file = File.createTempFile("mascot-index-" + files.size() + "-", ".run", tmpDir);
+      files.add(file);
+      counts.add(0L);
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    void setCount(long count) {
+      counts.set(counts.size() - 1, count);
+    }
+
+    /**
+     * Merge files, at most maxFiles at a time, until there are no more than maxFiles
+     */
+    void reduce(int maxFiles, long maxMemory) throws IOException {
+      while (files.size() > maxFiles) {
+        logger.debug(" merge " + files.size() + " run files");
+        List<File> mergedFiles = new ArrayList<>(files);
+        List<Long> mergedCounts = new ArrayList<>(counts);
+        files.clear();
+        counts.clear();
+        for (int from = 0; from < mergedFiles.size(); from += maxFiles) {
+          int to = Math.min(mergedFiles.size(), from + maxFiles);
+          long count = 0;
+          try (SortedEntries entries = new SortedEntries(mergedFiles.subList(from, to), mergedCounts.subList(from, to), null, maxMemory);
+               DataOutputStream out = create()) {
+            RunEntry entry;
+            while ((entry = entries.peek()) != null) {
+              entry.write(out);
+              count++;
+              entries.next();
+            }
+          }
+          setCount(count);
+          for (int i = from; i < to; i++)
+            delete(mergedFiles.get(i));
+        }
+      }
+    }
+
+    void deleteAll() {
+      for (File f : files)
+        delete(f);
+    }
+
+    static void delete(File f) {
+      if (f != null && f.exists() && !f.delete())
+        logger.warn("Unable to delete temporary file " + f.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Current entry of a sorted run
+   */
+  private static abstract class RunEntry implements Comparable<RunEntry> {
+    byte[] key = new byte[256];
+    int keyLength;
+    long position;
+    int headerLength;
+    int entryLength;
+    int sequenceLength;
+    int lineWidth;
+
+    /**
+     * Read next entry of the run
+     *
+     * @return false at end of run
+     */
+    abstract boolean read() throws IOException;
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeShort(keyLength);
+      out.write(key, 0, keyLength);
+      out.writeLong(position);
+      out.writeInt(headerLength);
+      out.writeInt(entryLength);
+      out.writeInt(sequenceLength);
+      out.writeInt(lineWidth);
+    }
+
+    @Override
+    public int compareTo(RunEntry other) {
+      int cmp = Arrays.compareUnsigned(key, 0, keyLength, other.key, 0, other.keyLength);
+      return cmp != 0 ? cmp : Long.compare(position, other.position);
+    }
+  }
+
+  private static class FileEntry extends RunEntry {
+    final DataInputStream in;
+    long remaining;
+
+    FileEntry(DataInputStream in, long count) {
+      this.in = in;
+      this.remaining = count;
+    }
+
+    @Override
+    boolean read() throws IOException {
+      if (remaining == 0)
+        return false;
+      remaining--;
+      keyLength = in.readUnsignedShort();
+      key = FastaDuplicateManager.ensureCapacity(key, keyLength);
+      in.readFully(key, 0, keyLength);
+      position = in.readLong();
+      headerLength = in.readInt();
+      entryLength = in.readInt();
+      sequenceLength = in.readInt();
+      lineWidth = in.readInt();
+      return true;
+    }
+  }
+
+  private static class MemoryEntry extends RunEntry {
+    final Run run;
+    int next;
+
+    MemoryEntry(Run run) {
+      this.run = run;
+    }
+
+    @Override
+    boolean read() {
+      if (next == run.count)
+        return false;
+      int e = run.order[next++];
+      keyLength = run.keyEnd(e) - run.keyStarts[e];
+      key = FastaDuplicateManager.ensureCapacity(key, keyLength);
+      System.arraycopy(run.keys, run.keyStarts[e], key, 0, keyLength);
+      position = run.positions[e];
+      headerLength = run.headerLengths[e];
+      entryLength = run.entryLengths[e];
+      sequenceLength = run.sequenceLengths[e];
+      lineWidth = run.lineWidths[e];
+      return true;
+    }
+  }
+
+  /**
+   * Merge entries of sorted runs in index order.
+   */
+  private static class SortedEntries implements Closeable {
+    private final PriorityQueue<RunEntry> queue = new PriorityQueue<>();
+    private final List<FileEntry> fileEntries = new ArrayList<>();
+
+    SortedEntries(RunFiles runFiles, Run run, long maxMemory) throws IOException {
+      this(runFiles.files, runFiles.counts, run, maxMemory);
+    }
+
+    /**
+     * @param run sorted run kept in memory, null if none
+     */
+    SortedEntries(List<File> files, List<Long> counts, Run run, long maxMemory) throws IOException {
+      int bufferSize = (int) Math.max(4096, Math.min(64 * 1024, maxMemory / 4 / Math.max(1, files.size())));
+      try {
+        for (int f = 0; f < files.size(); f++) {
+          FileEntry entry = new FileEntry(new DataInputStream(new BufferedInputStream(new FileInputStream(files.get(f)), bufferSize)), counts.get(f));
+          fileEntries.add(entry);
+          if (entry.read())
+            queue.add(entry);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+      if (run != null) {
+        MemoryEntry entry = new MemoryEntry(run);
+        if (entry.read())
+          queue.add(entry);
+      }
+    }
+
+    /**
+     * @return next entry in index order, null if none
+     */
+    RunEntry peek() {
+      return queue.peek();
+    }
+
+    void next() throws IOException {
+      RunEntry entry = queue.poll();
+      if (entry != null && entry.read())
+        queue.add(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (FileEntry entry : fileEntries)
+        entry.in.close();
+    }
+  }
+
+  /**
+   * Index file mapped by overlapping pages, so that any entry or accession is fully contained in one page.
+   */
+  private static class MappedPages implements Closeable {
+    private final static int PAGE_BITS = 30;
+    private final static long PAGE_MASK = (1L << PAGE_BITS) - 1;
+    private final static int OVERLAP = 1 << 17;
+
+    private final FileChannel channel;
+    private final ByteBuffer[] pages;
+
+    MappedPages(FileChannel channel) throws IOException {
+      this.channel = channel;
+      long size = channel.size();
+      pages = new ByteBuffer[(int) ((size + PAGE_MASK) >>> PAGE_BITS)];
+      for (int p = 0; p < pages.length; p++) {
+        long start = (long) p << PAGE_BITS;
+        pages[p] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min((1L << PAGE_BITS) + OVERLAP, size - start));
+      }
+    }
+
+    long getLong(long pos) {
+      return pages[(int) (pos >>> PAGE_BITS)].getLong((int) (pos & PAGE_MASK));
+    }
+
+    int getInt(long pos) {
+      return pages[(int) (pos >>> PAGE_BITS)].getInt((int) (pos & PAGE_MASK));
+    }
+
+    byte get(long pos) {
+      return pages[(int) (pos >>> PAGE_BITS)].get((int) (pos & PAGE_MASK));
+    }
+
+    void get(long pos, byte[] dest, int length) {
+      pages[(int) (pos >>> PAGE_BITS)].get((int) (pos & PAGE_MASK), dest, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
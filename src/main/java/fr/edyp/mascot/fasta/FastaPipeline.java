@@ -0,0 +1,358 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Apply several fasta operations (steps) with a single read of the input file and a single write of the result.
+ * Each entry goes through the steps in the specified order and the result is the same as running the
+ * corresponding commands one after the other, each one on the file created by the previous one.
+ */
+public class FastaPipeline {
+
+  private final static Logger logger = LoggerFactory.getLogger(FastaPipeline.class);
+
+  public final static String STEP_REMOVE_EMPTY = "rem_empty";
+  public final static String STEP_SHORTEN = "shorten";
+  public final static String STEP_DEDUP = "dedup";
+  public final static String STEP_TAXO = "taxo";
+
+  /**
+   * One operation applied to fasta entries
+   */
+  interface Step {
+
+    /**
+     * Apply this step to the entry, which may be modified.
+     *
+     * @return false if the entry should be removed
+     */
+    boolean process(Entry entry) throws IOException;
+
+    /**
+     * Called once all entries were processed.
+     */
+    default void end() {
+    }
+  }
+
+  /**
+   * Run all steps on fin entries and write result in fout
+   *
+   * @param steps steps definition : rem_empty, shorten, dedup or taxo=&lt;mnemonic&gt;
+   * @param format format of headers, used by dedup and taxo steps
+   */
+  public static void run(File fin, File fout, List<String> steps, HeaderFormat format) throws IOException {
+    List<Step> pipeline = createSteps(steps, format);
+    logger.info("Run " + String.join(",", steps) + " on " + fin.getAbsolutePath() + " to " + fout.getAbsolutePath());
+    Metrics.startReading(fin);
+
+    Entry entry = new Entry();
+    try (FastaReader reader = new FastaReader(fin); FastaWriter writer = new FastaWriter(fout)) {
+      while (reader.next()) {
+        entry.read(reader);
+        boolean keep = true;
+        for (Step step : pipeline) {
+          if (!step.process(entry)) {
+            keep = false;
+            break;
+          }
+        }
+        if (keep)
+          entry.write(writer);
+      }
+      logger.info(" ** Read " + reader.throughput());
+    }
+    pipeline.forEach(Step::end);
+  }
+
+  static List<Step> createSteps(List<String> steps, HeaderFormat format) {
+    List<Step> pipeline = new ArrayList<>();
+    for (String step : steps) {
+      String[] def = step.trim().split("=", 2);
+      switch (def[0]) {
+        case STEP_REMOVE_EMPTY:
+          pipeline.add(new RemoveEmptyStep());
+          break;
+        case STEP_SHORTEN:
+          pipeline.add(new ShortenStep("_"));
+          break;
+        case STEP_DEDUP:
+          pipeline.add(new DedupStep(format));
+          break;
+        case STEP_TAXO:
+          if (def.length < 2 || def[1].isEmpty())
+            throw new IllegalArgumentException("Taxonomy mnemonic should be specified for step " + STEP_TAXO + " (" + STEP_TAXO + "=<mnemonic>)");
+          pipeline.add(new TaxoStep(def[1], format));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown pipeline step " + step + ". Steps are " + STEP_REMOVE_EMPTY + ", " + STEP_SHORTEN + ", " + STEP_DEDUP + ", " + STEP_TAXO + "=<mnemonic>");
+      }
+    }
+    if (pipeline.isEmpty())
+      throw new IllegalArgumentException("No pipeline step specified");
+    return pipeline;
+  }
+
+  /**
+   * Fasta entry going through the pipeline : header is copied so that it can be modified, sequence lines
+   * are read from reader buffer.
+   */
+  static class Entry {
+    private byte[] header = new byte[1024];
+    private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    private int headerLength;
+    private byte[] newHeader = new byte[1024];
+    private int newHeaderLength;
+    boolean hasHeader;
+
+    ByteBuffer sequence;
+    int sequenceStart;
+    int sequenceEnd;
+    boolean hasCR;
+
+    void read(FastaReader reader) {
+      ByteBuffer buf = reader.buffer();
+      hasHeader = reader.hasHeader();
+      headerLength = 0;
+      if (hasHeader) {
+        int length = reader.headerEnd() - reader.recordStart();
+        if (header.length < length) {
+          header = new byte[Math.max(length, header.length * 2)];
+          headerBuffer = ByteBuffer.wrap(header);
+        }
+        buf.get(reader.recordStart(), header, 0, length);
+        headerLength = length;
+      }
+      sequence = buf;
+      sequenceStart = reader.sequenceStart();
+      sequenceEnd = reader.recordEnd();
+      hasCR = reader.hasCarriageReturn();
+    }
+
+    /**
+     * @return header line, '>' included, from index 0 to {@link #headerLength()}
+     */
+    ByteBuffer header() {
+      return headerBuffer;
+    }
+
+    int headerLength() {
+      return headerLength;
+    }
+
+    /**
+     * Start a new header, which will replace current one when {@link #commitHeader()} is called.
+     */
+    void startHeader() {
+      newHeaderLength = 0;
+    }
+
+    void appendHeader(byte b) {
+      ensureNewHeaderCapacity(1);
+      newHeader[newHeaderLength++] = b;
+    }
+
+    void appendHeader(ByteBuffer src, int from, int to) {
+      ensureNewHeaderCapacity(to - from);
+      src.get(from, newHeader, newHeaderLength, to - from);
+      newHeaderLength += to - from;
+    }
+
+    void appendHeader(byte[] src, int from, int to) {
+      ensureNewHeaderCapacity(to - from);
+      System.arraycopy(src, from, newHeader, newHeaderLength, to - from);
+      newHeaderLength += to - from;
+    }
+
+    void commitHeader() {
+      byte[] previous = header;
+      header = newHeader;
+      headerLength = newHeaderLength;
+      headerBuffer = ByteBuffer.wrap(header);
+      newHeader = previous;
+    }
+
+    /**
+     * Replace the header by the parsed one, as written by {@link HeaderFormat.Parser#writeHeader(FastaWriter, byte[], int)}
+     *
+     * @param parsed parser of this entry header
+     * @param acc new accession (from 0 to accLength), null to keep the accession of the header
+     */
+    void rewriteHeader(HeaderFormat.Parser parsed, byte[] acc, int accLength) {
+      int accStart = parsed.start(HeaderFormat.ACCESSION);
+      int accEnd = parsed.end(HeaderFormat.ACCESSION);
+      startHeader();
+      appendHeader(headerBuffer, 0, accStart);
+      if (acc == null)
+        appendHeader(headerBuffer, accStart, accEnd);
+      else
+        appendHeader(acc, 0, accLength);
+      if (parsed.format().isFirstWord())
+        appendHeader((byte) ' ');
+      appendHeader(headerBuffer, accEnd, headerLength);
+      commitHeader();
+    }
+
+    private void ensureNewHeaderCapacity(int length) {
+      if (newHeaderLength + length > newHeader.length)
+        newHeader = Arrays.copyOf(newHeader, Math.max(newHeaderLength + length, newHeader.length * 2));
+    }
+
+    void write(FastaWriter writer) throws IOException {
+      if (hasHeader) {
+        writer.write(header, 0, headerLength);
+        writer.write('\n');
+      }
+      writer.writeLines(sequence, sequenceStart, sequenceEnd, hasCR);
+    }
+  }
+
+  /**
+   * Same as {@link FastaUtil#removeEmptyEntries(File, File)}
+   */
+  static class RemoveEmptyStep implements Step {
+    private int nbIncorrect = 0;
+
+    @Override
+    public boolean process(Entry entry) {
+      if (!entry.hasHeader)
+        return false;
+      int seqStart = FastaUtil.firstNotEmptyLine(entry.sequence, entry.sequenceStart, entry.sequenceEnd);
+      if (seqStart < 0) {
+        logger.info("Entry " + FastaReader.toString(entry.header(), 0, entry.headerLength()) + " has no sequence. It will not be written to output file");
+        nbIncorrect++;
+        return false;
+      }
+      entry.sequenceStart = seqStart;
+      return true;
+    }
+
+    @Override
+    public void end() {
+      logger.info("Found  " + nbIncorrect + " empty entries.");
+    }
+  }
+
+  /**
+   * Same as {@link FastaUtil#shortenAccession(File, File, String)}
+   */
+  static class ShortenStep implements Step {
+    private final byte[] sep;
+    private final AccessionDictionary names = new AccessionDictionary();
+
+    ShortenStep(String separator) {
+      sep = FastaReader.toBytes(separator);
+    }
+
+    @Override
+    public boolean process(Entry entry) {
+      if (!entry.hasHeader)
+        return true;
+      ByteBuffer header = entry.header();
+      int index = FastaReader.indexOf(header, sep, 0, entry.headerLength());
+      if (index == -1)
+        return true;
+
+      int accStart = index + sep.length;
+      int accEnd = FastaUtil.shortAccessionEnd(header, accStart, entry.headerLength());
+      if (names.add(header, accStart, accEnd) < 0)
+        System.out.println("duplicate " + FastaReader.toString(header, accStart, accEnd));
+
+      entry.startHeader();
+      entry.appendHeader((byte) '>');
+      for (int i = accStart; i < accEnd; i++)
+        entry.appendHeader(FastaUtil.cleanAccessionChar(header.get(i)));
+      entry.appendHeader((byte) ' ');
+      entry.appendHeader(header, 1, entry.headerLength());
+      entry.commitHeader();
+      return true;
+    }
+  }
+
+  /**
+   * Same as {@link FastaDuplicateManager#removeDuplicateInFasta(File, File, HeaderFormat)}
+   */
+  static class DedupStep implements Step {
+    private final HeaderFormat.Parser parser;
+    private final AccessionDictionary names = new AccessionDictionary();
+    private byte[] newAcc = new byte[256];
+    private int nbDuplicate = 0;
+
+    DedupStep(HeaderFormat format) {
+      parser = format.newParser();
+    }
+
+    @Override
+    public boolean process(Entry entry) {
+      if (!entry.hasHeader)
+        return true;
+      ByteBuffer header = entry.header();
+      parser.parse(header, 0, entry.headerLength());
+      int accStart = parser.start(HeaderFormat.ACCESSION);
+      int accEnd = parser.end(HeaderFormat.ACCESSION);
+
+      int accId = names.add(header, accStart, accEnd);
+      if (accId < 0) {
+        accId = -accId - 1;
+        nbDuplicate++;
+        Metrics.addDuplicates(1);
+        newAcc = FastaDuplicateManager.ensureCapacity(newAcc, accEnd - accStart + 12);
+        int newAccLength = FastaDuplicateManager.renameDuplicate(names, accId, newAcc);
+        logger.info("-- Renamed " + names.toString(accId) + " to " + new String(newAcc, 0, newAccLength, StandardCharsets.ISO_8859_1));
+        entry.rewriteHeader(parser, newAcc, newAccLength);
+      } else {
+        entry.rewriteHeader(parser, null, 0);
+      }
+      return true;
+    }
+
+    @Override
+    public void end() {
+      logger.info("\n ** Found " + nbDuplicate + " duplicate entries ");
+    }
+  }
+
+  /**
+   * Same as {@link FastaTaxoUtil#extractTaxonomy(File, File, String, HeaderFormat, int)}
+   */
+  static class TaxoStep implements Step {
+    private final String taxoMnemo;
+    private final byte[] mnemo;
+    private final HeaderFormat.Parser parser;
+    private int nbExtracted = 0;
+
+    TaxoStep(String taxoMnemo, HeaderFormat format) {
+      this.taxoMnemo = taxoMnemo;
+      this.mnemo = FastaReader.toBytes(taxoMnemo);
+      this.parser = format.newParser();
+    }
+
+    @Override
+    public boolean process(Entry entry) {
+      if (!entry.hasHeader)
+        return false;
+      ByteBuffer header = entry.header();
+      parser.parse(header, 0, entry.headerLength());
+      if (!FastaTaxoUtil.isOfTaxonomy(parser, header, mnemo))
+        return false;
+
+      nbExtracted++;
+      entry.rewriteHeader(parser, null, 0);
+      return true;
+    }
+
+    @Override
+    public void end() {
+      logger.info("\n ** Found " + nbExtracted + " entries for taxonomy " + taxoMnemo);
+    }
+  }
+}
@@ -0,0 +1,452 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Sequential reader of fasta file records working on bytes.
+ * Plain files are memory mapped by windows, compressed files (see {@link FastaIO}) are decompressed into a heap
+ * window. Each call to {@link #next()} positions the reader on one record : the header line (starting with '>')
+ * followed by its sequence lines. Record parts are given as index ranges into {@link #buffer()} so no object is
+ * created per line or per record. A record is always fully contained in the current window.
+ *
+ * Bytes found before the first header are returned as a record without header ({@link #hasHeader()} is false).
+ * Line separators may be \n or \r\n. Header bytes are converted to String as single byte characters.
+ */
+public class FastaReader implements Closeable {
+
+  private final static int DEFAULT_WINDOW_SIZE = 128 * 1024 * 1024;
+  private final static int DEFAULT_STREAM_WINDOW_SIZE = 8 * 1024 * 1024;
+  // number of records read between two updates of the metrics
+  private final static int METRICS_BATCH = 4096;
+
+  // source of the records : one of channel (mapped windows of file), in (heap window) or a single in memory buffer
+  private final File file;
+  private final FileChannel channel;
+  private final InputStream in;
+  private final long startOffset;
+  //End of the records to read. Unknown for streams until their end is reached.
+  private long endOffset;
+  private final long startTime;
+  private int windowSize;
+
+  private ByteBuffer buffer;
+  private long windowOffset;
+  private int windowLimit;
+  //Offset of the next record to read
+  private long position;
+
+  private int recordStart;
+  private int headerEnd;
+  private int sequenceStart;
+  private int recordEnd;
+  private boolean hasHeader;
+  private boolean hasCR;
+  // records and position not yet reported to metrics
+  private int unreportedRecords;
+  private long reportedPosition;
+
+  /**
+   * Create a reader for the whole fasta file, which may be compressed.
+   */
+  public FastaReader(File fasta) throws IOException {
+    this(fasta, FastaIO.isGzip(fasta));
+  }
+
+  private FastaReader(File fasta, boolean compressed) throws IOException {
+    this(compressed ? null : fasta, compressed ? null : FileChannel.open(fasta.toPath(), StandardOpenOption.READ), compressed ? FastaIO.openInput(fasta) : null, 0, -1);
+  }
+
+  /**
+   * Create a reader for part of a plain fasta file.
+   *
+   * @param start position of the first record to read. Should be the start of a line.
+   * @param end position after the last byte to read, -1 for end of file
+   */
+  public FastaReader(File fasta, long start, long end) throws IOException {
+    this(fasta, FileChannel.open(fasta.toPath(), StandardOpenOption.READ), null, start, end);
+  }
+
+  /**
+   * Create a reader for records of a decompressed or in memory stream.
+   */
+  public FastaReader(InputStream in) throws IOException {
+    this(null, null, in, 0, -1);
+  }
+
+  /**
+   * Create a reader for records already in memory, between buffer position and limit.
+   *
+   * @param offset position of buffer first byte in the fasta file
+   */
+  public FastaReader(ByteBuffer data, long offset) {
+    file = null;
+    channel = null;
+    in = null;
+    buffer = data.slice();
+    windowOffset = offset;
+    windowLimit = buffer.limit();
+    startOffset = offset;
+    endOffset = offset + windowLimit;
+    position = offset;
+    reportedPosition = offset;
+    windowSize = windowLimit;
+    startTime = System.nanoTime();
+  }
+
+  private FastaReader(File file, FileChannel channel, InputStream in, long start, long end) throws IOException {
+    this.file = file;
+    this.channel = channel;
+    this.in = in;
+    startOffset = start;
+    if (channel != null) {
+      endOffset = (end < 0) ? channel.size() : Math.min(end, channel.size());
+      windowSize = DEFAULT_WINDOW_SIZE;
+    } else {
+      endOffset = Long.MAX_VALUE;
+      windowSize = DEFAULT_STREAM_WINDOW_SIZE;
+    }
+    position = start;
+    reportedPosition = start;
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * Go to next record of the file.
+   *
+   * @return false if end of file is reached.
+   */
+  public boolean next() throws IOException {
+    if (position >= endOffset)
+      return false;
+
+    if (buffer == null || position < windowOffset || position >= windowOffset + windowLimit) {
+      loadWindow(position);
+      if (position >= endOffset)
+        return false;
+    }
+
+    while (true) {
+      int start = (int) (position - windowOffset);
+      boolean windowAtEnd = windowOffset + windowLimit >= endOffset;
+      boolean cr = false;
+      int firstEOL = -1;
+      int end = -1;
+      int i = start;
+      while (i < windowLimit) {
+        byte b = buffer.get(i);
+        if (b == '\n') {
+          if (firstEOL < 0)
+            firstEOL = i;
+          if (i + 1 < windowLimit) {
+            if (buffer.get(i + 1) == '>') {
+              end = i + 1;
+              break;
+            }
+          } else if (windowAtEnd) {
+            end = windowLimit;
+          }
+        } else if (b == '\r') {
+          cr = true;
+        }
+        i++;
+      }
+      if (end < 0 && windowAtEnd)
+        end = windowLimit;
+
+      if (end < 0) {
+        //Record is not fully in current window : load a new one starting at record, larger if needed
+        if (start == 0)
+          windowSize = (windowSize > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : windowSize * 2;
+        loadWindow(position);
+        continue;
+      }
+
+      recordStart = start;
+      recordEnd = end;
+      hasCR = cr;
+      hasHeader = buffer.get(start) == '>';
+      if (hasHeader) {
+        int eol = firstEOL < 0 ? end : firstEOL;
+        sequenceStart = (firstEOL < 0) ? end : firstEOL + 1;
+        headerEnd = (eol > start && buffer.get(eol - 1) == '\r') ? eol - 1 : eol;
+      } else {
+        headerEnd = start;
+        sequenceStart = start;
+      }
+      position = windowOffset + end;
+      if (++unreportedRecords == METRICS_BATCH)
+        reportMetrics();
+      return true;
+    }
+  }
+
+  private void loadWindow(long from) throws IOException {
+    if (channel != null) {
+      long size = Math.min(windowSize, endOffset - from);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+      windowOffset = from;
+      windowLimit = (int) size;
+    } else if (in != null) {
+      fillWindow(from);
+    }
+  }
+
+  /**
+   * Keep stream bytes from specified offset at the start of the window and fill it with next bytes
+   */
+  private void fillWindow(long from) throws IOException {
+    int keep = (buffer == null) ? 0 : (int) (windowOffset + windowLimit - from);
+    int keepStart = windowLimit - keep;
+    if (buffer == null || buffer.capacity() < windowSize) {
+      ByteBuffer larger = ByteBuffer.allocate(windowSize);
+      if (keep > 0)
+        System.arraycopy(buffer.array(), keepStart, larger.array(), 0, keep);
+      buffer = larger;
+    } else if (keep > 0) {
+      System.arraycopy(buffer.array(), keepStart, buffer.array(), 0, keep);
+    }
+    windowOffset = from;
+    windowLimit = keep;
+    byte[] bytes = buffer.array();
+    while (windowLimit < bytes.length) {
+      int n = in.read(bytes, windowLimit, bytes.length - windowLimit);
+      if (n < 0) {
+        endOffset = windowOffset + windowLimit;
+        break;
+      }
+      windowLimit += n;
+    }
+  }
+
+  /**
+   * @return the buffer current record indexes refer to. Buffer position and limit should not be used.
+   * For plain files, the buffer of a window is never modified and remains valid once the reader moved to the next window.
+   */
+  public ByteBuffer buffer() {
+    return buffer;
+  }
+
+  public boolean hasHeader() {
+    return hasHeader;
+  }
+
+  /**
+   * @return true if current record contains '\r' char (\r\n line separators)
+   */
+  public boolean hasCarriageReturn() {
+    return hasCR;
+  }
+
+  /**
+   * @return index of current record start, which is the '>' of the header line if any.
+   */
+  public int recordStart() {
+    return recordStart;
+  }
+
+  /**
+   * @return index of the end of the header line, excluding line separator.
+   */
+  public int headerEnd() {
+    return headerEnd;
+  }
+
+  /**
+   * @return index of the first sequence line of current record.
+   */
+  public int sequenceStart() {
+    return sequenceStart;
+  }
+
+  /**
+   * @return index after the last byte of current record, including its line separator.
+   */
+  public int recordEnd() {
+    return recordEnd;
+  }
+
+  /**
+   * @return plain file the records are mapped from, null for compressed files, streams and in memory records
+   */
+  public File file() {
+    return file;
+  }
+
+  /**
+   * @return position in the fasta file of the byte at index of the buffer
+   */
+  public long offsetOf(int index) {
+    return windowOffset + index;
+  }
+
+  /**
+   * @return position of current record in the fasta file (in decompressed bytes for compressed files).
+   */
+  public long recordOffset() {
+    return windowOffset + recordStart;
+  }
+
+  /**
+   * @return number of bytes read from start of file or range.
+   */
+  public long bytesRead() {
+    return position - startOffset;
+  }
+
+  /**
+   * @return a description of read bytes and read speed since this reader was created.
+   */
+  public String throughput() {
+    return throughput(bytesRead(), startTime);
+  }
+
+  /**
+   * @return a description of specified bytes count and corresponding speed since startTime (as given by System.nanoTime())
+   */
+  public static String throughput(long bytes, long startTime) {
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    double mb = bytes / (1024.0 * 1024.0);
+    return String.format(Locale.ENGLISH, "%.1f MB in %.1f s (%.1f MB/s)", mb, seconds, seconds > 0 ? mb / seconds : 0);
+  }
+
+  /**
+   * Read the record starting at specified position : header line and sequence lines up to next record.
+   *
+   * @return a buffer containing the record bytes, from index 0 to its limit
+   */
+  public static ByteBuffer readRecordAt(FileChannel channel, long recordOffset) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    int scanned = 1; // skip '>' of the record
+    while (true) {
+      int n = channel.read(buf, recordOffset + buf.position());
+      if (n <= 0)
+        break;
+      int filled = buf.position();
+      for (int i = scanned; i + 1 < filled; i++) {
+        if (buf.get(i) == '\n' && buf.get(i + 1) == '>') {
+          buf.position(i + 1);
+          return buf.flip();
+        }
+      }
+      scanned = Math.max(scanned, filled - 1);
+      if (!buf.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(buf.capacity() * 2);
+        buf.flip();
+        larger.put(buf);
+        buf = larger;
+      }
+    }
+    return buf.flip();
+  }
+
+  /**
+   * Search the start of the first record after specified position.
+   *
+   * @return position of the first '>' starting a line after from, or end of file if none
+   */
+  public static long nextRecordStart(FileChannel channel, long from) throws IOException {
+    long size = channel.size();
+    if (from <= 0)
+      return 0;
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    long pos = from - 1; //previous byte should be a line separator
+    while (pos < size) {
+      buf.clear();
+      int n = channel.read(buf, pos);
+      if (n <= 0)
+        break;
+      for (int i = 0; i + 1 < n; i++) {
+        if (buf.get(i) == '\n' && buf.get(i + 1) == '>')
+          return pos + i + 1;
+      }
+      if (pos + n >= size)
+        break;
+      pos += n - 1; //keep last byte which may be followed by '>'
+    }
+    return size;
+  }
+
+  private void reportMetrics() {
+    Metrics.addEntries(unreportedRecords);
+    Metrics.addBytesRead(position - reportedPosition);
+    unreportedRecords = 0;
+    reportedPosition = position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reportMetrics();
+    buffer = null;
+    if (channel != null)
+      channel.close();
+    if (in != null)
+      in.close();
+  }
+
+  /*
+   * Byte utilities working on buffer ranges
+   */
+
+  /**
+   * @return index of the first occurrence of pattern in buffer between from (inclusive) and to (exclusive), -1 if not found
+   */
+  public static int indexOf(ByteBuffer buf, byte[] pattern, int from, int to) {
+    int last = to - pattern.length;
+    for (int i = from; i <= last; i++) {
+      int k = 0;
+      while (k < pattern.length && buf.get(i + k) == pattern[k])
+        k++;
+      if (k == pattern.length)
+        return i;
+    }
+    return -1;
+  }
+
+  public static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buf.get(i) == b)
+        return i;
+    }
+    return -1;
+  }
+
+  public static int lastIndexOf(ByteBuffer buf, byte b, int from, int to) {
+    for (int i = to - 1; i >= from; i--) {
+      if (buf.get(i) == b)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if buffer range [from, to[ ends with specified bytes
+   */
+  public static boolean endsWith(ByteBuffer buf, int from, int to, byte[] suffix) {
+    if (to - from < suffix.length)
+      return false;
+    int start = to - suffix.length;
+    for (int k = 0; k < suffix.length; k++) {
+      if (buf.get(start + k) != suffix[k])
+        return false;
+    }
+    return true;
+  }
+
+  public static String toString(ByteBuffer buf, int from, int to) {
+    byte[] bytes = new byte[to - from];
+    buf.get(from, bytes);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  public static byte[] toBytes(String value) {
+    return value.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,254 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keep a JVM resident to run the command lines sent by {@link ServeClient}, so that the JVM startup, class loading and
+ * JIT warm up are paid once rather than on each command. Requests are received on a Unix domain socket (only usable by
+ * local users allowed to access the socket file) and are run at the same time on a fixed pool.
+ *
+ * A request is run by {@link FastaUtil#run(String[])} in the same way as on the command line : its log and output
+ * (System.out and System.err of the request thread and of the threads it creates) are sent back to the client, and
+ * it has its own {@link Metrics}. Relative paths given to the options are resolved against the client directory.
+ * Threads shared by all requests, as the compression threads of {@link FastaIO}, don't inherit the request which
+ * created them. db_usage --follow, which never ends, is refused.
+ */
+public class FastaServer {
+
+  private final static Logger logger = LoggerFactory.getLogger(FastaServer.class);
+
+  // options whose value is a path, resolved against the directory of the client
+  private final static Set<String> PATH_OPTIONS = Set.of("-i", "-o", "-s", "-m", "--acc-file", "--taxo-file", "--out-dir",
+    "--tmp-dir", "--input-dir", "--summary", "--metrics-out", "--state", "--work-dir", "--json", "--snapshot", "--nodes");
+
+  // request run by the current thread, inherited by the threads created to run it
+  private final static InheritableThreadLocal<Request> REQUEST = new InheritableThreadLocal<>();
+
+  private final Path socketPath;
+  private final int nbThreads;
+  private final AtomicInteger nbRequests = new AtomicInteger();
+
+  /**
+   * @param nbThreads maximum number of requests run at the same time
+   */
+  public FastaServer(Path socketPath, int nbThreads) {
+    this.socketPath = socketPath;
+    this.nbThreads = Math.max(1, nbThreads);
+  }
+
+  /**
+   * Listen to requests until the JVM is stopped
+   */
+  public void run() throws IOException {
+    if (Files.exists(socketPath)) {
+      if (isListening(socketPath))
+        throw new IOException("A server already listens on " + socketPath);
+      Files.delete(socketPath);
+    }
+    System.setOut(new PrintStream(new RequestOutputStream(System.out, false), true));
+    System.setErr(new PrintStream(new RequestOutputStream(System.err, true), true));
+
+    AtomicInteger threadIndex = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(nbThreads, r -> new Thread(r, "serve-" + threadIndex.incrementAndGet()));
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+      try {
+        Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+      } catch (UnsupportedOperationException e) {
+        logger.debug("Can't restrict access to " + socketPath + " : " + e.getMessage());
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> socketPath.toFile().delete()));
+      logger.info("Serving commands on " + socketPath + ", " + nbThreads + " at a time");
+      while (true) {
+        SocketChannel channel = server.accept();
+        pool.execute(() -> handle(channel));
+      }
+    } finally {
+      pool.shutdownNow();
+      Files.deleteIfExists(socketPath);
+    }
+  }
+
+  private static boolean isListening(Path socketPath) {
+    try {
+      SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if args is a db_usage command following the searches log
+   */
+  private static boolean isFollow(String[] args) {
+    if (args.length == 0 || !args[0].equals(CommandArguments.DB_USAGE_COMMAND))
+      return false;
+    for (String arg : args) {
+      if (arg.equals("--follow") || arg.startsWith("--follow="))
+        return true;
+    }
+    return false;
+  }
+
+  private void handle(SocketChannel channel) {
+    int index = nbRequests.incrementAndGet();
+    long start = System.nanoTime();
+    int status = 1;
+    try (channel) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      File workDir = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++)
+        args[i] = in.readUTF();
+      args = resolvePaths(args, workDir);
+      logger.info("Request " + index + " : " + String.join(" ", args));
+
+      Request request = new Request(new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024)));
+      REQUEST.set(request);
+      Metrics.newScope();
+      try {
+        if (args.length > 0 && args[0].equals(CommandArguments.SERVE_COMMAND))
+          logger.error("Server is already running");
+        else if (isFollow(args))
+          logger.error("db_usage --follow never ends and would keep a thread of the server : run it with the run script");
+        else
+          status = FastaUtil.run(args);
+        System.out.flush();
+        System.err.flush();
+      } finally {
+        REQUEST.remove();
+        Metrics.endScope();
+      }
+      request.exit(status);
+    } catch (IOException e) {
+      logger.warn("Request " + index + " : " + e.getMessage());
+    }
+    logger.info("Request " + index + " done with status " + status + String.format(Locale.ENGLISH, " in %.1f s", (System.nanoTime() - start) / 1e9));
+  }
+
+  /**
+   * @return args with the relative paths given to {@link #PATH_OPTIONS} made absolute using workDir
+   */
+  static String[] resolvePaths(String[] args, File workDir) {
+    String[] resolved = args.clone();
+    // -o of extract_taxo is a file name in the directory of the input file
+    boolean extractTaxo = args.length > 0 && args[0].equals(CommandArguments.EXTRACT_TAXO_COMMAND);
+    for (int i = 1; i < args.length; i++) {
+      int separator = args[i].indexOf('=');
+      String name = (separator > 0) ? args[i].substring(0, separator) : args[i];
+      if (!PATH_OPTIONS.contains(name) || (extractTaxo && name.equals("-o")))
+        continue;
+      if (separator > 0) {
+        resolved[i] = name + "=" + absolutePath(args[i].substring(separator + 1), workDir);
+      } else if (i + 1 < args.length) {
+        i++;
+        resolved[i] = absolutePath(args[i], workDir);
+      }
+    }
+    return resolved;
+  }
+
+  private static String absolutePath(String path, File workDir) {
+    return new File(path).isAbsolute() ? path : new File(workDir, path).getPath();
+  }
+
+  /**
+   * Output of a request, sent to the client as frames. Once the client is gone, output is dropped.
+   */
+  private static class Request {
+    private final DataOutputStream out;
+    private boolean closed;
+
+    Request(DataOutputStream out) {
+      this.out = out;
+    }
+
+    synchronized void write(byte frameType, byte[] b, int off, int len) {
+      if (closed || len == 0)
+        return;
+      try {
+        out.writeByte(frameType);
+        out.writeInt(len);
+        out.write(b, off, len);
+      } catch (IOException e) {
+        closed = true;
+      }
+    }
+
+    synchronized void flush() {
+      if (closed)
+        return;
+      try {
+        out.flush();
+      } catch (IOException e) {
+        closed = true;
+      }
+    }
+
+    synchronized void exit(int status) throws IOException {
+      out.writeByte(ServeClient.EXIT_FRAME);
+      out.writeInt(status);
+      out.flush();
+    }
+  }
+
+  /**
+   * Standard output (or error) of the JVM : writes to the request of the current thread, or to the console out of any request
+   */
+  private static class RequestOutputStream extends OutputStream {
+    private final OutputStream console;
+    private final byte frameType;
+
+    RequestOutputStream(OutputStream console, boolean error) {
+      this.console = console;
+      this.frameType = error ? ServeClient.ERR_FRAME : ServeClient.OUT_FRAME;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      Request request = REQUEST.get();
+      if (request != null)
+        request.write(frameType, b, off, len);
+      else
+        console.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      Request request = REQUEST.get();
+      if (request != null)
+        request.flush();
+      else
+        console.flush();
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Profile of a fasta file computed in a single read : number of entries and residues, distribution of sequence
+ * lengths, residue composition, empty entries, duplicate accessions and width of sequence lines.
+ *
+ * The file is read by chunks (see {@link FastaChunkProcessor}), each chunk having its own counters and
+ * {@link ResidueCounter}, merged in file order once the chunk is done : result doesn't depend on the number of threads.
+ * The accession of an entry is given by the header format, the first word of its header by default.
+ */
+public class FastaStats {
+
+  private final static Logger logger = LoggerFactory.getLogger(FastaStats.class);
+
+  public final static String STANDARD_RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+  // lengths up to this value are counted in an array, longer ones are kept in a list
+  private final static int MAX_COUNTED_LENGTH = 64 * 1024;
+  private final static int MAX_REPORTED_DUPLICATES = 10;
+
+  private final int nbThreads;
+  private final boolean vector;
+  private boolean checkDuplicates = true;
+  private HeaderFormat format = HeaderFormat.DEFAULT;
+
+  private long nbEntries;
+  private long nbEmptyEntries;
+  private long nbResidues;
+  private final long[] lengthCounts = new long[MAX_COUNTED_LENGTH + 1];
+  private final List<Long> longLengths = new ArrayList<>();
+  private final long[] composition = new long[256];
+
+  private AccessionDictionary accessions;
+  private long nbDuplicateAccessions;
+  private final List<String> duplicateExamples = new ArrayList<>();
+
+  // entries by width of their first line, for sequences of more than one line
+  private final Map<Integer, Long> entriesByWidth = new HashMap<>();
+  private long nbSingleLineEntries;
+  private long nbIrregularEntries;
+  private long nbCrlfEntries;
+
+  /**
+   * @param nbThreads number of threads used to read the file
+   * @param vector true to count residues using the JDK Vector API, if available
+   */
+  public FastaStats(int nbThreads, boolean vector) {
+    this.nbThreads = nbThreads;
+    this.vector = vector;
+  }
+
+  /**
+   * @param checkDuplicates false to skip the search of duplicate accessions, which keeps all accessions in memory
+   */
+  public void setCheckDuplicates(boolean checkDuplicates) {
+    this.checkDuplicates = checkDuplicates;
+  }
+
+  /**
+   * @param format format of headers, giving the accession of entries
+   */
+  public void setHeaderFormat(HeaderFormat format) {
+    this.format = format;
+  }
+
+  /**
+   * Read fastaIn and log its profile
+   *
+   * @param jsonFile file to save the profile to as JSON, may be null
+   */
+  public void compute(File fastaIn, File jsonFile) throws IOException {
+    logger.info("Compute statistics of " + fastaIn.getAbsolutePath());
+    if (checkDuplicates)
+      accessions = new AccessionDictionary();
+    FastaChunkProcessor.run(fastaIn, null, nbThreads, ChunkStats::new);
+    logger.info(report());
+    if (jsonFile != null) {
+      Files.writeString(jsonFile.toPath(), toJson(fastaIn), StandardCharsets.UTF_8);
+      logger.info(" Statistics saved in " + jsonFile.getAbsolutePath());
+    }
+  }
+
+  public long getNbEntries() {
+    return nbEntries;
+  }
+
+  public long getNbEmptyEntries() {
+    return nbEmptyEntries;
+  }
+
+  public long getNbResidues() {
+    return nbResidues;
+  }
+
+  public long getNbDuplicateAccessions() {
+    return nbDuplicateAccessions;
+  }
+
+  /**
+   * @return number of residues by character
+   */
+  public long[] getComposition() {
+    return composition;
+  }
+
+  /**
+   * @return smallest length of the sequences, empty ones excluded. 0 if there is no sequence
+   */
+  public long minLength() {
+    for (int length = 1; length <= MAX_COUNTED_LENGTH; length++) {
+      if (lengthCounts[length] > 0)
+        return length;
+    }
+    return longLengths.isEmpty() ? 0 : longLengths.stream().mapToLong(Long::longValue).min().getAsLong();
+  }
+
+  public long maxLength() {
+    if (!longLengths.isEmpty())
+      return longLengths.stream().mapToLong(Long::longValue).max().getAsLong();
+    for (int length = MAX_COUNTED_LENGTH; length > 0; length--) {
+      if (lengthCounts[length] > 0)
+        return length;
+    }
+    return 0;
+  }
+
+  /**
+   * @return length of the sequence at the middle of the sequences sorted by length (lower one for an even number), empty ones excluded
+   */
+  public long medianLength() {
+    long nbSequences = nbEntries - nbEmptyEntries;
+    if (nbSequences == 0)
+      return 0;
+    long rank = (nbSequences - 1) / 2;
+    long seen = 0;
+    for (int length = 1; length <= MAX_COUNTED_LENGTH; length++) {
+      seen += lengthCounts[length];
+      if (seen > rank)
+        return length;
+    }
+    long[] sorted = sortedLongLengths();
+    return sorted[(int) (rank - seen)];
+  }
+
+  /**
+   * @return N50 : length such that sequences of this length or longer hold at least half of the residues
+   */
+  public long n50() {
+    long half = (nbResidues + 1) / 2;
+    long cumulated = 0;
+    long[] sorted = sortedLongLengths();
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      cumulated += sorted[i];
+      if (cumulated >= half)
+        return sorted[i];
+    }
+    for (int length = MAX_COUNTED_LENGTH; length > 0; length--) {
+      cumulated += lengthCounts[length] * length;
+      if (lengthCounts[length] > 0 && cumulated >= half)
+        return length;
+    }
+    return 0;
+  }
+
+  /**
+   * @return width of the first line of most sequences of more than one line, 0 if there is none
+   */
+  public int dominantWidth() {
+    int width = 0;
+    long count = 0;
+    for (Map.Entry<Integer, Long> entry : entriesByWidth.entrySet()) {
+      if (entry.getValue() > count || (entry.getValue() == count && entry.getKey() < width)) {
+        width = entry.getKey();
+        count = entry.getValue();
+      }
+    }
+    return width;
+  }
+
+  private long[] sortedLongLengths() {
+    long[] sorted = longLengths.stream().mapToLong(Long::longValue).toArray();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * @return number of sequences by power of 2 of their length : index i for lengths in [2^i, 2^(i+1)[
+   */
+  private long[] log2Distribution() {
+    long[] counts = new long[64];
+    for (int length = 1; length <= MAX_COUNTED_LENGTH; length++)
+      counts[63 - Long.numberOfLeadingZeros(length)] += lengthCounts[length];
+    for (long length : longLengths)
+      counts[63 - Long.numberOfLeadingZeros(length)]++;
+    return counts;
+  }
+
+  private static String bucketName(int log2) {
+    long from = 1L << log2;
+    return (log2 == 0) ? "1" : from + "-" + (2 * from - 1);
+  }
+
+  private static String residueName(int b) {
+    return (b > ' ' && b < 127) ? String.valueOf((char) b) : String.format("\\x%02X", b);
+  }
+
+  private static double percent(long n, long total) {
+    return (total == 0) ? 0 : 100.0 * n / total;
+  }
+
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    long nbSequences = nbEntries - nbEmptyEntries;
+    sb.append(String.format(Locale.ENGLISH, "\n ** %d entries, %d without sequence, %d residues", nbEntries, nbEmptyEntries, nbResidues));
+    sb.append(String.format(Locale.ENGLISH, "\n Length : min %d, max %d, mean %.1f, median %d, N50 %d", minLength(), maxLength(),
+      nbSequences == 0 ? 0.0 : (double) nbResidues / nbSequences, medianLength(), n50()));
+    long[] distribution = log2Distribution();
+    for (int i = 0; i < distribution.length; i++) {
+      if (distribution[i] > 0)
+        sb.append(String.format(Locale.ENGLISH, "\n   %-13s %10d (%.2f%%)", bucketName(i), distribution[i], percent(distribution[i], nbSequences)));
+    }
+
+    sb.append("\n Composition :");
+    for (int i = 0; i < STANDARD_RESIDUES.length(); i++) {
+      char residue = STANDARD_RESIDUES.charAt(i);
+      sb.append(String.format(Locale.ENGLISH, " %c %.2f%%", residue, percent(composition[residue], nbResidues)));
+    }
+    StringBuilder others = new StringBuilder();
+    long nbOthers = 0;
+    for (int b = 0; b < 256; b++) {
+      if (composition[b] > 0 && STANDARD_RESIDUES.indexOf(b) < 0) {
+        others.append(' ').append(residueName(b)).append('=').append(composition[b]);
+        nbOthers += composition[b];
+      }
+    }
+    sb.append(String.format(Locale.ENGLISH, "\n Non standard residues : %d (%.4f%%)", nbOthers, percent(nbOthers, nbResidues))).append(others);
+
+    if (accessions != null) {
+      sb.append("\n Duplicate accessions : ").append(nbDuplicateAccessions);
+      if (!duplicateExamples.isEmpty())
+        sb.append(" (").append(String.join(", ", duplicateExamples)).append(nbDuplicateAccessions > duplicateExamples.size() ? ", ..." : "").append(')');
+    }
+
+    int width = dominantWidth();
+    long otherWidths = entriesByWidth.entrySet().stream().filter(e -> e.getKey() != width).mapToLong(Map.Entry::getValue).sum();
+    sb.append("\n Lines : width ").append(width).append(", ").append(otherWidths).append(" entries with another width, ")
+      .append(nbIrregularEntries).append(" irregular entries, ").append(nbSingleLineEntries).append(" single line entries, ")
+      .append(nbCrlfEntries).append(" entries with \\r\\n");
+    return sb.toString();
+  }
+
+  String toJson(File fastaIn) {
+    long nbSequences = nbEntries - nbEmptyEntries;
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"file\":").append(DBUsageLog.jsonString(fastaIn.getAbsolutePath()))
+      .append(",\"entries\":").append(nbEntries)
+      .append(",\"emptyEntries\":").append(nbEmptyEntries)
+      .append(",\"residues\":").append(nbResidues)
+      .append(",\"length\":{\"min\":").append(minLength())
+      .append(",\"max\":").append(maxLength())
+      .append(",\"mean\":").append(String.format(Locale.ENGLISH, "%.2f", nbSequences == 0 ? 0.0 : (double) nbResidues / nbSequences))
+      .append(",\"median\":").append(medianLength())
+      .append(",\"n50\":").append(n50())
+      .append(",\"log2Distribution\":{");
+    long[] distribution = log2Distribution();
+    String sep = "";
+    for (int i = 0; i < distribution.length; i++) {
+      if (distribution[i] > 0) {
+        sb.append(sep).append(DBUsageLog.jsonString(bucketName(i))).append(':').append(distribution[i]);
+        sep = ",";
+      }
+    }
+    sb.append("}},\"composition\":{");
+    sep = "";
+    for (int b = 0; b < 256; b++) {
+      if (composition[b] > 0) {
+        sb.append(sep).append(DBUsageLog.jsonString(residueName(b))).append(':').append(composition[b]);
+        sep = ",";
+      }
+    }
+    long nbOthers = 0;
+    for (int b = 0; b < 256; b++) {
+      if (STANDARD_RESIDUES.indexOf(b) < 0)
+        nbOthers += composition[b];
+    }
+    sb.append("},\"nonStandardResidues\":").append(nbOthers)
+      .append(",\"duplicateAccessions\":").append(accessions != null ? String.valueOf(nbDuplicateAccessions) : "null");
+    int width = dominantWidth();
+    sb.append(",\"lines\":{\"width\":").append(width)
+      .append(",\"otherWidthEntries\":").append(entriesByWidth.entrySet().stream().filter(e -> e.getKey() != width).mapToLong(Map.Entry::getValue).sum())
+      .append(",\"irregularEntries\":").append(nbIrregularEntries)
+      .append(",\"singleLineEntries\":").append(nbSingleLineEntries)
+      .append(",\"crlfEntries\":").append(nbCrlfEntries);
+    return sb.append("}}").toString();
+  }
+
+  /**
+   * Counters of one chunk, added to the file ones once the chunk is done
+   */
+  private class ChunkStats implements FastaChunkProcessor.RecordProcessor {
+    private final ResidueCounter counter = ResidueCounter.create(vector);
+    private final HeaderFormat.Parser header = format.newParser();
+    private long nbEntries;
+    private long nbEmptyEntries;
+    private long nbResidues;
+    // length and first line width (0 for a single line) of the sequences of the chunk
+    private long[] lengths = new long[1024];
+    private int[] widths = new int[1024];
+    private int nbSequences;
+    private long nbSingleLineEntries;
+    private long nbIrregularEntries;
+    private long nbCrlfEntries;
+    // accessions of the chunk, checked for duplicates in file order
+    private byte[] accessionBytes = new byte[64 * 1024];
+    private int accessionsLength = 0;
+    private int[] accessionEnds = new int[1024];
+    private int nbAccessions = 0;
+
+    @Override
+    public void process(FastaReader reader, FastaWriter writer) {
+      if (!reader.hasHeader())
+        return; // lines before the first header
+
+      ByteBuffer buf = reader.buffer();
+      nbEntries++;
+      if (reader.hasCarriageReturn())
+        nbCrlfEntries++;
+      if (accessions != null) {
+        header.parse(buf, reader.recordStart(), reader.headerEnd());
+        addAccession(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION));
+      }
+
+      long length = counter.scan(buf, reader.sequenceStart(), reader.recordEnd());
+      if (length == 0) {
+        nbEmptyEntries++;
+        return;
+      }
+      nbResidues += length;
+      if (nbSequences == lengths.length) {
+        lengths = Arrays.copyOf(lengths, nbSequences * 2);
+        widths = Arrays.copyOf(widths, nbSequences * 2);
+      }
+      lengths[nbSequences] = length;
+      widths[nbSequences++] = (counter.nbLines() == 1) ? 0 : counter.firstWidth();
+      if (counter.nbLines() == 1)
+        nbSingleLineEntries++;
+      if (!counter.isRegular())
+        nbIrregularEntries++;
+    }
+
+    private void addAccession(ByteBuffer buf, int from, int to) {
+      if (accessionsLength + to - from > accessionBytes.length)
+        accessionBytes = Arrays.copyOf(accessionBytes, Math.max(accessionBytes.length * 2, accessionsLength + to - from));
+      if (nbAccessions == accessionEnds.length)
+        accessionEnds = Arrays.copyOf(accessionEnds, nbAccessions * 2);
+      buf.get(from, accessionBytes, accessionsLength, to - from);
+      accessionsLength += to - from;
+      accessionEnds[nbAccessions++] = accessionsLength;
+    }
+
+    @Override
+    public void chunkDone() {
+      FastaStats stats = FastaStats.this;
+      stats.nbEntries += nbEntries;
+      stats.nbEmptyEntries += nbEmptyEntries;
+      stats.nbResidues += nbResidues;
+      int lastWidth = -1;
+      long lastWidthCount = 0;
+      for (int i = 0; i < nbSequences; i++) {
+        if (lengths[i] <= MAX_COUNTED_LENGTH)
+          stats.lengthCounts[(int) lengths[i]]++;
+        else
+          stats.longLengths.add(lengths[i]);
+        // consecutive sequences mostly have the same width
+        if (widths[i] != lastWidth) {
+          if (lastWidth > 0)
+            stats.entriesByWidth.merge(lastWidth, lastWidthCount, Long::sum);
+          lastWidth = widths[i];
+          lastWidthCount = 0;
+        }
+        lastWidthCount++;
+      }
+      if (lastWidth > 0)
+        stats.entriesByWidth.merge(lastWidth, lastWidthCount, Long::sum);
+      long[] chunkComposition = counter.composition();
+      for (int b = 0; b < 256; b++)
+        stats.composition[b] += chunkComposition[b];
+      stats.nbSingleLineEntries += nbSingleLineEntries;
+      stats.nbIrregularEntries += nbIrregularEntries;
+      stats.nbCrlfEntries += nbCrlfEntries;
+
+      int start = 0;
+      for (int i = 0; i < nbAccessions; i++) {
+        int end = accessionEnds[i];
+        if (accessions.add(accessionBytes, start, end) < 0) {
+          nbDuplicateAccessions++;
+          Metrics.addDuplicates(1);
+          if (duplicateExamples.size() < MAX_REPORTED_DUPLICATES)
+            duplicateExamples.add(new String(accessionBytes, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+        start = end;
+      }
+    }
+  }
+}
@@ -4,16 +4,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class FastaTaxoUtil {
 
   private final static Logger logger = LoggerFactory.getLogger(FastaTaxoUtil.class);
 
+  // Size of all output buffers when extracting several taxonomies
+  private final static int OUTPUT_BUFFERS_SIZE = 64 * 1024 * 1024;
+
   /**
    * Read all fasta file entries, if UP format entry ends with specified taxo mnemonic
    * the entry will be copied into output file.
-   * TODO : allow more complex regEx to get taxo from entry
    *
    * @param fastaIn : fasta file to search duplicates from
    * @param fastaOut : new fasta file with duplicates renamed
@@ -21,54 +28,245 @@ public class FastaTaxoUtil {
    *
    */
   public static void extractTaxonomy(File fastaIn, File fastaOut, String taxoMnemo) throws IOException {
+    extractTaxonomy(fastaIn, fastaOut, taxoMnemo, HeaderFormat.DEFAULT, 1);
+  }
+
+  /**
+   * Same as {@link #extractTaxonomy(File, File, String)} using specified header format and number of threads.
+   * See {@link #isOfTaxonomy(HeaderFormat.Parser, ByteBuffer, byte[])} for the entries of the taxonomy.
+   */
+  public static void extractTaxonomy(File fastaIn, File fastaOut, String taxoMnemo, HeaderFormat format, int nbThreads) throws IOException {
     logger.info("Extract taxonomy "+taxoMnemo+" from "+fastaIn.getAbsolutePath()+" to "+fastaOut.getAbsolutePath());
-    FileReader fr = new FileReader(fastaIn);
-    FileWriter fw = new FileWriter(fastaOut);
-    BufferedWriter writer = new BufferedWriter(fw);
-    BufferedReader br = new BufferedReader(fr);
-    String separator = " ";
-    String line;
-    int nbExtracted = 0;
-    boolean sequenceMustBeWritten = false;
-    while ((line = br.readLine()) != null) {
-
-      if (line.startsWith(">")) { //new fasta entry
-        sequenceMustBeWritten = false;
-        int index = line.indexOf(separator);
-        boolean hasDesc = index>=0;
-        String currentAcc = line.substring(1);
-        String desc = "";
-        if(hasDesc) {
-          currentAcc = line.substring(1, index);
-          desc = line.substring(index);
-        }
+    byte[] mnemo = FastaReader.toBytes(taxoMnemo);
+    AtomicInteger nbExtracted = new AtomicInteger();
+    Supplier<FastaChunkProcessor.RecordProcessor> extractors = () -> taxonomyExtractor(format, mnemo, nbExtracted);
+
+    if (FastaIndex.isUsable(fastaIn, format)) {
+      // only read entries whose accession ends with mnemonic
+      logger.info(" Use index " + FastaIndex.indexFile(fastaIn).getAbsolutePath());
+      FastaChunkProcessor.RecordProcessor extractor = extractors.get();
+      try (FastaIndex index = FastaIndex.open(fastaIn);
+           FastaReader reader = index.openEntries(index.select(i -> index.keyEndsWith(i, mnemo)));
+           FastaWriter writer = new FastaWriter(fastaOut)) {
+        while (reader.next())
+          extractor.process(reader, writer);
+      }
+    } else {
+      FastaChunkProcessor.run(fastaIn, fastaOut, nbThreads, extractors);
+    }
+
+    logger.info("\n ** Found "+nbExtracted+" entries for taxonomy "+taxoMnemo);
+  }
+
+  /**
+   * @param nbExtracted incremented for each extracted entry
+   * @return processor copying records of the taxonomy, as {@link #extractTaxonomy(File, File, String)} does
+   */
+  static FastaChunkProcessor.RecordProcessor taxonomyExtractor(HeaderFormat format, byte[] mnemo, AtomicInteger nbExtracted) {
+    HeaderFormat.Parser header = format.newParser();
+    return (reader, writer) -> {
+      if (!reader.hasHeader())
+        return;
+
+      //new fasta entry
+      ByteBuffer buf = reader.buffer();
+      header.parse(buf, reader.recordStart(), reader.headerEnd());
+      if (isOfTaxonomy(header, buf, mnemo)) {
+        //this entry is of interest
+        nbExtracted.incrementAndGet();
+        logger.debug(" found taxonomy in entry " + FastaReader.toString(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION)));
+        header.writeHeader(writer, null, 0);
+
+        //sequence lines, write as it is
+        writer.writeRecordLines(reader, reader.sequenceStart());
+      }
+    };
+  }
+
+  /**
+   * @return true if the parsed header is of the taxonomy : with first_word header format, its accession ends with
+   * mnemo (as _HUMAN), with other formats its mnemonic is mnemo without leading '_'.
+   */
+  static boolean isOfTaxonomy(HeaderFormat.Parser header, ByteBuffer buf, byte[] mnemo) {
+    if (header.format().isFirstWord())
+      return FastaReader.endsWith(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION), mnemo);
+    int from = (mnemo.length > 0 && mnemo[0] == '_') ? 1 : 0;
+    return header.fieldEquals(HeaderFormat.MNEMONIC, mnemo, from, mnemo.length);
+  }
+
+  /**
+   * Extract several taxonomies with a single read of fastaIn. Entries of each taxonomy are the ones
+   * {@link #extractTaxonomy(File, File, String, HeaderFormat, int)} extracts (see
+   * {@link #isOfTaxonomy(HeaderFormat.Parser, ByteBuffer, byte[])}) : each entry is copied into the output file of
+   * its taxonomy, if any.
+   *
+   * @param fastaIn : fasta file to extract entries from
+   * @param fastaOutByMnemo : output file for each taxonomy mnemonic, as specified for {@link #extractTaxonomy(File, File, String)}
+   * @param format : format of headers, giving the accession or mnemonic of entries
+   */
+  public static void extractTaxonomies(File fastaIn, Map<String, File> fastaOutByMnemo, HeaderFormat format) throws IOException {
+    logger.info("Extract " + fastaOutByMnemo.size() + " taxonomies " + String.join(",", fastaOutByMnemo.keySet()) + " from " + fastaIn.getAbsolutePath());
+    Metrics.startReading(fastaIn);
+    HeaderFormat.Parser header = format.newParser();
+    // mnemonic id in dictionary is the index of its writer
+    AccessionDictionary mnemos = new AccessionDictionary(fastaOutByMnemo.size());
+    List<String> mnemoNames = new ArrayList<>(fastaOutByMnemo.keySet());
+    // first_word : accessions end with mnemonics, whose lengths give the accession suffixes to search
+    boolean firstWord = format.isFirstWord();
+    int[] mnemoLengths = mnemoNames.stream().mapToInt(m -> FastaReader.toBytes(m).length).distinct().sorted().toArray();
+    FastaWriter[] writers = new FastaWriter[mnemoNames.size()];
+    int[] nbExtracted = new int[mnemoNames.size()];
+    int bufferSize = Math.max(8 * 1024, Math.min(1024 * 1024, OUTPUT_BUFFERS_SIZE / writers.length));
+    try {
+      for (int i = 0; i < writers.length; i++) {
+        byte[] mnemo = FastaReader.toBytes(mnemoNames.get(i));
+        int from = (!firstWord && mnemo.length > 0 && mnemo[0] == '_') ? 1 : 0;
+        mnemos.add(mnemo, from, mnemo.length);
+        writers[i] = new FastaWriter(fastaOutByMnemo.get(mnemoNames.get(i)), bufferSize);
+      }
 
-        if (currentAcc.endsWith(taxoMnemo)) {
-          //this entry is of interest
-          sequenceMustBeWritten = true;
-          nbExtracted++;
-          logger.debug(" found taxonomy in entry " + currentAcc);
-
-          //Write new accessions & description to fastaOut
-          writer.write(">");
-          writer.write(currentAcc);
-          writer.write(" ");
-          writer.write(desc);
-          writer.write('\n');
+      // with an index, only entries of the taxonomies are read
+      try (FastaIndex fastaIndex = FastaIndex.isUsable(fastaIn, format) ? FastaIndex.open(fastaIn) : null;
+           FastaReader reader = (fastaIndex == null) ? new FastaReader(fastaIn) : openTaxonomiesEntries(fastaIndex, mnemos, mnemoLengths)) {
+        while (reader.next()) {
+          if (!reader.hasHeader())
+            continue;
+
+          ByteBuffer buf = reader.buffer();
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          if (firstWord) {
+            // an accession may end with several mnemonics, as _HUMAN and HUMAN
+            int accStart = header.start(HeaderFormat.ACCESSION);
+            int accEnd = header.end(HeaderFormat.ACCESSION);
+            for (int length : mnemoLengths) {
+              if (length > accEnd - accStart)
+                break;
+              int taxo = mnemos.find(buf, accEnd - length, accEnd);
+              if (taxo >= 0)
+                writeEntry(reader, header, writers[taxo], nbExtracted, taxo);
+            }
+          } else if (header.has(HeaderFormat.MNEMONIC)) {
+            int taxo = mnemos.find(buf, header.start(HeaderFormat.MNEMONIC), header.end(HeaderFormat.MNEMONIC));
+            if (taxo >= 0)
+              writeEntry(reader, header, writers[taxo], nbExtracted, taxo);
+          }
         }
+        logger.info(" ** Read " + reader.throughput());
+      }
+    } finally {
+      for (FastaWriter writer : writers) {
+        if (writer != null)
+          writer.close();
+      }
+    }
+
+    for (int i = 0; i < writers.length; i++)
+      logger.info(" ** Found " + nbExtracted[i] + " entries for taxonomy " + mnemoNames.get(i) + " in " + fastaOutByMnemo.get(mnemoNames.get(i)).getName());
+  }
+
+  private static void writeEntry(FastaReader reader, HeaderFormat.Parser header, FastaWriter writer, int[] nbExtracted, int taxo) throws IOException {
+    nbExtracted[taxo]++;
+    header.writeHeader(writer, null, 0);
+    writer.writeRecordLines(reader, reader.sequenceStart());
+  }
+
+  /**
+   * Extract clades of the NCBI taxonomy with a single read of fastaIn. Entry taxonomy is its OX field (taxid) :
+   * each entry is copied into the output file of each clade it belongs to, the clade of a taxid being the taxid
+   * and all its descendants in the taxonomy tree.
+   *
+   * @param fastaIn : fasta file to extract entries from
+   * @param fastaOutByTaxid : output file for each clade, by taxid of the clade
+   * @param tree : taxonomy tree the clades are searched in
+   * @param format : format of headers, giving the OX field of entries
+   */
+  public static void extractClades(File fastaIn, Map<Integer, File> fastaOutByTaxid, TaxonomyTree tree, HeaderFormat format) throws IOException {
+    logger.info("Extract " + fastaOutByTaxid.size() + " clades " + fastaOutByTaxid.keySet() + " from " + fastaIn.getAbsolutePath());
+    Metrics.startReading(fastaIn);
+    HeaderFormat.Parser header = format.newParser();
+    int[] taxids = new int[fastaOutByTaxid.size()];
+    FastaWriter[] writers = new FastaWriter[taxids.length];
+    int[] nbExtracted = new int[taxids.length];
+    int nbWithoutTaxid = 0;
+    int nbUnknownTaxid = 0;
+    int bufferSize = Math.max(8 * 1024, Math.min(1024 * 1024, OUTPUT_BUFFERS_SIZE / writers.length));
+    try {
+      int c = 0;
+      for (Map.Entry<Integer, File> clade : fastaOutByTaxid.entrySet()) {
+        taxids[c] = clade.getKey();
+        logger.info(" Clade " + taxids[c] + " : " + tree.cladeSize(taxids[c]) + " taxa");
+        writers[c++] = new FastaWriter(clade.getValue(), bufferSize);
+      }
+
+      try (FastaReader reader = new FastaReader(fastaIn)) {
+        while (reader.next()) {
+          if (!reader.hasHeader())
+            continue;
 
-      } else {
-        //sequence lines, write as it is if entry is of interest
-        if( sequenceMustBeWritten ) {
-          writer.write(line);
-          writer.write('\n');
+          ByteBuffer buf = reader.buffer();
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          int taxid = header.has(HeaderFormat.OX) ? parseTaxid(buf, header.start(HeaderFormat.OX), header.end(HeaderFormat.OX)) : -1;
+          if (taxid < 0) {
+            nbWithoutTaxid++;
+            continue;
+          }
+          if (!tree.contains(taxid)) {
+            nbUnknownTaxid++;
+            continue;
+          }
+
+          for (int i = 0; i < taxids.length; i++) {
+            if (tree.isInClade(taxid, taxids[i])) {
+              nbExtracted[i]++;
+              header.writeHeader(writers[i], null, 0);
+              writers[i].writeRecordLines(reader, reader.sequenceStart());
+            }
+          }
         }
+        logger.info(" ** Read " + reader.throughput());
+      }
+    } finally {
+      for (FastaWriter writer : writers) {
+        if (writer != null)
+          writer.close();
       }
     }
 
-    writer.flush();
-    logger.info("\n ** Found "+nbExtracted+" entries for taxonomy "+taxoMnemo);
-    fr.close();
-    fw.close();
+    if (nbWithoutTaxid > 0 || nbUnknownTaxid > 0)
+      logger.info(" ** Ignored " + nbWithoutTaxid + " entries without OX taxid and " + nbUnknownTaxid + " entries whose taxid is not in the taxonomy tree");
+    for (int i = 0; i < writers.length; i++)
+      logger.info(" ** Found " + nbExtracted[i] + " entries for clade " + taxids[i] + " in " + fastaOutByTaxid.get(taxids[i]).getName());
+  }
+
+  /**
+   * @return taxid written in decimal at the start of the range (OX=9606 {ECO:...}), -1 if there is none
+   */
+  private static int parseTaxid(ByteBuffer buf, int from, int to) {
+    long taxid = -1;
+    for (int i = from; i < to && taxid <= Integer.MAX_VALUE; i++) {
+      byte b = buf.get(i);
+      if (b < '0' || b > '9')
+        break;
+      taxid = Math.max(taxid, 0) * 10 + (b - '0');
+    }
+    return taxid <= Integer.MAX_VALUE ? (int) taxid : -1;
+  }
+
+  /**
+   * @return a reader of indexed entries whose accession ends with one of the specified mnemonics
+   */
+  private static FastaReader openTaxonomiesEntries(FastaIndex index, AccessionDictionary mnemos, int[] mnemoLengths) throws IOException {
+    logger.info(" Use index of " + index.fastaFile().getAbsolutePath());
+    byte[] key = new byte[64 * 1024];
+    ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+    int[] entries = index.select(i -> {
+      int length = index.copyKey(i, key);
+      for (int mnemoLength : mnemoLengths) {
+        if (mnemoLength <= length && mnemos.find(keyBuffer, length - mnemoLength, length) >= 0)
+          return true;
+      }
+      return false;
+    });
+    return index.openEntries(entries);
   }
 }
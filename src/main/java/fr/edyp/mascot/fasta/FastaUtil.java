@@ -6,33 +6,44 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import java.io.*;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FastaUtil {
 
   private final static Logger logger = LoggerFactory.getLogger(FastaUtil.class);
 
-  static final JCommander jCmd = new JCommander();
+  // MDC key choosing the console of the log (see logback.xml) : out, or err when the command writes its result to standard output
+  final static String LOG_CONSOLE = "console";
 
-  public static String parseCommand(String[] args) {
+  static String parseCommand(JCommander jCmd, String[] args) {
 
     try {
       jCmd.parse(args);
       String parsedCmd = jCmd.getParsedCommand();
-      if (parsedCmd == null) {
-        jCmd.usage();
-        System.exit(1);
-      }
+      if (parsedCmd == null)
+        throw new CommandExit(1);
+      Object command = jCmd.getCommands().get(parsedCmd).getObjects().get(0);
+      if (command instanceof CommandArguments.FastaFetchCommand && StringUtils.isEmpty(((CommandArguments.FastaFetchCommand) command).outputFile))
+        MDC.put(LOG_CONSOLE, "err");
       logger.info("Running " + parsedCmd + " command ...");
       return parsedCmd;
     } catch (MissingCommandException mce) {
       logger.warn("Invalid command specified ");
-      jCmd.usage();
-      System.exit(0);
+      throw new CommandExit(0);
     }
-    return "";
   }
 
 
@@ -46,240 +57,674 @@ public class FastaUtil {
    * @param fout specify output file to write new fasta file
    */
   public static void shortenAccession(File fin, File fout, String separator) throws IOException{
+    shortenAccession(fin, fout, separator, 1);
+  }
 
-    FileReader fr = new FileReader(fin);
-    FileWriter fw = new FileWriter(fout);
-    BufferedWriter writer = new BufferedWriter(fw);
-    BufferedReader br = new BufferedReader(fr);
-
-    HashSet<String> names = new HashSet<>();
-    String line;
-    while ((line = br.readLine()) != null) {
-      if (line.startsWith(">")) {
-        int index = line.indexOf(separator); //"_" ...
-        if (index != -1) {
-          String accession = line.substring(index + 1); //Get accession using separator
-          if (accession.length() > 50) {
-            index = accession.indexOf('/');
-            if (index != -1) {
-              accession = accession.substring(0, index);
-              if (accession.length() > 50) {
-                System.out.println("error too long " + accession);
-              }
-            } else {
-              index = accession.lastIndexOf('_');
-              if (index != -1) {
-                accession = accession.substring(0, index);
-                if (accession.length() > 50) {
-                  System.out.println("error too long " + accession);
-                }
-              } else {
-
-                System.out.println("error too long " + accession);
-              }
-            }
+  /**
+   * Same as {@link #shortenAccession(File, File, String)} using specified number of threads.
+   * Duplicate accessions are reported in file order whatever the number of threads.
+   */
+  public static void shortenAccession(File fin, File fout, String separator, int nbThreads) throws IOException{
 
-          }
-          if (names.contains(accession)) {
-            System.out.println("duplicate " + accession);
-          } else {
-            names.add(accession);
-          }
+    byte[] sep = FastaReader.toBytes(separator);
+    AccessionDictionary names = new AccessionDictionary();
+    FastaChunkProcessor.run(fin, fout, nbThreads, () -> shortenProcessor(sep, names));
+    logger.info(" ** Accession dictionary : " + names.size() + " entries using " + (names.memoryUsage() / (1024 * 1024)) + " MB");
+  }
 
-          accession = accession.replaceAll(",", "_");
-          accession = accession.replaceAll("\"", "_");
-          accession = accession.replaceAll("\'", "_");
+  /**
+   * @param sep separator the accession follows in headers
+   * @param names accessions already found, shared by the processors of a run
+   * @return processor shortening accessions of records, as {@link #shortenAccession(File, File, String)} does
+   */
+  static FastaChunkProcessor.RecordProcessor shortenProcessor(byte[] sep, AccessionDictionary names) {
+    return new FastaChunkProcessor.RecordProcessor() {
+      // accessions of the chunk, checked for duplicates in file order
+      byte[] accessions = new byte[64 * 1024];
+      int accessionsLength = 0;
+      int[] accessionEnds = new int[1024];
+      int nbAccessions = 0;
+
+      @Override
+      public void process(FastaReader reader, FastaWriter writer) throws IOException {
+        ByteBuffer buf = reader.buffer();
+        if (!reader.hasHeader()) {
+          writer.writeRecordLines(reader, reader.recordStart());
+          return;
+        }
 
-          writer.write(">");
-          writer.write(accession);
-          writer.write(" ");
-          writer.write(line.substring(1));
+        int headerStart = reader.recordStart();
+        int headerEnd = reader.headerEnd();
+        int index = FastaReader.indexOf(buf, sep, headerStart, headerEnd); //"_" ...
+        if (index != -1) {
+          int accStart = index + sep.length; //Get accession using separator
+          int accEnd = shortAccessionEnd(buf, accStart, headerEnd);
+          addAccession(buf, accStart, accEnd);
+
+          writer.write('>');
+          for (int i = accStart; i < accEnd; i++)
+            writer.write(cleanAccessionChar(buf.get(i)));
+          writer.write(' ');
+          writer.write(buf, headerStart + 1, headerEnd);
           writer.write('\n');
         } else {
-          writer.write(line);
+          writer.write(buf, headerStart, headerEnd);
           writer.write('\n');
         }
-      } else {
-        writer.write(line);
-        writer.write('\n');
+        writer.writeRecordLines(reader, reader.sequenceStart());
       }
-    }
-    writer.flush();
-    fr.close();
-    fw.close();
 
-  }
+      private void addAccession(ByteBuffer buf, int from, int to) {
+        if (accessionsLength + to - from > accessions.length)
+          accessions = Arrays.copyOf(accessions, Math.max(accessions.length * 2, accessionsLength + to - from));
+        if (nbAccessions == accessionEnds.length)
+          accessionEnds = Arrays.copyOf(accessionEnds, nbAccessions * 2);
+        buf.get(from, accessions, accessionsLength, to - from);
+        accessionsLength += to - from;
+        accessionEnds[nbAccessions++] = accessionsLength;
+      }
 
-  public static void removeEmptyEntries(File fin, File fout) throws IOException{
+      @Override
+      public void chunkDone() {
+        int start = 0;
+        for (int i = 0; i < nbAccessions; i++) {
+          int end = accessionEnds[i];
+          if (names.add(accessions, start, end) < 0) {
+            System.out.println("duplicate " + new String(accessions, start, end - start, StandardCharsets.ISO_8859_1));
+          }
+          start = end;
+        }
+      }
+    };
+  }
 
-    FileReader fr = new FileReader(fin);
-    FileWriter fw = new FileWriter(fout);
-    BufferedWriter writer = new BufferedWriter(fw);
-    BufferedReader br = new BufferedReader(fr);
-
-    String prevEntry = "";
-    boolean correctEntry = false;
-    String line;
-    int nbIncorrect =0;
-    while ((line = br.readLine()) != null) {
-      if (line.startsWith(">")) {
-        if(StringUtils.isNotEmpty(prevEntry)) {
-          // 2 entries witout seq...
-          logger.info("Entry " +prevEntry + " has no sequence. It will not be written to output file");
-          nbIncorrect++;
+  /**
+   * Accession found after separator in header is cut using '/' or '_' if its length is > 50 char.
+   *
+   * @param accStart start of the accession, just after separator
+   * @param headerEnd end of the header line
+   * @return end of the shortened accession
+   */
+  static int shortAccessionEnd(ByteBuffer buf, int accStart, int headerEnd) {
+    int accEnd = headerEnd;
+    if (accEnd - accStart > 50) {
+      int index = FastaReader.indexOf(buf, (byte) '/', accStart, accEnd);
+      if (index != -1) {
+        accEnd = index;
+        if (accEnd - accStart > 50) {
+          System.out.println("error too long " + FastaReader.toString(buf, accStart, accEnd));
         }
-        prevEntry = line;
-        correctEntry = false; //suppose incorrect entry
       } else {
-        //sequence line. If prevEntry not empty, first sequence line. Verify it is correct
-        if(StringUtils.isNotEmpty(prevEntry)) { //first seq line
-          if(StringUtils.isNotEmpty(line)) {
-            correctEntry = true;
-            writer.write(prevEntry);
-            writer.write('\n');
-            prevEntry = ""; //reset entry
+        index = FastaReader.lastIndexOf(buf, (byte) '_', accStart, accEnd);
+        if (index != -1) {
+          accEnd = index;
+          if (accEnd - accStart > 50) {
+            System.out.println("error too long " + FastaReader.toString(buf, accStart, accEnd));
           }
-        }
-        if(correctEntry) {
-          //write sequence
-          writer.write(line); //write sequence
-          writer.write('\n');
+        } else {
+
+          System.out.println("error too long " + FastaReader.toString(buf, accStart, accEnd));
         }
       }
+
     }
+    return accEnd;
+  }
+
+  /**
+   * @return '_' for chars which should not be used in shortened accession : , or " or '
+   */
+  static byte cleanAccessionChar(byte b) {
+    return (b == ',' || b == '"' || b == '\'') ? (byte) '_' : b;
+  }
+
+  public static void removeEmptyEntries(File fin, File fout) throws IOException{
+    removeEmptyEntries(fin, fout, 1);
+  }
+
+  /**
+   * Write all entries of fin which have a sequence into fout. Empty lines before the sequence are removed.
+   *
+   * @param nbThreads number of threads to use to process fin
+   */
+  public static void removeEmptyEntries(File fin, File fout, int nbThreads) throws IOException{
+
+    AtomicInteger nbIncorrect = new AtomicInteger();
+    FastaChunkProcessor.run(fin, fout, nbThreads, () -> (reader, writer) -> {
+      if (!reader.hasHeader())
+        return; // no entry defined for these lines
+
+      ByteBuffer buf = reader.buffer();
+      int seqStart = firstNotEmptyLine(buf, reader.sequenceStart(), reader.recordEnd());
+      if (seqStart < 0) {
+        logger.info("Entry " + FastaReader.toString(buf, reader.recordStart(), reader.headerEnd()) + " has no sequence. It will not be written to output file");
+        nbIncorrect.incrementAndGet();
+        return;
+      }
+      if (seqStart == reader.sequenceStart()) {
+        // entry is kept unchanged
+        writer.writeRecordLines(reader, reader.recordStart());
+        return;
+      }
+      writer.write(buf, reader.recordStart(), reader.headerEnd());
+      writer.write('\n');
+      writer.writeRecordLines(reader, seqStart);
+    });
     logger.info("Found  " +nbIncorrect + " empty entries.");
-    writer.flush();
-    fr.close();
-    fw.close();
 
   }
 
+  /**
+   * @return start index of the first line which is not empty in range [from, to[, -1 if all lines are empty
+   */
+  static int firstNotEmptyLine(ByteBuffer buf, int from, int to) {
+    int lineStart = from;
+    for (int i = from; i < to; i++) {
+      byte b = buf.get(i);
+      if (b == '\n') {
+        lineStart = i + 1;
+      } else if (b != '\r' || (i + 1 < to && buf.get(i + 1) != '\n')) {
+        return lineStart;
+      }
+    }
+    return -1;
+  }
+
   public static void main(String[] args) {
+    int status = run(args);
+    if (status != 0)
+      System.exit(status);
+  }
+
+  /**
+   * Run the command line args in the current JVM : used by main and by the serve mode, where several command lines may
+   * be run at the same time.
+   *
+   * @return exit status of the command : 0 on success
+   */
+  public static int run(String[] args) {
+    JCommander jCmd = new JCommander();
     CommandArguments.FastaDBUsageCommand fastaDBUsageCommand = new CommandArguments.FastaDBUsageCommand();
+    CommandArguments.QueryLogCommand queryLogCommand = new CommandArguments.QueryLogCommand();
     CommandArguments.FastaShortenAccCommand fastaShortenCommand = new CommandArguments.FastaShortenAccCommand();
     CommandArguments.FastaCompareDuplicateCommand fastaCmpDupCommand = new CommandArguments.FastaCompareDuplicateCommand();
     CommandArguments.FastaReplaceDuplicateCommand fastaReplaceDupCommand = new CommandArguments.FastaReplaceDuplicateCommand();
+    CommandArguments.FastaCollapseSequencesCommand fastaCollapseCommand = new CommandArguments.FastaCollapseSequencesCommand();
+    CommandArguments.FastaStatsCommand fastaStatsCommand = new CommandArguments.FastaStatsCommand();
     CommandArguments.FastaExtractTaxoCommand fastaExtractTaxoCommand = new CommandArguments.FastaExtractTaxoCommand();
     CommandArguments.FastaRemoveEmptyCommand fastaRemoveEmptyCommand = new CommandArguments.FastaRemoveEmptyCommand();
+    CommandArguments.FastaPipelineCommand fastaPipelineCommand = new CommandArguments.FastaPipelineCommand();
+    CommandArguments.FastaIndexCommand fastaIndexCommand = new CommandArguments.FastaIndexCommand();
+    CommandArguments.FastaFetchCommand fastaFetchCommand = new CommandArguments.FastaFetchCommand();
+    CommandArguments.GenerateCommand generateCommand = new CommandArguments.GenerateCommand();
+    CommandArguments.ScaleTestCommand scaleTestCommand = new CommandArguments.ScaleTestCommand();
+    CommandArguments.ServeCommand serveCommand = new CommandArguments.ServeCommand();
 
     jCmd.addCommand(fastaDBUsageCommand);
+    jCmd.addCommand(queryLogCommand);
     jCmd.addCommand(fastaShortenCommand);
     jCmd.addCommand(fastaCmpDupCommand);
     jCmd.addCommand(fastaReplaceDupCommand);
+    jCmd.addCommand(fastaCollapseCommand);
+    jCmd.addCommand(fastaStatsCommand);
     jCmd.addCommand(fastaExtractTaxoCommand);
     jCmd.addCommand(fastaRemoveEmptyCommand);
-
+    jCmd.addCommand(fastaPipelineCommand);
+    jCmd.addCommand(fastaIndexCommand);
+    jCmd.addCommand(fastaFetchCommand);
+    jCmd.addCommand(generateCommand);
+    jCmd.addCommand(scaleTestCommand);
+    jCmd.addCommand(serveCommand);
+
+    CommandArguments.InstrumentedCommand instrumented = null;
     try {
-      String parsedCmd = parseCommand(args);
+      String parsedCmd = parseCommand(jCmd, args);
+      Object command = jCmd.getCommands().get(parsedCmd).getObjects().get(0);
+      if (command instanceof CommandArguments.InstrumentedCommand) {
+        instrumented = (CommandArguments.InstrumentedCommand) command;
+        Metrics.start(parsedCmd, instrumented.progressInterval);
+      }
       switch (parsedCmd) {
         case CommandArguments.DB_USAGE_COMMAND: {
           if (fastaDBUsageCommand.help) {
-            jCmd.usage();
-            System.exit(0);
+            throw new CommandExit(0);
           }
 
           DBUsageLog dbUsage = new DBUsageLog(fastaDBUsageCommand.searchesLogPath, fastaDBUsageCommand.mascotDatPath);
-          dbUsage.printFastaDBInfo(fastaDBUsageCommand.dbName, fastaDBUsageCommand.outputFile, fastaDBUsageCommand.all);
+          dbUsage.setNbThreads(fastaDBUsageCommand.threads);
+          File stateFile = StringUtils.isNotEmpty(fastaDBUsageCommand.stateFile) ? new File(fastaDBUsageCommand.stateFile) : null;
+          if (fastaDBUsageCommand.follow)
+            dbUsage.followFastaDBInfo(fastaDBUsageCommand.dbName, fastaDBUsageCommand.outputFile, fastaDBUsageCommand.all, stateFile,
+              fastaDBUsageCommand.counts, Math.max(1, fastaDBUsageCommand.interval), fastaDBUsageCommand.httpPort);
+          else
+            dbUsage.printFastaDBInfo(fastaDBUsageCommand.dbName, fastaDBUsageCommand.outputFile, fastaDBUsageCommand.all, stateFile, fastaDBUsageCommand.counts);
           break;
         }
 
-        case CommandArguments.SHORTEN_COMMAND: {
-          if (fastaShortenCommand.help) {
-            jCmd.usage();
-            System.exit(0);
+        case CommandArguments.QUERY_LOG_COMMAND: {
+          if (queryLogCommand.help) {
+            throw new CommandExit(0);
           }
+          File snapshotFile = StringUtils.isNotEmpty(queryLogCommand.snapshotFile) ? new File(queryLogCommand.snapshotFile) : null;
+          SearchesLogStore store = SearchesLogStore.read(new File(queryLogCommand.searchesLogPath), snapshotFile, queryLogCommand.threads);
+          SearchesLogStore.Filter filter = new SearchesLogStore.Filter();
+          filter.setDbNames(queryLogCommand.dbNames);
+          filter.setUsers(queryLogCommand.users);
+          filter.setStatuses(queryLogCommand.statuses);
+          filter.setTypes(queryLogCommand.types);
+          filter.setEnzymes(queryLogCommand.enzymes);
+          filter.setPeriod(StringUtils.isNotEmpty(queryLogCommand.from) ? LocalDate.parse(queryLogCommand.from) : null,
+            StringUtils.isNotEmpty(queryLogCommand.to) ? LocalDate.parse(queryLogCommand.to) : null);
+          List<String> groupBy = StringUtils.isBlank(queryLogCommand.groupBy) ? List.of() : Arrays.asList(queryLogCommand.groupBy.trim().split("\\s*,\\s*"));
+          store.printQuery(filter, groupBy, queryLogCommand.durations, queryLogCommand.outputFile);
+          break;
+        }
 
-          File fIn = new File(fastaShortenCommand.inputFile);
-          if (!fIn.exists()) {
-            logger.error("Can't find specified file " + fIn.getAbsolutePath());
-            jCmd.usage();
-            System.exit(1);
+        case CommandArguments.SHORTEN_COMMAND: {
+          if (fastaShortenCommand.help) {
+            throw new CommandExit(0);
           }
 
-          File fOut =  createFileWithSuffix(fIn, "short" );
-
-          FastaUtil.shortenAccession(fIn, fOut, "_");
+          runOnFiles(fastaShortenCommand, fastaShortenCommand.inputFile, fIn -> {
+            File fOut =  createFileWithSuffix(fIn, "short" );
+            FastaUtil.shortenAccession(fIn, fOut, "_", fastaShortenCommand.threads);
+          });
           break;
         }
 
         case CommandArguments.REMOVE_EMPTY_COMMAND: {
           if (fastaRemoveEmptyCommand.help) {
-            jCmd.usage();
-            System.exit(0);
-          }
-
-          File fIn = new File(fastaRemoveEmptyCommand.inputFile);
-          if (!fIn.exists()) {
-            logger.error("Can't find specified file " + fIn.getAbsolutePath());
-            jCmd.usage();
-            System.exit(1);
+            throw new CommandExit(0);
           }
 
-          File fOut =  createFileWithSuffix(fIn, "clean" );
-          FastaUtil.removeEmptyEntries(fIn, fOut);
+          runOnFiles(fastaRemoveEmptyCommand, fastaRemoveEmptyCommand.inputFile, fIn -> {
+            File fOut =  createFileWithSuffix(fIn, "clean" );
+            FastaUtil.removeEmptyEntries(fIn, fOut, fastaRemoveEmptyCommand.threads);
+          });
           break;
         }
 
 
         case CommandArguments.DUPLICATE_CMP_COMMAND: {
           if (fastaCmpDupCommand.help) {
-            jCmd.usage();
-            System.exit(0);
+            throw new CommandExit(0);
           }
 
-          File fIn = new File(fastaCmpDupCommand.inputFile);
-          if (!fIn.exists()) {
-            logger.error("Can't find specified file " + fIn.getAbsolutePath());
-            jCmd.usage();
-            System.exit(1);
-          }
-
-          FastaDuplicateManager.compareDuplicateInFasta(fIn, " ");
+          HeaderFormat format = HeaderFormat.of(fastaCmpDupCommand.headerFormat);
+          runOnFiles(fastaCmpDupCommand, fastaCmpDupCommand.inputFile, fIn -> {
+            // with an index, only duplicated entries are kept in memory
+            if (fastaCmpDupCommand.maxMemory > 0 && !FastaIndex.isUsable(fIn, format))
+              ExternalDuplicateManager.compareDuplicateInFasta(fIn, format, fastaCmpDupCommand.maxMemory * 1024 * 1024, getTmpDir(fastaCmpDupCommand.tmpDir));
+            else if (fastaCmpDupCommand.bloom && !FastaIndex.isUsable(fIn, format))
+              BloomDuplicateManager.compareDuplicateInFasta(fIn, format);
+            else
+              FastaDuplicateManager.compareDuplicateInFasta(fIn, format);
+          });
           break;
         }
 
         case CommandArguments.DUPLICATE_REPLACE_COMMAND: {
           if (fastaReplaceDupCommand.help) {
-            jCmd.usage();
-            System.exit(0);
-          }
-          File fIn = new File(fastaReplaceDupCommand.inputFile);
-          File fOut = new File(fastaReplaceDupCommand.outputFile);
-          if (!fIn.exists()) {
-            logger.error("Can't find specified file " + fIn.getAbsolutePath());
-            jCmd.usage();
-            System.exit(1);
+            throw new CommandExit(0);
           }
+          HeaderFormat format = HeaderFormat.of(fastaReplaceDupCommand.headerFormat);
+          runOnFiles(fastaReplaceDupCommand, fastaReplaceDupCommand.inputFile, fIn -> {
+            File fOut = getOutputFile(fastaReplaceDupCommand, fastaReplaceDupCommand.outputFile, fIn);
+            if (fOut.exists())
+              throw new IOException(" !!! Output file already exist. Can't run replace duplicate from " + fIn.getAbsolutePath());
+
+            if (fastaReplaceDupCommand.maxMemory > 0)
+              ExternalDuplicateManager.removeDuplicateInFasta(fIn, fOut, format, fastaReplaceDupCommand.maxMemory * 1024 * 1024, getTmpDir(fastaReplaceDupCommand.tmpDir));
+            else if (fastaReplaceDupCommand.bloom)
+              BloomDuplicateManager.removeDuplicateInFasta(fIn, fOut, format);
+            else
+              FastaDuplicateManager.removeDuplicateInFasta(fIn, fOut, format);
+          });
+          break;
+        }
 
-          if (!fOut.exists()) {
-            logger.error(" !!! Output file already exist. Can't run replace duplicate from" + fIn.getAbsolutePath());
-            System.exit(1);
+        case CommandArguments.COLLAPSE_SEQUENCES_COMMAND: {
+          if (fastaCollapseCommand.help) {
+            throw new CommandExit(0);
           }
+          HeaderFormat format = HeaderFormat.of(fastaCollapseCommand.headerFormat);
+          runOnFiles(fastaCollapseCommand, fastaCollapseCommand.inputFile, fIn -> {
+            File fOut = getOutputFile(fastaCollapseCommand, fastaCollapseCommand.outputFile, fIn);
+            if (fOut.exists())
+              throw new IOException(" !!! Output file already exist. Can't collapse sequences of " + fIn.getAbsolutePath());
+            SequenceCollapser collapser = new SequenceCollapser(Math.max(1, fastaCollapseCommand.maxMemory) * 1024 * 1024, getTmpDir(fastaCollapseCommand.tmpDir));
+            collapser.setMappingFile(fastaCollapseCommand.mapping);
+            collapser.setVerify(fastaCollapseCommand.verify);
+            collapser.setHeaderFormat(format);
+            collapser.collapse(fIn, fOut);
+          });
+          break;
+        }
 
-          FastaDuplicateManager.compareDuplicateInFasta(fIn, " ");
+        case CommandArguments.FASTA_STATS_COMMAND: {
+          if (fastaStatsCommand.help) {
+            throw new CommandExit(0);
+          }
+          HeaderFormat format = HeaderFormat.of(fastaStatsCommand.headerFormat);
+          runOnFiles(fastaStatsCommand, fastaStatsCommand.inputFile, fIn -> {
+            File jsonFile = null;
+            if (StringUtils.isNotEmpty(fastaStatsCommand.jsonFile)) {
+              jsonFile = getOutputFile(fastaStatsCommand, fastaStatsCommand.jsonFile, fIn);
+              if (StringUtils.isNotEmpty(fastaStatsCommand.inputDir))
+                jsonFile = new File(jsonFile.getPath() + ".stats.json");
+            }
+            FastaStats stats = new FastaStats(fastaStatsCommand.threads, fastaStatsCommand.vector);
+            stats.setCheckDuplicates(!fastaStatsCommand.skipDuplicates);
+            stats.setHeaderFormat(format);
+            stats.compute(fIn, jsonFile);
+          });
           break;
         }
 
         case CommandArguments.EXTRACT_TAXO_COMMAND: {
           if (fastaExtractTaxoCommand.help) {
-            jCmd.usage();
-            System.exit(0);
+            throw new CommandExit(0);
+          }
+          List<String> taxoMnemos = getTaxoMnemos(fastaExtractTaxoCommand);
+          List<Integer> taxids = getTaxids(fastaExtractTaxoCommand);
+          if (taxoMnemos.isEmpty() == taxids.isEmpty()) {
+            logger.error(taxids.isEmpty() ? "At least one taxonomy mnemonic should be specified using -t or --taxo-file, or a clade using --taxid"
+              : "Taxonomy mnemonics (-t or --taxo-file) and clades (--taxid) can't be extracted together");
+            throw new CommandExit(1);
           }
-          File fIn = new File(fastaExtractTaxoCommand.inputFile);
-          String outFileName =fastaExtractTaxoCommand.outputFile;
-          File fOut = (StringUtils.isNotEmpty(outFileName)) ? new File(fIn.getParentFile(), outFileName) : createFileWithSuffix(fIn,fastaExtractTaxoCommand.taxoMnemo );
-          FastaTaxoUtil.extractTaxonomy(fIn,fOut,fastaExtractTaxoCommand.taxoMnemo);
+          boolean batch = StringUtils.isNotEmpty(fastaExtractTaxoCommand.inputDir);
+          if (batch && StringUtils.isNotEmpty(fastaExtractTaxoCommand.outputFile)) {
+            logger.error("-o can't be used with --input-dir : use --out-dir to specify the directory of result files");
+            throw new CommandExit(1);
+          }
+          HeaderFormat format = HeaderFormat.of(fastaExtractTaxoCommand.headerFormat);
+          TaxonomyTree tree = taxids.isEmpty() ? null : loadTaxonomyTree(fastaExtractTaxoCommand, taxids);
+          runOnFiles(fastaExtractTaxoCommand, fastaExtractTaxoCommand.inputFile, fIn -> {
+            File outDir = StringUtils.isNotEmpty(fastaExtractTaxoCommand.outputDir) ? new File(fastaExtractTaxoCommand.outputDir) : fIn.getAbsoluteFile().getParentFile();
+            if (tree != null) {
+              String outFileName = fastaExtractTaxoCommand.outputFile;
+              Map<Integer, File> fOutByTaxid = new LinkedHashMap<>();
+              for (int taxid : taxids) {
+                File fOut = createFileWithSuffix(fIn, "txid" + taxid);
+                if (taxids.size() == 1 && StringUtils.isNotEmpty(outFileName))
+                  fOut = new File(fIn.getParentFile(), outFileName);
+                else if (batch || taxids.size() > 1)
+                  fOut = new File(outDir, fOut.getName());
+                fOutByTaxid.put(taxid, fOut);
+              }
+              FastaTaxoUtil.extractClades(fIn, fOutByTaxid, tree, format);
+            } else if (taxoMnemos.size() == 1) {
+              String taxoMnemo = taxoMnemos.get(0);
+              String outFileName = fastaExtractTaxoCommand.outputFile;
+              File fOut = (StringUtils.isNotEmpty(outFileName)) ? new File(fIn.getParentFile(), outFileName)
+                : batch ? new File(outDir, createFileWithSuffix(fIn, taxoMnemo).getName()) : createFileWithSuffix(fIn, taxoMnemo);
+              FastaTaxoUtil.extractTaxonomy(fIn, fOut, taxoMnemo, format, fastaExtractTaxoCommand.threads);
+            } else {
+              Map<String, File> fOutByMnemo = new LinkedHashMap<>();
+              for (String taxoMnemo : taxoMnemos) {
+                File fOut = new File(outDir, createFileWithSuffix(fIn, StringUtils.removeStart(taxoMnemo, "_")).getName());
+                if (fOutByMnemo.containsValue(fOut))
+                  logger.warn(" !!! Taxonomy " + taxoMnemo + " ignored : it would be saved in the file of another one, " + fOut.getName());
+                else
+                  fOutByMnemo.put(taxoMnemo, fOut);
+              }
+              FastaTaxoUtil.extractTaxonomies(fIn, fOutByMnemo, format);
+            }
+          });
+          break;
+        }
+
+        case CommandArguments.PIPELINE_COMMAND: {
+          if (fastaPipelineCommand.help) {
+            throw new CommandExit(0);
+          }
+          HeaderFormat format = HeaderFormat.of(fastaPipelineCommand.headerFormat);
+          runOnFiles(fastaPipelineCommand, fastaPipelineCommand.inputFile,
+            fIn -> FastaPipeline.run(fIn, getOutputFile(fastaPipelineCommand, fastaPipelineCommand.outputFile, fIn), fastaPipelineCommand.steps, format));
+          break;
+        }
+
+        case CommandArguments.INDEX_COMMAND: {
+          if (fastaIndexCommand.help) {
+            throw new CommandExit(0);
+          }
+          File tmpDir = getTmpDir(fastaIndexCommand.tmpDir);
+          runOnFiles(fastaIndexCommand, fastaIndexCommand.inputFile,
+            fIn -> FastaIndex.create(fIn, Math.max(1, fastaIndexCommand.maxMemory) * 1024 * 1024, tmpDir));
+          break;
+        }
+
+        case CommandArguments.FETCH_COMMAND: {
+          if (fastaFetchCommand.help) {
+            throw new CommandExit(0);
+          }
+          File fIn = new File(fastaFetchCommand.inputFile);
+          List<String> accessions = readValues(fastaFetchCommand.accessions, fastaFetchCommand.accessionFile);
+          if (!fIn.exists() || accessions.isEmpty()) {
+            logger.error(!fIn.exists() ? "Can't find specified file " + fIn.getAbsolutePath() : "At least one accession should be specified using -a or --acc-file");
+            throw new CommandExit(1);
+          }
+          boolean toFile = StringUtils.isNotEmpty(fastaFetchCommand.outputFile);
+          FastaWriter writer = toFile ? new FastaWriter(new File(fastaFetchCommand.outputFile)) : new FastaWriter(System.out, 64 * 1024);
+          try {
+            FastaIndex.fetch(fIn, accessions, writer);
+          } finally {
+            if (toFile)
+              writer.close();
+            else
+              writer.flush(); // keep standard output open
+          }
+          break;
+        }
+
+        case CommandArguments.GENERATE_COMMAND: {
+          if (generateCommand.help) {
+            throw new CommandExit(0);
+          }
+          SyntheticData generator = createGenerator(generateCommand.dataOptions);
+          File outDir = new File(generateCommand.outputDir);
+          boolean bySize = StringUtils.isNotEmpty(generateCommand.size);
+          long nbEntries = generator.writeFiles(outDir, bySize ? Long.MAX_VALUE : generateCommand.nbEntries,
+            bySize ? SyntheticData.parseSize(generateCommand.size) : 0, generateCommand.nbLogLines);
+          logger.info("Generated " + nbEntries + " fasta entries and " + generateCommand.nbLogLines + " searches log lines in " + outDir.getAbsolutePath());
+          break;
+        }
+
+        case CommandArguments.SCALE_TEST_COMMAND: {
+          if (scaleTestCommand.help) {
+            throw new CommandExit(0);
+          }
+          CommandArguments.SyntheticDataOptions options = scaleTestCommand.dataOptions;
+          String parameters = "seed=" + options.seed + " duplicate-rate=" + options.duplicateRate + " empty-rate=" + options.emptyRate
+            + " taxo-mix=" + options.taxoMix + " acc-length=" + options.accessionLength;
+          List<String> jvmOptions = StringUtils.isBlank(scaleTestCommand.jvmOptions) ? List.of() : Arrays.asList(scaleTestCommand.jvmOptions.trim().split("\\s+"));
+          ScaleTest scaleTest = new ScaleTest(createGenerator(options), parameters, Math.max(1, scaleTestCommand.threads), jvmOptions);
+          scaleTest.run(new File(scaleTestCommand.workDir), scaleTestCommand.sizes, scaleTestCommand.nbLogLines, scaleTestCommand.commands);
+          break;
+        }
+
+        case CommandArguments.SERVE_COMMAND: {
+          if (serveCommand.help) {
+            throw new CommandExit(0);
+          }
+          Path socket = StringUtils.isNotEmpty(serveCommand.socketPath) ? Path.of(serveCommand.socketPath) : ServeClient.defaultSocket();
+          new FastaServer(socket, serveCommand.threads).run();
+          break;
         }
       }
+      if (instrumented != null)
+        Metrics.end(metricsFile(instrumented), true);
+      return 0;
+    } catch (CommandExit e) {
+      if (instrumented != null)
+        Metrics.cancel();
+      jCmd.usage();
+      return e.status;
     } catch(Exception e) {
       logger.error("Error in FastaUtil: "+e.getMessage(), e);
-      jCmd.usage();
-      System.exit(1);
+      if (instrumented != null)
+        Metrics.end(metricsFile(instrumented), false);
+      // results of each file were already logged
+      if (!(e instanceof BatchRunner.BatchException))
+        jCmd.usage();
+      return 1;
+    } finally {
+      MDC.remove(LOG_CONSOLE);
+    }
+  }
+
+  /**
+   * Thrown to stop the command and print usage, as help was asked or options are invalid
+   */
+  private static class CommandExit extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    CommandExit(int status) {
+      super(null, null, false, false);
+      this.status = status;
     }
   }
 
+  /**
+   * Run task on the -i input file of the command or, with --input-dir, on each file of the directory matching --glob.
+   * In the latter case, a failure on one file doesn't stop the other ones.
+   */
+  private static void runOnFiles(CommandArguments.BatchCommand command, String inputFile, BatchRunner.FileTask task) throws Exception {
+    if (StringUtils.isEmpty(command.inputDir)) {
+      File fIn = new File(StringUtils.defaultString(inputFile));
+      if (!fIn.exists()) {
+        logger.error(StringUtils.isEmpty(inputFile) ? "Input file should be specified using -i or --input-dir" : "Can't find specified file " + fIn.getAbsolutePath());
+        throw new CommandExit(1);
+      }
+      task.run(fIn);
+      return;
+    }
+
+    if (StringUtils.isNotEmpty(inputFile)) {
+      logger.error("-i and --input-dir can't be used together");
+      throw new CommandExit(1);
+    }
+    File inputDir = new File(command.inputDir);
+    List<File> files = BatchRunner.listFiles(inputDir, command.glob);
+    if (files.isEmpty()) {
+      logger.warn("No file matching " + command.glob + " in " + inputDir.getAbsolutePath());
+      return;
+    }
+    Metrics.startBatch(files.size(), files.stream().mapToLong(File::length).sum());
+    List<BatchRunner.FileResult> results = new BatchRunner(command.parallelFiles, command.filesPerDisk).run(files, task);
+    int nbFailed = BatchRunner.summarize(results, StringUtils.isNotEmpty(command.summaryFile) ? new File(command.summaryFile) : null);
+    if (nbFailed > 0)
+      throw new BatchRunner.BatchException(nbFailed + " of " + files.size() + " files failed");
+  }
+
+  /**
+   * @return the -o output file or, with --input-dir, the file of the -o directory with the same path as fIn in the input directory
+   */
+  private static File getOutputFile(CommandArguments.BatchCommand command, String output, File fIn) throws IOException {
+    if (StringUtils.isEmpty(output))
+      throw new IllegalArgumentException("Output file should be specified using -o");
+    if (StringUtils.isEmpty(command.inputDir))
+      return new File(output);
+    File outDir = new File(output);
+    if (!outDir.isDirectory())
+      throw new IOException("Output directory " + outDir.getAbsolutePath() + " doesn't exist");
+    Path inputDir = new File(command.inputDir).getCanonicalFile().toPath();
+    Path relativePath = inputDir.relativize(fIn.getCanonicalFile().toPath());
+    File fOut = new File(outDir, relativePath.toString());
+    if (fOut.getCanonicalFile().equals(fIn.getCanonicalFile()))
+      throw new IOException("Output directory should not be the input directory");
+    Files.createDirectories(fOut.getAbsoluteFile().getParentFile().toPath());
+    return fOut;
+  }
+
+  private static File metricsFile(CommandArguments.InstrumentedCommand command) {
+    return StringUtils.isNotEmpty(command.metricsFile) ? new File(command.metricsFile) : null;
+  }
+
+  private static SyntheticData createGenerator(CommandArguments.SyntheticDataOptions options) {
+    SyntheticData generator = new SyntheticData(options.seed);
+    generator.setDuplicateRate(options.duplicateRate);
+    generator.setEmptyRate(options.emptyRate);
+    generator.setTaxoMix(options.taxoMix);
+    generator.setAccessionLength(options.accessionLength);
+    return generator;
+  }
+
+  private static List<String> getTaxoMnemos(CommandArguments.FastaExtractTaxoCommand command) throws IOException {
+    return readValues(command.taxoMnemos, command.taxoFile);
+  }
+
+  private static List<Integer> getTaxids(CommandArguments.FastaExtractTaxoCommand command) {
+    List<Integer> taxids = new ArrayList<>();
+    if (command.taxids != null) {
+      for (String taxid : command.taxids) {
+        try {
+          if (!taxids.contains(Integer.parseInt(taxid.trim())))
+            taxids.add(Integer.parseInt(taxid.trim()));
+        } catch (NumberFormatException e) {
+          logger.error("Invalid taxid " + taxid + " : NCBI taxonomy ids are numbers, as 9606");
+          throw new CommandExit(1);
+        }
+      }
+    }
+    return taxids;
+  }
+
+  /**
+   * @return taxonomy tree of the --nodes file, which should contain all taxids
+   */
+  private static TaxonomyTree loadTaxonomyTree(CommandArguments.FastaExtractTaxoCommand command, List<Integer> taxids) throws IOException {
+    if (StringUtils.isEmpty(command.nodesFile) || !new File(command.nodesFile).exists()) {
+      logger.error(StringUtils.isEmpty(command.nodesFile) ? "nodes.dmp file of NCBI taxonomy should be specified using --nodes to extract clades"
+        : "Can't find specified file " + new File(command.nodesFile).getAbsolutePath());
+      throw new CommandExit(1);
+    }
+    TaxonomyTree tree = TaxonomyTree.load(new File(command.nodesFile));
+    for (int taxid : taxids) {
+      if (!tree.contains(taxid)) {
+        logger.error("Taxid " + taxid + " is not in " + command.nodesFile);
+        throw new CommandExit(1);
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * @return values given on command line followed by values read from file (one per line), without duplicates
+   */
+  private static List<String> readValues(List<String> values, String valuesFile) throws IOException {
+    List<String> allValues = new ArrayList<>();
+    if (values != null)
+      allValues.addAll(values);
+    if (StringUtils.isNotEmpty(valuesFile)) {
+      try (BufferedReader br = new BufferedReader(new FileReader(valuesFile))) {
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (StringUtils.isNotBlank(line))
+            allValues.add(line.trim());
+        }
+      }
+    }
+    return allValues.stream().map(String::trim).filter(StringUtils::isNotEmpty).distinct().toList();
+  }
+
+  private static File getTmpDir(String tmpDirPath) {
+    if (StringUtils.isEmpty(tmpDirPath))
+      return null;
+    File tmpDir = new File(tmpDirPath);
+    if (!tmpDir.isDirectory())
+      throw new IllegalArgumentException("Temporary directory " + tmpDir.getAbsolutePath() + " doesn't exist");
+    return tmpDir;
+  }
+
   private static File
   createFileWithSuffix(File sourceFile, String suffix){
-    return new File(sourceFile.getParentFile(), FilenameUtils.getBaseName(sourceFile.getName()) + "_" + suffix+"."+  FilenameUtils.getExtension(sourceFile.getName()));
+    //keep compressed files compressed : suffix is added before .fasta.gz
+    String name = sourceFile.getName();
+    String gzExtension = FastaIO.isCompressedName(sourceFile) ? name.substring(name.length() - FastaIO.GZIP_EXTENSION.length()) : "";
+    name = name.substring(0, name.length() - gzExtension.length());
+    return new File(sourceFile.getParentFile(), FilenameUtils.getBaseName(name) + "_" + suffix+"."+  FilenameUtils.getExtension(name) + gzExtension);
   }
 }
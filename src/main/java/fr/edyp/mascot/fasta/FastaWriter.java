@@ -0,0 +1,269 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered byte writer for fasta files. Bytes may be copied directly from a {@link FastaReader} buffer.
+ * Line separator is always written as \n. Files whose name ends with .gz are compressed (see {@link FastaIO}).
+ *
+ * Lines of a plain input file written unchanged by {@link #writeRecordLines(FastaReader, int)} or {@link #copy(File, long, long)}
+ * are not copied at once : consecutive ones are merged into a single region, which is copied from file to file by the
+ * system (FileChannel.transferTo) when large enough and when writing to a plain file (or kept as a reference by a
+ * {@link RegionOutput}).
+ */
+public class FastaWriter implements Closeable {
+
+  private final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+  // smaller regions are copied through the buffer
+  private final static int TRANSFER_MIN_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+  // channel of a plain output file, null otherwise
+  private FileChannel outChannel;
+  private final byte[] buf;
+  private int count;
+  private long bytesWritten;
+  // bytes written to files are reported to metrics
+  private boolean reportMetrics;
+
+  // unchanged bytes not yet written : copyLength bytes at copyOffset in copyFile, also found from copyFrom in copyBuffer if not null
+  private File copyFile;
+  private long copyOffset;
+  private long copyLength;
+  private ByteBuffer copyBuffer;
+  private int copyFrom;
+  private File sourceFile;
+  private FileChannel sourceChannel;
+
+  public FastaWriter(File fasta) throws IOException {
+    this(fasta, DEFAULT_BUFFER_SIZE);
+  }
+
+  public FastaWriter(File fasta, int bufferSize) throws IOException {
+    this(FastaIO.openOutput(fasta), bufferSize);
+    reportMetrics = true;
+    if (out instanceof FileOutputStream)
+      outChannel = ((FileOutputStream) out).getChannel();
+  }
+
+  public FastaWriter(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.buf = new byte[bufferSize];
+  }
+
+  public void write(int b) throws IOException {
+    if (copyFile != null)
+      flushCopy();
+    if (count == buf.length)
+      flushBuffer();
+    buf[count++] = (byte) b;
+  }
+
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, 0, bytes.length);
+  }
+
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    if (copyFile != null)
+      flushCopy();
+    if (len > buf.length - count) {
+      flushBuffer();
+      if (len >= buf.length) {
+        out.write(bytes, off, len);
+        bytesWritten += len;
+        if (reportMetrics)
+          Metrics.addBytesWritten(len);
+        return;
+      }
+    }
+    System.arraycopy(bytes, off, buf, count, len);
+    count += len;
+  }
+
+  /**
+   * Write bytes of src between from (inclusive) and to (exclusive)
+   */
+  public void write(ByteBuffer src, int from, int to) throws IOException {
+    if (copyFile != null)
+      flushCopy();
+    while (from < to) {
+      if (count == buf.length)
+        flushBuffer();
+      int len = Math.min(to - from, buf.length - count);
+      src.get(from, buf, count, len);
+      count += len;
+      from += len;
+    }
+  }
+
+  /**
+   * Write lines of src between from (inclusive) and to (exclusive), each line being terminated by \n
+   * whatever the separator used in src.
+   *
+   * @param hasCR true if range may contain \r\n separators which should be converted
+   */
+  public void writeLines(ByteBuffer src, int from, int to, boolean hasCR) throws IOException {
+    if (from >= to)
+      return;
+    if (!hasCR) {
+      write(src, from, to);
+      if (src.get(to - 1) != '\n')
+        write('\n');
+      return;
+    }
+    int lineStart = from;
+    while (lineStart < to) {
+      int eol = FastaReader.indexOf(src, (byte) '\n', lineStart, to);
+      int lineEnd = eol < 0 ? to : eol;
+      int contentEnd = (lineEnd > lineStart && src.get(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+      write(src, lineStart, contentEnd);
+      write('\n');
+      lineStart = lineEnd + 1;
+    }
+  }
+
+  /**
+   * Same as writeLines(reader.buffer(), from, reader.recordEnd(), reader.hasCarriageReturn()) : write the end of the
+   * current record of reader. Lines of a plain file which are written unchanged (\n separators, last line terminated)
+   * are merged with the previous unchanged lines if they follow them in the input file, and copied later.
+   *
+   * @param from start of the lines to write in the reader buffer
+   */
+  public void writeRecordLines(FastaReader reader, int from) throws IOException {
+    ByteBuffer src = reader.buffer();
+    int to = reader.recordEnd();
+    if (reader.hasCarriageReturn() || reader.file() == null || from >= to || src.get(to - 1) != '\n') {
+      writeLines(src, from, to, reader.hasCarriageReturn());
+      return;
+    }
+    copy(reader.file(), reader.offsetOf(from), to - from);
+    if (copyLength == to - from) {
+      copyBuffer = src;
+      copyFrom = from;
+    } else if (copyBuffer != src) {
+      // lines of another window : bytes will be read from the file
+      copyBuffer = null;
+    }
+  }
+
+  /**
+   * Write length bytes of the plain file at offset unchanged. Bytes are merged with the previous unchanged bytes
+   * if they follow them in the file, and copied later.
+   */
+  public void copy(File file, long offset, long length) throws IOException {
+    if (length <= 0)
+      return;
+    if (file.equals(copyFile) && offset == copyOffset + copyLength) {
+      copyLength += length;
+      return;
+    }
+    if (copyFile != null)
+      flushCopy();
+    copyFile = file;
+    copyOffset = offset;
+    copyLength = length;
+    copyBuffer = null;
+  }
+
+  /**
+   * Write the pending unchanged bytes
+   */
+  private void flushCopy() throws IOException {
+    File file = copyFile;
+    ByteBuffer src = copyBuffer;
+    copyFile = null;
+    copyBuffer = null;
+    boolean transfer = (outChannel != null || out instanceof RegionOutput) && copyLength >= TRANSFER_MIN_SIZE;
+    if (src != null && !transfer) {
+      write(src, copyFrom, copyFrom + (int) copyLength);
+      return;
+    }
+    if (transfer && out instanceof RegionOutput) {
+      flushBuffer();
+      ((RegionOutput) out).copy(file, copyOffset, copyLength);
+      bytesWritten += copyLength;
+      return;
+    }
+
+    if (!file.equals(sourceFile)) {
+      if (sourceChannel != null)
+        sourceChannel.close();
+      sourceChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      sourceFile = file;
+    }
+    long done = 0;
+    if (transfer) {
+      flushBuffer();
+      while (done < copyLength) {
+        long n = sourceChannel.transferTo(copyOffset + done, copyLength - done, outChannel);
+        if (n <= 0)
+          throw new IOException("Can't copy " + copyLength + " bytes at " + copyOffset + " of " + file.getAbsolutePath());
+        done += n;
+      }
+      bytesWritten += copyLength;
+      if (reportMetrics)
+        Metrics.addBytesWritten(copyLength);
+      return;
+    }
+    // small region of another window, or output which isn't a plain file : read through the buffer
+    while (done < copyLength) {
+      if (count == buf.length)
+        flushBuffer();
+      int n = sourceChannel.read(ByteBuffer.wrap(buf, count, (int) Math.min(buf.length - count, copyLength - done)), copyOffset + done);
+      if (n <= 0)
+        throw new IOException("Can't copy " + copyLength + " bytes at " + copyOffset + " of " + file.getAbsolutePath());
+      count += n;
+      done += n;
+    }
+  }
+
+  public long bytesWritten() {
+    return bytesWritten + count + (copyFile == null ? 0 : copyLength);
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      bytesWritten += count;
+      if (reportMetrics)
+        Metrics.addBytesWritten(count);
+      count = 0;
+    }
+  }
+
+  public void flush() throws IOException {
+    if (copyFile != null)
+      flushCopy();
+    flushBuffer();
+    out.flush();
+  }
+
+  /**
+   * Output keeping large unchanged regions of plain files as references rather than bytes
+   */
+  interface RegionOutput {
+
+    /**
+     * Bytes written after the previous ones : length bytes at offset of file
+     */
+    void copy(File file, long offset, long length) throws IOException;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      out.close();
+      if (sourceChannel != null)
+        sourceChannel.close();
+    }
+  }
+}
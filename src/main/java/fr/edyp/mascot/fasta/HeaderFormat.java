@@ -0,0 +1,411 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Format of fasta header lines : where the accession and the other fields of an entry are found in its header.
+ * A format is compiled once, then headers are parsed by a {@link Parser}, which gives the offsets of the fields
+ * in the header buffer : no String is created for each entry.
+ *
+ * Formats are
+ * <ul>
+ *   <li>first_word (default) : the accession is the first word of the header. Mnemonic is the part of the accession after its last '_'.</li>
+ *   <li>uniprot : header is db|accession|entry_name description OS=.. OX=.. GN=.. Mnemonic is the part of the entry name after its last '_'.</li>
+ *   <li>ncbi : the accession is the first word, or the fourth field of gi|number|db|accession| words. Description ends at the first
+ *   ^A (merged headers of nr) and the organism (OS) is the last [..] of the description.</li>
+ *   <li>regex:&lt;pattern&gt; : fields are the named groups acc (required), entry, mnemo, desc, os, ox and gn of the pattern,
+ *   searched in the header line ('>' excluded). Mnemonic is the part of the entry name (or accession) after its last '_' if
+ *   there is no mnemo group. A header is parsed by the pattern only if the acc group is part of the match.</li>
+ * </ul>
+ * Headers which don't match the format are parsed as first_word. OS, OX and GN fields not found by the format are
+ * searched as UniProt tags ( OS=) after the accession.
+ *
+ * When a header is written with a new accession, the rest of the header is kept. With the first_word format a space
+ * is always written after the accession, as previous versions did.
+ */
+public final class HeaderFormat {
+
+  public final static String FIRST_WORD = "first_word";
+  public final static String UNIPROT = "uniprot";
+  public final static String NCBI = "ncbi";
+  public final static String REGEX_PREFIX = "regex:";
+
+  public final static int ACCESSION = 0;
+  public final static int ENTRY_NAME = 1;
+  public final static int MNEMONIC = 2;
+  public final static int DESCRIPTION = 3;
+  public final static int OS = 4;
+  public final static int OX = 5;
+  public final static int GN = 6;
+  private final static int NB_FIELDS = 7;
+
+  // regex group of each field
+  private final static String[] GROUP_NAMES = {"acc", "entry", "mnemo", "desc", "os", "ox", "gn"};
+  // UniProt tag of each field, null if the field is not a tag
+  private final static byte[][] TAGS = {null, null, null, null, {'O', 'S'}, {'O', 'X'}, {'G', 'N'}};
+
+  private final static int KIND_FIRST_WORD = 0;
+  private final static int KIND_UNIPROT = 1;
+  private final static int KIND_NCBI = 2;
+  private final static int KIND_REGEX = 3;
+
+  public final static HeaderFormat DEFAULT = new HeaderFormat(FIRST_WORD, KIND_FIRST_WORD, null);
+
+  private final String name;
+  private final int kind;
+  private final Pattern pattern;
+  // fields given by a group of the pattern
+  private final boolean[] groups = new boolean[NB_FIELDS];
+
+  private HeaderFormat(String name, int kind, Pattern pattern) {
+    this.name = name;
+    this.kind = kind;
+    this.pattern = pattern;
+    if (pattern != null) {
+      Set<String> names = groupNames(pattern.pattern());
+      for (int f = 0; f < NB_FIELDS; f++)
+        groups[f] = names.contains(GROUP_NAMES[f]);
+      if (!groups[ACCESSION])
+        throw new IllegalArgumentException("Header format " + name + " should define the accession as (?<acc>...) group");
+    }
+  }
+
+  /**
+   * @return names of the named groups (?&lt;name&gt;...) of regex : escaped characters, quoted text (\Q..\E) and character
+   * classes are skipped
+   */
+  static Set<String> groupNames(String regex) {
+    Set<String> names = new HashSet<>();
+    int classDepth = 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+          int quoteEnd = regex.indexOf("\\E", i + 2);
+          i = quoteEnd < 0 ? regex.length() : quoteEnd + 1;
+        } else {
+          i++;
+        }
+      } else if (c == '[') {
+        classDepth++;
+      } else if (c == ']' && classDepth > 0) {
+        classDepth--;
+      } else if (c == '(' && classDepth == 0 && regex.startsWith("(?<", i) && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+        // (?<= and (?<! are lookbehinds
+        int nameEnd = regex.indexOf('>', i + 3);
+        if (nameEnd > 0)
+          names.add(regex.substring(i + 3, nameEnd));
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @param format first_word, uniprot, ncbi or regex:&lt;pattern&gt;. Default format if null or empty.
+   */
+  public static HeaderFormat of(String format) {
+    if (format == null || format.isEmpty() || format.equals(FIRST_WORD))
+      return DEFAULT;
+    if (format.equals(UNIPROT))
+      return new HeaderFormat(format, KIND_UNIPROT, null);
+    if (format.equals(NCBI))
+      return new HeaderFormat(format, KIND_NCBI, null);
+    if (format.startsWith(REGEX_PREFIX))
+      return new HeaderFormat(format, KIND_REGEX, Pattern.compile(format.substring(REGEX_PREFIX.length())));
+    throw new IllegalArgumentException("Unknown header format " + format + ". Formats are " + FIRST_WORD + ", " + UNIPROT + ", " + NCBI + " and " + REGEX_PREFIX + "<pattern>");
+  }
+
+  /**
+   * @return true if the accession is the first word of headers : fasta index may then be used
+   */
+  public boolean isFirstWord() {
+    return kind == KIND_FIRST_WORD;
+  }
+
+  /**
+   * @return a new parser of headers of this format, to be used by a single thread
+   */
+  public Parser newParser() {
+    return new Parser();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Parse headers of this format. Fields are given as offsets in the parsed buffer, start inclusive and end exclusive.
+   * Description and tags are only searched when one of them is requested.
+   */
+  public final class Parser {
+    private final int[] starts = new int[NB_FIELDS];
+    private final int[] ends = new int[NB_FIELDS];
+    private final HeaderChars chars;
+    private final Matcher matcher;
+
+    private ByteBuffer buf;
+    private int headerStart;
+    private int headerEnd;
+    private boolean tagsParsed;
+
+    private Parser() {
+      chars = (pattern != null) ? new HeaderChars() : null;
+      matcher = (pattern != null) ? pattern.matcher(chars) : null;
+    }
+
+    /**
+     * Parse header found in buf between headerStart ('>') and headerEnd (line separator excluded)
+     */
+    public void parse(ByteBuffer buf, int headerStart, int headerEnd) {
+      this.buf = buf;
+      this.headerStart = headerStart;
+      this.headerEnd = headerEnd;
+      tagsParsed = false;
+      Arrays.fill(starts, -1);
+      Arrays.fill(ends, -1);
+
+      int from = headerStart + 1;
+      boolean parsed;
+      if (kind == KIND_UNIPROT)
+        parsed = parseUniProt(from);
+      else if (kind == KIND_NCBI)
+        parsed = parseNcbi(from);
+      else if (kind == KIND_REGEX)
+        parsed = parseRegex(from);
+      else
+        parsed = false;
+      if (!parsed)
+        parseFirstWord(from);
+    }
+
+    public HeaderFormat format() {
+      return HeaderFormat.this;
+    }
+
+    public boolean has(int field) {
+      return start(field) >= 0;
+    }
+
+    /**
+     * @return start of the field in parsed buffer, -1 if the header has no such field
+     */
+    public int start(int field) {
+      if (field >= DESCRIPTION && !tagsParsed)
+        parseTags();
+      return starts[field];
+    }
+
+    /**
+     * @return end of the field in parsed buffer, -1 if the header has no such field
+     */
+    public int end(int field) {
+      if (field >= DESCRIPTION && !tagsParsed)
+        parseTags();
+      return ends[field];
+    }
+
+    /**
+     * @return true if the field is equal to value
+     */
+    public boolean fieldEquals(int field, byte[] value, int from, int to) {
+      int start = start(field);
+      if (start < 0 || ends[field] - start != to - from)
+        return false;
+      for (int i = 0; i < to - from; i++) {
+        if (buf.get(start + i) != value[from + i])
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Write parsed header to writer, followed by '\n'.
+     *
+     * @param acc new accession (from 0 to accLength), null to keep the accession of the header
+     */
+    public void writeHeader(FastaWriter writer, byte[] acc, int accLength) throws IOException {
+      writer.write(buf, headerStart, starts[ACCESSION]);
+      if (acc == null)
+        writer.write(buf, starts[ACCESSION], ends[ACCESSION]);
+      else
+        writer.write(acc, 0, accLength);
+      if (kind == KIND_FIRST_WORD)
+        writer.write(' ');
+      writer.write(buf, ends[ACCESSION], headerEnd);
+      writer.write('\n');
+    }
+
+    private void set(int field, int start, int end) {
+      starts[field] = start;
+      ends[field] = end;
+    }
+
+    private void setMnemonic(int field) {
+      int taxoStart = FastaReader.lastIndexOf(buf, (byte) '_', starts[field], ends[field]);
+      if (taxoStart >= 0)
+        set(MNEMONIC, taxoStart + 1, ends[field]);
+    }
+
+    private void parseFirstWord(int from) {
+      int index = FastaReader.indexOf(buf, (byte) ' ', from, headerEnd);
+      int accEnd = index >= 0 ? index : headerEnd;
+      set(ACCESSION, from, accEnd);
+      set(ENTRY_NAME, from, accEnd);
+      setMnemonic(ACCESSION);
+      if (index >= 0)
+        set(DESCRIPTION, index + 1, headerEnd);
+    }
+
+    private boolean parseUniProt(int from) {
+      int index = FastaReader.indexOf(buf, (byte) ' ', from, headerEnd);
+      int wordEnd = index >= 0 ? index : headerEnd;
+      int accStart = FastaReader.indexOf(buf, (byte) '|', from, wordEnd) + 1;
+      if (accStart == 0)
+        return false;
+      int accEnd = FastaReader.indexOf(buf, (byte) '|', accStart, wordEnd);
+      if (accEnd < 0 || FastaReader.indexOf(buf, (byte) '|', accEnd + 1, wordEnd) >= 0)
+        return false;
+      set(ACCESSION, accStart, accEnd);
+      set(ENTRY_NAME, accEnd + 1, wordEnd);
+      setMnemonic(ENTRY_NAME);
+      // description ends at the first tag, see parseTags
+      if (index >= 0)
+        set(DESCRIPTION, index + 1, headerEnd);
+      return true;
+    }
+
+    private boolean parseNcbi(int from) {
+      int index = FastaReader.indexOf(buf, (byte) ' ', from, headerEnd);
+      int wordEnd = index >= 0 ? index : headerEnd;
+      int accStart = from;
+      int accEnd = wordEnd;
+      if (wordEnd - from > 3 && buf.get(from) == 'g' && buf.get(from + 1) == 'i' && buf.get(from + 2) == '|') {
+        // gi|number|db|accession|
+        int dbStart = FastaReader.indexOf(buf, (byte) '|', from + 3, wordEnd) + 1;
+        int start = dbStart > 0 ? FastaReader.indexOf(buf, (byte) '|', dbStart, wordEnd) + 1 : 0;
+        if (start > 0 && start < wordEnd) {
+          accStart = start;
+          accEnd = FastaReader.indexOf(buf, (byte) '|', start, wordEnd);
+          if (accEnd < 0)
+            accEnd = wordEnd;
+        }
+      }
+      set(ACCESSION, accStart, accEnd);
+      if (index >= 0) {
+        int descEnd = FastaReader.indexOf(buf, (byte) 1, index + 1, headerEnd);
+        set(DESCRIPTION, index + 1, descEnd >= 0 ? descEnd : headerEnd);
+      }
+      return true;
+    }
+
+    private boolean parseRegex(int from) {
+      chars.reset(buf, from, headerEnd);
+      matcher.reset(chars);
+      // an optional acc group may not be part of the match
+      if (!matcher.find() || matcher.start(GROUP_NAMES[ACCESSION]) < 0)
+        return false;
+      for (int f = 0; f < NB_FIELDS; f++) {
+        if (groups[f] && matcher.start(GROUP_NAMES[f]) >= 0)
+          set(f, from + matcher.start(GROUP_NAMES[f]), from + matcher.end(GROUP_NAMES[f]));
+      }
+      if (!groups[MNEMONIC])
+        setMnemonic(starts[ENTRY_NAME] >= 0 ? ENTRY_NAME : ACCESSION);
+      return true;
+    }
+
+    /**
+     * Search OS, OX and GN tags not given by the format, after the accession (and entry name). UniProt description
+     * ends at the first tag, NCBI organism is the last [..] of the description.
+     */
+    private void parseTags() {
+      tagsParsed = true;
+      if (kind == KIND_NCBI && starts[DESCRIPTION] >= 0) {
+        int descEnd = ends[DESCRIPTION];
+        while (descEnd > starts[DESCRIPTION] && buf.get(descEnd - 1) == ' ')
+          descEnd--;
+        if (descEnd > starts[DESCRIPTION] && buf.get(descEnd - 1) == ']') {
+          int osStart = FastaReader.lastIndexOf(buf, (byte) '[', starts[DESCRIPTION], descEnd - 1);
+          if (osStart >= 0)
+            set(OS, osStart + 1, descEnd - 1);
+        }
+      }
+
+      int from = Math.max(ends[ACCESSION], ends[ENTRY_NAME]);
+      int firstTag = -1;
+      int field = -1;
+      for (int i = from; i + 3 < headerEnd; i++) {
+        if (buf.get(i) != ' ' || buf.get(i + 3) != '=' || !isTagChar(buf.get(i + 1)) || !isTagChar(buf.get(i + 2)))
+          continue;
+        if (firstTag < 0)
+          firstTag = i;
+        if (field >= 0)
+          ends[field] = i;
+        field = tagField(buf.get(i + 1), buf.get(i + 2));
+        if (field >= 0)
+          set(field, i + 4, headerEnd);
+        i += 3;
+      }
+      if (kind == KIND_UNIPROT && firstTag >= 0 && starts[DESCRIPTION] >= 0 && firstTag < ends[DESCRIPTION])
+        ends[DESCRIPTION] = Math.max(starts[DESCRIPTION], firstTag);
+    }
+
+    /**
+     * @return field of the tag, -1 if the tag is unknown or if the field was given by the format
+     */
+    private int tagField(byte b1, byte b2) {
+      for (int f = OS; f <= GN; f++) {
+        if (TAGS[f][0] == b1 && TAGS[f][1] == b2)
+          return (kind == KIND_REGEX && groups[f]) || (kind == KIND_NCBI && f == OS) ? -1 : f;
+      }
+      return -1;
+    }
+
+    private boolean isTagChar(byte b) {
+      return b >= 'A' && b <= 'Z';
+    }
+  }
+
+  /**
+   * Header bytes seen as chars by the pattern matcher, without copy
+   */
+  private static class HeaderChars implements CharSequence {
+    private ByteBuffer buf;
+    private int from;
+    private int length;
+
+    void reset(ByteBuffer buf, int from, int to) {
+      this.buf = buf;
+      this.from = from;
+      this.length = to - from;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buf.get(from + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      HeaderChars chars = new HeaderChars();
+      chars.reset(buf, from + start, from + end);
+      return chars;
+    }
+
+    @Override
+    public String toString() {
+      return FastaReader.toString(buf, from, from + length);
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package fr.edyp.mascot.fasta;
+
+import jdk.jfr.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the running command, shared by all commands : bytes read and written, fasta entries read, duplicates
+ * found and searches log lines read. Readers and writers update counters by batches (every few thousand records,
+ * on buffer flush or per chunk) so that the cost on the processing loops is negligible.
+ *
+ * Counters are exposed as a JMX MBean (fr.edyp.mascot:type=Metrics), as JFR events (fr.edyp.mascot.Progress every
+ * second while recording and fr.edyp.mascot.Command for the whole command), as progress lines logged periodically
+ * and as a JSON summary saved at the end of the command.
+ * Progress and remaining time are estimated from the size of the file read by the current phase, if known.
+ *
+ * In serve mode, each request gets its own counters (see {@link #newScope()}), used by the threads the request creates.
+ * The MBean and the progress events show the counters of commands run out of any request.
+ */
+public class Metrics implements MetricsMXBean {
+
+  private final static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+  private final static String OBJECT_NAME = "fr.edyp.mascot:type=Metrics";
+  private final static Metrics INSTANCE = new Metrics();
+  // counters of the current request in serve mode, inherited by the threads created to process it
+  private final static InheritableThreadLocal<Metrics> SCOPE = new InheritableThreadLocal<>();
+
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder entries = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder logLines = new LongAdder();
+
+  private volatile String command = "";
+  private volatile long startTime = System.nanoTime();
+  private volatile String phase = "";
+  private volatile long phaseStartTime = System.nanoTime();
+  private volatile long phaseStartBytes;
+  private volatile long phaseSize = -1;
+  // files are processed concurrently : progress is given for all of them
+  private volatile boolean batch;
+
+  private boolean registered;
+  private ScheduledExecutorService progressExecutor;
+  private long lastProgressBytes = -1;
+  private CommandEvent commandEvent;
+
+  private Metrics() {
+  }
+
+  public static Metrics get() {
+    Metrics scoped = SCOPE.get();
+    return scoped != null ? scoped : INSTANCE;
+  }
+
+  /**
+   * Use new counters for the commands run by the current thread, and the threads it will create, until {@link #endScope()}
+   */
+  static void newScope() {
+    SCOPE.set(new Metrics());
+  }
+
+  static void endScope() {
+    SCOPE.remove();
+  }
+
+  static void addBytesRead(long n) {
+    get().bytesRead.add(n);
+  }
+
+  static void addBytesWritten(long n) {
+    get().bytesWritten.add(n);
+  }
+
+  static void addEntries(long n) {
+    get().entries.add(n);
+  }
+
+  static void addDuplicates(long n) {
+    get().duplicates.add(n);
+  }
+
+  static void addLogLines(long n) {
+    get().logLines.add(n);
+  }
+
+  /**
+   * Reset counters for a new command, register the MBean and JFR events and start logging progress lines.
+   *
+   * @param progressInterval number of seconds between two progress lines, 0 or less for none
+   */
+  public static synchronized void start(String command, int progressInterval) {
+    Metrics metrics = get();
+    metrics.bytesRead.reset();
+    metrics.bytesWritten.reset();
+    metrics.entries.reset();
+    metrics.duplicates.reset();
+    metrics.logLines.reset();
+    metrics.command = command;
+    metrics.startTime = System.nanoTime();
+    metrics.batch = false;
+    metrics.setPhase(command, -1);
+    metrics.lastProgressBytes = -1;
+    if (metrics == INSTANCE)
+      metrics.register();
+
+    metrics.commandEvent = new CommandEvent();
+    metrics.commandEvent.command = command;
+    metrics.commandEvent.begin();
+
+    metrics.stopProgress();
+    if (progressInterval > 0) {
+      metrics.progressExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "metrics-progress");
+        thread.setDaemon(true);
+        return thread;
+      });
+      metrics.progressExecutor.scheduleAtFixedRate(metrics::logProgress, progressInterval, progressInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Start a phase of the command reading specified file : progress is estimated from the file size,
+   * unless it is compressed.
+   */
+  public static void startReading(File file) throws IOException {
+    startPhase("read " + file.getName(), FastaIO.isGzip(file) ? -1 : file.length());
+  }
+
+  /**
+   * @param size number of bytes to read during this phase, -1 if unknown
+   */
+  public static void startPhase(String name, long size) {
+    Metrics metrics = get();
+    if (!metrics.batch)
+      metrics.setPhase(name, size);
+  }
+
+  /**
+   * Start processing several files at the same time : phases of each file are ignored and progress is estimated
+   * from the total size of the files.
+   */
+  public static void startBatch(int nbFiles, long totalSize) {
+    Metrics metrics = get();
+    metrics.setPhase("batch of " + nbFiles + " files", totalSize);
+    metrics.batch = true;
+  }
+
+  private void setPhase(String name, long size) {
+    phaseStartBytes = bytesRead.sum();
+    phaseStartTime = System.nanoTime();
+    phaseSize = size;
+    phase = name;
+  }
+
+  /**
+   * Stop progress lines, log the summary of the command, save it as JSON if metricsFile is specified,
+   * and commit the command JFR event.
+   */
+  public static synchronized void end(File metricsFile, boolean success) {
+    Metrics metrics = get();
+    metrics.stopProgress();
+    if (metrics.commandEvent != null) {
+      metrics.fill(metrics.commandEvent);
+      metrics.commandEvent.success = success;
+      metrics.commandEvent.commit();
+      metrics.commandEvent = null;
+    }
+    logger.info(" ** Metrics : " + metrics.summary());
+    if (metricsFile != null) {
+      try {
+        Files.write(metricsFile.toPath(), metrics.toJson(success).getBytes(StandardCharsets.UTF_8));
+        logger.info("Metrics saved in " + metricsFile.getAbsolutePath());
+      } catch (IOException e) {
+        logger.error("Can't save metrics in " + metricsFile.getAbsolutePath() + " : " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Stop progress lines of a command which ended without running, as when help is asked
+   */
+  public static synchronized void cancel() {
+    Metrics metrics = get();
+    metrics.stopProgress();
+    metrics.commandEvent = null;
+  }
+
+  private void stopProgress() {
+    if (progressExecutor != null) {
+      progressExecutor.shutdownNow();
+      progressExecutor = null;
+    }
+  }
+
+  private void register() {
+    if (registered)
+      return;
+    registered = true;
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      logger.debug("Can't register metrics MBean : " + e.getMessage());
+    }
+    FlightRecorder.addPeriodicEvent(ProgressEvent.class, () -> {
+      ProgressEvent event = new ProgressEvent();
+      if (event.isEnabled()) {
+        fill(event);
+        event.commit();
+      }
+    });
+  }
+
+  /**
+   * Log a progress line, unless nothing was read or written since the previous one
+   */
+  private void logProgress() {
+    long bytes = bytesRead.sum() + bytesWritten.sum();
+    if (bytes == lastProgressBytes)
+      return;
+    lastProgressBytes = bytes;
+    StringBuilder sb = new StringBuilder(" -- ").append(phase).append(" : ");
+    double progress = getProgress();
+    if (progress >= 0)
+      sb.append(formatBytes(bytesRead.sum() - phaseStartBytes)).append(" of ").append(formatBytes(phaseSize))
+        .append(String.format(Locale.ENGLISH, " (%.0f%%, ETA %s), ", progress * 100, formatDuration(getEtaSeconds())));
+    logger.info(sb.append(summary()).toString());
+  }
+
+  private String summary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(formatBytes(bytesRead.sum())).append(" read, ").append(formatBytes(bytesWritten.sum())).append(" written");
+    if (entries.sum() > 0)
+      sb.append(", ").append(entries.sum()).append(String.format(Locale.ENGLISH, " entries (%.0f/s)", getEntriesPerSecond()));
+    if (duplicates.sum() > 0)
+      sb.append(", ").append(duplicates.sum()).append(" duplicates");
+    if (logLines.sum() > 0)
+      sb.append(", ").append(logLines.sum()).append(" log lines");
+    sb.append(String.format(Locale.ENGLISH, ", %.1f s, heap %s (peak %s), GC %d ms", getElapsedMillis() / 1000.0,
+      formatBytes(getHeapUsed()), formatBytes(getPeakHeap()), getGcTimeMillis()));
+    return sb.toString();
+  }
+
+  private String toJson(boolean success) {
+    return "{\"command\":" + DBUsageLog.jsonString(command)
+      + ",\"success\":" + success
+      + ",\"end\":" + DBUsageLog.jsonString(LocalDateTime.now().withNano(0).toString())
+      + ",\"elapsedMillis\":" + getElapsedMillis()
+      + ",\"bytesRead\":" + getBytesRead()
+      + ",\"bytesWritten\":" + getBytesWritten()
+      + ",\"entries\":" + getEntries()
+      + ",\"entriesPerSecond\":" + String.format(Locale.ENGLISH, "%.1f", getEntriesPerSecond())
+      + ",\"readMBPerSecond\":" + String.format(Locale.ENGLISH, "%.1f", getBytesRead() / (1024.0 * 1024.0) / Math.max(0.001, getElapsedMillis() / 1000.0))
+      + ",\"duplicates\":" + getDuplicates()
+      + ",\"logLines\":" + getLogLines()
+      + ",\"heapUsed\":" + getHeapUsed()
+      + ",\"peakHeap\":" + getPeakHeap()
+      + ",\"gcTimeMillis\":" + getGcTimeMillis()
+      + "}\n";
+  }
+
+  private void fill(MetricsEvent event) {
+    event.command = command;
+    event.phase = phase;
+    event.bytesRead = getBytesRead();
+    event.bytesWritten = getBytesWritten();
+    event.entries = getEntries();
+    event.duplicates = getDuplicates();
+    event.logLines = getLogLines();
+  }
+
+  @Override
+  public String getCommand() {
+    return command;
+  }
+
+  @Override
+  public String getPhase() {
+    return phase;
+  }
+
+  @Override
+  public long getElapsedMillis() {
+    return (System.nanoTime() - startTime) / 1_000_000;
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  @Override
+  public long getEntries() {
+    return entries.sum();
+  }
+
+  @Override
+  public double getEntriesPerSecond() {
+    return entries.sum() / Math.max(0.001, getElapsedMillis() / 1000.0);
+  }
+
+  @Override
+  public long getDuplicates() {
+    return duplicates.sum();
+  }
+
+  @Override
+  public long getLogLines() {
+    return logLines.sum();
+  }
+
+  @Override
+  public double getProgress() {
+    if (phaseSize <= 0)
+      return -1;
+    return Math.min(1.0, (bytesRead.sum() - phaseStartBytes) / (double) phaseSize);
+  }
+
+  @Override
+  public long getEtaSeconds() {
+    double progress = getProgress();
+    if (progress <= 0)
+      return -1;
+    double seconds = (System.nanoTime() - phaseStartTime) / 1e9;
+    return Math.round(seconds * (1 - progress) / progress);
+  }
+
+  @Override
+  public long getHeapUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  @Override
+  public long getPeakHeap() {
+    return peakHeap();
+  }
+
+  @Override
+  public long getGcTimeMillis() {
+    return gcTime();
+  }
+
+  /**
+   * @return sum of the peak usage of heap memory pools since JVM start
+   */
+  static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  /**
+   * @return time spent in garbage collections since JVM start, in milliseconds
+   */
+  static long gcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      time += Math.max(0, gc.getCollectionTime());
+    return time;
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes >= 1024L * 1024 * 1024)
+      return String.format(Locale.ENGLISH, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024));
+  }
+
+  private static String formatDuration(long seconds) {
+    if (seconds < 0)
+      return "?";
+    if (seconds < 60)
+      return seconds + " s";
+    if (seconds < 3600)
+      return (seconds / 60) + " min " + (seconds % 60) + " s";
+    return (seconds / 3600) + " h " + (seconds % 3600) / 60 + " min";
+  }
+
+  @Category("Mascot SwissKnife")
+  @StackTrace(false)
+  abstract static class MetricsEvent extends Event {
+    @Label("Command")
+    String command;
+    @Label("Phase")
+    String phase;
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+    @Label("Entries")
+    long entries;
+    @Label("Duplicates")
+    long duplicates;
+    @Label("Log Lines")
+    long logLines;
+  }
+
+  @Name("fr.edyp.mascot.Progress")
+  @Label("Progress")
+  @Description("Counters of the running command")
+  @Period("1 s")
+  static class ProgressEvent extends MetricsEvent {
+  }
+
+  @Name("fr.edyp.mascot.Command")
+  @Label("Command")
+  @Description("Whole run of a command, with its final counters")
+  static class CommandEvent extends MetricsEvent {
+    @Label("Success")
+    boolean success;
+  }
+}
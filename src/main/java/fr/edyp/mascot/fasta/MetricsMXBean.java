@@ -0,0 +1,41 @@
+package fr.edyp.mascot.fasta;
+
+/**
+ * JMX view of the {@link Metrics} of the running command, registered as fr.edyp.mascot:type=Metrics
+ */
+public interface MetricsMXBean {
+
+  String getCommand();
+
+  String getPhase();
+
+  long getElapsedMillis();
+
+  long getBytesRead();
+
+  long getBytesWritten();
+
+  long getEntries();
+
+  double getEntriesPerSecond();
+
+  long getDuplicates();
+
+  long getLogLines();
+
+  /**
+   * @return part of the current phase input already read (0 to 1), -1 if input size is unknown
+   */
+  double getProgress();
+
+  /**
+   * @return estimated number of seconds to the end of the current phase, -1 if unknown
+   */
+  long getEtaSeconds();
+
+  long getHeapUsed();
+
+  long getPeakHeap();
+
+  long getGcTimeMillis();
+}
@@ -0,0 +1,136 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Count residues of fasta sequences by character and check the width of their lines.
+ * This implementation reads one byte at a time : {@link #create(boolean)} may return the {@link VectorResidueCounter}
+ * instead when the JDK Vector API (jdk.incubator.vector module) is available.
+ * An instance should be used by a single thread.
+ */
+public class ResidueCounter {
+
+  private final static Logger logger = LoggerFactory.getLogger(ResidueCounter.class);
+
+  private final static String VECTOR_MODULE = "jdk.incubator.vector";
+  private final static String VECTOR_COUNTER = "fr.edyp.mascot.fasta.VectorResidueCounter";
+  private static volatile boolean vectorChecked;
+
+  protected final long[] composition = new long[256];
+
+  // lines of the last scanned sequence
+  private int nbLines;
+  private int firstWidth;
+  private int lastWidth;
+  private boolean regular;
+  private long residues;
+
+  /**
+   * @param vector true to use the Vector API if available
+   * @return counter using the Vector API if requested and available, this implementation otherwise
+   */
+  public static ResidueCounter create(boolean vector) {
+    if (vector && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+      // loaded by name : the class is compiled apart, with the incubator module
+      try {
+        return (ResidueCounter) Class.forName(VECTOR_COUNTER).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        logger.debug("Can't use Vector API : " + e);
+      }
+    }
+    if (vector && !vectorChecked) {
+      vectorChecked = true;
+      logger.info(" Vector API not available (run java with --add-modules " + VECTOR_MODULE + ") : residues are counted one at a time");
+    }
+    return new ResidueCounter();
+  }
+
+  /**
+   * Scan sequence lines between from (inclusive) and to (exclusive) : residues are added to the composition,
+   * and widths of the lines are checked.
+   *
+   * @return number of residues of the sequence
+   */
+  public long scan(ByteBuffer buf, int from, int to) {
+    startSequence();
+    int lineStart = from;
+    for (int i = from; i < to; i++) {
+      byte b = buf.get(i);
+      if (b == '\n') {
+        endLine(buf, lineStart, i);
+        lineStart = i + 1;
+      } else if (b != '\r') {
+        composition[b & 0xFF]++;
+      }
+    }
+    if (lineStart < to)
+      endLine(buf, lineStart, to);
+    return residues;
+  }
+
+  /**
+   * @return number of residues of the last scanned sequence
+   */
+  protected final long sequenceResidues() {
+    return residues;
+  }
+
+  protected final void startSequence() {
+    nbLines = 0;
+    firstWidth = 0;
+    lastWidth = 0;
+    regular = true;
+    residues = 0;
+  }
+
+  /**
+   * Line found between lineStart (inclusive) and lineEnd (exclusive, \n or end of sequence). Empty lines are ignored.
+   */
+  protected final void endLine(ByteBuffer buf, int lineStart, int lineEnd) {
+    int width = lineEnd - lineStart;
+    if (width > 0 && buf.get(lineEnd - 1) == '\r')
+      width--;
+    if (width == 0)
+      return;
+    nbLines++;
+    if (nbLines == 1) {
+      firstWidth = width;
+    } else if (lastWidth != firstWidth || width > firstWidth) {
+      // all lines but the last one should have the width of the first one
+      regular = false;
+    }
+    lastWidth = width;
+    residues += width;
+  }
+
+  /**
+   * @return number of residues by character of all scanned sequences
+   */
+  public long[] composition() {
+    return composition;
+  }
+
+  /**
+   * @return number of non empty lines of the last scanned sequence
+   */
+  public int nbLines() {
+    return nbLines;
+  }
+
+  /**
+   * @return width of the first line of the last scanned sequence
+   */
+  public int firstWidth() {
+    return firstWidth;
+  }
+
+  /**
+   * @return true if all lines of the last scanned sequence but the last one have the same width, the last one being shorter or equal
+   */
+  public boolean isRegular() {
+    return regular;
+  }
+}
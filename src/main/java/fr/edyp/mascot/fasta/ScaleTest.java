@@ -0,0 +1,270 @@
+package fr.edyp.mascot.fasta;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * End to end scale test : synthetic files of the specified sizes are generated with {@link SyntheticData}, then each
+ * command is run on them through {@link FastaUtil#main}, in its own JVM so that its peak heap can be measured.
+ * Wall time, number of processed entries (or log lines) per second, throughput and peak heap of each run are appended
+ * to scale-results.tsv of the work directory.
+ */
+public class ScaleTest {
+
+  private final static Logger logger = LoggerFactory.getLogger(ScaleTest.class);
+
+  public final static String RESULTS_FILE_NAME = "scale-results.tsv";
+  private final static String METRICS_PROPERTY = "scale.metrics";
+  private final static String GENERATED_FILE_NAME = "generated.properties";
+  private final static String ACCESSIONS_FILE_NAME = "accessions.txt";
+  private final static int NB_FETCHED_ACCESSIONS = 1000;
+  private final static String EXTERNAL_MAX_MEMORY = "256";
+  private final static String RESULTS_HEADER = "size\trun\texit code\twall time (s)\titems\titems/s\tMB/s\tpeak heap (MB)\tGC time (ms)";
+
+  private final SyntheticData generator;
+  private final String generatorParameters;
+  private final int nbThreads;
+  private final List<String> jvmOptions;
+
+  /**
+   * @param generatorParameters description of the generator parameters : files previously generated with other
+   *                            parameters are generated again
+   */
+  public ScaleTest(SyntheticData generator, String generatorParameters, int nbThreads, List<String> jvmOptions) {
+    this.generator = generator;
+    this.generatorParameters = generatorParameters;
+    this.nbThreads = nbThreads;
+    this.jvmOptions = jvmOptions;
+  }
+
+  /**
+   * Entry point of the JVM running one command : the peak heap and GC time are saved on exit in the file given by the
+   * scale.metrics system property.
+   */
+  public static void main(String[] args) {
+    String metricsPath = System.getProperty(METRICS_PROPERTY);
+    if (metricsPath != null)
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> saveMetrics(new File(metricsPath))));
+    FastaUtil.main(args);
+  }
+
+  /**
+   * Generate files of each size in a sub directory of workDir (unless already generated with the same parameters),
+   * and run the commands on them.
+   *
+   * @param nbLogLines number of searches log lines, 0 for one line per KB of fasta
+   * @param runNames   names of the runs to do, all runs if null or empty
+   */
+  public void run(File workDir, List<String> sizes, long nbLogLines, List<String> runNames) throws IOException, InterruptedException {
+    File resultsFile = new File(workDir, RESULTS_FILE_NAME);
+    if (!workDir.isDirectory() && !workDir.mkdirs())
+      throw new IOException("Can't create directory " + workDir.getAbsolutePath());
+    if (!resultsFile.exists())
+      Files.write(resultsFile.toPath(), List.of(RESULTS_HEADER), StandardCharsets.UTF_8);
+
+    for (String size : sizes) {
+      long sizeBytes = SyntheticData.parseSize(size);
+      File dir = new File(workDir, size.trim());
+      long lines = (nbLogLines > 0) ? nbLogLines : Math.max(1, sizeBytes / 1024);
+      long nbEntries = generate(dir, sizeBytes, lines);
+      File fasta = new File(dir, SyntheticData.FASTA_FILE_NAME);
+      File log = new File(dir, SyntheticData.SEARCHES_LOG_FILE_NAME);
+      File out = new File(dir, "out");
+      String threads = String.valueOf(nbThreads);
+
+      List<Run> runs = new ArrayList<>();
+      runs.add(new Run("shorten", nbEntries, fasta, CommandArguments.SHORTEN_COMMAND, "-i", path(fasta), "--threads", threads));
+      runs.add(new Run("fasta_stats", nbEntries, fasta, CommandArguments.FASTA_STATS_COMMAND, "-i", path(fasta), "--threads", threads,
+        "--json", path(new File(out, "stats.json"))));
+      runs.add(new Run("rem_empty", nbEntries, fasta, CommandArguments.REMOVE_EMPTY_COMMAND, "-i", path(fasta), "--threads", threads));
+      runs.add(new Run("cmp_duplicates", nbEntries, fasta, CommandArguments.DUPLICATE_CMP_COMMAND, "-i", path(fasta)));
+      runs.add(new Run("cmp_duplicates_external", nbEntries, fasta, CommandArguments.DUPLICATE_CMP_COMMAND, "-i", path(fasta),
+        "--max-memory", EXTERNAL_MAX_MEMORY, "--tmp-dir", path(out)));
+      runs.add(new Run("replace_duplicates", nbEntries, fasta, CommandArguments.DUPLICATE_REPLACE_COMMAND, "-i", path(fasta),
+        "-o", path(new File(out, "dedup.fasta"))));
+      runs.add(new Run("replace_duplicates_external", nbEntries, fasta, CommandArguments.DUPLICATE_REPLACE_COMMAND, "-i", path(fasta),
+        "-o", path(new File(out, "dedup.fasta")), "--max-memory", EXTERNAL_MAX_MEMORY, "--tmp-dir", path(out)));
+      runs.add(new Run("collapse_sequences", nbEntries, fasta, CommandArguments.COLLAPSE_SEQUENCES_COMMAND, "-i", path(fasta),
+        "-o", path(new File(out, "collapsed.fasta")), "--max-memory", EXTERNAL_MAX_MEMORY, "--tmp-dir", path(out)));
+      // extract_taxo output file is relative to the input file directory
+      runs.add(new Run("extract_taxo", nbEntries, fasta, CommandArguments.EXTRACT_TAXO_COMMAND, "-i", path(fasta), "-t", "_HUMAN",
+        "-o", out.getName() + File.separator + "human.fasta", "--threads", threads));
+      runs.add(new Run("extract_taxo_multi", nbEntries, fasta, CommandArguments.EXTRACT_TAXO_COMMAND, "-i", path(fasta), "-t", "HUMAN,MOUSE,RAT",
+        "--out-dir", path(out), "--threads", threads));
+      runs.add(new Run("pipeline", nbEntries, fasta, CommandArguments.PIPELINE_COMMAND, "-i", path(fasta), "-o", path(new File(out, "pipeline.fasta")),
+        "--steps", "rem_empty,dedup,taxo=_HUMAN"));
+      // next runs use the index
+      runs.add(new Run("index", nbEntries, fasta, CommandArguments.INDEX_COMMAND, "-i", path(fasta)));
+      runs.add(new Run("fetch", NB_FETCHED_ACCESSIONS, null, CommandArguments.FETCH_COMMAND, "-i", path(fasta),
+        "--acc-file", path(new File(dir, ACCESSIONS_FILE_NAME)), "-o", path(new File(out, "fetched.fasta"))));
+      runs.add(new Run("cmp_duplicates_indexed", nbEntries, fasta, CommandArguments.DUPLICATE_CMP_COMMAND, "-i", path(fasta)));
+      runs.add(new Run("extract_taxo_indexed", nbEntries, fasta, CommandArguments.EXTRACT_TAXO_COMMAND, "-i", path(fasta), "-t", "_HUMAN",
+        "-o", out.getName() + File.separator + "human.fasta"));
+      runs.add(new Run("db_usage", lines, log, CommandArguments.DB_USAGE_COMMAND, "-s", path(log),
+        "-m", path(new File(dir, SyntheticData.MASCOT_DAT_FILE_NAME)), "-o", path(new File(out, "usage.tsv")), "--threads", threads));
+      runs.add(new Run("db_usage_all", lines, log, CommandArguments.DB_USAGE_COMMAND, "-s", path(log), "-a",
+        "-o", path(new File(out, "usage_all.tsv")), "--threads", threads));
+      runs.add(new Run("db_usage_counts", lines, log, CommandArguments.DB_USAGE_COMMAND, "-s", path(log), "--counts", DBUsageLog.COUNTS_BY_MONTH,
+        "-o", path(new File(out, "usage_counts.tsv")), "--threads", threads));
+      runs.add(new Run("query_log", lines, log, CommandArguments.QUERY_LOG_COMMAND, "-s", path(log), "--group-by", "db,month", "--durations",
+        "-o", path(new File(out, "query_log.tsv")), "--threads", threads));
+
+      for (Run run : runs) {
+        if (runNames != null && !runNames.isEmpty() && !runNames.contains(run.name))
+          continue;
+        FileUtils.forceMkdir(out);
+        String result = execute(run, dir, size.trim());
+        Files.write(resultsFile.toPath(), List.of(result), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        cleanOutputs(dir, out);
+      }
+      Files.deleteIfExists(FastaIndex.indexFile(fasta).toPath());
+    }
+    logger.info("Results saved in " + resultsFile.getAbsolutePath());
+  }
+
+  /**
+   * Generate the files of one size in dir, unless they were already generated with the same parameters
+   *
+   * @return number of fasta entries
+   */
+  private long generate(File dir, long sizeBytes, long nbLogLines) throws IOException {
+    File generated = new File(dir, GENERATED_FILE_NAME);
+    String parameters = generatorParameters + " size=" + sizeBytes + " log-lines=" + nbLogLines;
+    Properties properties = new Properties();
+    if (generated.exists()) {
+      try (Reader reader = new FileReader(generated, StandardCharsets.UTF_8)) {
+        properties.load(reader);
+      }
+      if (parameters.equals(properties.getProperty("parameters")) && new File(dir, SyntheticData.FASTA_FILE_NAME).exists())
+        return Long.parseLong(properties.getProperty("entries"));
+    }
+
+    logger.info("Generate " + sizeBytes + " bytes fasta file and " + nbLogLines + " log lines in " + dir.getAbsolutePath());
+    Files.deleteIfExists(generated.toPath());
+    long start = System.nanoTime();
+    long nbEntries = generator.writeFiles(dir, Long.MAX_VALUE, sizeBytes, nbLogLines);
+    // accessions to fetch, spread over the file
+    List<String> accessions = new ArrayList<>();
+    for (int a = 0; a < NB_FETCHED_ACCESSIONS; a++)
+      accessions.add(generator.accession(a * nbEntries / NB_FETCHED_ACCESSIONS));
+    Files.write(new File(dir, ACCESSIONS_FILE_NAME).toPath(), accessions, StandardCharsets.ISO_8859_1);
+    logger.info("Generated " + nbEntries + " entries in " + formatSeconds(System.nanoTime() - start) + " s");
+
+    properties.setProperty("parameters", parameters);
+    properties.setProperty("entries", String.valueOf(nbEntries));
+    try (Writer writer = new FileWriter(generated, StandardCharsets.UTF_8)) {
+      properties.store(writer, "Synthetic files");
+    }
+    return nbEntries;
+  }
+
+  /**
+   * Run a command in a new JVM, its standard output being saved in the logs directory of dir
+   *
+   * @return result line
+   */
+  private String execute(Run run, File dir, String size) throws IOException, InterruptedException {
+    File logs = new File(dir, "logs");
+    FileUtils.forceMkdir(logs);
+    File metrics = new File(logs, run.name + ".metrics");
+    Files.deleteIfExists(metrics.toPath());
+
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+    command.addAll(jvmOptions);
+    command.add("-D" + METRICS_PROPERTY + "=" + metrics.getAbsolutePath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ScaleTest.class.getName());
+    command.addAll(run.args);
+
+    logger.info("Run " + run.name + " on " + size + " : " + String.join(" ", run.args));
+    long start = System.nanoTime();
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File(logs, run.name + ".log")).start();
+    int exitCode = process.waitFor();
+    long duration = System.nanoTime() - start;
+
+    Properties properties = new Properties();
+    if (metrics.exists()) {
+      try (Reader reader = new FileReader(metrics, StandardCharsets.UTF_8)) {
+        properties.load(reader);
+      }
+    }
+    long peakHeap = Long.parseLong(properties.getProperty("peakHeap", "-1"));
+    long gcTime = Long.parseLong(properties.getProperty("gcTime", "-1"));
+    double seconds = duration / 1e9;
+    long inputBytes = (run.input != null) ? run.input.length() : 0;
+    String result = String.join("\t", size, run.name, String.valueOf(exitCode), formatSeconds(duration), String.valueOf(run.nbItems),
+      String.format(Locale.ROOT, "%.0f", run.nbItems / seconds), String.format(Locale.ROOT, "%.1f", inputBytes / seconds / (1024 * 1024)),
+      (peakHeap >= 0) ? String.valueOf(peakHeap / (1024 * 1024)) : "", (gcTime >= 0) ? String.valueOf(gcTime) : "");
+    if (exitCode != 0)
+      logger.warn(run.name + " failed with exit code " + exitCode + ", see " + new File(logs, run.name + ".log").getAbsolutePath());
+    logger.info(result);
+    return result;
+  }
+
+  /**
+   * Delete files created by a run : files of the out directory, and files created next to the inputs.
+   * Inputs, index, logs and results are kept.
+   */
+  private static void cleanOutputs(File dir, File out) throws IOException {
+    FileUtils.deleteDirectory(out);
+    List<String> kept = Arrays.asList(SyntheticData.FASTA_FILE_NAME, SyntheticData.FASTA_FILE_NAME + FastaIndex.INDEX_EXTENSION,
+      SyntheticData.SEARCHES_LOG_FILE_NAME, SyntheticData.MASCOT_DAT_FILE_NAME, GENERATED_FILE_NAME, ACCESSIONS_FILE_NAME, "logs");
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!kept.contains(file.getName()))
+          FileUtils.forceDelete(file);
+      }
+    }
+  }
+
+  private static void saveMetrics(File file) {
+    Properties properties = new Properties();
+    properties.setProperty("peakHeap", String.valueOf(Metrics.peakHeap()));
+    properties.setProperty("gcTime", String.valueOf(Metrics.gcTime()));
+    try (Writer writer = new FileWriter(file, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    } catch (IOException e) {
+      // JVM is exiting : nothing else to do
+      System.err.println("Can't save metrics to " + file + " : " + e.getMessage());
+    }
+  }
+
+  private static String path(File file) {
+    return file.getAbsolutePath();
+  }
+
+  private static String formatSeconds(long nanos) {
+    return String.format(Locale.ROOT, "%.2f", nanos / 1e9);
+  }
+
+  /**
+   * One command run : FastaUtil arguments, number of processed items (entries, accessions or log lines) and main input
+   */
+  private static class Run {
+    final String name;
+    final long nbItems;
+    final File input;
+    final List<String> args;
+
+    Run(String name, long nbItems, File input, String... args) {
+      this.name = name;
+      this.nbItems = nbItems;
+      this.input = input;
+      this.args = Arrays.asList(args);
+    }
+  }
+}
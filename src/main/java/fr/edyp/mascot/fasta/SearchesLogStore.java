@@ -0,0 +1,1001 @@
+package fr.edyp.mascot.fasta;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Searches log loaded in memory by columns, to answer usage queries (searches by user, by database and period,
+ * durations, enzymes...) without parsing the log again for each one.
+ * Each search (line listing databases, not run by the monitor user) is a row. Text columns (databases, user, status,
+ * type, enzyme) are dictionary encoded : a row holds the int codes of values stored once in the dictionary of the
+ * column. Start time is kept as epoch day and second of day, duration in seconds.
+ *
+ * The store may be saved in a binary snapshot along with a fingerprint of the read part of the searches log, as
+ * the usage state of {@link DBUsageLog} : next runs only parse the lines appended since.
+ */
+public class SearchesLogStore {
+
+  private final static Logger logger = LoggerFactory.getLogger(SearchesLogStore.class);
+
+  private final static int MAGIC = 0x4D534C53; // "MSLS"
+  private final static int VERSION = 1;
+  // number of values of a column encoded at once in snapshot
+  private final static int COLUMN_BLOCK = 16 * 1024;
+  // maximum number of groups of a query
+  private final static int MAX_GROUPS = 1 << 24;
+
+  public final static String BY_DB = "db";
+  public final static String BY_USER = "user";
+  public final static String BY_STATUS = "status";
+  public final static String BY_TYPE = "type";
+  public final static String BY_ENZYME = "enzyme";
+  public final static String BY_DAY = "day";
+  public final static String BY_MONTH = "month";
+
+  // epoch day of the searches whose start time can't be parsed
+  final static int NO_DAY = Integer.MIN_VALUE;
+
+  private final Dictionary dbNames = new Dictionary();
+  private final Dictionary users = new Dictionary();
+  private final Dictionary statuses = new Dictionary();
+  private final Dictionary types = new Dictionary();
+  private final Dictionary enzymes = new Dictionary();
+  private final Columns columns = new Columns();
+
+  // read part of the searches log
+  private long position;
+  private long nbLines;
+  private long headCrc;
+  private long tailCrc;
+
+  /**
+   * Read searches log into a store. The log is read by chunks of whole lines, which are parsed in parallel when
+   * several threads are used, and appended in file order.
+   *
+   * @param snapshotFile file where the store is saved. If it exists and matches the searches log, only lines
+   *                     appended since previous run are read. May be null.
+   */
+  public static SearchesLogStore read(File searchesFile, File snapshotFile, int nbThreads) throws IOException {
+    boolean compressed = FastaIO.isGzip(searchesFile);
+    if (snapshotFile != null && compressed) {
+      logger.info(" Compressed searches log : snapshot is not used, whole file is read");
+      snapshotFile = null;
+    }
+    SearchesLogStore store = null;
+    if (snapshotFile != null && snapshotFile.exists())
+      store = load(snapshotFile, searchesFile);
+    boolean loaded = store != null;
+    if (!loaded)
+      store = new SearchesLogStore();
+    if (store.position > 0)
+      logger.info(" Start read searches log file. " + store.nbRows() + " searches before position " + store.position + " loaded from snapshot.");
+    else
+      logger.info(" Start read searches log file");
+
+    // last line may still be written : keep it for next run when snapshot is saved
+    long nbLinesRead = store.readLog(searchesFile, compressed, snapshotFile == null, nbThreads);
+    logger.info(" Read " + nbLinesRead + " lines, " + store.nbRows() + " searches in store");
+    if (snapshotFile != null && (nbLinesRead > 0 || !loaded))
+      store.save(snapshotFile, searchesFile);
+    return store;
+  }
+
+  /**
+   * @return number of searches in the store
+   */
+  public int nbRows() {
+    return columns.nbRows;
+  }
+
+  /**
+   * Read searches log from position to its end, appending found searches
+   *
+   * @param keepIncompleteLine if false, the last line is only read if it is terminated by a line separator
+   * @return number of read lines
+   */
+  private long readLog(File searchesFile, boolean compressed, boolean keepIncompleteLine, int nbThreads) throws IOException {
+    long nbLinesBefore = nbLines;
+    Metrics.startPhase("read " + searchesFile.getName(), compressed ? -1 : searchesFile.length() - position);
+    try (DBUsageLog.LogChunks chunks = compressed ? new DBUsageLog.StreamLogChunks(FastaIO.openInput(searchesFile))
+      : new DBUsageLog.FileLogChunks(searchesFile, position)) {
+      if (nbThreads <= 1) {
+        ByteBuffer chunk;
+        while ((chunk = chunks.next()) != null) {
+          ChunkParser parser = new ChunkParser(keepIncompleteLine);
+          parser.parse(chunk);
+          append(parser);
+        }
+      } else {
+        readParallel(searchesFile, chunks, keepIncompleteLine, nbThreads);
+      }
+    }
+    return nbLines - nbLinesBefore;
+  }
+
+  private void readParallel(File searchesFile, DBUsageLog.LogChunks chunks, boolean keepIncompleteLine, int nbThreads) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(nbThreads);
+    // Limit number of chunks in memory
+    int maxInFlight = nbThreads * 2;
+    ArrayDeque<Future<ChunkParser>> inFlight = new ArrayDeque<>();
+    try {
+      ByteBuffer next = chunks.next();
+      while (next != null || !inFlight.isEmpty()) {
+        while (next != null && inFlight.size() < maxInFlight) {
+          ByteBuffer chunk = next;
+          inFlight.addLast(pool.submit(() -> {
+            ChunkParser parser = new ChunkParser(keepIncompleteLine);
+            parser.parse(chunk);
+            return parser;
+          }));
+          next = chunks.next();
+        }
+        append(inFlight.removeFirst().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + searchesFile.getAbsolutePath(), e);
+    } catch (ExecutionException e) {
+      throw new IOException("Error reading " + searchesFile.getAbsolutePath(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Append searches of a chunk : codes of its dictionaries are replaced by codes of the store dictionaries
+   */
+  private void append(ChunkParser parser) {
+    columns.append(parser.columns, dbNames.merge(parser.dbNames), users.merge(parser.users), statuses.merge(parser.statuses),
+      types.merge(parser.types), enzymes.merge(parser.enzymes));
+    nbLines += parser.nbLines;
+    position += parser.completeLength;
+    Metrics.addLogLines(parser.nbLines);
+    Metrics.addBytesRead(parser.completeLength);
+  }
+
+  /**
+   * Searches selected by their values. Each unset criterion selects all searches.
+   */
+  public static class Filter {
+    private List<String> dbNames;
+    private List<String> users;
+    private List<String> statuses;
+    private List<String> types;
+    private List<String> enzymes;
+    private LocalDate from;
+    private LocalDate to;
+
+    /**
+     * Select searches of any of these databases
+     */
+    public void setDbNames(List<String> dbNames) {
+      this.dbNames = dbNames;
+    }
+
+    public void setUsers(List<String> users) {
+      this.users = users;
+    }
+
+    public void setStatuses(List<String> statuses) {
+      this.statuses = statuses;
+    }
+
+    public void setTypes(List<String> types) {
+      this.types = types;
+    }
+
+    public void setEnzymes(List<String> enzymes) {
+      this.enzymes = enzymes;
+    }
+
+    /**
+     * Select searches started between from and to (inclusive). Searches whose start time can't be parsed are
+     * then excluded.
+     *
+     * @param from first day, null for no lower bound
+     * @param to last day, null for no upper bound
+     */
+    public void setPeriod(LocalDate from, LocalDate to) {
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  /**
+   * @return indexes of the searches matching filter, in log order
+   */
+  public int[] select(Filter filter) {
+    boolean[] selectedDbs = dbNames.selected(filter.dbNames);
+    boolean[] selectedUsers = users.selected(filter.users);
+    boolean[] selectedStatuses = statuses.selected(filter.statuses);
+    boolean[] selectedTypes = types.selected(filter.types);
+    boolean[] selectedEnzymes = enzymes.selected(filter.enzymes);
+    boolean byDay = filter.from != null || filter.to != null;
+    int fromDay = (filter.from == null) ? NO_DAY + 1 : (int) filter.from.toEpochDay();
+    int toDay = (filter.to == null) ? Integer.MAX_VALUE : (int) filter.to.toEpochDay();
+
+    Columns c = columns;
+    int[] rows = new int[c.nbRows];
+    int n = 0;
+    for (int r = 0; r < c.nbRows; r++) {
+      if ((selectedUsers != null && !selectedUsers[c.users[r]]) || (selectedStatuses != null && !selectedStatuses[c.statuses[r]])
+        || (selectedTypes != null && !selectedTypes[c.types[r]]) || (selectedEnzymes != null && !selectedEnzymes[c.enzymes[r]]))
+        continue;
+      if (byDay && (c.days[r] < fromDay || c.days[r] > toDay))
+        continue;
+      if (selectedDbs != null && !hasDb(r, selectedDbs))
+        continue;
+      rows[n++] = r;
+    }
+    return Arrays.copyOf(rows, n);
+  }
+
+  private boolean hasDb(int row, boolean[] selectedDbs) {
+    for (int i = columns.dbStarts[row]; i < columns.dbStarts[row + 1]; i++) {
+      if (selectedDbs[columns.dbCodes[i]])
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Number of searches, and their durations, sharing the same values of the group by columns
+   */
+  public static class Group {
+    private final String[] values;
+    private final int count;
+    // sorted durations of the searches whose duration is known, null if not asked
+    private final int[] durations;
+
+    private Group(String[] values, int count, int[] durations) {
+      this.values = values;
+      this.count = count;
+      this.durations = durations;
+    }
+
+    /**
+     * @return values of the group by columns
+     */
+    public String[] values() {
+      return values;
+    }
+
+    public int count() {
+      return count;
+    }
+
+    public int nbDurations() {
+      return durations.length;
+    }
+
+    /**
+     * @param percent between 0 (exclusive) and 100 (inclusive)
+     * @return duration (in seconds) of the specified percentile (nearest rank) of the searches, -1 if no duration is known
+     */
+    public int durationPercentile(double percent) {
+      if (durations.length == 0)
+        return -1;
+      return durations[Math.max(0, (int) Math.ceil(percent / 100 * durations.length) - 1)];
+    }
+  }
+
+  /**
+   * Count searches of rows by values of the group by columns. A search of several databases is counted for each of
+   * them when grouped by database, and searches whose start time can't be parsed are ignored when grouped by day
+   * or month. Groups are sorted by value, as text for text columns and by date for day and month.
+   *
+   * @param groupBy up to two columns among {@link #BY_DB}, {@link #BY_USER}, {@link #BY_STATUS}, {@link #BY_TYPE},
+   *                {@link #BY_ENZYME}, {@link #BY_DAY} and {@link #BY_MONTH}. A single group of all rows if empty.
+   * @param withDurations true to keep durations of each group, needed for {@link Group#durationPercentile(double)}
+   */
+  public List<Group> groupBy(int[] rows, List<String> groupBy, boolean withDurations) {
+    if (groupBy.size() > 2)
+      throw new IllegalArgumentException("Searches may be grouped by at most two columns : " + groupBy);
+    GroupKeys first = groupBy.isEmpty() ? null : groupKeys(groupBy.get(0), rows);
+    GroupKeys second = groupBy.size() < 2 ? null : groupKeys(groupBy.get(1), rows);
+    int size1 = (first == null) ? 1 : first.size;
+    int size2 = (second == null) ? 1 : second.size;
+    if ((long) size1 * size2 > MAX_GROUPS)
+      throw new IllegalArgumentException("Too many groups (" + ((long) size1 * size2) + ") : group by fewer or other columns, or filter searches");
+
+    // counts by group, and durations of each group one after the other, starting at durationStarts
+    int nbGroups = size1 * size2;
+    int[] counts = new int[nbGroups];
+    int[] durationStarts = new int[nbGroups + 1];
+    int[] durations = null;
+    int[] keys1 = new int[Math.max(1, columns.maxDbs)];
+    int[] keys2 = new int[keys1.length];
+    for (int pass = 0; pass < (withDurations ? 2 : 1); pass++) {
+      if (pass == 1) {
+        for (int g = 0; g < nbGroups; g++)
+          durationStarts[g + 1] += durationStarts[g];
+        durations = new int[durationStarts[nbGroups]];
+      }
+      int[] fill = (pass == 0) ? null : Arrays.copyOf(durationStarts, nbGroups);
+      for (int r : rows) {
+        int n1 = (first == null) ? single(keys1) : first.keys(r, keys1);
+        int n2 = (second == null) ? single(keys2) : second.keys(r, keys2);
+        int duration = columns.durations[r];
+        for (int i = 0; i < n1; i++) {
+          for (int j = 0; j < n2; j++) {
+            int group = keys1[i] * size2 + keys2[j];
+            if (pass == 0) {
+              counts[group]++;
+              if (duration >= 0)
+                durationStarts[group + 1]++;
+            } else if (duration >= 0) {
+              durations[fill[group]++] = duration;
+            }
+          }
+        }
+      }
+    }
+
+    List<Group> groups = new ArrayList<>();
+    for (int g = 0; g < nbGroups; g++) {
+      if (counts[g] == 0)
+        continue;
+      int[] groupDurations = null;
+      if (withDurations) {
+        groupDurations = Arrays.copyOfRange(durations, durationStarts[g], durationStarts[g + 1]);
+        Arrays.sort(groupDurations);
+      }
+      groups.add(new Group(values(first, second, g / size2, g % size2), counts[g], groupDurations));
+    }
+    return groups;
+  }
+
+  private static int single(int[] keys) {
+    keys[0] = 0;
+    return 1;
+  }
+
+  private static String[] values(GroupKeys first, GroupKeys second, int key1, int key2) {
+    if (first == null)
+      return new String[0];
+    if (second == null)
+      return new String[]{first.value(key1)};
+    return new String[]{first.value(key1), second.value(key2)};
+  }
+
+  private GroupKeys groupKeys(String column, int[] rows) {
+    switch (column) {
+      case BY_DB:
+        return new GroupKeys(dbNames, null);
+      case BY_USER:
+        return new GroupKeys(users, columns.users);
+      case BY_STATUS:
+        return new GroupKeys(statuses, columns.statuses);
+      case BY_TYPE:
+        return new GroupKeys(types, columns.types);
+      case BY_ENZYME:
+        return new GroupKeys(enzymes, columns.enzymes);
+      case BY_DAY:
+      case BY_MONTH:
+        return new GroupKeys(rows, column.equals(BY_MONTH));
+      default:
+        throw new IllegalArgumentException("Unknown column " + column + ". Columns are " + String.join(", ", BY_DB, BY_USER, BY_STATUS,
+          BY_TYPE, BY_ENZYME, BY_DAY, BY_MONTH));
+    }
+  }
+
+  /**
+   * Keys (0 to size - 1, in the order of the values) of a group by column
+   */
+  private class GroupKeys {
+    private final int size;
+    // text columns : rank of the value of each code, codes of the rows (null for databases)
+    private final Dictionary dictionary;
+    private final int[] ranks;
+    private final String[] sortedValues;
+    private final int[] codes;
+    // day and month columns : first day of the selected rows, key of each day from first day
+    private final boolean byMonth;
+    private final int firstDay;
+    private final int[] dayKeys;
+
+    GroupKeys(Dictionary dictionary, int[] codes) {
+      this.dictionary = dictionary;
+      this.codes = codes;
+      this.size = dictionary.values.size();
+      Integer[] byValue = new Integer[size];
+      for (int i = 0; i < size; i++)
+        byValue[i] = i;
+      Arrays.sort(byValue, (a, b) -> dictionary.values.get(a).compareTo(dictionary.values.get(b)));
+      ranks = new int[size];
+      sortedValues = new String[size];
+      for (int rank = 0; rank < size; rank++) {
+        ranks[byValue[rank]] = rank;
+        sortedValues[rank] = dictionary.values.get(byValue[rank]);
+      }
+      byMonth = false;
+      firstDay = 0;
+      dayKeys = null;
+    }
+
+    GroupKeys(int[] rows, boolean byMonth) {
+      this.dictionary = null;
+      this.ranks = null;
+      this.sortedValues = null;
+      this.codes = null;
+      this.byMonth = byMonth;
+      int first = Integer.MAX_VALUE;
+      int last = Integer.MIN_VALUE;
+      for (int r : rows) {
+        int day = columns.days[r];
+        if (day != NO_DAY) {
+          first = Math.min(first, day);
+          last = Math.max(last, day);
+        }
+      }
+      if (first > last) {
+        firstDay = 0;
+        dayKeys = new int[0];
+        size = 0;
+        return;
+      }
+      if ((long) last - first >= MAX_GROUPS)
+        throw new IllegalArgumentException("Too many days between " + LocalDate.ofEpochDay(first) + " and " + LocalDate.ofEpochDay(last) + " : filter searches by period");
+      firstDay = first;
+      dayKeys = new int[last - first + 1];
+      if (!byMonth) {
+        for (int d = 0; d < dayKeys.length; d++)
+          dayKeys[d] = d;
+        size = dayKeys.length;
+        return;
+      }
+      YearMonth firstMonth = YearMonth.from(LocalDate.ofEpochDay(first));
+      LocalDate date = LocalDate.ofEpochDay(first);
+      for (int d = 0; d < dayKeys.length; d++, date = date.plusDays(1))
+        dayKeys[d] = (date.getYear() - firstMonth.getYear()) * 12 + date.getMonthValue() - firstMonth.getMonthValue();
+      size = dayKeys[dayKeys.length - 1] + 1;
+    }
+
+    /**
+     * Set keys of the row in keys
+     *
+     * @return number of keys : 0 if the row is ignored, several for a search of several databases
+     */
+    int keys(int row, int[] keys) {
+      if (dayKeys != null) {
+        int day = columns.days[row];
+        if (day == NO_DAY)
+          return 0;
+        keys[0] = dayKeys[day - firstDay];
+        return 1;
+      }
+      if (codes != null) {
+        keys[0] = ranks[codes[row]];
+        return 1;
+      }
+      int n = 0;
+      for (int i = columns.dbStarts[row]; i < columns.dbStarts[row + 1]; i++)
+        keys[n++] = ranks[columns.dbCodes[i]];
+      return n;
+    }
+
+    String value(int key) {
+      if (dictionary != null)
+        return sortedValues[key];
+      if (byMonth)
+        return YearMonth.from(LocalDate.ofEpochDay(firstDay)).plusMonths(key).toString();
+      return LocalDate.ofEpochDay(firstDay + key).toString();
+    }
+  }
+
+  /**
+   * Print number of searches matching filter by values of the group by columns, and their durations if asked,
+   * to outFile as tsv if not empty, to log otherwise
+   */
+  public void printQuery(Filter filter, List<String> groupBy, boolean withDurations, String outFile) throws IOException {
+    int[] rows = select(filter);
+    List<Group> groups = groupBy(rows, groupBy, withDurations);
+    logger.info(" " + rows.length + " searches selected in " + groups.size() + " groups");
+
+    List<String> header = new ArrayList<>();
+    for (String column : groupBy)
+      header.add(column.equals(BY_DB) ? "Database" : StringUtils.capitalize(column));
+    if (groupBy.isEmpty())
+      header.add("Searches");
+    header.add("Nb Searches");
+    if (withDurations)
+      header.addAll(List.of("Nb Durations", "Median Duration (s)", "P90 Duration (s)", "P99 Duration (s)", "Max Duration (s)"));
+
+    BufferedWriter writer = StringUtils.isNotEmpty(outFile) ? new BufferedWriter(new OutputStreamWriter(FastaIO.openOutput(new File(outFile)))) : null;
+    try {
+      printLine(writer, header);
+      for (Group group : groups) {
+        List<String> line = new ArrayList<>(Arrays.asList(group.values()));
+        if (groupBy.isEmpty())
+          line.add("All");
+        line.add(Integer.toString(group.count()));
+        if (withDurations) {
+          line.add(Integer.toString(group.nbDurations()));
+          for (double percent : new double[]{50, 90, 99, 100})
+            line.add(group.nbDurations() == 0 ? "-" : Integer.toString(group.durationPercentile(percent)));
+        }
+        printLine(writer, line);
+      }
+    } finally {
+      if (writer != null)
+        writer.close();
+    }
+  }
+
+  private static void printLine(BufferedWriter writer, List<String> values) throws IOException {
+    if (writer != null) {
+      writer.write(String.join("\t", values));
+      writer.write('\n');
+    } else {
+      logger.info(String.join("\t", values));
+    }
+  }
+
+  /**
+   * @return saved store, or null if it can't be used for the searches log
+   */
+  static SearchesLogStore load(File snapshotFile, File searchesFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        logger.info(" Snapshot " + snapshotFile.getAbsolutePath() + " has an unknown format : whole searches log is read");
+        return null;
+      }
+      SearchesLogStore store = new SearchesLogStore();
+      store.position = in.readLong();
+      store.nbLines = in.readLong();
+      store.headCrc = in.readLong();
+      store.tailCrc = in.readLong();
+      if (!store.matches(searchesFile)) {
+        logger.info(" Searches log was truncated or rotated since snapshot was saved : whole searches log is read");
+        return null;
+      }
+      for (Dictionary dictionary : store.dictionaries())
+        dictionary.read(in);
+      store.columns.read(in);
+      logger.debug(" Snapshot " + snapshotFile.getAbsolutePath() + " loaded up to position " + store.position);
+      return store;
+    } catch (EOFException e) {
+      logger.info(" Snapshot " + snapshotFile.getAbsolutePath() + " is truncated : whole searches log is read");
+      return null;
+    }
+  }
+
+  void save(File snapshotFile, File searchesFile) throws IOException {
+    headCrc = DBUsageLog.UsageState.crc(searchesFile, 0, Math.min(DBUsageLog.UsageState.HEAD_SIZE, position));
+    tailCrc = DBUsageLog.UsageState.crc(searchesFile, Math.max(0, position - DBUsageLog.UsageState.TAIL_SIZE), position);
+    File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(position);
+      out.writeLong(nbLines);
+      out.writeLong(headCrc);
+      out.writeLong(tailCrc);
+      for (Dictionary dictionary : dictionaries())
+        dictionary.write(out);
+      columns.write(out);
+    }
+    Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    logger.info(" Snapshot saved in " + snapshotFile.getAbsolutePath() + String.format(Locale.ENGLISH, " (%.1f MB) up to position ", snapshotFile.length() / 1e6) + position);
+  }
+
+  /**
+   * @return true if the searches log still starts with the part read up to position
+   */
+  private boolean matches(File searchesFile) throws IOException {
+    return searchesFile.length() >= position
+      && headCrc == DBUsageLog.UsageState.crc(searchesFile, 0, Math.min(DBUsageLog.UsageState.HEAD_SIZE, position))
+      && tailCrc == DBUsageLog.UsageState.crc(searchesFile, Math.max(0, position - DBUsageLog.UsageState.TAIL_SIZE), position);
+  }
+
+  private List<Dictionary> dictionaries() {
+    return List.of(dbNames, users, statuses, types, enzymes);
+  }
+
+  /**
+   * Distinct values of a text column, by code
+   */
+  private static class Dictionary {
+    private final List<String> values = new ArrayList<>();
+    private final HashMap<String, Integer> codes = new HashMap<>();
+
+    int code(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codes.put(value, code);
+      }
+      return code;
+    }
+
+    /**
+     * Add values of the dictionary of a chunk
+     *
+     * @return codes in this dictionary by id in chunk dictionary
+     */
+    int[] merge(AccessionDictionary chunkValues) {
+      int[] chunkCodes = new int[chunkValues.size()];
+      byte[] bytes = new byte[64];
+      for (int id = 0; id < chunkCodes.length; id++) {
+        if (bytes.length < chunkValues.length(id))
+          bytes = new byte[chunkValues.length(id)];
+        int length = chunkValues.copyTo(id, bytes, 0);
+        chunkCodes[id] = code(new String(bytes, 0, length, Charset.defaultCharset()));
+      }
+      return chunkCodes;
+    }
+
+    /**
+     * @return selected codes, null to select all codes
+     */
+    boolean[] selected(List<String> selectedValues) {
+      if (selectedValues == null || selectedValues.isEmpty())
+        return null;
+      boolean[] selected = new boolean[values.size()];
+      for (String value : selectedValues) {
+        Integer code = codes.get(value);
+        if (code != null)
+          selected[code] = true;
+      }
+      return selected;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(values.size());
+      for (String value : values)
+        out.writeUTF(value);
+    }
+
+    void read(DataInputStream in) throws IOException {
+      int size = in.readInt();
+      for (int i = 0; i < size; i++)
+        code(in.readUTF());
+    }
+  }
+
+  /**
+   * Columns of the searches : codes of text values, start time and duration. Databases of row r are
+   * dbCodes[dbStarts[r]] to dbCodes[dbStarts[r + 1] - 1].
+   */
+  private static class Columns {
+    int nbRows;
+    int[] users = new int[256];
+    int[] statuses = new int[256];
+    int[] types = new int[256];
+    int[] enzymes = new int[256];
+    int[] days = new int[256];
+    int[] seconds = new int[256];
+    int[] durations = new int[256];
+    int[] dbStarts = new int[257];
+    int[] dbCodes = new int[256];
+    int nbDbCodes;
+    // maximum number of databases of a row
+    int maxDbs;
+
+    void addDb(int code) {
+      if (nbDbCodes == dbCodes.length)
+        dbCodes = Arrays.copyOf(dbCodes, nbDbCodes * 2);
+      dbCodes[nbDbCodes++] = code;
+    }
+
+    /**
+     * Add a row, whose databases were added using {@link #addDb(int)}
+     */
+    void addRow(int user, int status, int type, int enzyme, int day, int second, int duration) {
+      ensureCapacity(nbRows + 1);
+      users[nbRows] = user;
+      statuses[nbRows] = status;
+      types[nbRows] = type;
+      enzymes[nbRows] = enzyme;
+      days[nbRows] = day;
+      seconds[nbRows] = second;
+      durations[nbRows] = duration;
+      maxDbs = Math.max(maxDbs, nbDbCodes - dbStarts[nbRows]);
+      dbStarts[++nbRows] = nbDbCodes;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity <= users.length)
+        return;
+      int length = Math.max(capacity, users.length * 2);
+      users = Arrays.copyOf(users, length);
+      statuses = Arrays.copyOf(statuses, length);
+      types = Arrays.copyOf(types, length);
+      enzymes = Arrays.copyOf(enzymes, length);
+      days = Arrays.copyOf(days, length);
+      seconds = Arrays.copyOf(seconds, length);
+      durations = Arrays.copyOf(durations, length);
+      dbStarts = Arrays.copyOf(dbStarts, length + 1);
+    }
+
+    /**
+     * Append rows of other columns, replacing their codes using the code maps
+     */
+    void append(Columns other, int[] dbMap, int[] userMap, int[] statusMap, int[] typeMap, int[] enzymeMap) {
+      ensureCapacity(nbRows + other.nbRows);
+      if (dbCodes.length < nbDbCodes + other.nbDbCodes)
+        dbCodes = Arrays.copyOf(dbCodes, Math.max(nbDbCodes + other.nbDbCodes, dbCodes.length * 2));
+      for (int i = 0; i < other.nbDbCodes; i++)
+        dbCodes[nbDbCodes + i] = dbMap[other.dbCodes[i]];
+      for (int r = 0; r < other.nbRows; r++) {
+        users[nbRows + r] = userMap[other.users[r]];
+        statuses[nbRows + r] = statusMap[other.statuses[r]];
+        types[nbRows + r] = typeMap[other.types[r]];
+        enzymes[nbRows + r] = enzymeMap[other.enzymes[r]];
+        dbStarts[nbRows + r + 1] = nbDbCodes + other.dbStarts[r + 1];
+      }
+      System.arraycopy(other.days, 0, days, nbRows, other.nbRows);
+      System.arraycopy(other.seconds, 0, seconds, nbRows, other.nbRows);
+      System.arraycopy(other.durations, 0, durations, nbRows, other.nbRows);
+      nbRows += other.nbRows;
+      nbDbCodes += other.nbDbCodes;
+      maxDbs = Math.max(maxDbs, other.maxDbs);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(nbRows);
+      out.writeInt(nbDbCodes);
+      writeColumn(out, users, nbRows);
+      writeColumn(out, statuses, nbRows);
+      writeColumn(out, types, nbRows);
+      writeColumn(out, enzymes, nbRows);
+      // days without start time are saved as the day before the first one, so that the column stays small
+      int firstDay = Integer.MAX_VALUE;
+      for (int r = 0; r < nbRows; r++) {
+        if (days[r] != NO_DAY)
+          firstDay = Math.min(firstDay, days[r]);
+      }
+      if (firstDay == Integer.MAX_VALUE)
+        firstDay = 1;
+      int[] savedDays = new int[nbRows];
+      for (int r = 0; r < nbRows; r++)
+        savedDays[r] = (days[r] == NO_DAY) ? firstDay - 1 : days[r];
+      out.writeInt(firstDay);
+      writeColumn(out, savedDays, nbRows);
+      writeColumn(out, seconds, nbRows);
+      writeColumn(out, durations, nbRows);
+      int[] nbDbs = new int[nbRows];
+      for (int r = 0; r < nbRows; r++)
+        nbDbs[r] = dbStarts[r + 1] - dbStarts[r];
+      writeColumn(out, nbDbs, nbRows);
+      writeColumn(out, dbCodes, nbDbCodes);
+    }
+
+    void read(DataInputStream in) throws IOException {
+      nbRows = in.readInt();
+      nbDbCodes = in.readInt();
+      users = readColumn(in, nbRows);
+      statuses = readColumn(in, nbRows);
+      types = readColumn(in, nbRows);
+      enzymes = readColumn(in, nbRows);
+      int firstDay = in.readInt();
+      days = readColumn(in, nbRows);
+      for (int r = 0; r < nbRows; r++) {
+        if (days[r] < firstDay)
+          days[r] = NO_DAY;
+      }
+      seconds = readColumn(in, nbRows);
+      durations = readColumn(in, nbRows);
+      int[] nbDbs = readColumn(in, nbRows);
+      dbStarts = new int[users.length + 1];
+      for (int r = 0; r < nbRows; r++) {
+        dbStarts[r + 1] = dbStarts[r] + nbDbs[r];
+        maxDbs = Math.max(maxDbs, nbDbs[r]);
+      }
+      dbCodes = readColumn(in, nbDbCodes);
+    }
+
+    /**
+     * Write the n first values as differences to their minimum, using as few bytes by value as possible
+     */
+    private static void writeColumn(DataOutputStream out, int[] values, int n) throws IOException {
+      int min = 0;
+      int max = 0;
+      if (n > 0) {
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+          min = Math.min(min, values[i]);
+          max = Math.max(max, values[i]);
+        }
+      }
+      long range = (long) max - min;
+      int width = (range == 0) ? 0 : (range < 1 << 8) ? 1 : (range < 1 << 16) ? 2 : (range < 1 << 24) ? 3 : 4;
+      out.writeInt(min);
+      out.writeByte(width);
+      byte[] bytes = new byte[COLUMN_BLOCK * width];
+      for (int start = 0; start < n; start += COLUMN_BLOCK) {
+        int end = Math.min(n, start + COLUMN_BLOCK);
+        int p = 0;
+        for (int i = start; i < end; i++) {
+          long value = (long) values[i] - min;
+          for (int shift = (width - 1) * 8; shift >= 0; shift -= 8)
+            bytes[p++] = (byte) (value >>> shift);
+        }
+        out.write(bytes, 0, p);
+      }
+    }
+
+    private static int[] readColumn(DataInputStream in, int n) throws IOException {
+      int min = in.readInt();
+      int width = in.readUnsignedByte();
+      if (width > 4)
+        throw new IOException("Invalid snapshot column width " + width);
+      int[] values = new int[Math.max(n, 256)];
+      byte[] bytes = new byte[COLUMN_BLOCK * width];
+      for (int start = 0; start < n; start += COLUMN_BLOCK) {
+        int end = Math.min(n, start + COLUMN_BLOCK);
+        in.readFully(bytes, 0, (end - start) * width);
+        int p = 0;
+        for (int i = start; i < end; i++) {
+          long value = 0;
+          for (int b = 0; b < width; b++)
+            value = (value << 8) | (bytes[p++] & 0xFF);
+          values[i] = (int) (value + min);
+        }
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Searches found in one part of the searches log. Lines are parsed as bytes, as by {@link DBUsageLog.LogChunkParser} :
+   * text values are stored in chunk dictionaries and only decoded when the chunk is appended to the store.
+   */
+  private static class ChunkParser {
+    private final boolean keepIncompleteLine;
+    private final AccessionDictionary dbNames = new AccessionDictionary(256);
+    private final AccessionDictionary users = new AccessionDictionary(256);
+    private final AccessionDictionary statuses = new AccessionDictionary(16);
+    private final AccessionDictionary types = new AccessionDictionary(16);
+    private final AccessionDictionary enzymes = new AccessionDictionary(16);
+    private final Columns columns = new Columns();
+    private final DBUsageLog.StartTimeParser startTimes = new DBUsageLog.StartTimeParser();
+    private long nbLines;
+    // length of the complete lines of the chunk
+    private int completeLength;
+
+    private final int[] fieldStarts = new int[DBUsageLog.COL_ENZYME + 1];
+    private final int[] fieldEnds = new int[DBUsageLog.COL_ENZYME + 1];
+    private int nbFields;
+
+    ChunkParser(boolean keepIncompleteLine) {
+      this.keepIncompleteLine = keepIncompleteLine;
+    }
+
+    void parse(ByteBuffer buf) {
+      int end = buf.limit();
+      int lineStart = 0;
+      while (lineStart < end) {
+        int eol = FastaReader.indexOf(buf, (byte) '\n', lineStart, end);
+        if (eol < 0 && !keepIncompleteLine)
+          break;
+        int lineEnd = (eol < 0) ? end : eol;
+        if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+          lineEnd--;
+        nbLines++;
+        parseLine(buf, lineStart, lineEnd);
+        lineStart = (eol < 0) ? end : eol + 1;
+        if (eol >= 0)
+          completeLength = lineStart;
+      }
+    }
+
+    /**
+     * Add the search of the line found in buf between from (inclusive) and to (exclusive). Lines are selected as
+     * by db_usage : databases and user should be there, and the user should not be the monitor user.
+     */
+    private void parseLine(ByteBuffer buf, int from, int to) {
+      // as with String.split, trailing empty fields are ignored
+      nbFields = 0;
+      int field = 0;
+      int start = from;
+      for (int i = from; ; i++) {
+        if (i == to || buf.get(i) == '\t') {
+          fieldStarts[field] = start;
+          fieldEnds[field] = i;
+          if (i > start)
+            nbFields = field + 1;
+          if (i == to || field == DBUsageLog.COL_ENZYME)
+            break;
+          field++;
+          start = i + 1;
+        }
+      }
+      if (nbFields <= DBUsageLog.COL_USER || DBUsageLog.LogChunkParser.isBlank(buf, fieldStarts[DBUsageLog.COL_DBNAMES], fieldEnds[DBUsageLog.COL_DBNAMES]))
+        return;
+      if (DBUsageLog.LogChunkParser.startsWith(buf, fieldStarts[DBUsageLog.COL_USER], fieldEnds[DBUsageLog.COL_USER], DBUsageLog.MONITOR_USER_PREFIX_BYTES))
+        return;
+
+      // as with String.split, trailing empty names are ignored
+      int namesStart = fieldStarts[DBUsageLog.COL_DBNAMES];
+      int namesEnd = fieldEnds[DBUsageLog.COL_DBNAMES];
+      while (namesEnd > namesStart && buf.get(namesEnd - 1) == ',')
+        namesEnd--;
+      int nameStart = namesStart;
+      for (int i = namesStart; i <= namesEnd && namesEnd > namesStart; i++) {
+        if (i == namesEnd || buf.get(i) == ',') {
+          columns.addDb(code(dbNames, buf, nameStart, i));
+          nameStart = i + 1;
+        }
+      }
+
+      int day = NO_DAY;
+      int second = -1;
+      if (nbFields > DBUsageLog.COL_START_TIME) {
+        LocalDate date = startTimes.parse(buf, fieldStarts[DBUsageLog.COL_START_TIME], fieldEnds[DBUsageLog.COL_START_TIME]);
+        if (date != null) {
+          day = (int) date.toEpochDay();
+          second = startTimes.secondOfDay();
+        }
+      }
+      columns.addRow(code(users, buf, DBUsageLog.COL_USER), code(statuses, buf, DBUsageLog.COL_STATUS), code(types, buf, DBUsageLog.COL_TYPE),
+        code(enzymes, buf, DBUsageLog.COL_ENZYME), day, second, duration(buf));
+    }
+
+    /**
+     * @return code of the value of the column in the line, empty if the column is missing
+     */
+    private int code(AccessionDictionary dictionary, ByteBuffer buf, int column) {
+      return (column < nbFields) ? code(dictionary, buf, fieldStarts[column], fieldEnds[column]) : code(dictionary, buf, 0, 0);
+    }
+
+    private static int code(AccessionDictionary dictionary, ByteBuffer buf, int from, int to) {
+      int id = dictionary.add(buf, from, to);
+      return (id < 0) ? -id - 1 : id;
+    }
+
+    /**
+     * @return duration of the search in seconds, -1 if it is missing or invalid
+     */
+    private int duration(ByteBuffer buf) {
+      if (nbFields <= DBUsageLog.COL_DURATION)
+        return -1;
+      int from = fieldStarts[DBUsageLog.COL_DURATION];
+      int to = fieldEnds[DBUsageLog.COL_DURATION];
+      while (from < to && (buf.get(from) & 0xFF) <= ' ')
+        from++;
+      while (to > from && (buf.get(to - 1) & 0xFF) <= ' ')
+        to--;
+      if (from == to || to - from > 9)
+        return -1;
+      int duration = 0;
+      for (int i = from; i < to; i++) {
+        byte b = buf.get(i);
+        if (b < '0' || b > '9')
+          return -1;
+        duration = duration * 10 + b - '0';
+      }
+      return duration;
+    }
+  }
+}
@@ -0,0 +1,651 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Write each distinct sequence of a fasta file once : entries whose sequence is identical (line separators excluded)
+ * to the sequence of a previous entry are removed, and their accessions are added to the header of this first entry
+ * (as MERGED=acc1,acc2) or saved in a tab separated mapping file.
+ *
+ * As {@link ExternalDuplicateManager} does for accessions, position, sequence digest and accession of each entry are
+ * written to temporary partition files, using the digest to choose the partition : identical sequences are in the same
+ * partition. Partitions are resolved one at a time and results are merged in file order while the fasta file is
+ * read again, so that heap usage is bounded by the specified memory limit whatever the size of the file : partitions
+ * too large to be resolved in memory are split again, and temporary files are merged in several passes rather than
+ * opening more than {@link ExternalDuplicateManager#MAX_OPEN_FILES} of them.
+ * Sequences with the same digest and length are identical unless verify is used, which reads removed sequences back
+ * to compare them (not possible for compressed files). Entries without sequence are never removed.
+ */
+public class SequenceCollapser {
+
+  private final static Logger logger = LoggerFactory.getLogger(SequenceCollapser.class);
+
+  public final static String MERGED_TAG = " MERGED=";
+  public final static String MAPPING_EXTENSION = ".mapping.tsv";
+  private final static byte[] MERGED_TAG_BYTES = MERGED_TAG.getBytes(StandardCharsets.ISO_8859_1);
+
+  // Rough values used to choose the number of partitions
+  private final static int ESTIMATED_ENTRY_FILE_SIZE = 250;
+  // digest table (2 to 4 slots of 28 bytes) and removed entry (kept and removed positions, accession start, order),
+  // accession bytes being counted in the spill file size
+  private final static int ESTIMATED_ENTRY_MEMORY = 136;
+  // spilled entry : position, digest, length and accession length
+  private final static int SPILL_RECORD_SIZE = 30;
+
+  private final long maxMemory;
+  private final File tmpDir;
+  private boolean mappingFile;
+  private boolean verify;
+  private HeaderFormat format = HeaderFormat.DEFAULT;
+
+  private long nbEntries;
+  private long nbRemoved;
+  private long nbResidues;
+  private long nbRemovedResidues;
+
+  /**
+   * @param maxMemory heap (in bytes) which may be used to find identical sequences
+   * @param tmpDir directory to create temporary files in, system default if null
+   */
+  public SequenceCollapser(long maxMemory, File tmpDir) {
+    this.maxMemory = maxMemory;
+    this.tmpDir = tmpDir;
+  }
+
+  /**
+   * @param mappingFile true to save merged accessions in &lt;output&gt;.mapping.tsv rather than in headers
+   */
+  public void setMappingFile(boolean mappingFile) {
+    this.mappingFile = mappingFile;
+  }
+
+  /**
+   * @param verify true to compare removed sequences to the kept one, rather than trusting their digest
+   */
+  public void setVerify(boolean verify) {
+    this.verify = verify;
+  }
+
+  /**
+   * @param format format of headers, giving the accession of entries
+   */
+  public void setHeaderFormat(HeaderFormat format) {
+    this.format = format;
+  }
+
+  /**
+   * @return file the merged accessions are saved to when {@link #setMappingFile(boolean)} is used
+   */
+  public static File mappingFile(File fastaOut) {
+    return new File(fastaOut.getPath() + MAPPING_EXTENSION);
+  }
+
+  public void collapse(File fastaIn, File fastaOut) throws IOException {
+    logger.info("Collapse identical sequences of " + fastaIn.getAbsolutePath() + " into " + fastaOut.getAbsolutePath());
+    Metrics.startReading(fastaIn);
+    nbEntries = nbRemoved = nbResidues = nbRemovedResidues = 0;
+    Partitions partitions = spill(fastaIn);
+    try {
+      boolean readBack = verify && !FastaIO.isGzip(fastaIn);
+      if (verify && !readBack)
+        logger.info("Compressed input : entries with the same sequence digest are considered identical");
+      try (FileChannel channel = readBack ? FileChannel.open(fastaIn.toPath(), StandardOpenOption.READ) : null) {
+        // split partitions are added at the end
+        for (int p = 0; p < partitions.size(); p++) {
+          if (!partitions.split(p, maxMemory))
+            resolve(partitions, p, channel);
+        }
+      }
+      partitions.deleteSpillFiles();
+      // removed and merged files are read together
+      partitions.removed.reduce(ExternalDuplicateManager.MAX_OPEN_FILES / 2, maxMemory);
+      partitions.merged.reduce(ExternalDuplicateManager.MAX_OPEN_FILES / 2, maxMemory);
+
+      Metrics.startReading(fastaIn);
+      HeaderFormat.Parser header = format.newParser();
+      try (SortedRecords removed = new SortedRecords(partitions.removed, maxMemory / 2);
+           SortedRecords merged = new SortedRecords(partitions.merged, maxMemory / 2);
+           FastaReader reader = new FastaReader(fastaIn); FastaWriter writer = new FastaWriter(fastaOut);
+           FastaWriter mapping = mappingFile ? new FastaWriter(mappingFile(fastaOut)) : null) {
+        while (reader.next()) {
+          ByteBuffer buf = reader.buffer();
+          long offset = reader.recordOffset();
+          if (reader.hasHeader() && removed.peek() != null && removed.peek().key == offset) {
+            removed.next();
+            continue;
+          }
+          if (!reader.hasHeader() || merged.peek() == null || merged.peek().key != offset) {
+            writer.writeRecordLines(reader, reader.recordStart());
+            continue;
+          }
+
+          int headerEnd = reader.headerEnd();
+          writer.write(buf, reader.recordStart(), headerEnd);
+          header.parse(buf, reader.recordStart(), headerEnd);
+          boolean first = true;
+          while (merged.peek() != null && merged.peek().key == offset) {
+            Record record = merged.peek();
+            if (mapping != null) {
+              mapping.write(buf, header.start(HeaderFormat.ACCESSION), header.end(HeaderFormat.ACCESSION));
+              mapping.write('\t');
+              mapping.write(record.accession, 0, record.accessionLength);
+              mapping.write('\n');
+            } else {
+              if (first)
+                writer.write(MERGED_TAG_BYTES);
+              else
+                writer.write(',');
+              writer.write(record.accession, 0, record.accessionLength);
+            }
+            first = false;
+            merged.next();
+          }
+          writer.write('\n');
+          writer.writeRecordLines(reader, reader.sequenceStart());
+        }
+        logger.info(" ** Read " + reader.throughput());
+      }
+      if (mappingFile)
+        logger.info(" Merged accessions saved in " + mappingFile(fastaOut).getAbsolutePath());
+      logger.info(String.format(Locale.ENGLISH, "\n ** Removed %d of %d entries (%.2f%%), %d of %d residues (%.2f%%)", nbRemoved, nbEntries,
+        percent(nbRemoved, nbEntries), nbRemovedResidues, nbResidues, percent(nbRemovedResidues, nbResidues)));
+    } finally {
+      partitions.deleteAll();
+    }
+  }
+
+  private static double percent(long part, long total) {
+    return total > 0 ? part * 100.0 / total : 0;
+  }
+
+  public long nbRemoved() {
+    return nbRemoved;
+  }
+
+  public long nbRemovedResidues() {
+    return nbRemovedResidues;
+  }
+
+  /**
+   * Write (position, sequence digest, accession) of all entries with a sequence into partition files.
+   */
+  private Partitions spill(File fasta) throws IOException {
+    long estimatedMemory = FastaIO.estimatedSize(fasta) / ESTIMATED_ENTRY_FILE_SIZE * ESTIMATED_ENTRY_MEMORY;
+    int nbPartitions = (int) Math.max(1, Math.min(ExternalDuplicateManager.MAX_OPEN_FILES, estimatedMemory / Math.max(1, maxMemory / 2) + 1));
+    logger.info(" Spill entries into " + nbPartitions + " partition(s) in " + (tmpDir == null ? System.getProperty("java.io.tmpdir") : tmpDir.getAbsolutePath()));
+
+    Partitions partitions = new Partitions(tmpDir);
+    SequenceDigester digester = new SequenceDigester();
+    HeaderFormat.Parser header = format.newParser();
+    byte[] accession = new byte[256];
+    DataOutputStream[] outs = null;
+    try {
+      outs = partitions.create(nbPartitions, 0, maxMemory);
+      try (FastaReader reader = new FastaReader(fasta)) {
+        while (reader.next()) {
+          if (!reader.hasHeader())
+            continue;
+          nbEntries++;
+          ByteBuffer buf = reader.buffer();
+          digester.digest(buf, reader.sequenceStart(), reader.recordEnd());
+          nbResidues += digester.length();
+          if (digester.length() == 0)
+            continue;
+          header.parse(buf, reader.recordStart(), reader.headerEnd());
+          int accStart = header.start(HeaderFormat.ACCESSION);
+          int accEnd = header.end(HeaderFormat.ACCESSION);
+          int accLength = accEnd - accStart;
+          if (accLength > 0xFFFF)
+            throw new IOException("Accession too long at position " + reader.recordOffset());
+
+          int p = partition(digester.high(), 0, nbPartitions);
+          DataOutputStream out = outs[p];
+          out.writeLong(reader.recordOffset());
+          out.writeLong(digester.high());
+          out.writeLong(digester.low());
+          out.writeInt(digester.length());
+          accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+          buf.get(accStart, accession, 0, accLength);
+          out.writeShort(accLength);
+          out.write(accession, 0, accLength);
+          partitions.counts[p]++;
+        }
+        logger.info(" ** Read " + reader.throughput());
+      }
+    } catch (IOException | RuntimeException e) {
+      partitions.deleteAll();
+      throw e;
+    } finally {
+      Partitions.close(outs);
+    }
+    return partitions;
+  }
+
+  /**
+   * @param level number of times the partition of the digest was split : each level uses another mix of the digest,
+   *              so that entries of a partition are spread when it is split again
+   * @return partition of an entry whose digest starts with high
+   */
+  private static int partition(long high, int level, int nbPartitions) {
+    for (int l = 0; l < level; l++) {
+      high ^= high >>> 33;
+      high *= 0xFF51AFD7ED558CCDL;
+      high ^= high >>> 33;
+    }
+    return (int) Long.remainderUnsigned(high, nbPartitions);
+  }
+
+  /**
+   * Find entries of the partition whose sequence was already found. Their position is written (in file order) to the
+   * removed file, and (position of the kept entry, accession) to the merged file, sorted on kept entry position.
+   */
+  private void resolve(Partitions partitions, int p, FileChannel channel) throws IOException {
+    int count = (int) partitions.counts[p];
+    DigestTable table = new DigestTable(count);
+    SequenceDigester digester = new SequenceDigester();
+    // sized for all entries to be removed, as counted in ESTIMATED_ENTRY_MEMORY : accessions are appended to one array
+    long[] keptOffsets = new long[count];
+    long[] removedOffsets = new long[count];
+    int[] accessionStarts = new int[count + 1];
+    byte[] accessions = new byte[(int) (partitions.spillFiles[p].length() - (long) count * SPILL_RECORD_SIZE)];
+    int nbPartitionRemoved = 0;
+    try (DataInputStream in = partitions.openSpill(p); DataOutputStream removedOut = partitions.removed.create()) {
+      byte[] accession = new byte[256];
+      for (int i = 0; i < count; i++) {
+        long offset = in.readLong();
+        long high = in.readLong();
+        long low = in.readLong();
+        int length = in.readInt();
+        int accLength = in.readUnsignedShort();
+        accession = FastaDuplicateManager.ensureCapacity(accession, accLength);
+        in.readFully(accession, 0, accLength);
+
+        long keptOffset = table.putIfAbsent(high, low, length, offset);
+        if (keptOffset < 0)
+          continue;
+        if (channel != null) {
+          digester.digestAt(channel, keptOffset);
+          if (!digester.sameSequenceAt(channel, offset)) {
+            logger.warn("-- Same digest but different sequences at positions " + keptOffset + " and " + offset + " : both entries are kept");
+            continue;
+          }
+        }
+        keptOffsets[nbPartitionRemoved] = keptOffset;
+        removedOffsets[nbPartitionRemoved] = offset;
+        int accessionStart = accessionStarts[nbPartitionRemoved];
+        System.arraycopy(accession, 0, accessions, accessionStart, accLength);
+        nbPartitionRemoved++;
+        accessionStarts[nbPartitionRemoved] = accessionStart + accLength;
+        removedOut.writeLong(offset);
+        nbRemovedResidues += length;
+        Metrics.addDuplicates(1);
+      }
+    }
+
+    // merged accessions of a kept entry are in file order
+    int[] order = new int[nbPartitionRemoved];
+    for (int i = 0; i < nbPartitionRemoved; i++)
+      order[i] = i;
+    long[] kept = keptOffsets;
+    long[] removed = removedOffsets;
+    FastaIndex.sort(order, nbPartitionRemoved, (i, j) -> kept[i] != kept[j] ? Long.compare(kept[i], kept[j]) : Long.compare(removed[i], removed[j]));
+    try (DataOutputStream mergedOut = partitions.merged.create()) {
+      for (int i : order) {
+        mergedOut.writeLong(keptOffsets[i]);
+        mergedOut.writeShort(accessionStarts[i + 1] - accessionStarts[i]);
+        mergedOut.write(accessions, accessionStarts[i], accessionStarts[i + 1] - accessionStarts[i]);
+      }
+    }
+    partitions.removed.setCount(nbPartitionRemoved);
+    partitions.merged.setCount(nbPartitionRemoved);
+    nbRemoved += nbPartitionRemoved;
+    logger.debug(" partition " + p + " : " + count + " entries, " + nbPartitionRemoved + " removed. Used " + ((table.memoryUsage() + 24L * count + accessions.length) / (1024 * 1024)) + " MB");
+  }
+
+  /**
+   * Open addressing hash table of (digest, length) to the position of the first entry with this sequence
+   */
+  private static class DigestTable {
+    private final long[] highs;
+    private final long[] lows;
+    private final int[] lengths;
+    private final long[] offsets;
+    private final int mask;
+
+    DigestTable(int expectedSize) {
+      int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+      highs = new long[capacity];
+      lows = new long[capacity];
+      lengths = new int[capacity];
+      offsets = new long[capacity];
+      Arrays.fill(offsets, -1);
+      mask = capacity - 1;
+    }
+
+    /**
+     * @return position of the entry with the same sequence, -1 if none (offset is then added)
+     */
+    long putIfAbsent(long high, long low, int length, long offset) {
+      // partitions are chosen on high : use low to spread entries
+      int slot = (int) (low ^ (low >>> 32)) & mask;
+      while (offsets[slot] >= 0) {
+        if (highs[slot] == high && lows[slot] == low && lengths[slot] == length)
+          return offsets[slot];
+        slot = (slot + 1) & mask;
+      }
+      highs[slot] = high;
+      lows[slot] = low;
+      lengths[slot] = length;
+      offsets[slot] = offset;
+      return -1;
+    }
+
+    long memoryUsage() {
+      return 28L * offsets.length;
+    }
+  }
+
+  /**
+   * Temporary files : spilled entries by partition, removed entries and merged accessions.
+   */
+  private static class Partitions {
+    final File tmpDir;
+    File[] spillFiles = new File[16];
+    long[] counts = new long[16];
+    int[] levels = new int[16];
+    int size;
+    final RecordFiles removed;
+    final RecordFiles merged;
+
+    Partitions(File tmpDir) {
+      this.tmpDir = tmpDir;
+      removed = new RecordFiles(".removed", false, tmpDir);
+      merged = new RecordFiles(".merged", true, tmpDir);
+    }
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * Add nbPartitions empty partitions
+     *
+     * @return streams to write entries of the new partitions, to be closed by the caller
+     */
+    DataOutputStream[] create(int nbPartitions, int level, long maxMemory) throws IOException {
+      int bufferSize = (int) Math.max(4096, Math.min(64 * 1024, maxMemory / 4 / nbPartitions));
+      DataOutputStream[] outs = new DataOutputStream[nbPartitions];
+      try {
+        for (int p = 0; p < nbPartitions; p++) {
+          if (size == spillFiles.length) {
+            spillFiles = Arrays.copyOf(spillFiles, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+          }
+          spillFiles[size] = File.createTempFile("mascot-seq-" + size + "-", ".entries", tmpDir);
+          levels[size] = level;
+          size++;
+          outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFiles[size - 1]), bufferSize));
+        }
+      } catch (IOException e) {
+        close(outs);
+        throw e;
+      }
+      return outs;
+    }
+
+    /**
+     * @return heap needed to resolve partition p, if all its entries are removed
+     */
+    long memoryUsage(int p) {
+      return spillFiles[p].length() + counts[p] * ESTIMATED_ENTRY_MEMORY;
+    }
+
+    /**
+     * Split partition p into new partitions, added at the end, if it is too large to be resolved using maxMemory.
+     * Partition p is then empty.
+     *
+     * @return true if partition p was split
+     */
+    boolean split(int p, long maxMemory) throws IOException {
+      long memory = memoryUsage(p);
+      // arrays of a partition are indexed by int
+      long partitionMemory = Math.max(1, Math.min(Integer.MAX_VALUE / 2, maxMemory / 2));
+      if (memory <= partitionMemory || counts[p] < 2)
+        return false;
+      if (levels[p] >= ExternalDuplicateManager.MAX_SPLIT_LEVEL) {
+        logger.warn(" !!! Partition " + p + " needs about " + (memory / (1024 * 1024)) + " MB : its sequences can't be spread any more");
+        return false;
+      }
+
+      int nbParts = (int) Math.max(2, Math.min(ExternalDuplicateManager.MAX_OPEN_FILES, memory / partitionMemory + 1));
+      int level = levels[p] + 1;
+      int first = size;
+      logger.debug(" partition " + p + " needs about " + (memory / (1024 * 1024)) + " MB : split into " + nbParts + " partitions");
+      DataOutputStream[] outs = null;
+      try (DataInputStream in = openSpill(p)) {
+        outs = create(nbParts, level, maxMemory);
+        byte[] record = new byte[SPILL_RECORD_SIZE + 256];
+        for (long i = 0; i < counts[p]; i++) {
+          in.readFully(record, 0, SPILL_RECORD_SIZE);
+          int accLength = ((record[SPILL_RECORD_SIZE - 2] & 0xFF) << 8) | (record[SPILL_RECORD_SIZE - 1] & 0xFF);
+          record = FastaDuplicateManager.ensureCapacity(record, SPILL_RECORD_SIZE + accLength);
+          in.readFully(record, SPILL_RECORD_SIZE, accLength);
+
+          // the digest follows the position
+          long high = ByteBuffer.wrap(record, 8, 8).getLong();
+          int q = partition(high, level, nbParts);
+          outs[q].write(record, 0, SPILL_RECORD_SIZE + accLength);
+          counts[first + q]++;
+        }
+      } finally {
+        close(outs);
+      }
+      RecordFiles.delete(spillFiles[p]);
+      counts[p] = 0;
+      return true;
+    }
+
+    DataInputStream openSpill(int p) throws IOException {
+      return new DataInputStream(new BufferedInputStream(new FileInputStream(spillFiles[p]), 64 * 1024));
+    }
+
+    void deleteSpillFiles() {
+      for (int p = 0; p < size; p++)
+        RecordFiles.delete(spillFiles[p]);
+    }
+
+    void deleteAll() {
+      deleteSpillFiles();
+      removed.deleteAll();
+      merged.deleteAll();
+    }
+
+    static void close(DataOutputStream[] outs) throws IOException {
+      if (outs == null)
+        return;
+      for (DataOutputStream out : outs) {
+        if (out != null)
+          out.close();
+      }
+    }
+  }
+
+  /**
+   * Temporary files of records, each one sorted on position
+   */
+  private static class RecordFiles {
+    final String suffix;
+    final boolean withAccession;
+    final File tmpDir;
+    final List<File> files = new ArrayList<>();
+    final List<Long> counts = new ArrayList<>();
+
+    RecordFiles(String suffix, boolean withAccession, File tmpDir) {
+      this.suffix = suffix;
+      this.withAccession = withAccession;
+      this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Add a file, its number of records being set once written by {@link #setCount(long)}
+     */
+    DataOutputStream create() throws IOException {
+      File file = File.createTempFile("mascot-seq-" + files.size() + "-", suffix, tmpDir);
+      files.add(file);
+      counts.add(0L);
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    void setCount(long count) {
+      counts.set(counts.size() - 1, count);
+    }
+
+    /**
+     * Merge files, at most maxFiles at a time, until there are no more than maxFiles
+     */
+    void reduce(int maxFiles, long maxMemory) throws IOException {
+      // empty files are not merged
+      for (int i = files.size() - 1; i >= 0; i--) {
+        if (counts.get(i) == 0) {
+          delete(files.remove(i));
+          counts.remove(i);
+        }
+      }
+      while (files.size() > maxFiles) {
+        logger.debug(" merge " + files.size() + " " + suffix + " files");
+        List<File> mergedFiles = new ArrayList<>(files);
+        List<Long> mergedCounts = new ArrayList<>(counts);
+        files.clear();
+        counts.clear();
+        for (int from = 0; from < mergedFiles.size(); from += maxFiles) {
+          int to = Math.min(mergedFiles.size(), from + maxFiles);
+          long count = 0;
+          try (SortedRecords records = new SortedRecords(mergedFiles.subList(from, to), mergedCounts.subList(from, to), withAccession, maxMemory);
+               DataOutputStream out = create()) {
+            Record record;
+            while ((record = records.peek()) != null) {
+              record.write(out);
+              count++;
+              records.next();
+            }
+          }
+          setCount(count);
+          for (int i = from; i < to; i++)
+            delete(mergedFiles.get(i));
+        }
+      }
+    }
+
+    void deleteAll() {
+      for (File f : files)
+        delete(f);
+    }
+
+    static void delete(File f) {
+      if (f != null && f.exists() && !f.delete())
+        logger.warn("Unable to delete temporary file " + f.getAbsolutePath());
+    }
+  }
+
+  /**
+   * A removed entry position, or a merged accession with the position of the entry it is merged into
+   */
+  private static class Record {
+    final DataInputStream in;
+    final boolean withAccession;
+    long remaining;
+    long key;
+    byte[] accession = new byte[256];
+    int accessionLength;
+
+    Record(DataInputStream in, long count, boolean withAccession) {
+      this.in = in;
+      this.remaining = count;
+      this.withAccession = withAccession;
+    }
+
+    boolean read() throws IOException {
+      if (remaining == 0)
+        return false;
+      remaining--;
+      key = in.readLong();
+      if (withAccession) {
+        accessionLength = in.readUnsignedShort();
+        accession = FastaDuplicateManager.ensureCapacity(accession, accessionLength);
+        in.readFully(accession, 0, accessionLength);
+      }
+      return true;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeLong(key);
+      if (withAccession) {
+        out.writeShort(accessionLength);
+        out.write(accession, 0, accessionLength);
+      }
+    }
+  }
+
+  /**
+   * Merge records of several files in position order.
+   */
+  private static class SortedRecords implements Closeable {
+    private final PriorityQueue<Record> queue = new PriorityQueue<>(Comparator.comparingLong(r -> r.key));
+    private final Record[] records;
+
+    SortedRecords(RecordFiles files, long maxMemory) throws IOException {
+      this(files.files, files.counts, files.withAccession, maxMemory);
+    }
+
+    SortedRecords(List<File> files, List<Long> counts, boolean withAccession, long maxMemory) throws IOException {
+      int bufferSize = (int) Math.max(4096, Math.min(64 * 1024, maxMemory / 4 / Math.max(1, files.size())));
+      records = new Record[files.size()];
+      try {
+        for (int p = 0; p < files.size(); p++) {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files.get(p)), bufferSize));
+          records[p] = new Record(in, counts.get(p), withAccession);
+          if (records[p].read())
+            queue.add(records[p]);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return next record in position order, null if none
+     */
+    Record peek() {
+      return queue.peek();
+    }
+
+    void next() throws IOException {
+      Record record = queue.poll();
+      if (record != null && record.read())
+        queue.add(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Record record : records) {
+        if (record != null)
+          record.in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compute a 128 bits (MD5) digest of fasta sequences, line separators excluded.
+ * Residues of the last digested sequence are kept so they can be compared to another sequence read
+ * back from the file when two digests are equal.
+ * An instance should be used by a single thread.
+ */
+public class SequenceDigester {
+
+  private final MessageDigest md5;
+  private final byte[] digest = new byte[16];
+  private byte[] residues = new byte[4096];
+  private int length;
+  private long high;
+  private long low;
+
+  public SequenceDigester() {
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 digest is not available", e);
+    }
+  }
+
+  /**
+   * Digest sequence lines found in buf between from (inclusive) and to (exclusive).
+   */
+  public void digest(ByteBuffer buf, int from, int to) {
+    if (residues.length < to - from)
+      residues = new byte[Math.max(to - from, residues.length * 2)];
+    int len = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buf.get(i);
+      if (b != '\n' && b != '\r')
+        residues[len++] = b;
+    }
+    length = len;
+    md5.update(residues, 0, len);
+    try {
+      md5.digest(digest, 0, digest.length);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    high = toLong(digest, 0);
+    low = toLong(digest, 8);
+  }
+
+  /**
+   * Digest the sequence of the entry starting at specified position in the file.
+   *
+   * @param channel fasta file to read entry from
+   * @param recordOffset position of the entry header line in the file
+   */
+  public void digestAt(FileChannel channel, long recordOffset) throws IOException {
+    ByteBuffer record = FastaReader.readRecordAt(channel, recordOffset);
+    int eol = FastaReader.indexOf(record, (byte) '\n', 0, record.limit());
+    int from = (eol < 0) ? record.limit() : eol + 1;
+    digest(record, from, record.limit());
+  }
+
+  /**
+   * @return first 64 bits of the last computed digest
+   */
+  public long high() {
+    return high;
+  }
+
+  /**
+   * @return last 64 bits of the last computed digest
+   */
+  public long low() {
+    return low;
+  }
+
+  /**
+   * @return number of residues of the last digested sequence
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Compare the last digested sequence to the sequence of the entry starting at specified position in the file.
+   *
+   * @param channel fasta file to read entry from
+   * @param recordOffset position of the entry header line in the file
+   */
+  public boolean sameSequenceAt(FileChannel channel, long recordOffset) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    long pos = recordOffset;
+    boolean inHeader = true;
+    boolean lineStart = false;
+    int nbCompared = 0;
+    while (true) {
+      buf.clear();
+      int n = channel.read(buf, pos);
+      if (n <= 0)
+        return nbCompared == length;
+      for (int i = 0; i < n; i++) {
+        byte b = buf.get(i);
+        if (inHeader) {
+          inHeader = b != '\n';
+        } else if (lineStart && b == '>') {
+          return nbCompared == length; //next entry reached
+        } else if (b != '\n' && b != '\r') {
+          if (nbCompared == length || residues[nbCompared] != b)
+            return false;
+          nbCompared++;
+        }
+        lineStart = b == '\n';
+      }
+      pos += n;
+    }
+  }
+
+  private static long toLong(byte[] bytes, int from) {
+    long value = 0;
+    for (int i = from; i < from + 8; i++)
+      value = (value << 8) | (bytes[i] & 0xFF);
+    return value;
+  }
+}
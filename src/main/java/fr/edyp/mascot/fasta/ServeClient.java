@@ -0,0 +1,91 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Thin client of {@link FastaServer} : send a command line, with the current directory to resolve relative paths
+ * against, and write the output of the command as it is received. The exit status is the one of the command.
+ *
+ * This class doesn't use any library (logging, command line parsing) so that the client JVM starts as fast as possible.
+ * Usage : ServeClient [--socket=&lt;path&gt;] &lt;command&gt; &lt;options&gt;
+ */
+public class ServeClient {
+
+  public final static String DEFAULT_SOCKET_NAME = "mascot-swissknife.sock";
+
+  // frames sent by the server : standard output or error data (length + bytes) or exit status of the command
+  final static byte OUT_FRAME = 1;
+  final static byte ERR_FRAME = 2;
+  final static byte EXIT_FRAME = 3;
+
+  private final static String SOCKET_OPTION = "--socket=";
+
+  public static void main(String[] args) {
+    Path socket = defaultSocket();
+    int first = 0;
+    if (args.length > 0 && args[0].startsWith(SOCKET_OPTION)) {
+      socket = Path.of(args[0].substring(SOCKET_OPTION.length()));
+      first = 1;
+    }
+    int status;
+    try {
+      status = send(socket, Arrays.copyOfRange(args, first, args.length));
+    } catch (IOException e) {
+      System.err.println("Can't run command on server " + socket + " : " + e.getMessage() + ". Is it started (serve command) ?");
+      status = 1;
+    }
+    System.exit(status);
+  }
+
+  /**
+   * @return socket used when none is specified : mascot-swissknife.sock of the temporary directory
+   */
+  public static Path defaultSocket() {
+    return Path.of(System.getProperty("java.io.tmpdir"), DEFAULT_SOCKET_NAME);
+  }
+
+  /**
+   * Run args on the server listening on socket, writing the command output to System.out and System.err.
+   *
+   * @return exit status of the command
+   */
+  public static int send(Path socket, String[] args) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeUTF(new File("").getAbsolutePath());
+      out.writeInt(args.length);
+      for (String arg : args)
+        out.writeUTF(arg);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+      byte[] data = new byte[64 * 1024];
+      while (true) {
+        int type = in.read();
+        if (type == EXIT_FRAME)
+          return in.readInt();
+        if (type != OUT_FRAME && type != ERR_FRAME)
+          throw new EOFException(type < 0 ? "server closed the connection" : "unexpected frame " + type);
+        int length = in.readInt();
+        if (length > data.length)
+          data = new byte[length];
+        in.readFully(data, 0, length);
+        PrintStream target = (type == OUT_FRAME) ? System.out : System.err;
+        target.write(data, 0, length);
+        target.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package fr.edyp.mascot.fasta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic generator of synthetic inputs : UniProt like fasta files, and the Mascot searches log and mascot.dat
+ * files of databases. Files generated with the same seed and parameters are identical.
+ * Each fasta entry is generated from its own random source, derived from the seed and the entry number, so that
+ * the accession of a previous entry can be generated again to create a duplicate : memory use doesn't depend on the
+ * number of entries.
+ */
+public class SyntheticData {
+
+  public final static String DEFAULT_TAXO_MIX = "HUMAN:30,MOUSE:15,RAT:10,BOVIN:5,YEAST:10,ECOLI:10,ARATH:10,DROME:5,CAEEL:5";
+  public final static List<String> DEFAULT_DATABASES = List.of("SwissProt", "TrEMBL", "contaminants", "Human_2021", "Mouse_2020", "Yeast", "ECOLI_K12", "Old_DB");
+  public final static String FASTA_FILE_NAME = "synthetic.fasta";
+  public final static String SEARCHES_LOG_FILE_NAME = "searches.log";
+  public final static String MASCOT_DAT_FILE_NAME = "mascot.dat";
+
+  // 32 residues, the most frequent ones being repeated : a residue is chosen with 5 random bits
+  private final static byte[] AMINO_ACIDS = FastaReader.toBytes("ACDEFGHIKLMNPQRSTVWYAGLSEVKTILRD");
+  private final static byte[] ALPHANUM = FastaReader.toBytes("ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789");
+  private final static int LINE_WIDTH = 60;
+  private final static int MAX_SEQUENCE_LENGTH = 5000;
+  private final static long ACCESSION_STREAM = 0x5DEECE66DL;
+  // Mascot writes start time as C ctime : day of month is padded with a space
+  private final static DateTimeFormatter LOG_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH);
+
+  private final long seed;
+  private double duplicateRate = 0.01;
+  private double emptyRate = 0.001;
+  private int accessionLength = 6;
+  private String[] mnemos;
+  private byte[][] mnemoBytes;
+  private int[] cumulativeWeights;
+  private int accessionMnemo;
+
+  public SyntheticData(long seed) {
+    this.seed = seed;
+    setTaxoMix(DEFAULT_TAXO_MIX);
+  }
+
+  /**
+   * @param duplicateRate part of the entries whose accession is the accession of a previous entry
+   */
+  public void setDuplicateRate(double duplicateRate) {
+    this.duplicateRate = duplicateRate;
+  }
+
+  /**
+   * @param emptyRate part of the entries without sequence
+   */
+  public void setEmptyRate(double emptyRate) {
+    this.emptyRate = emptyRate;
+  }
+
+  /**
+   * @param accessionLength number of characters of the accession identifier (P12345 in sp|P12345|ABC_HUMAN)
+   */
+  public void setAccessionLength(int accessionLength) {
+    if (accessionLength < 1 || accessionLength > 100)
+      throw new IllegalArgumentException("Accession length should be between 1 and 100");
+    this.accessionLength = accessionLength;
+  }
+
+  /**
+   * @param taxoMix comma separated taxonomy mnemonics with their weight, as HUMAN:30,MOUSE:10. Weight is 1 if not specified.
+   */
+  public void setTaxoMix(String taxoMix) {
+    String[] parts = taxoMix.split(",");
+    mnemos = new String[parts.length];
+    mnemoBytes = new byte[parts.length][];
+    cumulativeWeights = new int[parts.length];
+    int total = 0;
+    for (int i = 0; i < parts.length; i++) {
+      String[] mnemoWeight = parts[i].trim().split(":");
+      mnemos[i] = mnemoWeight[0].trim();
+      mnemoBytes[i] = FastaReader.toBytes(mnemos[i]);
+      int weight = (mnemoWeight.length > 1) ? Integer.parseInt(mnemoWeight[1].trim()) : 1;
+      if (mnemos[i].isEmpty() || weight <= 0)
+        throw new IllegalArgumentException("Invalid taxonomy mix " + taxoMix + " : expected MNEMO:weight,MNEMO:weight...");
+      total += weight;
+      cumulativeWeights[i] = total;
+    }
+  }
+
+  /**
+   * Write a fasta file, a searches log and a mascot.dat file, using the default databases, in the specified directory.
+   *
+   * @param maxBytes maximum fasta file size, 0 or less for no limit
+   * @return number of fasta entries
+   */
+  public long writeFiles(File dir, long nbEntries, long maxBytes, long nbLogLines) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create directory " + dir.getAbsolutePath());
+    long nbWritten;
+    try (FastaWriter writer = new FastaWriter(new File(dir, FASTA_FILE_NAME))) {
+      nbWritten = writeFasta(writer, nbEntries, maxBytes);
+    }
+    try (FastaWriter writer = new FastaWriter(new File(dir, SEARCHES_LOG_FILE_NAME))) {
+      writeSearchesLog(writer, nbLogLines, DEFAULT_DATABASES);
+    }
+    try (FastaWriter writer = new FastaWriter(new File(dir, MASCOT_DAT_FILE_NAME))) {
+      writeMascotDat(writer, DEFAULT_DATABASES);
+    }
+    return nbWritten;
+  }
+
+  /**
+   * Write fasta entries as "&gt;sp|P12345|ABC_HUMAN Description OS=... OX=... GN=... PE=1 SV=1" followed by sequence
+   * lines of 60 residues, until nbEntries entries or maxBytes bytes are written.
+   *
+   * @param maxBytes maximum file size, 0 or less for no limit. Last entry is complete : file may be slightly larger.
+   * @return number of written entries
+   */
+  public long writeFasta(FastaWriter writer, long nbEntries, long maxBytes) throws IOException {
+    byte[] accession = new byte[maxAccessionLength()];
+    long e = 0;
+    for (; e < nbEntries && (maxBytes <= 0 || writer.bytesWritten() < maxBytes); e++) {
+      SplittableRandom random = new SplittableRandom(mix(seed, e));
+      // duplicate : accession of a previous entry
+      long accessionEntry = (e > 0 && random.nextDouble() < duplicateRate) ? random.nextLong(e) : e;
+      int length = accession(accessionEntry, accession);
+      int mnemo = accessionMnemo;
+      writer.write('>');
+      writer.write(accession, 0, length);
+      writer.write(FastaReader.toBytes(" Uncharacterized protein "));
+      writeRandom(writer, random, ALPHANUM, 6);
+      writer.write(FastaReader.toBytes(" OS=Organism " + mnemos[mnemo] + " OX=" + (9606 + mnemo) + " GN="));
+      writeRandom(writer, random, ALPHANUM, 5);
+      writer.write(FastaReader.toBytes(" PE=" + (1 + random.nextInt(5)) + " SV=1\n"));
+      if (random.nextDouble() >= emptyRate)
+        writeSequence(writer, random, Math.min(MAX_SEQUENCE_LENGTH, 50 + (int) Math.abs(random.nextGaussian() * 350)));
+    }
+    return e;
+  }
+
+  /**
+   * Write searches log lines (16 tab separated columns) of searches started every few minutes from 2015 on one to
+   * three of the specified databases. About 3% of lines are monitor searches, 0.5% have no databases,
+   * 0.2% have an invalid start time and 0.1% are truncated.
+   *
+   * @return number of written lines
+   */
+  public long writeSearchesLog(FastaWriter writer, long nbLines, List<String> databases) throws IOException {
+    SplittableRandom random = new SplittableRandom(mix(seed, -1));
+    LocalDateTime time = LocalDateTime.of(2015, 1, 1, 0, 0);
+    StringBuilder line = new StringBuilder(512);
+    for (long l = 0; l < nbLines; l++) {
+      time = time.plusSeconds(random.nextInt(840));
+      line.setLength(0);
+      int kind = random.nextInt(1000);
+      String user = (kind < 30) ? "Monitor Test DB user" : "user" + random.nextInt(50);
+      line.append(1000 + l).append('\t').append(random.nextInt(30000)).append('\t');
+      if (kind < 30 || kind >= 35) {
+        int nbDbs = 1 + random.nextInt(3);
+        for (int d = 0; d < nbDbs; d++)
+          line.append(d == 0 ? "" : ",").append(databases.get(random.nextInt(databases.size())));
+      }
+      line.append('\t').append(user).append('\t').append(user).append("@example.org");
+      if (kind == 999) {
+        // truncated line
+        writer.write(FastaReader.toBytes(line.append('\n').toString()));
+        continue;
+      }
+      line.append("\tSearch ").append(l).append("\t../data/").append(time.toLocalDate().toString().replace("-", "")).append("/F").append(l).append(".dat\t")
+        .append((kind >= 35 && kind < 37) ? "not a date" : LOG_DATE_FORMAT.format(time))
+        .append('\t').append(random.nextInt(3600)).append("\tUser read last result\t").append(random.nextInt(2))
+        .append("\tMIS\tTrypsin/P\t192.168.0.").append(random.nextInt(255)).append('\t').append(random.nextInt(100))
+        .append("\tsample").append(l).append(".mgf\n");
+      writer.write(FastaReader.toBytes(line.toString()));
+    }
+    return nbLines;
+  }
+
+  /**
+   * Write a mascot.dat file whose Databases section lists the specified databases but the last one (deleted database).
+   * One database out of four is inactive.
+   */
+  public void writeMascotDat(FastaWriter writer, List<String> databases) throws IOException {
+    StringBuilder sb = new StringBuilder("Options\nend\nDatabases\n");
+    for (int d = 0; d < databases.size() - 1; d++) {
+      String name = databases.get(d);
+      sb.append(d % 4 == 3 ? "# " : "").append(name).append('\t').append("../sequence/").append(name).append("/current/")
+        .append(name).append("_*.fasta\tAA\t0\t0\t1\t0\t0\t0\t0\t0\t0\t21\t1\n");
+    }
+    sb.append("end\n");
+    writer.write(FastaReader.toBytes(sb.toString()));
+  }
+
+  /**
+   * @return accession of the entry e written by {@link #writeFasta}, as sp|P12345|ABC_HUMAN
+   */
+  public String accession(long e) {
+    byte[] accession = new byte[maxAccessionLength()];
+    return new String(accession, 0, accession(e, accession), StandardCharsets.ISO_8859_1);
+  }
+
+  private int maxAccessionLength() {
+    return accessionLength * 2 + 16 + Arrays.stream(mnemoBytes).mapToInt(m -> m.length).max().orElse(0);
+  }
+
+  /**
+   * Generate accession of entry e in dest. Index of the taxonomy mnemonic of the entry is set in accessionMnemo.
+   *
+   * @return accession length
+   */
+  private int accession(long e, byte[] dest) {
+    SplittableRandom random = new SplittableRandom(mix(seed ^ ACCESSION_STREAM, e));
+    int weight = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int mnemo = 0;
+    while (cumulativeWeights[mnemo] <= weight)
+      mnemo++;
+    boolean reviewed = random.nextInt(4) == 0;
+    int length = 0;
+    dest[length++] = (byte) (reviewed ? 's' : 't');
+    dest[length++] = (byte) (reviewed ? 'p' : 'r');
+    dest[length++] = '|';
+    int idStart = length;
+    for (int i = 0; i < accessionLength; i++)
+      dest[length++] = ALPHANUM[random.nextInt(ALPHANUM.length)];
+    int idEnd = length;
+    dest[length++] = '|';
+    if (reviewed) {
+      int nameLength = 3 + random.nextInt(3);
+      for (int i = 0; i < nameLength; i++)
+        dest[length++] = ALPHANUM[random.nextInt(ALPHANUM.length)];
+    } else {
+      System.arraycopy(dest, idStart, dest, length, idEnd - idStart);
+      length += idEnd - idStart;
+    }
+    dest[length++] = '_';
+    System.arraycopy(mnemoBytes[mnemo], 0, dest, length, mnemoBytes[mnemo].length);
+    accessionMnemo = mnemo;
+    return length + mnemoBytes[mnemo].length;
+  }
+
+  private static void writeSequence(FastaWriter writer, SplittableRandom random, int length) throws IOException {
+    byte[] line = new byte[LINE_WIDTH + 1];
+    int i = 0;
+    while (i < length) {
+      int n = Math.min(LINE_WIDTH, length - i);
+      // 5 bits of a random long per residue
+      long bits = 0;
+      for (int r = 0; r < n; r++) {
+        if (r % 12 == 0)
+          bits = random.nextLong();
+        line[r] = AMINO_ACIDS[(int) (bits & 0x1F)];
+        bits >>>= 5;
+      }
+      line[n] = '\n';
+      writer.write(line, 0, n + 1);
+      i += n;
+    }
+  }
+
+  private static void writeRandom(FastaWriter writer, SplittableRandom random, byte[] chars, int length) throws IOException {
+    for (int i = 0; i < length; i++)
+      writer.write(chars[random.nextInt(chars.length)]);
+  }
+
+  /**
+   * @return seed of the random source of one item, from the global seed and the item number (as SplitMix64)
+   */
+  private static long mix(long seed, long item) {
+    long z = seed + (item + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * @return number of bytes of a size given as a number followed by an optional unit K, M, G or T (as 500M or 10G)
+   */
+  public static long parseSize(String size) {
+    String value = size.trim().toUpperCase(Locale.ROOT);
+    long unit = 1;
+    int unitIndex = Arrays.asList('K', 'M', 'G', 'T').indexOf(value.isEmpty() ? ' ' : value.charAt(value.length() - 1));
+    if (unitIndex >= 0) {
+      unit = 1L << (10 * (unitIndex + 1));
+      value = value.substring(0, value.length() - 1);
+    }
+    try {
+      return (long) (Double.parseDouble(value) * unit);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid size " + size + " : expected a number followed by K, M, G or T");
+    }
+  }
+}
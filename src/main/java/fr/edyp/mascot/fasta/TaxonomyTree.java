@@ -0,0 +1,211 @@
+package fr.edyp.mascot.fasta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * NCBI taxonomy tree read from the nodes.dmp file of the taxdump archive (taxid | parent taxid | rank | ...).
+ * Taxa are numbered in depth first order : all the descendants of a taxon have a number between its own number
+ * and the number of its last descendant, so that checking whether a taxon belongs to a clade is two comparisons.
+ * Numbers are kept in int arrays indexed by taxid. Taxids merged into another one (merged.dmp of the same directory,
+ * if any) have the numbers of the taxid they were merged into.
+ */
+public class TaxonomyTree {
+
+  private final static Logger logger = LoggerFactory.getLogger(TaxonomyTree.class);
+
+  public final static String MERGED_FILE_NAME = "merged.dmp";
+
+  // depth first number of each taxid and of its last descendant, -1 for unknown taxids
+  private int[] starts;
+  private int[] ends;
+  private final int nbTaxa;
+
+  private TaxonomyTree(int[] starts, int[] ends, int nbTaxa) {
+    this.starts = starts;
+    this.ends = ends;
+    this.nbTaxa = nbTaxa;
+  }
+
+  /**
+   * Read the tree from nodes.dmp, and merged taxids from merged.dmp of the same directory if it exists
+   */
+  public static TaxonomyTree load(File nodesFile) throws IOException {
+    logger.info("Load taxonomy tree from " + nodesFile.getAbsolutePath());
+    long start = System.currentTimeMillis();
+    TaxidPairs nodes = TaxidPairs.read(nodesFile);
+    int maxTaxid = 0;
+    for (int i = 0; i < nodes.size; i++)
+      maxTaxid = Math.max(maxTaxid, Math.max(nodes.firsts[i], nodes.seconds[i]));
+
+    // children of each taxid, from childStarts[taxid] to childStarts[taxid + 1]
+    int[] childStarts = new int[maxTaxid + 2];
+    for (int i = 0; i < nodes.size; i++) {
+      if (nodes.firsts[i] != nodes.seconds[i])
+        childStarts[nodes.seconds[i] + 1]++;
+    }
+    for (int t = 0; t <= maxTaxid; t++)
+      childStarts[t + 1] += childStarts[t];
+    int[] children = new int[childStarts[maxTaxid + 1]];
+    int[] cursors = Arrays.copyOf(childStarts, maxTaxid + 1);
+    for (int i = 0; i < nodes.size; i++) {
+      if (nodes.firsts[i] != nodes.seconds[i])
+        children[cursors[nodes.seconds[i]]++] = nodes.firsts[i];
+    }
+
+    int[] starts = new int[maxTaxid + 1];
+    int[] ends = new int[maxTaxid + 1];
+    Arrays.fill(starts, -1);
+    Arrays.fill(ends, -1);
+    System.arraycopy(childStarts, 0, cursors, 0, maxTaxid + 1);
+    int[] stack = new int[nodes.size + 1];
+    int number = 0;
+    // roots are their own parent (taxid 1 in NCBI taxonomy)
+    for (int i = 0; i < nodes.size; i++) {
+      int root = nodes.firsts[i];
+      if (root != nodes.seconds[i] || starts[root] >= 0)
+        continue;
+      int depth = 0;
+      starts[root] = number++;
+      stack[depth++] = root;
+      while (depth > 0) {
+        int taxid = stack[depth - 1];
+        if (cursors[taxid] < childStarts[taxid + 1]) {
+          int child = children[cursors[taxid]++];
+          if (starts[child] < 0 && depth < stack.length) {
+            starts[child] = number++;
+            stack[depth++] = child;
+          }
+        } else {
+          ends[taxid] = number - 1;
+          depth--;
+        }
+      }
+    }
+    if (number < nodes.size)
+      logger.warn(" !!! " + (nodes.size - number) + " taxa of " + nodesFile.getName() + " are not linked to a root and will be ignored");
+
+    TaxonomyTree tree = new TaxonomyTree(starts, ends, number);
+    File mergedFile = new File(nodesFile.getAbsoluteFile().getParentFile(), MERGED_FILE_NAME);
+    if (mergedFile.exists())
+      tree.addMerged(TaxidPairs.read(mergedFile));
+    logger.info(" ** Taxonomy tree : " + number + " taxa loaded in " + (System.currentTimeMillis() - start) + " ms");
+    return tree;
+  }
+
+  /**
+   * Old taxids get the numbers of the taxid they were merged into
+   */
+  private void addMerged(TaxidPairs merged) {
+    int maxTaxid = starts.length - 1;
+    for (int i = 0; i < merged.size; i++)
+      maxTaxid = Math.max(maxTaxid, merged.firsts[i]);
+    if (maxTaxid >= starts.length) {
+      int length = starts.length;
+      starts = Arrays.copyOf(starts, maxTaxid + 1);
+      ends = Arrays.copyOf(ends, maxTaxid + 1);
+      Arrays.fill(starts, length, starts.length, -1);
+      Arrays.fill(ends, length, ends.length, -1);
+    }
+    int nbMerged = 0;
+    for (int i = 0; i < merged.size; i++) {
+      int taxid = merged.seconds[i];
+      if (contains(taxid) && !contains(merged.firsts[i])) {
+        starts[merged.firsts[i]] = starts[taxid];
+        ends[merged.firsts[i]] = ends[taxid];
+        nbMerged++;
+      }
+    }
+    logger.info(" ** " + nbMerged + " merged taxids");
+  }
+
+  /**
+   * @return true if taxid is a taxon of the tree (or was merged into one)
+   */
+  public boolean contains(int taxid) {
+    return taxid >= 0 && taxid < starts.length && starts[taxid] >= 0;
+  }
+
+  /**
+   * @return true if taxid is the ancestor or one of its descendants
+   */
+  public boolean isInClade(int taxid, int ancestor) {
+    if (!contains(taxid) || !contains(ancestor))
+      return false;
+    int number = starts[taxid];
+    return number >= starts[ancestor] && number <= ends[ancestor];
+  }
+
+  /**
+   * @return number of taxa of the clade of taxid (taxid and its descendants), 0 if taxid is unknown
+   */
+  public int cladeSize(int taxid) {
+    return contains(taxid) ? ends[taxid] - starts[taxid] + 1 : 0;
+  }
+
+  /**
+   * @return number of taxa of the tree, merged taxids excluded
+   */
+  public int size() {
+    return nbTaxa;
+  }
+
+  /**
+   * First two fields of all lines of a .dmp file, read as taxids
+   */
+  private static class TaxidPairs {
+    private int[] firsts = new int[1024];
+    private int[] seconds = new int[1024];
+    private int size;
+
+    static TaxidPairs read(File dmpFile) throws IOException {
+      TaxidPairs pairs = new TaxidPairs();
+      byte[] bytes = new byte[1024 * 1024];
+      try (InputStream in = new FileInputStream(dmpFile)) {
+        // fields are separated by \t|\t, only digits of the first two ones are read
+        int field = 0;
+        int first = 0;
+        int second = 0;
+        int length;
+        while ((length = in.read(bytes)) >= 0) {
+          for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+              if (field >= 1)
+                pairs.add(first, second);
+              field = 0;
+              first = 0;
+              second = 0;
+            } else if (b == '|') {
+              field++;
+            } else if (b >= '0' && b <= '9') {
+              if (field == 0)
+                first = first * 10 + (b - '0');
+              else if (field == 1)
+                second = second * 10 + (b - '0');
+            }
+          }
+        }
+        if (field >= 1)
+          pairs.add(first, second);
+      }
+      return pairs;
+    }
+
+    private void add(int first, int second) {
+      if (size == firsts.length) {
+        firsts = Arrays.copyOf(firsts, size * 2);
+        seconds = Arrays.copyOf(seconds, size * 2);
+      }
+      firsts[size] = first;
+      seconds[size] = second;
+      size++;
+    }
+  }
+}
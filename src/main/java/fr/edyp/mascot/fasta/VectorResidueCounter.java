@@ -0,0 +1,79 @@
+package fr.edyp.mascot.fasta;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link ResidueCounter} reading sequences by vectors of bytes using the JDK Vector API : line ends are found from
+ * the mask of '\n' lanes, and upper case residues are counted by comparing the vector to each letter. Other characters
+ * (lower case, '*', '-'...) are rare and counted one at a time.
+ * Only loaded when the jdk.incubator.vector module is available.
+ */
+class VectorResidueCounter extends ResidueCounter {
+
+  private final static VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+  private final static int NB_LETTERS = 26;
+
+  @Override
+  public long scan(ByteBuffer buf, int from, int to) {
+    startSequence();
+    int lineStart = from;
+    int i = from;
+    int upperBound = from + SPECIES.loopBound(to - from);
+    for (; i < upperBound; i += SPECIES.length()) {
+      ByteVector v = ByteVector.fromByteBuffer(SPECIES, buf, i, ByteOrder.nativeOrder());
+      ByteVector index = v.sub((byte) 'A');
+      for (int c = 0; c < NB_LETTERS; c++)
+        composition['A' + c] += index.eq((byte) c).trueCount();
+
+      VectorMask<Byte> newLines = v.eq((byte) '\n');
+      int nbNewLines = newLines.trueCount();
+      int nbOthers = index.compare(VectorOperators.UNSIGNED_GE, (byte) NB_LETTERS).trueCount() - nbNewLines;
+      if (nbOthers > 0)
+        countOthers(buf, i, i + SPECIES.length());
+
+      if (nbNewLines > 0) {
+        int eol = i + newLines.firstTrue();
+        endLine(buf, lineStart, eol);
+        lineStart = eol + 1;
+        if (nbNewLines > 1) {
+          int last = i + newLines.lastTrue();
+          for (int j = eol + 1; j <= last; j++) {
+            if (buf.get(j) == '\n') {
+              endLine(buf, lineStart, j);
+              lineStart = j + 1;
+            }
+          }
+        }
+      }
+    }
+    for (; i < to; i++) {
+      byte b = buf.get(i);
+      if (b == '\n') {
+        endLine(buf, lineStart, i);
+        lineStart = i + 1;
+      } else if (b != '\r') {
+        composition[b & 0xFF]++;
+      }
+    }
+    if (lineStart < to)
+      endLine(buf, lineStart, to);
+    return sequenceResidues();
+  }
+
+  /**
+   * Count characters which are neither upper case letters nor line ends between from (inclusive) and to (exclusive)
+   */
+  private void countOthers(ByteBuffer buf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      byte b = buf.get(i);
+      if ((b < 'A' || b > 'Z') && b != '\n' && b != '\r')
+        composition[b & 0xFF]++;
+    }
+  }
+}
@@ -0,0 +1 @@
+java -cp "mascot-swissknife-${pom.version}.jar" -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto fr.edyp.mascot.fasta.ServeClient %*
\ No newline at end of file
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp "mascot-swissknife-${pom.version}.jar" -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto fr.edyp.mascot.fasta.ServeClient "$@"
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp "lib/*:mascot-swissknife-${pom.version}.jar:config" -Xmx1g fr.edyp.mascot.fasta.FastaUtil "$@"